@@ -0,0 +1,118 @@
+package org.inchain.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.inchain.Configure;
+import org.inchain.crypto.Sha256Hash;
+import org.inchain.network.NetworkParams;
+import org.inchain.store.BlockHeaderStore;
+import org.inchain.store.BlockStore;
+import org.inchain.store.BlockStoreProvider;
+import org.springframework.context.support.ClassPathXmlApplicationContext;
+
+/**
+ * 基准测试用的 spring 容器，每个 jmh fork 进程只启动一个
+ * 数据目录放在临时目录下，进程退出时删除，所以每次运行都是从空链开始
+ * @author ln
+ *
+ */
+public final class BenchmarkContext {
+
+	private static ClassPathXmlApplicationContext context;
+	private static File dataDir;
+
+	private BenchmarkContext() {
+	}
+
+	/**
+	 * 获取容器，第一次调用时启动
+	 * @return ClassPathXmlApplicationContext
+	 */
+	public static synchronized ClassPathXmlApplicationContext get() {
+		if(context != null) {
+			return context;
+		}
+		try {
+			dataDir = Files.createTempDirectory("inchain-benchmark").toFile();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		//必须在存储初始化之前修改数据目录
+		Configure.DATA_DIR = dataDir.getAbsolutePath();
+		Configure.DATA_ACCOUNT = Configure.DATA_DIR + File.separator + "account";
+		Configure.DATA_BLOCK = Configure.DATA_DIR + File.separator + "block";
+		Configure.DATA_CHAINSTATE = Configure.DATA_DIR + File.separator + "chainstate";
+		Configure.DATA_TRANSACTION = Configure.DATA_DIR + File.separator + "transaction";
+
+		context = new ClassPathXmlApplicationContext("classpath:applicationContext-benchmark.xml");
+
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override
+			public void run() {
+				close();
+			}
+		});
+		return context;
+	}
+
+	public static <T> T getBean(Class<T> type) {
+		return get().getBean(type);
+	}
+
+	/**
+	 * 从存储里的最新区块开始生成模拟链，存储为空时先保存模拟链的创世块
+	 * @param seed
+	 * @param keyCount
+	 * @return SyntheticChain
+	 */
+	public static SyntheticChain newChain(long seed, int keyCount) {
+		NetworkParams network = getBean(NetworkParams.class);
+		BlockStoreProvider blockStoreProvider = getBean(BlockStoreProvider.class);
+
+		BlockHeaderStore bestBlockHeader = blockStoreProvider.getBestBlockHeader();
+		if(bestBlockHeader != null) {
+			return new SyntheticChain(network, seed, keyCount, bestBlockHeader.getBlockHeader().getHash(), bestBlockHeader.getBlockHeader().getHeight());
+		}
+		SyntheticChain chain = new SyntheticChain(network, seed, keyCount, Sha256Hash.ZERO_HASH, -1l);
+		try {
+			blockStoreProvider.saveBlock(new BlockStore(network, chain.nextBlock(0)));
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		return chain;
+	}
+
+	/**
+	 * 关闭容器并删除临时数据目录
+	 */
+	public static synchronized void close() {
+		if(context == null) {
+			return;
+		}
+		try {
+			context.close();
+		} finally {
+			context = null;
+			deleteDir(dataDir);
+		}
+	}
+
+	private static void deleteDir(File dir) {
+		if(dir == null || !dir.exists()) {
+			return;
+		}
+		File[] files = dir.listFiles();
+		if(files != null) {
+			for (File file : files) {
+				if(file.isDirectory()) {
+					deleteDir(file);
+				} else {
+					file.delete();
+				}
+			}
+		}
+		dir.delete();
+	}
+}
@@ -0,0 +1,61 @@
+package org.inchain.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.inchain.network.NetworkParams;
+import org.inchain.store.BlockStore;
+import org.inchain.store.BlockStoreProvider;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * 区块保存的性能，存储是临时目录下的 LevelDB
+ * 每次保存的都是模拟链的下一个区块，区块的生成和签名在 Level.Invocation 的准备阶段完成，不计入耗时
+ * @author ln
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BlockStoreBenchmark {
+
+	//区块包含的转账交易数
+	@Param({ "10", "100", "1000" })
+	private int txCount;
+
+	private NetworkParams network;
+	private BlockStoreProvider blockStoreProvider;
+	private SyntheticChain chain;
+	private BlockStore next;
+
+	@Setup
+	public void setup() {
+		network = BenchmarkContext.getBean(NetworkParams.class);
+		blockStoreProvider = BenchmarkContext.getBean(BlockStoreProvider.class);
+		chain = BenchmarkContext.newChain(1l, 100);
+	}
+
+	@Setup(Level.Invocation)
+	public void nextBlock() {
+		next = new BlockStore(network, chain.nextBlock(txCount));
+	}
+
+	@Benchmark
+	public void saveBlock() throws IOException {
+		blockStoreProvider.saveBlock(next);
+	}
+}
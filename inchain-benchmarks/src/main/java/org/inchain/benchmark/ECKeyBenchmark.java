@@ -0,0 +1,62 @@
+package org.inchain.benchmark;
+
+import java.math.BigInteger;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.inchain.crypto.ECKey;
+import org.inchain.crypto.ECKey.ECDSASignature;
+import org.inchain.crypto.Sha256Hash;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * ECDSA 签名和验证签名的性能
+ * @author ln
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ECKeyBenchmark {
+
+	private ECKey key;
+	private byte[] pubkey;
+	private Sha256Hash hash;
+	private byte[] signature;
+
+	@Setup
+	public void setup() {
+		Random random = new Random(1l);
+		byte[] privKey = new byte[32];
+		random.nextBytes(privKey);
+		key = ECKey.fromPrivate(new BigInteger(1, privKey));
+		pubkey = key.getPubKey(true);
+
+		byte[] content = new byte[32];
+		random.nextBytes(content);
+		hash = Sha256Hash.wrap(content);
+		signature = key.sign(hash).encodeToDER();
+	}
+
+	@Benchmark
+	public ECDSASignature sign() {
+		return key.sign(hash);
+	}
+
+	@Benchmark
+	public boolean verify() {
+		return ECKey.verify(hash.getBytes(), signature, pubkey);
+	}
+}
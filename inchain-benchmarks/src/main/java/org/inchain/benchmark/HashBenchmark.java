@@ -0,0 +1,47 @@
+package org.inchain.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.inchain.crypto.Sha256Hash;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * 双 sha256 的性能，数据长度覆盖交易 hash（几百字节）和区块 hash
+ * @author ln
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HashBenchmark {
+
+	@Param({ "32", "250", "1024", "65536" })
+	private int size;
+
+	private byte[] data;
+
+	@Setup
+	public void setup() {
+		data = new byte[size];
+		new Random(1l).nextBytes(data);
+	}
+
+	@Benchmark
+	public Sha256Hash twiceOf() {
+		return Sha256Hash.twiceOf(data);
+	}
+}
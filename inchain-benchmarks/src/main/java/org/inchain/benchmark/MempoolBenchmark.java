@@ -0,0 +1,107 @@
+package org.inchain.benchmark;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.inchain.crypto.Sha256Hash;
+import org.inchain.mempool.Mempool;
+import org.inchain.mempool.MempoolContainer;
+import org.inchain.network.UnitNetworkParams;
+import org.inchain.transaction.Transaction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * 内存池在多线程并发下新增、取出交易的性能
+ * 每个线程轮流放入自己那一段交易，再取出一笔优先级最高的交易并确认移除，模拟收交易和打包同时进行
+ * @author ln
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MempoolBenchmark {
+
+	//每个线程使用的交易数
+	private final static int THREAD_TX_COUNT = 2000;
+	//最多的并发线程数
+	private final static int MAX_THREADS = 16;
+
+	private final Mempool mempool = MempoolContainer.getInstace();
+	private final AtomicInteger threadIndex = new AtomicInteger();
+	private List<Transaction> txs;
+
+	@Setup
+	public void setup() {
+		SyntheticChain chain = new SyntheticChain(new UnitNetworkParams(), 1l, 100, Sha256Hash.ZERO_HASH, 0l);
+		int count = THREAD_TX_COUNT * MAX_THREADS;
+		chain.nextBlock(count);
+		txs = chain.newTransactions(count);
+	}
+
+	@TearDown(Level.Iteration)
+	public void clear() {
+		for (Transaction tx : txs) {
+			mempool.remove(tx.getHash());
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class ThreadState {
+		private int offset;
+		private int index;
+
+		@Setup
+		public void setup(MempoolBenchmark benchmark) {
+			offset = (benchmark.threadIndex.getAndIncrement() % MAX_THREADS) * THREAD_TX_COUNT;
+		}
+
+		Transaction next(List<Transaction> txs) {
+			Transaction tx = txs.get(offset + index);
+			index = (index + 1) % THREAD_TX_COUNT;
+			return tx;
+		}
+	}
+
+	@Benchmark
+	@Threads(1)
+	public Transaction addAndPoll(ThreadState state) {
+		return addAndPoll0(state);
+	}
+
+	@Benchmark
+	@Threads(4)
+	public Transaction addAndPoll4(ThreadState state) {
+		return addAndPoll0(state);
+	}
+
+	@Benchmark
+	@Threads(MAX_THREADS)
+	public Transaction addAndPoll16(ThreadState state) {
+		return addAndPoll0(state);
+	}
+
+	private Transaction addAndPoll0(ThreadState state) {
+		mempool.add(state.next(txs));
+		Transaction tx = mempool.get();
+		if(tx != null) {
+			mempool.remove(tx.getHash());
+		}
+		return tx;
+	}
+}
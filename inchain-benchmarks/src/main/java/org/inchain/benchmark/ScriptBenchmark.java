@@ -0,0 +1,68 @@
+package org.inchain.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.inchain.crypto.Sha256Hash;
+import org.inchain.network.NetworkParams;
+import org.inchain.network.UnitNetworkParams;
+import org.inchain.script.Script;
+import org.inchain.transaction.Transaction;
+import org.inchain.transaction.TransactionInput;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * 普通账户转账交易的脚本执行性能
+ * execute 是交易验证里对输入脚本的执行，run 是输入脚本加上一输出脚本的完整执行，包含签名 hash 的计算和验证签名
+ * @author ln
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ScriptBenchmark {
+
+	private Transaction tx;
+	private Script scriptSig;
+	private Script verifyScript;
+	private byte[] scriptBytes;
+
+	@Setup
+	public void setup() {
+		NetworkParams network = new UnitNetworkParams();
+		SyntheticChain chain = new SyntheticChain(network, 1l, 10, Sha256Hash.ZERO_HASH, 0l);
+		chain.nextBlock(1);
+		tx = chain.newTransactions(1).get(0);
+
+		TransactionInput input = tx.getInput(0);
+		scriptSig = input.getScriptSig();
+		verifyScript = input.getFroms().get(0).getScript();
+		scriptBytes = verifyScript.getProgram();
+	}
+
+	@Benchmark
+	public void execute() {
+		scriptSig.execute(verifyScript);
+	}
+
+	@Benchmark
+	public void run() {
+		scriptSig.run(tx, 0, verifyScript);
+	}
+
+	@Benchmark
+	public Script parse() {
+		return new Script(scriptBytes);
+	}
+}
@@ -0,0 +1,90 @@
+package org.inchain.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.inchain.crypto.Sha256Hash;
+import org.inchain.message.Block;
+import org.inchain.message.DefaultMessageSerializer;
+import org.inchain.message.Message;
+import org.inchain.network.NetworkParams;
+import org.inchain.network.UnitNetworkParams;
+import org.inchain.transaction.Transaction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * 交易和区块通过 DefaultMessageSerializer 序列化、反序列化的性能
+ * 序列化的对象都是新生成的，没有缓存的字节数组，每次都会完整序列化
+ * @author ln
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializeBenchmark {
+
+	//区块包含的转账交易数
+	@Param({ "100", "1000" })
+	private int txCount;
+
+	private DefaultMessageSerializer serializer;
+	private Transaction tx;
+	private Block block;
+	private byte[] txBytes;
+	private byte[] blockBytes;
+
+	@Setup
+	public void setup() throws IOException {
+		NetworkParams network = new UnitNetworkParams();
+		serializer = new DefaultMessageSerializer(network);
+
+		SyntheticChain chain = new SyntheticChain(network, 1l, 100, Sha256Hash.ZERO_HASH, 0l);
+		chain.nextBlock(txCount);
+		block = chain.nextBlock(txCount);
+		tx = block.getTxs().get(1);
+
+		txBytes = serialize(tx);
+		blockBytes = serialize(block);
+	}
+
+	@Benchmark
+	public byte[] serializeTransaction() throws IOException {
+		return serialize(tx);
+	}
+
+	@Benchmark
+	public Message deserializeTransaction() throws IOException {
+		return serializer.deserialize(ByteBuffer.wrap(txBytes));
+	}
+
+	@Benchmark
+	public byte[] serializeBlock() throws IOException {
+		return serialize(block);
+	}
+
+	@Benchmark
+	public Message deserializeBlock() throws IOException {
+		return serializer.deserialize(ByteBuffer.wrap(blockBytes));
+	}
+
+	private byte[] serialize(Message message) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		serializer.serialize(message, out);
+		return out.toByteArray();
+	}
+}
@@ -0,0 +1,238 @@
+package org.inchain.benchmark;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+
+import org.inchain.account.AccountTool;
+import org.inchain.account.Address;
+import org.inchain.core.Coin;
+import org.inchain.core.Definition;
+import org.inchain.crypto.ECKey;
+import org.inchain.crypto.Sha256Hash;
+import org.inchain.message.Block;
+import org.inchain.network.NetworkParams;
+import org.inchain.network.NetworkParams.ProtocolVersion;
+import org.inchain.script.ScriptBuilder;
+import org.inchain.signers.LocalTransactionSigner;
+import org.inchain.transaction.Transaction;
+import org.inchain.transaction.TransactionInput;
+import org.inchain.transaction.TransactionOutput;
+
+/**
+ * 可重现的模拟链生成器
+ * 私钥、时间、金额都由种子决定，签名是确定性的，同样的种子每次生成的区块和交易完全一样
+ * 每个区块的 coinbase 给模拟账户产生新的输出，普通转账交易只花费之前区块里已确认的输出
+ * @author ln
+ *
+ */
+public class SyntheticChain {
+
+	//模拟链的起始时间，秒
+	private final static long START_TIME = 1500000000l;
+	//出块间隔，秒
+	private final static long BLOCK_INTERVAL = 10l;
+	//每笔转账的手续费
+	private final static Coin FEE = Coin.valueOf(1000l);
+
+	private final NetworkParams network;
+	private final Random random;
+	//模拟账户的私钥
+	private final ECKey[] keys;
+	private final Address[] addresses;
+
+	//已确认，可以花费的输出
+	private final LinkedList<SpendableOutput> spendables = new LinkedList<SpendableOutput>();
+
+	private Sha256Hash preHash;
+	private long height;
+
+	/**
+	 * 从指定的区块之后开始生成
+	 * @param network
+	 * @param seed			随机种子
+	 * @param keyCount		模拟账户数量
+	 * @param preHash		上一区块hash
+	 * @param preHeight		上一区块高度
+	 */
+	public SyntheticChain(NetworkParams network, long seed, int keyCount, Sha256Hash preHash, long preHeight) {
+		this.network = network;
+		this.random = new Random(seed);
+		this.keys = new ECKey[keyCount];
+		this.addresses = new Address[keyCount];
+		for (int i = 0; i < keyCount; i++) {
+			byte[] privKey = new byte[32];
+			random.nextBytes(privKey);
+			keys[i] = ECKey.fromPrivate(new BigInteger(1, privKey));
+			addresses[i] = AccountTool.newAddress(network, network.getSystemAccountVersion(), keys[i]);
+		}
+		this.preHash = preHash;
+		this.height = preHeight;
+	}
+
+	/**
+	 * 生成下一个区块，coinbase 产生 txCount 个新输出，另外包含 txCount 笔转账交易（可花费的输出不够时会少一些）
+	 * @param txCount
+	 * @return Block
+	 */
+	public Block nextBlock(int txCount) {
+		long time = START_TIME + (height + 1) * BLOCK_INTERVAL;
+
+		List<Transaction> txs = new ArrayList<Transaction>();
+		txs.add(newCoinbase(Math.max(txCount, 1), time));
+		for (int i = 0; i < txCount && !spendables.isEmpty(); i++) {
+			txs.add(newTransaction(spendables.poll(), time));
+		}
+
+		Block block = new Block(network);
+		block.setVersion(network.getProtocolVersionNum(ProtocolVersion.CURRENT));
+		block.setPreHash(preHash);
+		block.setHeight(height + 1);
+		block.setTime(time);
+		block.setPeriodCount(0);
+		block.setTimePeriod(0);
+		block.setPeriodStartTime(time);
+		block.setTxs(txs);
+		block.setTxCount(txs.size());
+		block.setMerkleHash(block.buildMerkleHash());
+		sign(block, keys[0]);
+
+		//区块里的输出确认之后才能花费
+		for (Transaction tx : txs) {
+			addSpendables(tx);
+		}
+		preHash = block.getHash();
+		height = block.getHeight();
+		return block;
+	}
+
+	/**
+	 * 生成多笔花费已生成区块里的输出的转账交易，这些输出之后不会再被生成器使用
+	 * 交易不会被打包，可以反复用来做验证或者放入内存池
+	 * @param count
+	 * @return List<Transaction>
+	 */
+	public List<Transaction> newTransactions(int count) {
+		long time = START_TIME + (height + 1) * BLOCK_INTERVAL;
+		List<Transaction> txs = new ArrayList<Transaction>();
+		for (int i = 0; i < count; i++) {
+			if(spendables.isEmpty()) {
+				throw new IllegalStateException("可花费的输出不够，需要先生成更多区块");
+			}
+			txs.add(newTransaction(spendables.poll(), time));
+		}
+		return txs;
+	}
+
+	public ECKey getKey(int index) {
+		return keys[index];
+	}
+
+	public Sha256Hash getPreHash() {
+		return preHash;
+	}
+
+	public long getHeight() {
+		return height;
+	}
+
+	/*
+	 * coinbase 交易，输出随机分给模拟账户
+	 */
+	private Transaction newCoinbase(int outputCount, long time) {
+		Transaction tx = new Transaction(network);
+		tx.setVersion(Definition.VERSION);
+		tx.setType(Definition.TYPE_COINBASE);
+		tx.setTime(time * 1000);
+		tx.setLockTime(time * 1000);
+
+		TransactionInput input = new TransactionInput();
+		input.setScriptSig(ScriptBuilder.createCoinbaseInputScript(("synthetic block " + (height + 1)).getBytes()));
+		tx.addInput(input);
+
+		for (int i = 0; i < outputCount; i++) {
+			int keyIndex = random.nextInt(keys.length);
+			tx.addOutput(Coin.COIN.multiply(100), addresses[keyIndex]);
+		}
+		return tx;
+	}
+
+	/*
+	 * 花费一个输出，转一部分给随机账户，剩下的找零
+	 */
+	private Transaction newTransaction(SpendableOutput spendable, long time) {
+		TransactionOutput from = spendable.output;
+		ECKey key = keys[spendable.keyIndex];
+
+		Transaction tx = new Transaction(network);
+		tx.setVersion(Definition.VERSION);
+		tx.setType(Definition.TYPE_PAY);
+		tx.setTime(time * 1000);
+		tx.setLockTime(time * 1000);
+
+		TransactionInput input = tx.addInput(from);
+		input.setScriptSig(ScriptBuilder.createInputScript(null, key));
+
+		Coin total = Coin.valueOf(from.getValue()).subtract(FEE);
+		Coin amount = Coin.valueOf(1 + (long) (random.nextDouble() * (total.value - 1)));
+		int toIndex = random.nextInt(keys.length);
+		tx.addOutput(amount, addresses[toIndex]);
+		if(total.isGreaterThan(amount)) {
+			tx.addOutput(total.subtract(amount), addresses[spendable.keyIndex]);
+		}
+
+		new LocalTransactionSigner().signInputs(tx, key);
+		return tx;
+	}
+
+	/*
+	 * 交易输出加入可花费列表
+	 */
+	private void addSpendables(Transaction tx) {
+		for (TransactionOutput output : tx.getOutputs()) {
+			byte[] hash160 = output.getScript().getChunks().get(2).data;
+			spendables.add(new SpendableOutput(output, findKey(hash160)));
+		}
+	}
+
+	private int findKey(byte[] hash160) {
+		for (int i = 0; i < addresses.length; i++) {
+			if(Arrays.equals(addresses[i].getHash160(), hash160)) {
+				return i;
+			}
+		}
+		throw new IllegalStateException("输出不属于模拟账户");
+	}
+
+	/*
+	 * 普通账户给区块签名
+	 */
+	private void sign(Block block, ECKey key) {
+		Sha256Hash headerHash;
+		try {
+			headerHash = block.getHeaderHash();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		byte[] sign = key.sign(headerHash).encodeToDER();
+		byte[] hash160 = addresses[0].getHash160();
+		block.setScriptBytes(ScriptBuilder.createSystemAccountScript(hash160, key.getPubKey(true), sign).getProgram());
+	}
+
+	/*
+	 * 可花费的输出，以及对应的模拟账户
+	 */
+	private static class SpendableOutput {
+		private final TransactionOutput output;
+		private final int keyIndex;
+
+		SpendableOutput(TransactionOutput output, int keyIndex) {
+			this.output = output;
+			this.keyIndex = keyIndex;
+		}
+	}
+}
@@ -0,0 +1,93 @@
+package org.inchain.benchmark;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.inchain.network.NetworkParams;
+import org.inchain.store.BlockStore;
+import org.inchain.store.BlockStoreProvider;
+import org.inchain.transaction.Transaction;
+import org.inchain.validator.TransactionValidator;
+import org.inchain.validator.TransactionValidatorResult;
+import org.inchain.validator.ValidatorResult;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * 交易验证的性能，模拟链先保存到临时的存储里，待验证的交易花费链上未花费的输出
+ * 每次验证都重新反序列化交易，和从网络收到的交易一样，引用的上一交易需要从存储里查询
+ * 反序列化本身的耗时见 {@link SerializeBenchmark}
+ * @author ln
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TransactionValidatorBenchmark {
+
+	//模拟链的区块数
+	private final static int BLOCK_COUNT = 20;
+	//每个区块的交易数
+	private final static int BLOCK_TX_COUNT = 100;
+	//待验证的交易数
+	private final static int VERIFY_TX_COUNT = 1000;
+
+	private NetworkParams network;
+	private TransactionValidator transactionValidator;
+	private List<byte[]> txs;
+	private int index;
+
+	@Setup
+	public void setup() throws IOException {
+		network = BenchmarkContext.getBean(NetworkParams.class);
+		transactionValidator = BenchmarkContext.getBean(TransactionValidator.class);
+		BlockStoreProvider blockStoreProvider = BenchmarkContext.getBean(BlockStoreProvider.class);
+
+		SyntheticChain chain = BenchmarkContext.newChain(1l, 100);
+		for (int i = 0; i < BLOCK_COUNT; i++) {
+			blockStoreProvider.saveBlock(new BlockStore(network, chain.nextBlock(BLOCK_TX_COUNT)));
+		}
+
+		txs = new ArrayList<byte[]>();
+		for (Transaction tx : chain.newTransactions(VERIFY_TX_COUNT)) {
+			txs.add(tx.baseSerialize());
+		}
+		//确认模拟的交易能通过验证，否则测的只是出错的分支
+		ValidatorResult<TransactionValidatorResult> rs = transactionValidator.valDo(nextTransaction());
+		if(!rs.getResult().isSuccess()) {
+			throw new IllegalStateException("模拟交易验证不通过：" + rs.getResult().getMessage());
+		}
+	}
+
+	@Benchmark
+	public ValidatorResult<TransactionValidatorResult> valDo() {
+		return transactionValidator.valDo(nextTransaction());
+	}
+
+	/**
+	 * 签名和脚本已经验证过，只验证依赖链状态的部分，对应区块验证时的第二阶段
+	 */
+	@Benchmark
+	public ValidatorResult<TransactionValidatorResult> valDoScriptVerified() {
+		return transactionValidator.valDo(nextTransaction(), null, true);
+	}
+
+	private Transaction nextTransaction() {
+		byte[] txBytes = txs.get(index);
+		index = (index + 1) % txs.size();
+		return network.getDefaultSerializer().makeTransaction(txBytes, 0);
+	}
+}
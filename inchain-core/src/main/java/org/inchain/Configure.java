@@ -74,6 +74,31 @@ public final class Configure {
 	 */
 	public final static int MAX_CONNECT_COUNT = getProperty("max.connect.count", 10);
 	
+	/**
+	 * 网络读写的工作线程数，每个线程一个 selector，连接轮流分配到各个线程，默认为CPU核数
+	 */
+	public final static int NET_WORKER_THREADS = getProperty("net.worker.threads", Runtime.getRuntime().availableProcessors());
+	
+	/**
+	 * 网络消息校验和反序列化的线程数，同一个节点的消息仍然按顺序处理，默认为CPU核数
+	 */
+	public final static int NET_DECODE_THREADS = getProperty("net.decode.threads", Runtime.getRuntime().availableProcessors());
+	
+	/**
+	 * 处理网络消息的线程数，所有节点共用，默认为CPU核数的2倍
+	 */
+	public final static int MESSAGE_PROCESS_THREADS = getProperty("message.process.threads", Runtime.getRuntime().availableProcessors() * 2);
+	
+	/**
+	 * 单个节点最多等待处理的消息数，超过后暂停读取该节点的数据，直到处理完一半
+	 */
+	public final static int PEER_MAX_PENDING_MESSAGES = getProperty("peer.max.pending.messages", 2000);
+	
+	/**
+	 * 单个节点最多等待解码的消息数，超过后暂停读取该节点的数据，直到解码完一半
+	 */
+	public final static int PEER_MAX_PENDING_DECODES = getProperty("peer.max.pending.decodes", 1000);
+	
 	/**
 	 * 区块生成间隔时间，单位秒
 	 */
@@ -107,6 +132,71 @@ public final class Configure {
 	 * 与帐户有关的交易存储目录
 	 */
 	public static String DATA_TRANSACTION = DATA_DIR + File.separator + "transaction";
+	/**
+	 * 区块原始数据文件存储目录
+	 */
+	public static String DATA_BLOCK_FILES = DATA_DIR + File.separator + "blocks";
+	/**
+	 * 是否把区块的原始数据追加保存到区块文件里，开启后给其它节点发送区块时直接发送文件里的数据，不需要重新组装和序列化
+	 */
+	public static boolean BLOCK_FILES = getProperty("store.block.files", false);
+	/**
+	 * 单个区块文件的最大字节数，超过后写入下一个文件
+	 */
+	public static int BLOCK_FILE_SIZE = getProperty("store.block.file.size", 128 * 1024 * 1024);
+	/**
+	 * 区块存储引擎，leveldb：交易完整保存在区块存储里；flatfile：交易只在区块文件里保存一份，区块存储里只存交易在文件里的位置
+	 * 只在新建区块存储时生效，已有数据按原来的引擎继续使用，切换需要重新同步
+	 */
+	public static String STORE_ENGINE = getProperty("store.engine", "leveldb");
+	/**
+	 * 裁剪模式保留最近多少个区块的完整数据，为0时不裁剪，只在 flatfile 引擎下生效
+	 * 更早的区块文件整个删除，里面还有未花费输出或者业务数据的交易先转存到区块存储里
+	 */
+	public static int PRUNE_KEEP_BLOCKS = getProperty("store.prune.keep", 0);
+	/**
+	 * 是否开启 assume-valid，同步 assume-valid 区块及之前的历史区块时，不再验证交易的签名和赎回脚本
+	 * 梅克尔树根、区块衔接、出块人签名、输入输出的花费和金额仍然验证
+	 * 需要有 assume-valid 区块才生效，网络参数没有内置时通过 {@link #ASSUME_VALID_BLOCK} 指定
+	 */
+	public static boolean ASSUME_VALID = getProperty("assumevalid", true);
+	/**
+	 * 指定 assume-valid 区块，格式 高度:hash，为空时使用网络参数里内置的区块
+	 */
+	public static String ASSUME_VALID_BLOCK = getProperty("assumevalid.block", "");
+	/**
+	 * assume-valid 区块之前的区块暂存文件上限，MB，超过时已暂存的区块提前完整验证收录，之后的区块重新开始暂存
+	 * 暂存的区块要等 assume-valid 区块到达才能确认是它的祖先，上限越小，完整验证的区块越多
+	 */
+	public static int ASSUME_VALID_STAGING_SIZE = getProperty("assumevalid.staging.mb", 1024);
+	/**
+	 * 是否维护地址交易索引，开启后导入账户、重新加载交易时不需要遍历整条链
+	 */
+	public static boolean ADDRESS_INDEX = getProperty("address.index", true);
+	/**
+	 * 区块头缓存数量，按hash和高度各缓存这么多，为0时不缓存
+	 */
+	public static int CACHE_HEADER_SIZE = getProperty("cache.header.size", 2000);
+	/**
+	 * 交易缓存数量，为0时不缓存
+	 */
+	public static int CACHE_TRANSACTION_SIZE = getProperty("cache.transaction.size", 10000);
+	/**
+	 * 账户信息缓存数量，为0时不缓存
+	 */
+	public static int CACHE_ACCOUNT_SIZE = getProperty("cache.account.size", 5000);
+	/**
+	 * 交易输出花费状态缓存数量，为0时不缓存
+	 */
+	public static int CACHE_UTXO_SIZE = getProperty("cache.utxo.size", 200000);
+	/**
+	 * 交易输出花费状态缓存的分段数量，并行验证的线程按 key 分散到不同分段
+	 */
+	public static int CACHE_UTXO_SEGMENTS = getProperty("cache.utxo.segments", 16);
+	/**
+	 * 区块交易签名和脚本并行验证的线程数，默认为CPU核数
+	 */
+	public static int VERIFY_THREADS = getProperty("verify.threads", Runtime.getRuntime().availableProcessors());
 	
 	/*************  RPC 相关配置  begin  *****************/
 	
@@ -209,12 +299,12 @@ public final class Configure {
 	/*************  系统级配置   begin  *****************/
 	
 	/**
-	 * 认证账户列表存储键
+	 * 认证账户列表存储键，老版本整个列表存一条记录，现在只用于数据转换
 	 */
 	public final static byte[] CERT_ACCOUNT_KEYS = Sha256Hash.hashTwice("cert_account_keys".getBytes());
 	
 	/**
-	 * 共识账户列表存储键
+	 * 共识账户列表存储键，老版本整个列表存一条记录，现在只用于数据转换
 	 */
 	public final static byte[] CONSENSUS_ACCOUNT_KEYS = Sha256Hash.hashTwice("consensus_account_keys".getBytes());
 	
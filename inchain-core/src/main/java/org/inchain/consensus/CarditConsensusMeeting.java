@@ -4,11 +4,9 @@ import java.io.IOException;
 import java.nio.channels.NotYetConnectedException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -23,7 +21,6 @@ import org.inchain.Configure;
 import org.inchain.account.Account;
 import org.inchain.account.Address;
 import org.inchain.core.DataSynchronizeHandler;
-import org.inchain.core.Definition;
 import org.inchain.core.Peer;
 import org.inchain.core.TimeService;
 import org.inchain.crypto.Sha256Hash;
@@ -37,12 +34,7 @@ import org.inchain.message.InventoryItem;
 import org.inchain.message.InventoryMessage;
 import org.inchain.network.NetworkParams;
 import org.inchain.store.BlockHeaderStore;
-import org.inchain.store.BlockStore;
 import org.inchain.store.BlockStoreProvider;
-import org.inchain.transaction.Transaction;
-import org.inchain.transaction.business.RegConsensusTransaction;
-import org.inchain.transaction.business.RemConsensusTransaction;
-import org.inchain.transaction.business.ViolationTransaction;
 import org.inchain.utils.ByteArrayTool;
 import org.inchain.utils.DateUtil;
 import org.slf4j.Logger;
@@ -84,6 +76,8 @@ public class CarditConsensusMeeting implements ConsensusMeeting {
 	private DataSynchronizeHandler dataSynchronizeHandler;
 	@Autowired
 	private BlockStoreProvider blockStoreProvider;
+	@Autowired
+	private ConsensusRosterHistory consensusRosterHistory;
 
 	//任务调度器
 	private final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1);
@@ -378,80 +372,12 @@ public class CarditConsensusMeeting implements ConsensusMeeting {
 	}
 
 	/**
-	 * 获取某论的共识快照，从最新的内存映射倒推
-	 * TODO 可以考虑做一个内存映射，每次分析计算量太大 ？
+	 * 获取某论的共识快照，由共识名单历史按区块的共识变化记录倒推，结果有缓存
 	 * @param periodStartTime
 	 * @return List<ConsensusAccount>
 	 */
 	public List<ConsensusAccount> analysisConsensusSnapshots(long periodStartTime) {
-		
-		List<ConsensusAccount> consensusList = consensusPool.listSnapshots();
-		
-		byte[] endBlockHashBytes = blockStoreProvider.getBestBlockHeader().getBlockHeader().getHash().getBytes();
-		while(true) {
-			BlockStore blockStore = blockStoreProvider.getBlock(endBlockHashBytes);
-			if(blockStore == null || blockStore.getBlock() == null) {
-				break;
-			}
-			
-			Block block = blockStore.getBlock();
-			if(block.getHeight() == 0l || block.getPeriodStartTime() < periodStartTime) {
-				break;
-			}
-			
-			List<Transaction> txList = block.getTxs();
-			for (Transaction transaction : txList) {
-				//共识的注册与退出
-				if(transaction.getType() == Definition.TYPE_REG_CONSENSUS) {
-					//注册新的，那么删除掉
-					RegConsensusTransaction regTx = (RegConsensusTransaction) transaction;
-					Iterator<ConsensusAccount> it = consensusList.iterator();
-					while(it.hasNext()) {
-						ConsensusAccount consensusAccount = it.next();
-						if(Arrays.equals(regTx.getHash160(), consensusAccount.getHash160())) {
-							it.remove();
-							break;
-						}
-					}
-				} else if(transaction.getType() == Definition.TYPE_REM_CONSENSUS || transaction.getType() == Definition.TYPE_VIOLATION) {
-					//删除掉的，新增进去
-					byte[] hash160 = null;
-					
-					if(transaction.getType() == Definition.TYPE_REM_CONSENSUS) {
-						//主动退出共识
-						RemConsensusTransaction remTx = (RemConsensusTransaction) transaction;
-						hash160 = remTx.getHash160();
-					} else {
-						//违规惩罚交易
-						ViolationTransaction vtx = (ViolationTransaction) transaction;
-						hash160 = vtx.getViolationEvidence().getAudienceHash160();
-					}
-					//这里面用不到公钥，所以不用设置
-					consensusList.add(new ConsensusAccount(hash160, null));
-				}
-			}
-			
-			if(block.getPeriodStartTime() < periodStartTime) {
-				break;
-			} else {
-				endBlockHashBytes = block.getPreHash().getBytes();
-			}
-			
-		}
-		//排序
-		consensusList.sort(new Comparator<ConsensusAccount>() {
-			@Override
-			public int compare(ConsensusAccount o1, ConsensusAccount o2) {
-				if(o1.getSortValue() == null) {
-					o1.setSortValue(Sha256Hash.twiceOf((periodStartTime + o1.getHash160Hex()).getBytes()));
-				}
-				if(o2.getSortValue() == null) {
-					o2.setSortValue(Sha256Hash.twiceOf((periodStartTime + o2.getHash160Hex()).getBytes()));
-				}
-				return o1.getSortValue().toString().compareTo(o2.getSortValue().toString());
-			}
-		});
-		return consensusList;
+		return consensusRosterHistory.getRoster(periodStartTime);
 	}
 	
 	/**
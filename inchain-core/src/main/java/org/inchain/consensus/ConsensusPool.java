@@ -38,11 +38,23 @@ public interface ConsensusPool {
 	public byte[][] getPubkey(byte[] hash160);
 
 	/**
-	 * 当前共识节点列表快照
+	 * 当前共识节点列表快照，不能修改，需要排序的调用方自己复制一份
 	 * @return List<ConsensusAccount>
 	 */
 	public List<ConsensusAccount> listSnapshots();
 	
+	/**
+	 * 当前共识池的快照，不会再被修改
+	 * @return ConsensusSnapshot
+	 */
+	public ConsensusSnapshot getSnapshot();
+	
+	/**
+	 * 区块保存或回滚之后，标记共识池对应的区块高度
+	 * @param height
+	 */
+	public void setHeight(long height);
+	
 	/**
 	 * 获取当前共识人数
 	 * @return int
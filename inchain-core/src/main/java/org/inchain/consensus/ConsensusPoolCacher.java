@@ -1,18 +1,16 @@
 package org.inchain.consensus;
 
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Map;
-import java.util.Map.Entry;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.annotation.PostConstruct;
 
-import org.inchain.Configure;
 import org.inchain.account.AccountTool;
 import org.inchain.account.Address;
+import org.inchain.core.Hash160Key;
 import org.inchain.crypto.ECKey;
 import org.inchain.crypto.Sha256Hash;
 import org.inchain.network.NetworkParams;
@@ -26,6 +24,7 @@ import org.springframework.stereotype.Component;
 /**
  * 共识池节点缓存，所有注册参与共识的节点都会存放到里面
  * 当有节点加入或者退出，这里同时更新维护
+ * 节点按 hash160 的内容作为 key，查询是 O(1)，读取的都是不可变的快照，加入或退出时复制一份修改后再替换
  * @author ln
  *
  */
@@ -34,8 +33,10 @@ public class ConsensusPoolCacher implements ConsensusPool {
 
 	private final Logger log = LoggerFactory.getLogger(getClass());
 	
-	private final Map<byte[], byte[][]> container = new ConcurrentHashMap<byte[], byte[][]>();
-	private final Map<byte[], Sha256Hash> txContainer = new ConcurrentHashMap<byte[], Sha256Hash>();
+	//修改锁，读取不需要锁
+	private final Lock lock = new ReentrantLock();
+	//当前快照
+	private volatile ConsensusSnapshot snapshot = ConsensusSnapshot.EMPTY;
 	
 	@Autowired
 	private NetworkParams network;
@@ -63,22 +64,18 @@ public class ConsensusPoolCacher implements ConsensusPool {
 	 * 加载当前共识账户列表
 	 */
 	private void initConsensusAccounts() {
-		byte[] consensusAccounts = chainstateStoreProvider.getBytes(Configure.CONSENSUS_ACCOUNT_KEYS);
-		if(consensusAccounts == null) {
-			return;
-		}
-		for (int i = 0; i < consensusAccounts.length; i += (Address.LENGTH + Sha256Hash.LENGTH)) {
-			byte[] hash160 = Arrays.copyOfRange(consensusAccounts, i, i + Address.LENGTH);
+		for (byte[] consensusAccount : chainstateStoreProvider.getConsensusAccounts()) {
+			byte[] hash160 = Arrays.copyOfRange(consensusAccount, 0, Address.LENGTH);
 			AccountStore accountStore = chainstateStoreProvider.getAccountInfo(hash160);
 			if(accountStore == null) {
 				continue;
 			}
 			
-			byte[] txhash = Arrays.copyOfRange(consensusAccounts, i + Address.LENGTH, i + Address.LENGTH + Sha256Hash.LENGTH);
+			byte[] txhash = Arrays.copyOfRange(consensusAccount, Address.LENGTH, Address.LENGTH + Sha256Hash.LENGTH);
 			add(accountStore.getHash160(), Sha256Hash.wrap(txhash), accountStore.getPubkeys());
 		}
 		
-		log.info("加载已有的{}个共识", container.size());
+		log.info("加载已有的{}个共识", snapshot.size());
 	}
 	
 	/**
@@ -90,12 +87,20 @@ public class ConsensusPoolCacher implements ConsensusPool {
 			log.warn("公钥不匹配的共识");
 			return;
 		}
-		if(contains(hash160)) {
-			log.warn("重复的共识节点");
-			return;
+		lock.lock();
+		try {
+			ConsensusSnapshot current = snapshot;
+			if(current.contains(hash160)) {
+				log.warn("重复的共识节点");
+				return;
+			}
+			byte[] key = Arrays.copyOf(hash160, hash160.length);
+			LinkedHashMap<Hash160Key, ConsensusSnapshot.Member> members = current.copyMembers();
+			members.put(new Hash160Key(key), new ConsensusSnapshot.Member(key, pubkey, txhash));
+			snapshot = ConsensusSnapshot.of(current.getVersion() + 1, current.getHeight(), members);
+		} finally {
+			lock.unlock();
 		}
-		container.put(hash160, pubkey);
-		txContainer.put(hash160, txhash);
 	}
 	
 	/**
@@ -133,14 +138,17 @@ public class ConsensusPoolCacher implements ConsensusPool {
 	 * 移除共识节点
 	 */
 	public void delete(byte[] hash160) {
-		Iterator<Entry<byte[], byte[][]>> it = container.entrySet().iterator();
-		while(it.hasNext()) {
-			Entry<byte[], byte[][]> entry = it.next();
-			byte[] key = entry.getKey();
-			if(Arrays.equals(hash160, key)) {
-				txContainer.remove(key);
-				it.remove();
+		lock.lock();
+		try {
+			ConsensusSnapshot current = snapshot;
+			if(!current.contains(hash160)) {
+				return;
 			}
+			LinkedHashMap<Hash160Key, ConsensusSnapshot.Member> members = current.copyMembers();
+			members.remove(new Hash160Key(hash160));
+			snapshot = ConsensusSnapshot.of(current.getVersion() + 1, current.getHeight(), members);
+		} finally {
+			lock.unlock();
 		}
 	}
 	
@@ -150,12 +158,7 @@ public class ConsensusPoolCacher implements ConsensusPool {
 	 * @return boolean
 	 */
 	public boolean contains(byte[] hash160) {
-		for (Entry<byte[], byte[][]> entry : container.entrySet()) {
-			if(Arrays.equals(hash160, entry.getKey())) {
-				return true;
-			}
-		}
-		return false;
+		return snapshot.contains(hash160);
 	}
 	
 	/**
@@ -164,13 +167,7 @@ public class ConsensusPoolCacher implements ConsensusPool {
 	 * @return byte[]
 	 */
 	public byte[][] getPubkey(byte[] hash160) {
-		for (Entry<byte[], byte[][]> entry : container.entrySet()) {
-			if(Arrays.equals(hash160, entry.getKey())) {
-				//TODO
-				return entry.getValue();
-			}
-		}
-		return null;
+		return snapshot.getPubkey(hash160);
 	}
 
 	/**
@@ -178,44 +175,46 @@ public class ConsensusPoolCacher implements ConsensusPool {
 	 */
 	@Override
 	public Sha256Hash getTx(byte[] hash160) {
-		for (Entry<byte[], Sha256Hash> entry : txContainer.entrySet()) {
-			if(Arrays.equals(hash160, entry.getKey())) {
-				return entry.getValue();
-			}
-		}
-		return null;
+		return snapshot.getTx(hash160);
 	}
 	
-	public Map<byte[], byte[][]> getContainer() {
-		return container;
+	@Override
+	public ConsensusSnapshot getSnapshot() {
+		return snapshot;
+	}
+	
+	@Override
+	public void setHeight(long height) {
+		lock.lock();
+		try {
+			snapshot = snapshot.withHeight(height);
+		} finally {
+			lock.unlock();
+		}
 	}
 	
 	/**
-	 * 当前共识节点列表快照
+	 * 当前共识节点列表快照，不能修改，需要排序的调用方自己复制一份
 	 * @return List<ConsensusAccount>
 	 */
 	@Override
 	public List<ConsensusAccount> listSnapshots() {
-		//TODO处理并发情况
-		
-		List<ConsensusAccount> list = new ArrayList<ConsensusAccount>();
-		
-		for (Entry<byte[], byte[][]> entry : container.entrySet()) {
-			list.add(new ConsensusAccount(entry.getKey(), entry.getValue()));
-		}
-		
-		return list;
+		return snapshot.toAccountList();
 	}
 
 	@Override
 	public int getCurrentConsensus() {
-		return container.size();
+		return snapshot.size();
 	}
 
 	@Override
 	public void clearAll() {
-		chainstateStoreProvider.delete(Configure.CONSENSUS_ACCOUNT_KEYS);
-		container.clear();
-		txContainer.clear();
+		chainstateStoreProvider.clearConsensusAccounts();
+		lock.lock();
+		try {
+			snapshot = ConsensusSnapshot.of(snapshot.getVersion() + 1, snapshot.getHeight(), new LinkedHashMap<Hash160Key, ConsensusSnapshot.Member>());
+		} finally {
+			lock.unlock();
+		}
 	}
 }
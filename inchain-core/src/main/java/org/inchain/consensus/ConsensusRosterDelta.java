@@ -0,0 +1,150 @@
+package org.inchain.consensus;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.inchain.account.Address;
+import org.inchain.core.Definition;
+import org.inchain.core.VarInt;
+import org.inchain.message.Block;
+import org.inchain.transaction.Transaction;
+import org.inchain.transaction.business.RegConsensusTransaction;
+import org.inchain.transaction.business.RemConsensusTransaction;
+import org.inchain.transaction.business.ViolationTransaction;
+import org.inchain.utils.Utils;
+
+/**
+ * 单个区块里共识节点的加入和退出记录
+ * 只有包含共识注册、退出或违规处罚交易的区块才有记录，按交易在区块中的顺序排列
+ * 存储格式：4字节共识段开始时间 + 记录数 + (1字节类型 + 20字节hash160) * 记录数
+ * @author ln
+ *
+ */
+public class ConsensusRosterDelta {
+
+	/** 加入共识 **/
+	public final static int TYPE_JOIN = 1;
+	/** 退出共识，包括主动退出和违规被踢出 **/
+	public final static int TYPE_LEAVE = 2;
+
+	private final long height;
+	private final long periodStartTime;
+	private final int[] types;
+	private final byte[][] hash160s;
+
+	public ConsensusRosterDelta(long height, long periodStartTime, int[] types, byte[][] hash160s) {
+		this.height = height;
+		this.periodStartTime = periodStartTime;
+		this.types = types;
+		this.hash160s = hash160s;
+	}
+
+	/**
+	 * 从区块中提取共识变化，没有变化返回null
+	 * @param block
+	 * @return ConsensusRosterDelta
+	 */
+	public static ConsensusRosterDelta of(Block block) {
+		List<Integer> types = null;
+		List<byte[]> hash160s = null;
+		for (Transaction tx : block.getTxs()) {
+			byte[] hash160;
+			int type;
+			if(tx.getType() == Definition.TYPE_REG_CONSENSUS) {
+				hash160 = ((RegConsensusTransaction) tx).getHash160();
+				type = TYPE_JOIN;
+			} else if(tx.getType() == Definition.TYPE_REM_CONSENSUS) {
+				hash160 = ((RemConsensusTransaction) tx).getHash160();
+				type = TYPE_LEAVE;
+			} else if(tx.getType() == Definition.TYPE_VIOLATION) {
+				hash160 = ((ViolationTransaction) tx).getViolationEvidence().getAudienceHash160();
+				type = TYPE_LEAVE;
+			} else {
+				continue;
+			}
+			if(types == null) {
+				types = new ArrayList<Integer>();
+				hash160s = new ArrayList<byte[]>();
+			}
+			types.add(type);
+			hash160s.add(hash160);
+		}
+		if(types == null) {
+			return null;
+		}
+		int[] typeArray = new int[types.size()];
+		for (int i = 0; i < typeArray.length; i++) {
+			typeArray[i] = types.get(i);
+		}
+		return new ConsensusRosterDelta(block.getHeight(), block.getPeriodStartTime(), typeArray, hash160s.toArray(new byte[hash160s.size()][]));
+	}
+
+	/**
+	 * 解析存储的记录
+	 * @param height
+	 * @param content
+	 * @return ConsensusRosterDelta
+	 */
+	public static ConsensusRosterDelta parse(long height, byte[] content) {
+		int cursor = 0;
+		long periodStartTime = Utils.readUint32(content, cursor);
+		cursor += 4;
+
+		VarInt varint = new VarInt(content, cursor);
+		cursor += varint.getOriginalSizeInBytes();
+
+		int count = (int) varint.value;
+		int[] types = new int[count];
+		byte[][] hash160s = new byte[count][];
+		for (int i = 0; i < count; i++) {
+			types[i] = content[cursor] & 0xff;
+			cursor++;
+			hash160s[i] = new byte[Address.LENGTH];
+			System.arraycopy(content, cursor, hash160s[i], 0, Address.LENGTH);
+			cursor += Address.LENGTH;
+		}
+		return new ConsensusRosterDelta(height, periodStartTime, types, hash160s);
+	}
+
+	public byte[] serialize() {
+		byte[] countBytes = new VarInt(types.length).encode();
+		byte[] content = new byte[4 + countBytes.length + types.length * (1 + Address.LENGTH)];
+		int cursor = 0;
+		Utils.uint32ToByteArrayLE(periodStartTime, content, cursor);
+		cursor += 4;
+		System.arraycopy(countBytes, 0, content, cursor, countBytes.length);
+		cursor += countBytes.length;
+		for (int i = 0; i < types.length; i++) {
+			content[cursor] = (byte) types[i];
+			cursor++;
+			System.arraycopy(hash160s[i], 0, content, cursor, Address.LENGTH);
+			cursor += Address.LENGTH;
+		}
+		return content;
+	}
+
+	public long getHeight() {
+		return height;
+	}
+
+	public long getPeriodStartTime() {
+		return periodStartTime;
+	}
+
+	public int size() {
+		return types.length;
+	}
+
+	public int getType(int index) {
+		return types[index];
+	}
+
+	public byte[] getHash160(int index) {
+		return hash160s[index];
+	}
+
+	@Override
+	public String toString() {
+		return "ConsensusRosterDelta [height=" + height + ", periodStartTime=" + periodStartTime + ", size=" + types.length + "]";
+	}
+}
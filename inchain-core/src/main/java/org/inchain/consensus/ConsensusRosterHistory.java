@@ -0,0 +1,292 @@
+package org.inchain.consensus;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.inchain.crypto.Sha256Hash;
+import org.inchain.message.Block;
+import org.inchain.store.BlockStoreProvider;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+/**
+ * 共识名单历史
+ * 以当前共识池为起点，按高度从新到旧撤销每个区块的共识变化记录（{@link ConsensusRosterDelta}），得到某一轮开始时的共识名单
+ * 变化记录随区块一起保存和回滚，内存里只保留有变化的区块，不需要再反序列化整个区块
+ * 计算好的名单按共识段开始时间缓存，排序值只计算一次
+ * 某轮的名单只由该轮之前的区块决定，新增或回滚区块时只清除开始时间在该区块之后的缓存
+ * @author ln
+ *
+ */
+@Service
+public class ConsensusRosterHistory {
+
+	private static final Logger log = LoggerFactory.getLogger(ConsensusRosterHistory.class);
+
+	//最多缓存的轮数
+	private final static int MAX_CACHED_ROSTERS = 16;
+
+	@Autowired
+	private ConsensusPool consensusPool;
+	@Autowired
+	private BlockStoreProvider blockStoreProvider;
+
+	private final Lock lock = new ReentrantLock();
+
+	//主链上有共识变化的区块，key为高度
+	private final TreeMap<Long, ConsensusRosterDelta> deltas = new TreeMap<Long, ConsensusRosterDelta>();
+	//已排好序的共识名单，key为共识段开始时间
+	private final TreeMap<Long, RosterEntry[]> rosters = new TreeMap<Long, RosterEntry[]>();
+	private boolean loaded;
+	//区块正在保存或回滚，共识池和变化记录可能不一致，这期间算出的名单不缓存
+	private int changing;
+	//每次区块变化递增，用来判断计算期间是否有区块变化
+	private long version;
+
+	/**
+	 * 获取某轮开始时的共识名单，已按该轮的排序值排好序
+	 * 返回的列表调用方可以修改，列表里的共识账户是共享的，不要修改
+	 * @param periodStartTime
+	 * @return List<ConsensusAccount>
+	 */
+	public List<ConsensusAccount> getRoster(long periodStartTime) {
+		load();
+
+		RosterEntry[] roster;
+		long startVersion;
+		lock.lock();
+		try {
+			roster = rosters.get(periodStartTime);
+			if(roster != null) {
+				return toList(roster);
+			}
+			startVersion = version;
+		} finally {
+			lock.unlock();
+		}
+
+		//共识池有自己的状态，不在这里的锁内读取
+		//快照里的列表不能修改，撤销在副本上做
+		List<ConsensusAccount> consensusList = new ArrayList<ConsensusAccount>(consensusPool.listSnapshots());
+
+		lock.lock();
+		try {
+			undo(consensusList, periodStartTime);
+			roster = sort(consensusList, periodStartTime);
+			//计算期间有区块变化的，共识池和变化记录可能对不上，不缓存
+			if(changing == 0 && version == startVersion) {
+				rosters.put(periodStartTime, roster);
+				while (rosters.size() > MAX_CACHED_ROSTERS) {
+					rosters.pollFirstEntry();
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+		return toList(roster);
+	}
+
+	/**
+	 * 开始保存或回滚区块，之后共识池会被修改
+	 */
+	public void beginChange() {
+		lock.lock();
+		try {
+			changing++;
+			version++;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * 区块保存结束
+	 * @param block		已保存的区块，保存失败传null
+	 * @param delta		该区块的共识变化，没有则为null
+	 */
+	public void endSave(Block block, ConsensusRosterDelta delta) {
+		lock.lock();
+		try {
+			if(block != null) {
+				if(delta != null && loaded) {
+					deltas.put(delta.getHeight(), delta);
+				}
+				invalidateAfter(block.getPeriodStartTime());
+			}
+			endChange();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * 区块回滚结束
+	 * @param block		已回滚的区块，回滚失败传null
+	 */
+	public void endRevoke(Block block) {
+		lock.lock();
+		try {
+			if(block != null) {
+				deltas.remove(block.getHeight());
+				invalidateAfter(block.getPeriodStartTime());
+			}
+			endChange();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * 共识池整个重建结束，清除所有缓存的名单，变化记录和区块有关，不受影响
+	 */
+	public void endReset() {
+		lock.lock();
+		try {
+			rosters.clear();
+			endChange();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void endChange() {
+		changing--;
+		version++;
+	}
+
+	/*
+	 * 某区块的共识变化影响开始时间在它之后的轮次
+	 */
+	private void invalidateAfter(long periodStartTime) {
+		rosters.tailMap(periodStartTime, false).clear();
+	}
+
+	/*
+	 * 第一次使用时从存储加载变化记录
+	 * 读取存储要拿区块锁，而保存区块时持有区块锁再进入这里的锁，所以不能在这里的锁内读取，读取期间有区块变化则重新读取
+	 */
+	private void load() {
+		while (true) {
+			long startVersion;
+			lock.lock();
+			try {
+				if(loaded) {
+					return;
+				}
+				startVersion = version;
+			} finally {
+				lock.unlock();
+			}
+
+			long time = System.currentTimeMillis();
+			List<ConsensusRosterDelta> list = blockStoreProvider.loadConsensusDeltas();
+
+			lock.lock();
+			try {
+				if(loaded) {
+					return;
+				}
+				if(changing == 0 && version == startVersion) {
+					for (ConsensusRosterDelta delta : list) {
+						deltas.put(delta.getHeight(), delta);
+					}
+					loaded = true;
+					log.info("加载共识变化记录 {} 条，耗时 {} ms", deltas.size(), System.currentTimeMillis() - time);
+					return;
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	/*
+	 * 从最新的区块往前撤销开始时间不早于该轮的共识变化，创世块不撤销
+	 */
+	private void undo(List<ConsensusAccount> consensusList, long periodStartTime) {
+		for (Entry<Long, ConsensusRosterDelta> entry : deltas.descendingMap().entrySet()) {
+			ConsensusRosterDelta delta = entry.getValue();
+			if(delta.getHeight() == 0l || delta.getPeriodStartTime() < periodStartTime) {
+				break;
+			}
+			for (int i = 0; i < delta.size(); i++) {
+				byte[] hash160 = delta.getHash160(i);
+				if(delta.getType(i) == ConsensusRosterDelta.TYPE_JOIN) {
+					//注册新的，那么删除掉
+					Iterator<ConsensusAccount> it = consensusList.iterator();
+					while(it.hasNext()) {
+						if(Arrays.equals(hash160, it.next().getHash160())) {
+							it.remove();
+							break;
+						}
+					}
+				} else {
+					//删除掉的，新增进去，这里面用不到公钥，所以不用设置
+					consensusList.add(new ConsensusAccount(hash160, null));
+				}
+			}
+		}
+	}
+
+	/*
+	 * 按 sha256(sha256(开始时间 + hash160的hex)) 的字节无符号比较排序，和按hex字符串比较的顺序一致
+	 */
+	private RosterEntry[] sort(List<ConsensusAccount> consensusList, long periodStartTime) {
+		RosterEntry[] roster = new RosterEntry[consensusList.size()];
+		for (int i = 0; i < roster.length; i++) {
+			//快照里的共识账户是共享的，排序值记在新的对象上
+			ConsensusAccount source = consensusList.get(i);
+			ConsensusAccount account = new ConsensusAccount(source.getHash160(), source.getPubkeys());
+			Sha256Hash sortValue = Sha256Hash.twiceOf((periodStartTime + account.getHash160Hex()).getBytes());
+			account.setSortValue(sortValue);
+			roster[i] = new RosterEntry(account, sortValue.getBytes());
+		}
+		Arrays.sort(roster, ROSTER_COMPARATOR);
+		return roster;
+	}
+
+	private static List<ConsensusAccount> toList(RosterEntry[] roster) {
+		List<ConsensusAccount> list = new ArrayList<ConsensusAccount>(roster.length);
+		for (RosterEntry entry : roster) {
+			list.add(entry.account);
+		}
+		return list;
+	}
+
+	private final static Comparator<RosterEntry> ROSTER_COMPARATOR = new Comparator<RosterEntry>() {
+		@Override
+		public int compare(RosterEntry o1, RosterEntry o2) {
+			byte[] k1 = o1.sortKey;
+			byte[] k2 = o2.sortKey;
+			for (int i = 0; i < k1.length; i++) {
+				int diff = (k1[i] & 0xff) - (k2[i] & 0xff);
+				if(diff != 0) {
+					return diff;
+				}
+			}
+			return 0;
+		}
+	};
+
+	/*
+	 * 名单里的一个账户和它的排序值
+	 */
+	private static final class RosterEntry {
+		private final ConsensusAccount account;
+		private final byte[] sortKey;
+
+		RosterEntry(ConsensusAccount account, byte[] sortKey) {
+			this.account = account;
+			this.sortKey = sortKey;
+		}
+	}
+}
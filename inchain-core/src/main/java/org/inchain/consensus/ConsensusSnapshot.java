@@ -0,0 +1,143 @@
+package org.inchain.consensus;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.inchain.account.Address;
+import org.inchain.core.Hash160Key;
+import org.inchain.crypto.Sha256Hash;
+
+/**
+ * 共识池某一时刻的快照，创建之后不再修改，可以在任意线程里直接读取
+ * 共识池每次有节点加入或退出都生成新的快照，读取方拿到的始终是一个完整一致的名单
+ * @author ln
+ *
+ */
+public final class ConsensusSnapshot {
+
+	/** 空快照 **/
+	public final static ConsensusSnapshot EMPTY = of(0l, -1l, new LinkedHashMap<Hash160Key, Member>());
+
+	//每次共识池变化递增
+	private final long version;
+	//对应的区块高度，还没有和区块对应上时为-1
+	private final long height;
+	//按加入顺序
+	private final Map<Hash160Key, Member> members;
+	//和节点表同样顺序的共识账户列表
+	private final List<ConsensusAccount> accounts;
+
+	private ConsensusSnapshot(long version, long height, Map<Hash160Key, Member> members, List<ConsensusAccount> accounts) {
+		this.version = version;
+		this.height = height;
+		this.members = members;
+		this.accounts = accounts;
+	}
+
+	/**
+	 * 创建快照，之后不能再修改传入的节点表
+	 * @param version
+	 * @param height
+	 * @param members
+	 * @return ConsensusSnapshot
+	 */
+	static ConsensusSnapshot of(long version, long height, LinkedHashMap<Hash160Key, Member> members) {
+		List<ConsensusAccount> accounts = new ArrayList<ConsensusAccount>(members.size());
+		for (Member member : members.values()) {
+			accounts.add(new ConsensusAccount(member.hash160, member.pubkeys));
+		}
+		return new ConsensusSnapshot(version, height, Collections.unmodifiableMap(members), Collections.unmodifiableList(accounts));
+	}
+
+	/**
+	 * 以当前快照为基础，复制一份可修改的节点表，用来生成下一个快照
+	 * @return LinkedHashMap<Hash160Key, Member>
+	 */
+	LinkedHashMap<Hash160Key, Member> copyMembers() {
+		return new LinkedHashMap<Hash160Key, Member>(members);
+	}
+
+	/**
+	 * 同样的名单，标记新的区块高度
+	 * @param height
+	 * @return ConsensusSnapshot
+	 */
+	ConsensusSnapshot withHeight(long height) {
+		return new ConsensusSnapshot(version, height, members, accounts);
+	}
+
+	public boolean contains(byte[] hash160) {
+		return get(hash160) != null;
+	}
+
+	/**
+	 * 获取共识节点的公钥，不存在返回null
+	 * @param hash160
+	 * @return byte[][]
+	 */
+	public byte[][] getPubkey(byte[] hash160) {
+		Member member = get(hash160);
+		return member == null ? null : member.pubkeys;
+	}
+
+	/**
+	 * 获取注册共识的交易hash，不存在返回null
+	 * @param hash160
+	 * @return Sha256Hash
+	 */
+	public Sha256Hash getTx(byte[] hash160) {
+		Member member = get(hash160);
+		return member == null ? null : member.txhash;
+	}
+
+	private Member get(byte[] hash160) {
+		if(hash160 == null || hash160.length != Address.LENGTH) {
+			return null;
+		}
+		return members.get(Hash160Key.lookup(hash160));
+	}
+
+	public int size() {
+		return members.size();
+	}
+
+	/**
+	 * 共识账户列表，创建快照时生成，不能修改
+	 * 列表和里面的共识账户都是共享的，需要排序或者记下排序值的调用方自己复制一份
+	 * @return List<ConsensusAccount>
+	 */
+	public List<ConsensusAccount> toAccountList() {
+		return accounts;
+	}
+
+	public long getVersion() {
+		return version;
+	}
+
+	public long getHeight() {
+		return height;
+	}
+
+	@Override
+	public String toString() {
+		return "ConsensusSnapshot [version=" + version + ", height=" + height + ", size=" + members.size() + "]";
+	}
+
+	/*
+	 * 共识节点
+	 */
+	static final class Member {
+		final byte[] hash160;
+		final byte[][] pubkeys;
+		final Sha256Hash txhash;
+
+		Member(byte[] hash160, byte[][] pubkeys, Sha256Hash txhash) {
+			this.hash160 = hash160;
+			this.pubkeys = pubkeys;
+			this.txhash = txhash;
+		}
+	}
+}
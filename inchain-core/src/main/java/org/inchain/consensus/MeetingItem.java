@@ -1,5 +1,6 @@
 package org.inchain.consensus;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
 import java.util.Date;
@@ -51,7 +52,13 @@ public class MeetingItem implements Cloneable {
 	
 	public MeetingItem(ConsensusMeeting consensusMeeting, long startTime, List<ConsensusAccount> consensusList) {
 		this.consensusMeeting = consensusMeeting;
-		this.consensusList = consensusList;
+		//传入的可能是共识池快照里共享的列表，排序和记下排序值都在自己的副本上做
+		this.consensusList = new ArrayList<ConsensusAccount>(consensusList.size());
+		for (ConsensusAccount account : consensusList) {
+			ConsensusAccount copy = new ConsensusAccount(account.getHash160(), account.getPubkeys());
+			copy.setSortValue(account.getSortValue());
+			this.consensusList.add(copy);
+		}
 		this.periodStartTime = startTime;
 		this.periodEndTime = periodStartTime + consensusList.size() * Configure.BLOCK_GEN_TIME;
 		
@@ -7,6 +7,7 @@ import java.util.Date;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.inchain.Configure;
@@ -44,6 +45,7 @@ import org.inchain.store.BlockStore;
 import org.inchain.store.BlockStoreProvider;
 import org.inchain.store.ChainstateStoreProvider;
 import org.inchain.store.TransactionStore;
+import org.inchain.store.UtxoSet;
 import org.inchain.transaction.Output;
 import org.inchain.transaction.Transaction;
 import org.inchain.transaction.TransactionInput;
@@ -94,6 +96,8 @@ public final class MiningService implements Mining {
 	@Autowired
 	private ChainstateStoreProvider chainstateStoreProvider;
 	@Autowired
+	private UtxoSet utxoSet;
+	@Autowired
 	private DataSynchronizeHandler dataSynchronizeHandler;
 	@Autowired
 	private TransactionValidator transactionValidator;
@@ -149,6 +153,18 @@ public final class MiningService implements Mining {
 	 * 执行打包
 	 */
 	public void mining() {
+		try {
+			packageBlock();
+		} finally {
+			//打包时逐笔验证了交易列表，释放验证器缓存的列表索引
+			transactionValidator.clearTxsIndex();
+		}
+	}
+	
+	/*
+	 * 从内存池取交易打包成区块，存储并广播
+	 */
+	private void packageBlock() {
 		
 		long beginTime = TimeService.currentTimeMillis();
 		
@@ -163,6 +179,8 @@ public final class MiningService implements Mining {
 		
 		//被打包的交易列表
 		List<Transaction> transactionList = new ArrayList<Transaction>();
+		//打包顺序不对的交易，本轮不再取出，结束后放回内存池
+		List<Transaction> deferredTxs = new ArrayList<Transaction>();
 		
 		Coin fee = Coin.ZERO;
 		
@@ -173,57 +191,48 @@ public final class MiningService implements Mining {
 		int maxTxsSize = Definition.MAX_BLOCK_SIZE - 200;
 		
 		while (true) {
-			//每次获取内存里面的一个交易
-			Transaction tx = mempool.get();
-			
-			while(tx != null) {
-				if(txsSize > maxTxsSize) {
-					break;
-				}
-				//如果某笔交易验证失败，则不打包进区块
-				try{
-					//去除重复交易
-					if(transactionList.contains(tx)) {
-						break;
-					}
-					boolean res = verifyTx(transactionList, tx, inputFilter, true);
-					if(res) {
-						//交易费
-						//只有pay交易才有交易费
-						if(tx.isPaymentTransaction()) {
-							fee = fee.add(getTransactionFee(tx));
-						}
-						transactionList.add(tx);
-						
-						txsSize += tx.getLength();
-					} else {
-						//验证失败
-						debug("交易验证失败：" + tx.getHash());
-					}
-				} catch (Exception e) {
-					log.error("交易验证失败：{}", tx.getHash());
-					debug("交易验证失败：" + tx.getHash() + "    错误详情：" + e.getMessage());
-				}
-				
-				//如果时间到了，那么退出打包，然后广区块
-				if(TimeService.currentTimeMillis() - beginTime >= Configure.BLOCK_GEN__MILLISECOND_TIME || forcedStopModel == 1) {
-					break;
-				}
-				tx = mempool.get();
-			}
 			//如果时间到了，那么退出打包，然后广区块
-			if(TimeService.currentTimeMillis() - beginTime >= Configure.BLOCK_GEN__MILLISECOND_TIME || forcedStopModel == 1) {
+			long remainingTime = Configure.BLOCK_GEN__MILLISECOND_TIME - (TimeService.currentTimeMillis() - beginTime);
+			if(remainingTime <= 0 || forcedStopModel == 1 || txsSize > maxTxsSize) {
 				break;
 			}
-
-			try {
-				Thread.sleep(10l);
-			} catch (InterruptedException e) {
-				if(log.isDebugEnabled()) {
-					log.debug("{}", e.getMessage());
+			//每次获取内存里面手续费率最高的交易，内存池为空时等待新交易，最多等待100毫秒以便及时响应强制停止
+			Transaction tx = mempool.get(Math.min(remainingTime, 100l));
+			if(tx == null) {
+				continue;
+			}
+			//如果某笔交易验证失败，则不打包进区块
+			try{
+				//去除重复交易
+				if(transactionList.contains(tx)) {
+					continue;
 				}
+				boolean res = verifyTx(transactionList, tx, inputFilter, true, false, deferredTxs);
+				if(res) {
+					//交易费
+					//只有pay交易才有交易费
+					if(tx.isPaymentTransaction()) {
+						fee = fee.add(getTransactionFee(tx));
+					}
+					transactionList.add(tx);
+					
+					txsSize += tx.getLength();
+				} else if(deferredTxs.contains(tx)) {
+					//引用的交易还在内存池里，仍然占用输入，本轮结束后再放回
+					debug("交易打包顺序不对，本轮不打包：" + tx.getHash());
+				} else {
+					//验证失败
+					debug("交易验证失败：" + tx.getHash());
+					mempool.discard(tx.getHash());
+				}
+			} catch (Exception e) {
+				log.error("交易验证失败：{}", tx.getHash());
+				debug("交易验证失败：" + tx.getHash() + "    错误详情：" + e.getMessage());
+				mempool.discard(tx.getHash());
 			}
 		}
+		//本轮不再从内存池取交易，顺序不对的放回去，等下次打包
+		returnTransactions(deferredTxs);
 		
 		//本地最新区块
 		BlockHeader bestBlockHeader = blockStoreProvider.getBestBlockHeader().getBlockHeader();
@@ -250,7 +259,7 @@ public final class MiningService implements Mining {
 		
 		//处理违规情况的节点，目前只处理超时的
 		Set<TimeoutConsensusViolation> timeoutList = consensusMeeting.getTimeoutList();
-
+
 		if(consensusMeeting.getCurrentMeetingPeriodCount() > 3) { 
 			for (TimeoutConsensusViolation consensusViolation : timeoutList) {
 				log.info("超时的节点： {} , currentPeriodStartTime: {} , previousPeriodStartTime: {}" , new Address(network, consensusViolation.getHash160()).getBase58(), DateUtil.convertDate(new Date(consensusViolation.getCurrentPeriodStartTime() * 1000)), DateUtil.convertDate(new Date(consensusViolation.getPreviousPeriodStartTime() * 1000)));
@@ -265,6 +274,7 @@ public final class MiningService implements Mining {
 		//遵守系统规则，如果出现特殊情况，当前网络时间超过了我的时段，停止广播，等待处罚
 		if(miningInfos.getEndTime() + Configure.BLOCK_GEN_TIME / 2 < TimeService.currentTimeSeconds() ) {
 			log.info("打包高度为 {} 的块时超时，停止广播，我的开始时间{}, 结束时间{}, 当前时间{}", currentHeight, DateUtil.convertDate(new Date(miningInfos.getBeginTime() * 1000)), DateUtil.convertDate(new Date(miningInfos.getEndTime() * 1000)), DateUtil.convertDate(new Date(TimeService.currentTimeMillis())));
+			returnTransactions(transactionList);
 			return;
 		}
 		
@@ -311,6 +321,11 @@ public final class MiningService implements Mining {
 			//分叉处理 TODO
 			
 			blockStoreProvider.saveBlock(blockStore);
+			blockForkService.onBlockConnected(block.getHash());
+			//已确认的交易移出内存池，释放占用的输入
+			for (Transaction tx : block.getTxs()) {
+				mempool.remove(tx.getHash());
+			}
 			if(log.isDebugEnabled()) {
 				log.debug("broadcast new block hash {}, height {}, tx size {}, merkle hash {}", blockStore.getBlock().getHash(), blockStore.getBlock().getHeight(),
 						blockStore.getBlock().getTxs().size(), blockStore.getBlock().getMerkleHash());
@@ -331,6 +346,7 @@ public final class MiningService implements Mining {
 			}
 		} catch (IOException e) {
 			log.error("共识产生的新块保存时报错", e);
+			returnTransactions(transactionList);
 		}
 	}
 	
@@ -345,13 +361,25 @@ public final class MiningService implements Mining {
 		//已发放的账户，不能在同一区块多次发放
 		Set<String> creditAccounts = new HashSet<String>();
 		
+		//先并行验证交易的格式、签名和赎回脚本
+		List<Transaction> verifyTxs = new ArrayList<Transaction>();
+		for (Transaction tx : txs) {
+			if(tx.getType() != Definition.TYPE_COINBASE) {
+				verifyTxs.add(tx);
+			}
+		}
+		Map<Sha256Hash, String> failures = transactionValidator.verifyScripts(verifyTxs);
+		
 		Iterator<Transaction> it = txs.iterator();
 		while(it.hasNext()) {
 			Transaction tx = it.next();
 			if(tx.getType() == Definition.TYPE_COINBASE) {
 				continue;
 			}
-			if(verifyTx(txs, tx, null, false)) {
+			if(failures.containsKey(tx.getHash())) {
+				log.warn("交易 {} 签名验证失败：{}", tx.getHash(), failures.get(tx.getHash()));
+			}
+			if(!failures.containsKey(tx.getHash()) && verifyTx(txs, tx, null, false, true, null)) {
 				if(tx.getType() != Definition.TYPE_PAY) {
 					continue;
 				}
@@ -376,6 +404,7 @@ public final class MiningService implements Mining {
 			} else {
 				log.error("再次验证失败，移除交易： {} ", tx);
 				it.remove();
+				mempool.discard(tx.getHash());
 				if(tx.isPaymentTransaction()) {
 					//有金额的交易，计算该笔的手续费
 					refunedFee = refunedFee.add(getTransactionFee(tx));
@@ -467,8 +496,7 @@ public final class MiningService implements Mining {
 		}
 		
 		//因为违规证据有可能不一样，如果已经被处理过了，则不重复处理，这里用注册共识时的保证金是否被花费掉了来判断
-		byte[] status = chainstateStoreProvider.getBytes(key);
-		if(status == null || !Arrays.equals(status, new byte[] { 1 })) {
+		if(!utxoSet.isUnspent(key)) {
 			log.warn("违规节点已经被处理过了，不再重复处理");
 			return;
 		}
@@ -494,16 +522,26 @@ public final class MiningService implements Mining {
 	 */
 	private void enterForcedStopModel(List<Transaction> transactionList) {
 		try {
-			if(transactionList == null || transactionList.size() <= 1) {
-				return;
-			}
-			for (int i = 1; i < transactionList.size(); i++) {
-				mempool.add(transactionList.get(i));
-			}
+			returnTransactions(transactionList);
 		} finally {
 			forcedStopModel = 2;
 		}
 	}
+	
+	/*
+	 * 没有出块，把从内存池取出的交易加回内存池，coinbase、信用和违规处理交易是打包时生成的，不放回
+	 */
+	private void returnTransactions(List<Transaction> transactionList) {
+		if(transactionList == null) {
+			return;
+		}
+		for (Transaction tx : transactionList) {
+			if(tx.getType() == Definition.TYPE_COINBASE || tx.getType() == Definition.TYPE_CREDIT || tx.getType() == Definition.TYPE_VIOLATION) {
+				continue;
+			}
+			mempool.add(tx);
+		}
+	}
 
 	/*
 	 * 处理违规节点
@@ -599,12 +637,16 @@ public final class MiningService implements Mining {
 	 * @param tx				//本次打包的交易
 	 * @param filter			//布隆过滤器，判断输入是否重复引用
 	 * @param forcedCheck		//是否强制检查
+	 * @param scriptVerified	//是否已经并行验证过交易格式、签名和赎回脚本
+	 * @param deferredTxs		//打包顺序不对的交易加入这个列表，由调用方在本轮结束后放回内存池，为null时立即放回
 	 * @return boolean
 	 */
-	private boolean verifyTx(List<Transaction> transactionList, Transaction tx, BloomFilter filter, boolean forcedCheck) {
+	private boolean verifyTx(List<Transaction> transactionList, Transaction tx, BloomFilter filter, boolean forcedCheck, boolean scriptVerified, List<Transaction> deferredTxs) {
 		long time = System.currentTimeMillis();
 		try {
-			tx.verify();
+			if(!scriptVerified) {
+				tx.verify();
+			}
 			
 			//信用累积交易，不是从内存里面来的，所以不打包
 			if(tx.getType() == Definition.TYPE_CREDIT || tx.getType() == Definition.TYPE_COINBASE) {
@@ -652,8 +694,8 @@ public final class MiningService implements Mining {
 							Transaction preTransaction = null;
 							
 							//判断是否未花费
-							byte[] state = chainstateStoreProvider.getBytes(key);
-							if(state == null || state.length == 0) {
+							int state = utxoSet.getStatus(key);
+							if(state == UtxoSet.STATUS_NONE) {
 								//链上没有该笔交易，这时有两种情况，第一确实是伪造交易，第二花费了没有确认的交易
 								//对于第一种情况，验证不通过
 								//第二种情况，我们顺序打包交易，也就是引用的输出必须是本次已打包的，否则就扔回内存池
@@ -674,12 +716,16 @@ public final class MiningService implements Mining {
 									if(preTransaction == null) {
 										throw new VerificationException("引用了不存在或不可用的交易");
 									} else {
-										//在内存池里面，那么就把本笔交易扔回内存池，等待下次打包
-										MempoolContainer.getInstace().add(tx);
+										//在内存池里面，那么本笔交易等待下次打包
+										if(deferredTxs != null) {
+											deferredTxs.add(tx);
+										} else {
+											MempoolContainer.getInstace().add(tx);
+										}
 										throw new VerificationException("该交易打包顺序不对");
 									}
 								}
-							} else if(Arrays.equals(state, new byte[]{1})) {
+							} else if(state == TransactionStore.STATUS_UNUSE) {
 								//查询上次的交易
 								TransactionStore txs = blockStoreProvider.getTransaction(fromId.getBytes());
 								if(txs == null) {
@@ -760,7 +806,7 @@ public final class MiningService implements Mining {
 								throw new VerificationException("严重违规,重复出块,保证金的输出不合法,应该是罚没接收账户");
 							}
 						}
-					} else {
+					} else if(!scriptVerified) {
 						//验证赎回脚本
 						input.getScriptSig().execute(verifyScript);
 					}
@@ -826,8 +872,7 @@ public final class MiningService implements Mining {
 					System.arraycopy(txStatus, 0, txIndex, 0, txStatus.length);
 					txIndex[txIndex.length - 1] = 0;
 					
-					byte[] status = chainstateStoreProvider.getBytes(txIndex);
-					if(status == null) {
+					if(utxoSet.getStatus(txIndex) == UtxoSet.STATUS_NONE) {
 						throw new VerificationException("防伪码已被验证");
 					}
 				} else if(tx.getType() == Definition.TYPE_REG_CONSENSUS) {
@@ -882,7 +927,7 @@ public final class MiningService implements Mining {
 				}
 				return true;
 			} else {
-				ValidatorResult<TransactionValidatorResult> res = transactionValidator.valDo(tx, transactionList);
+				ValidatorResult<TransactionValidatorResult> res = transactionValidator.valDo(tx, transactionList, scriptVerified);
 				return res.getResult().isSuccess();
 			}
 		} catch (Exception e) {
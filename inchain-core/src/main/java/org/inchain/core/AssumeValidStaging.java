@@ -0,0 +1,139 @@
+package org.inchain.core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.inchain.crypto.Sha256Hash;
+import org.inchain.message.Block;
+import org.inchain.network.NetworkParams;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * assume-valid 区块及之前区块的暂存文件
+ * 区块hash覆盖整个区块（包括全部交易），单独的hash清单证明不了区块是 assume-valid 区块的祖先，
+ * 只有拿到 assume-valid 区块本身，沿着 preHash 一路衔接回本地最新块，之前的区块才算确认
+ * 所以同步时先把这部分区块按高度顺序检查衔接后写到这里，确认之后再依次取出收录
+ * 文件格式：4字节区块长度 + 区块，同步结束时删除
+ * 内存里只记录最后一个区块的hash和文件大小，文件大小超过上限时由同步器提前完整验证收录，见 {@link org.inchain.Configure#ASSUME_VALID_STAGING_SIZE}
+ * @author ln
+ *
+ */
+class AssumeValidStaging {
+
+	private final static Logger log = LoggerFactory.getLogger(AssumeValidStaging.class);
+
+	private final NetworkParams network;
+	private final File file;
+	//最后暂存的区块hash，下一个区块的 preHash 必须是它
+	private Sha256Hash lastHash;
+	//暂存的区块数
+	private int count;
+	//暂存文件的字节数
+	private long size;
+
+	private DataOutputStream out;
+	private DataInputStream in;
+
+	public AssumeValidStaging(NetworkParams network, File file, Sha256Hash startHash) throws IOException {
+		this.network = network;
+		this.file = file;
+		this.lastHash = startHash;
+		File parent = file.getParentFile();
+		if(parent != null && !parent.exists()) {
+			parent.mkdirs();
+		}
+		out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+	}
+
+	/**
+	 * 暂存区块，区块不衔接上一个暂存的区块时不写入，返回false
+	 * @param block
+	 * @return boolean
+	 * @throws IOException
+	 */
+	public boolean add(Block block) throws IOException {
+		if(!lastHash.equals(block.getPreHash())) {
+			return false;
+		}
+		byte[] content = block.baseSerialize();
+		out.writeInt(content.length);
+		out.write(content);
+		lastHash = block.getHash();
+		count++;
+		size += 4 + content.length;
+		return true;
+	}
+
+	/**
+	 * 暂存的区块数
+	 * @return int
+	 */
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * 暂存文件的字节数
+	 * @return long
+	 */
+	public long getSize() {
+		return size;
+	}
+
+	/**
+	 * 最后暂存的区块hash，没有暂存区块时为开始的hash
+	 * @return Sha256Hash
+	 */
+	public Sha256Hash getLastHash() {
+		return lastHash;
+	}
+
+	/**
+	 * 按高度顺序取出下一个暂存的区块，取完返回null，开始取出之后不能再暂存
+	 * @return Block
+	 * @throws IOException
+	 */
+	public Block next() throws IOException {
+		if(in == null) {
+			out.close();
+			out = null;
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		}
+		int length;
+		try {
+			length = in.readInt();
+		} catch (EOFException e) {
+			return null;
+		}
+		byte[] content = new byte[length];
+		in.readFully(content);
+		return new Block(network, content);
+	}
+
+	/**
+	 * 关闭并删除暂存文件
+	 */
+	public void close() {
+		try {
+			if(out != null) {
+				out.close();
+			}
+			if(in != null) {
+				in.close();
+			}
+		} catch (IOException e) {
+			log.error("关闭暂存文件出错", e);
+		}
+		out = null;
+		in = null;
+		file.delete();
+	}
+}
@@ -43,6 +43,8 @@ public class BroadcastResult extends Result {
 	}
 
 	public BroadcastResult get() throws InterruptedException, ExecutionException, TimeoutException {
+		//在消息处理里等待时，节点的回复不能排在当前消息后面
+		MessageDispatcher.releasePeer();
 		return future.get(10, TimeUnit.SECONDS);
 	}
 	
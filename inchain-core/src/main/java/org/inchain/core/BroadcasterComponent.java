@@ -12,6 +12,7 @@ import org.inchain.message.InventoryItem;
 import org.inchain.message.InventoryMessage;
 import org.inchain.message.Message;
 import org.inchain.message.NewBlockMessage;
+import org.inchain.net.MessageFrame;
 import org.inchain.network.NetworkParams;
 import org.inchain.transaction.Transaction;
 import org.slf4j.Logger;
@@ -93,14 +94,21 @@ public class BroadcasterComponent<T extends Message> implements Broadcaster<T> {
 				result.setNumWaitingFor(numWaitingFor);
 			}
             
-            //通过随机选择的对等体进行广播
-			for (Peer peer : peers) {
-				try {
-					peer.sendMessage(sendMessage);
-				} catch (NotYetConnectedException | IOException e) {
-					log.warn("广播消息出错，可能原因是该节点连接已关闭, {}", e.getMessage());
-				}
-			}
+            //通过随机选择的对等体进行广播，消息只序列化一次
+            MessageFrame frame = serializeFrame(sendMessage);
+            if(frame != null) {
+            	try {
+            		for (Peer peer : peers) {
+            			try {
+            				peer.sendMessage(sendMessage, frame);
+            			} catch (NotYetConnectedException | IOException e) {
+            				log.warn("广播消息出错，可能原因是该节点连接已关闭, {}", e.getMessage());
+            			}
+            		}
+            	} finally {
+            		frame.release();
+            	}
+            }
 			
 			//不需要等待的消息类型，直接响应
 			if(!result.needWait()) {
@@ -132,6 +140,21 @@ public class BroadcasterComponent<T extends Message> implements Broadcaster<T> {
 		return sendMessage;
 	}
 
+	/*
+	 * 序列化成消息帧，失败返回 null
+	 */
+	private MessageFrame serializeFrame(Message message) {
+		if(message.getSerializer() == null) {
+			message.setSerializer(network.getDefaultSerializer());
+		}
+		try {
+			return network.getDefaultSerializer().serializeFrame(message);
+		} catch (IOException e) {
+			log.warn("广播消息序列化出错, {}", e.getMessage());
+			return null;
+		}
+	}
+
 	@Override
 	public int broadcastMessage(T message) {
 		return broadcastMessage(message, null);
@@ -141,15 +164,24 @@ public class BroadcasterComponent<T extends Message> implements Broadcaster<T> {
 	public int broadcastMessage(T message, Peer excludePeer) {
 		int successCount = 0;
 		if(peerKit.canBroadcast()) {
-			for (Peer peer : peerKit.findAvailablePeers()) {
-				if(excludePeer == null || (excludePeer!= null && !peer.equals(excludePeer))) {
-					try {
-						peer.sendMessage(message);
-						successCount ++;
-					} catch (NotYetConnectedException | IOException e) {
-						log.warn("广播消息出错，可能原因是该节点连接已关闭, {}", e.getMessage());
+			//消息只序列化一次，所有节点共享同一个消息帧
+			MessageFrame frame = serializeFrame(message);
+			if(frame == null) {
+				return successCount;
+			}
+			try {
+				for (Peer peer : peerKit.findAvailablePeers()) {
+					if(excludePeer == null || (excludePeer!= null && !peer.equals(excludePeer))) {
+						try {
+							peer.sendMessage(message, frame);
+							successCount ++;
+						} catch (NotYetConnectedException | IOException e) {
+							log.warn("广播消息出错，可能原因是该节点连接已关闭, {}", e.getMessage());
+						}
 					}
 				}
+			} finally {
+				frame.release();
 			}
 			return successCount;
 		} else {
@@ -1,31 +1,50 @@
 package org.inchain.core;
 
+import java.io.File;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 import javax.annotation.PostConstruct;
 
+import org.inchain.Configure;
 import org.inchain.consensus.ConsensusMeeting;
+import org.inchain.core.exception.VerificationException;
 import org.inchain.crypto.Sha256Hash;
 import org.inchain.kits.PeerKit;
 import org.inchain.listener.BlockDownendListener;
 import org.inchain.listener.ConnectionChangedListener;
+import org.inchain.message.Block;
 import org.inchain.message.BlockHeader;
 import org.inchain.message.GetBlocksMessage;
+import org.inchain.message.GetDatasMessage;
+import org.inchain.message.InventoryItem;
+import org.inchain.msgprocess.BlockMessageProcess;
+import org.inchain.msgprocess.GetBlocksMessageProcess;
+import org.inchain.msgprocess.MessageProcessResult;
 import org.inchain.network.NetworkParams;
 import org.inchain.store.BlockStoreProvider;
+import org.inchain.validator.BlockValidator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
+import org.springframework.util.concurrent.SettableListenableFuture;
 
 /**
  * 数据同步器
@@ -37,6 +56,19 @@ public class DataSynchronizeHandler implements Runnable {
 	
 	private final static Logger log = LoggerFactory.getLogger(DataSynchronizeHandler.class);
 	
+	//每个下载窗口包含的区块数
+	private final static int WINDOW_SIZE = 16;
+	//每个节点同时下载的窗口数上限
+	private final static int MAX_WINDOWS_PER_PEER = 2;
+	//超前于收录高度的区块数上限，限制缓冲区大小
+	private final static int MAX_BUFFER_BLOCKS = 1024;
+	//下载窗口超时时间，超时视为节点停滞
+	private final static long STALL_TIMEOUT = 30000l;
+	//获取区块清单的超时时间
+	private final static long HEADERS_TIMEOUT = 60000l;
+	//要求清单节点直接发送的区块数，正好是该节点可以同时下载的窗口
+	private final static int STREAM_BLOCKS = WINDOW_SIZE * MAX_WINDOWS_PER_PEER;
+	
 	//下载锁，避免多节点重复下载
 	private Lock locker = new ReentrantLock();
 
@@ -56,6 +88,26 @@ public class DataSynchronizeHandler implements Runnable {
 	private PeerKit peerKit;
 	@Autowired
 	private BlockStoreProvider blockStoreProvider;
+	@Autowired
+	private BlockMessageProcess blockMessageProcess;
+	@Autowired
+	private BlockValidator blockValidator;
+	
+	//正在等待区块清单回应的节点
+	private volatile Peer headersPeer;
+	private volatile Sha256Hash headersStartHash;
+	private volatile SettableListenableFuture<List<Sha256Hash>> headersFuture;
+	//清单节点在清单之后直接发送的区块数，为0代表没有要求直接发送
+	private int streamCount;
+	//直接发送的区块可能比清单先处理完，窗口建好之前先暂存在这里
+	private boolean streaming;
+	private final Map<Sha256Hash, Block> streamedBlocks = new LinkedHashMap<Sha256Hash, Block>();
+	//本轮同步中还没有收录的区块，及其所在的下载窗口
+	private final Map<Sha256Hash, DownloadWindow> downloadingBlocks = new ConcurrentHashMap<Sha256Hash, DownloadWindow>();
+	//已到达还没有收录的区块，按高度排序
+	private final TreeMap<Long, Block> reorderBuffer = new TreeMap<Long, Block>();
+	private final Lock downloadLocker = new ReentrantLock();
+	private final Condition blockArrived = downloadLocker.newCondition();
 	
 	private int synchronousStatus = -1; //0等待同步，1同步中，2同步完成
 	private boolean initSynchronous = true; //是否初始同步，也就是第一次程序启动的同步
@@ -143,9 +195,13 @@ public class DataSynchronizeHandler implements Runnable {
 			//验证共识人数是否正确
 			int currentMeetingPeriodCount = consensusMeeting.getCurrentMeetingPeriodCount();
 			if(currentMeetingPeriodCount != bestBlockHeader.getPeriodCount()) {
-				//共识队列有问题，需要重置
-				blockStoreProvider.resetConsensusQueue();
-				consensusMeeting.resetCurrentMeetingItem();
+				//共识队列有问题，需要重置，区块已裁剪时不能重置
+				try {
+					blockStoreProvider.resetConsensusQueue();
+					consensusMeeting.resetCurrentMeetingItem();
+				} catch (VerificationException e) {
+					log.error("重置共识队列失败：{}", e.getMessage());
+				}
 			}
 			synchronousStatus = 2;
 			if(log.isDebugEnabled()) {
@@ -181,41 +237,17 @@ public class DataSynchronizeHandler implements Runnable {
 					newestPeers.add(peer);
 				}
 			}
-			List<Boolean> results = new ArrayList<Boolean>();
-			
-			for (Peer peer : newestPeers) {
-				try {
-					while(true) {
-						blockHeader = network.getBestBlockHeader();
-						if((initSynchronous && peer.getPeerVersionMessage().getBestHeight() <= blockHeader.getHeight()) ||
-								(!initSynchronous && peer.getBestBlockHeight() <= blockHeader.getHeight())) {
-							break;
-						}
-						Sha256Hash startHash = blockHeader.getHash();
-						
-						Sha256Hash stopHash = Sha256Hash.ZERO_HASH;
-						peer.sendMessage(new GetBlocksMessage(network, startHash, stopHash));
-						boolean result = peer.waitBlockDownComplete(startHash);
-						results.add(result);
-						if(!result) {
-							break;
-						}
-					}
-				} catch (Exception e) {
-					results.add(false);
-					log.warn("下载区块出错，更换节点下载", e);
-				}
-			}
-			
-			//如果都失败了，说明我本地的最新区块是分叉块，需要更换处理
-			boolean fail = true;
-			for (Boolean result : results) {
-				if(result) {
-					fail = false;
-					break;
-				}
+
+			boolean success = false;
+			try {
+				success = parallelDownload(new ArrayList<Peer>(newestPeers), bestHeight);
+			} catch (Exception e) {
+				success = true;
+				log.warn("下载区块出错，重新同步", e);
 			}
-			if(fail) {
+
+			//如果所有节点都没有我本地的最新区块，说明我本地的最新区块是分叉块，需要更换处理
+			if(!success) {
 				log.error("同步区块出错：本地最新块可能是分叉块");
 				//TODO
 				//撤销本地最新块重试
@@ -235,7 +267,401 @@ public class DataSynchronizeHandler implements Runnable {
 			log.error("区块同步出错 {}", e.getMessage(), e);
 		}
 	}
+
+	/*
+	 * 多节点并行下载
+	 * 先向节点获取区块hash清单，再把清单切分成多个下载窗口，同时向所有最新节点请求
+	 * 到达的区块放入按高度排序的缓冲区，由当前线程按顺序收录，缓冲区大小受同时下载的窗口数限制
+	 * 窗口超时未完成的，视为节点停滞，剔除该节点并把剩余的区块重新分配给其它节点
+	 * 开启 assume-valid 并且本地还没到它的高度时，这部分区块先按顺序暂存，收到 assume-valid 区块并且一路衔接回本地最新块之后，
+	 * 才确认它们是 assume-valid 区块的祖先，跳过签名验证收录；不一致、不衔接或者同步提前结束时，暂存的区块完整验证收录
+	 * 返回false代表所有节点都没有本地最新区块，本地最新块可能是分叉块
+	 */
+	private boolean parallelDownload(List<Peer> activePeers, long bestHeight) throws Exception {
+		BlockHeader bestBlockHeader = network.getBestBlockHeader();
+		Sha256Hash locator = bestBlockHeader.getHash();
+		long locatorHeight = bestBlockHeader.getHeight();
+		long nextHeight = locatorHeight + 1;
+
+		//等待分配的窗口和下载中的窗口
+		LinkedList<DownloadWindow> waitingWindows = new LinkedList<DownloadWindow>();
+		List<DownloadWindow> runningWindows = new ArrayList<DownloadWindow>();
+
+		boolean headersEnd = false;
+		boolean hasHeaders = false;
+
+		//assume-valid 区块及之前的区块先暂存，确认是它的祖先之后再收录
+		Sha256Hash assumeValidHash = blockValidator.getAssumeValidHash();
+		long assumeValidHeight = blockValidator.getAssumeValidHeight();
+		File stagingFile = new File(Configure.DATA_DIR, "assumevalid.tmp");
+		long stagingLimit = Math.max(Configure.ASSUME_VALID_STAGING_SIZE, 1) * 1024l * 1024l;
+		AssumeValidStaging staging = null;
+
+		try {
+			if(assumeValidHash != null && locatorHeight < assumeValidHeight) {
+				staging = new AssumeValidStaging(network, stagingFile, locator);
+			}
+			while(!activePeers.isEmpty()) {
+				//清单不够分配时，继续获取后面的区块清单
+				if(!headersEnd && waitingWindows.size() < activePeers.size() * MAX_WINDOWS_PER_PEER) {
+					//前面的窗口都已分配，并且缓冲区放得下时，让清单节点在清单之后直接发送前面的区块
+					boolean stream = waitingWindows.isEmpty() && locatorHeight + STREAM_BLOCKS < nextHeight + MAX_BUFFER_BLOCKS;
+					List<Sha256Hash> hashs = downloadHeaders(activePeers, locator, stream ? runningWindows : null);
+					Peer streamPeer = headersPeer;
+					headersPeer = null;
+					if(hashs == null) {
+						if(!hasHeaders) {
+							return false;
+						}
+						headersEnd = true;
+					} else {
+						hasHeaders = true;
+						DownloadWindow window = null;
+						for (Sha256Hash hash : hashs) {
+							if(window == null || window.size() >= WINDOW_SIZE) {
+								window = new DownloadWindow();
+								waitingWindows.add(window);
+							}
+							locatorHeight++;
+							window.add(hash, locatorHeight);
+							downloadingBlocks.put(hash, window);
+						}
+						if(!hashs.isEmpty()) {
+							locator = hashs.get(hashs.size() - 1);
+						}
+						//直接发送的区块所在的窗口，已经在下载中，不需要再请求
+						if(streamCount > 0) {
+							int assigned = 0;
+							while(assigned < streamCount && !waitingWindows.isEmpty()) {
+								DownloadWindow streamWindow = waitingWindows.removeFirst();
+								streamWindow.assign(streamPeer);
+								runningWindows.add(streamWindow);
+								assigned += streamWindow.size();
+							}
+						}
+						endStreaming();
+						headersEnd = hashs.size() < GetBlocksMessageProcess.MAX_COUNT || locatorHeight >= bestHeight;
+					}
+				}
+
+				//移除已完成的窗口，停滞的窗口重新分配
+				long now = System.currentTimeMillis();
+				Iterator<DownloadWindow> it = runningWindows.iterator();
+				while(it.hasNext()) {
+					DownloadWindow window = it.next();
+					if(window.isComplete()) {
+						it.remove();
+					} else if(now - window.getSendTime() > STALL_TIMEOUT) {
+						it.remove();
+						activePeers.remove(window.getPeer());
+						log.warn("节点 {} 下载区块停滞，重新分配给其它节点", window.getPeer().getAddress());
+						waitingWindows.addFirst(window.reset());
+					}
+				}
+
+				//把等待的窗口分配给下载任务最少的节点，超前收录高度太多的窗口暂不分配，限制缓冲区大小
+				while(!waitingWindows.isEmpty() && waitingWindows.getFirst().getStartHeight() < nextHeight + MAX_BUFFER_BLOCKS) {
+					Peer peer = getIdlePeer(activePeers, runningWindows);
+					if(peer == null) {
+						break;
+					}
+					DownloadWindow window = waitingWindows.removeFirst();
+					window.send(peer);
+					runningWindows.add(window);
+				}
+
+				//按高度顺序收录
+				Block block;
+				while((block = takeBlock(nextHeight)) != null) {
+					downloadingBlocks.remove(block.getHash());
+					if(staging != null) {
+						if(staging.add(block)) {
+							nextHeight++;
+							if(nextHeight <= assumeValidHeight) {
+								if(staging.getSize() < stagingLimit) {
+									continue;
+								}
+								//暂存文件超过上限，已暂存的区块完整验证收录，之后的区块重新暂存
+								log.info("暂存了 {} 个区块，超过上限 {}MB，提前完整验证收录", staging.getCount(), Configure.ASSUME_VALID_STAGING_SIZE);
+								Sha256Hash lastHash = staging.getLastHash();
+								boolean success = processStaging(staging, false);
+								staging = null;
+								if(!success) {
+									return true;
+								}
+								staging = new AssumeValidStaging(network, stagingFile, lastHash);
+								continue;
+							}
+							//到达 assume-valid 高度，hash一致说明暂存的区块都是它的祖先，不一致时说明不是同一条链，全部完整验证
+							boolean assumeValid = block.getHash().equals(assumeValidHash);
+							if(!assumeValid) {
+								log.warn("高度 {} 的区块 {} 和 assume-valid 区块 {} 不一致，暂存的区块完整验证", assumeValidHeight, block.getHash(), assumeValidHash);
+							}
+							boolean success = processStaging(staging, assumeValid);
+							staging = null;
+							if(!success) {
+								return true;
+							}
+							continue;
+						}
+						//不衔接，之前暂存的区块完整验证，当前区块按正常流程处理
+						log.warn("区块 {} 高度 {} 和暂存的区块不衔接，暂存的区块完整验证", block.getHash(), nextHeight);
+						boolean success = processStaging(staging, false);
+						staging = null;
+						if(!success) {
+							return true;
+						}
+					}
+					MessageProcessResult result = blockMessageProcess.process(block, null);
+					if(result == null || !result.isSuccess()) {
+						log.warn("区块 {} 高度 {} 收录失败，重新同步", block.getHash(), nextHeight);
+						return true;
+					}
+					nextHeight++;
+				}
+
+				if(headersEnd && waitingWindows.isEmpty() && runningWindows.isEmpty() && nextHeight > locatorHeight) {
+					break;
+				}
+
+				//等待区块到达
+				downloadLocker.lock();
+				try {
+					if(!reorderBuffer.containsKey(nextHeight)) {
+						blockArrived.await(1, TimeUnit.SECONDS);
+					}
+				} finally {
+					downloadLocker.unlock();
+				}
+			}
+			//没有到达 assume-valid 高度就结束了，暂存的区块完整验证
+			if(staging != null) {
+				processStaging(staging, false);
+				staging = null;
+			}
+		} finally {
+			if(staging != null) {
+				staging.close();
+			}
+			endStreaming();
+			blockValidator.clearAssumeValidAncestors();
+			downloadingBlocks.clear();
+			downloadLocker.lock();
+			try {
+				reorderBuffer.clear();
+			} finally {
+				downloadLocker.unlock();
+			}
+		}
+		return true;
+	}
+
+	/*
+	 * 按顺序收录暂存的区块，收录失败返回false，结束后删除暂存文件
+	 * assumeValid 为true时暂存的区块都已确认是 assume-valid 区块的祖先，逐个标记之后收录
+	 */
+	private boolean processStaging(AssumeValidStaging staging, boolean assumeValid) throws Exception {
+		try {
+			Block block;
+			while((block = staging.next()) != null) {
+				if(assumeValid) {
+					blockValidator.addAssumeValidAncestors(Collections.singletonList(block.getHash()));
+				}
+				MessageProcessResult result = blockMessageProcess.process(block, null);
+				if(result == null || !result.isSuccess()) {
+					log.warn("暂存的区块 {} 高度 {} 收录失败，重新同步", block.getHash(), block.getHeight());
+					return false;
+				}
+			}
+			return true;
+		} finally {
+			staging.close();
+		}
+	}
+
+	/*
+	 * 向节点获取区块hash清单，失败时依次换其它节点，全部失败返回null
+	 * runningWindows 不为空时，如果节点支持并且没有下载任务，要求它在清单之后直接发送前面的区块
+	 * 成功时 headersPeer 保留为回应清单的节点，由调用者清除
+	 */
+	private List<Sha256Hash> downloadHeaders(List<Peer> activePeers, Sha256Hash locator, List<DownloadWindow> runningWindows) {
+		for (Peer peer : activePeers) {
+			SettableListenableFuture<List<Sha256Hash>> future = new SettableListenableFuture<List<Sha256Hash>>();
+			int sendCount = 0;
+			if(runningWindows != null && peer.isBlockStreamSupported() && getWindowCount(peer, runningWindows) == 0) {
+				sendCount = STREAM_BLOCKS;
+			}
+			downloadLocker.lock();
+			try {
+				streamedBlocks.clear();
+				streaming = sendCount > 0;
+				streamCount = sendCount;
+			} finally {
+				downloadLocker.unlock();
+			}
+			headersStartHash = locator;
+			headersPeer = peer;
+			headersFuture = future;
+			boolean success = false;
+			try {
+				peer.sendMessage(new GetBlocksMessage(network, locator, Sha256Hash.ZERO_HASH, sendCount));
+				List<Sha256Hash> hashs = future.get(HEADERS_TIMEOUT, TimeUnit.MILLISECONDS);
+				if(hashs != null) {
+					success = true;
+					return hashs;
+				}
+			} catch (Exception e) {
+				log.warn("节点 {} 获取区块清单失败", peer.getAddress(), e);
+			} finally {
+				headersFuture = null;
+				if(!success) {
+					headersPeer = null;
+				}
+			}
+		}
+		return null;
+	}
 	
+	/*
+	 * 清单处理完，直接发送的区块不再暂存，已暂存的按正常到达的区块处理
+	 */
+	private void endStreaming() {
+		List<Block> blocks;
+		downloadLocker.lock();
+		try {
+			streaming = false;
+			streamCount = 0;
+			blocks = new ArrayList<Block>(streamedBlocks.values());
+			streamedBlocks.clear();
+		} finally {
+			downloadLocker.unlock();
+		}
+		for (Block block : blocks) {
+			onBlock(block);
+		}
+	}
+
+	/*
+	 * 下载任务最少，且没有达到上限的节点
+	 */
+	private Peer getIdlePeer(List<Peer> activePeers, List<DownloadWindow> runningWindows) {
+		Peer idlePeer = null;
+		int min = MAX_WINDOWS_PER_PEER;
+		for (Peer peer : activePeers) {
+			int count = getWindowCount(peer, runningWindows);
+			if(count < min) {
+				min = count;
+				idlePeer = peer;
+			}
+		}
+		return idlePeer;
+	}
+
+	/*
+	 * 节点正在下载的窗口数
+	 */
+	private int getWindowCount(Peer peer, List<DownloadWindow> runningWindows) {
+		int count = 0;
+		for (DownloadWindow window : runningWindows) {
+			if(window.getPeer() == peer) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/*
+	 * 从缓冲区取出指定高度的区块
+	 */
+	private Block takeBlock(long height) {
+		downloadLocker.lock();
+		try {
+			return reorderBuffer.remove(height);
+		} finally {
+			downloadLocker.unlock();
+		}
+	}
+
+	/**
+	 * 接收到区块hash清单，如果是同步器发出的清单请求的回应，则由同步器处理
+	 * @param peer
+	 * @param invList
+	 * @return boolean 是否已被同步器处理
+	 */
+	public boolean onBlockInventory(Peer peer, List<InventoryItem> invList) {
+		SettableListenableFuture<List<Sha256Hash>> future = headersFuture;
+		if(future == null || headersPeer != peer) {
+			return false;
+		}
+		List<Sha256Hash> hashs = new ArrayList<Sha256Hash>();
+		if(invList != null) {
+			for (InventoryItem item : invList) {
+				if(item.getType() != InventoryItem.Type.Block) {
+					return false;
+				}
+				hashs.add(item.getHash());
+			}
+		}
+		future.set(hashs);
+		return true;
+	}
+
+	/**
+	 * 接收到下载的区块，如果是同步器请求的区块，则放入缓冲区等待按顺序收录
+	 * @param block
+	 * @return boolean 是否已被同步器处理
+	 */
+	public boolean onBlock(Block block) {
+		Sha256Hash hash = block.getHash();
+		DownloadWindow window = downloadingBlocks.get(hash);
+		if(window == null) {
+			//清单还没处理完时先到达的直接发送的区块，暂存起来
+			downloadLocker.lock();
+			try {
+				window = downloadingBlocks.get(hash);
+				if(window == null) {
+					if(streaming && streamedBlocks.size() < streamCount) {
+						streamedBlocks.put(hash, block);
+						return true;
+					}
+					return false;
+				}
+			} finally {
+				downloadLocker.unlock();
+			}
+		}
+		if(!window.received(hash)) {
+			//重复到达的区块，直接丢弃
+			return true;
+		}
+		downloadLocker.lock();
+		try {
+			reorderBuffer.put(window.getHeight(hash), block);
+			blockArrived.signalAll();
+		} finally {
+			downloadLocker.unlock();
+		}
+		return true;
+	}
+
+	/**
+	 * 节点回应数据没有找到
+	 * @param peer
+	 * @param hash
+	 */
+	public void onDataNotFound(Peer peer, Sha256Hash hash) {
+		SettableListenableFuture<List<Sha256Hash>> future = headersFuture;
+		if(future != null && headersPeer == peer && hash.equals(headersStartHash)) {
+			future.set(null);
+			return;
+		}
+		//窗口里的区块对方没有，让该窗口立即超时重新分配
+		DownloadWindow window = downloadingBlocks.get(hash);
+		if(window != null && window.getPeer() == peer) {
+			window.stall();
+		}
+	}
+
 	/**
 	 * 同步是否完成
 	 * @return boolean
@@ -379,4 +805,94 @@ public class DataSynchronizeHandler implements Runnable {
 			return String.valueOf(height) + " , " + hash + ", "+count;
 		}
 	}
+
+	/*
+	 * 下载窗口，一次向一个节点请求的一批连续区块
+	 */
+	private class DownloadWindow {
+		//区块hash和对应的高度
+		private final Map<Sha256Hash, Long> heights = new LinkedHashMap<Sha256Hash, Long>();
+		//还没有到达的区块
+		private final Set<Sha256Hash> remaining = ConcurrentHashMap.newKeySet();
+		private volatile Peer peer;
+		private volatile long sendTime;
+
+		public void add(Sha256Hash hash, long height) {
+			heights.put(hash, height);
+			remaining.add(hash);
+		}
+
+		public int size() {
+			return heights.size();
+		}
+
+		/*
+		 * 节点会直接发送窗口里的区块，不需要再请求
+		 */
+		public void assign(Peer peer) {
+			this.peer = peer;
+			this.sendTime = System.currentTimeMillis();
+		}
+
+		public void send(Peer peer) {
+			this.peer = peer;
+			this.sendTime = System.currentTimeMillis();
+
+			List<InventoryItem> items = new ArrayList<InventoryItem>();
+			for (Sha256Hash hash : heights.keySet()) {
+				if(remaining.contains(hash)) {
+					items.add(new InventoryItem(InventoryItem.Type.Block, hash));
+				}
+			}
+			GetDatasMessage message = new GetDatasMessage(network, items.get(0));
+			for (int i = 1; i < items.size(); i++) {
+				message.addItem(items.get(i));
+			}
+			try {
+				peer.sendMessage(message);
+			} catch (Exception e) {
+				log.warn("向节点 {} 请求区块失败", peer.getAddress(), e);
+				stall();
+			}
+		}
+
+		/*
+		 * 标记区块已到达，重复到达的返回false
+		 */
+		public boolean received(Sha256Hash hash) {
+			return remaining.remove(hash);
+		}
+
+		public long getHeight(Sha256Hash hash) {
+			return heights.get(hash);
+		}
+
+		public long getStartHeight() {
+			return heights.values().iterator().next();
+		}
+
+		/*
+		 * 停滞之后，重置节点，等待重新分配剩余的区块
+		 */
+		public DownloadWindow reset() {
+			peer = null;
+			return this;
+		}
+
+		public void stall() {
+			sendTime = 0l;
+		}
+
+		public boolean isComplete() {
+			return remaining.isEmpty();
+		}
+
+		public Peer getPeer() {
+			return peer;
+		}
+
+		public long getSendTime() {
+			return sendTime;
+		}
+	}
 }
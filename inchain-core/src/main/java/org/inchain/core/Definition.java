@@ -6,9 +6,12 @@ import java.util.Map.Entry;
 
 import org.inchain.message.AddressMessage;
 import org.inchain.message.Block;
+import org.inchain.message.BlockTxnMessage;
+import org.inchain.message.CompactBlockMessage;
 import org.inchain.message.ConsensusMessage;
 import org.inchain.message.DataNotFoundMessage;
 import org.inchain.message.GetAddressMessage;
+import org.inchain.message.GetBlockTxnMessage;
 import org.inchain.message.GetBlocksMessage;
 import org.inchain.message.GetDatasMessage;
 import org.inchain.message.InventoryMessage;
@@ -16,6 +19,7 @@ import org.inchain.message.Message;
 import org.inchain.message.NewBlockMessage;
 import org.inchain.message.PingMessage;
 import org.inchain.message.PongMessage;
+import org.inchain.message.SendCompactMessage;
 import org.inchain.message.VerackMessage;
 import org.inchain.message.VersionMessage;
 import org.inchain.transaction.Transaction;
@@ -158,6 +162,10 @@ public final class Definition {
     	PROCESS_FACTORYS.put(InventoryMessage.class, "inventoryMessageProcess");
     	PROCESS_FACTORYS.put(GetDatasMessage.class, "getDatasMessageProcess");
     	PROCESS_FACTORYS.put(DataNotFoundMessage.class, "dataNotFoundMessageProcess");
+    	PROCESS_FACTORYS.put(SendCompactMessage.class, "sendCompactMessageProcess");
+    	PROCESS_FACTORYS.put(CompactBlockMessage.class, "compactBlockMessageProcess");
+    	PROCESS_FACTORYS.put(GetBlockTxnMessage.class, "getBlockTxnMessageProcess");
+    	PROCESS_FACTORYS.put(BlockTxnMessage.class, "blockTxnMessageProcess");
 
     	PROCESS_FACTORYS.put(AddressMessage.class, "addressMessageProcess");
     	PROCESS_FACTORYS.put(GetAddressMessage.class, "addressMessageProcess");
@@ -197,6 +205,10 @@ public final class Definition {
     	MESSAGE_COMMANDS.put(InventoryMessage.class, "inv");
     	MESSAGE_COMMANDS.put(GetDatasMessage.class, "getdatas");
     	MESSAGE_COMMANDS.put(DataNotFoundMessage.class, "notfound");
+    	MESSAGE_COMMANDS.put(SendCompactMessage.class, "sendcmpct");
+    	MESSAGE_COMMANDS.put(CompactBlockMessage.class, "cmpctblock");
+    	MESSAGE_COMMANDS.put(GetBlockTxnMessage.class, "getblocktxn");
+    	MESSAGE_COMMANDS.put(BlockTxnMessage.class, "blocktxn");
     	
     	MESSAGE_COMMANDS.put(Transaction.class, "tx");
     	MESSAGE_COMMANDS.put(RegAliasTransaction.class, "tx");
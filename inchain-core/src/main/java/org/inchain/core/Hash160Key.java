@@ -0,0 +1,94 @@
+package org.inchain.core;
+
+import java.util.Arrays;
+
+import org.inchain.account.Address;
+import org.inchain.utils.Hex;
+
+/**
+ * 20字节的 hash160，作为 Map 的 key 使用
+ * byte[] 本身按对象地址计算 hashCode 和 equals，直接做 key 查不到内容相同的数组
+ * hash160 本身就是hash值，直接取前4个字节作为 hashCode，构造时计算好
+ * @author ln
+ *
+ */
+public final class Hash160Key implements Comparable<Hash160Key> {
+
+	private final byte[] bytes;
+	private final int hashCode;
+
+	/**
+	 * 会复制一份，之后修改传入的数组不影响该 key
+	 * @param hash160
+	 */
+	public Hash160Key(byte[] hash160) {
+		this(hash160, true);
+	}
+
+	private Hash160Key(byte[] hash160, boolean copy) {
+		if(hash160 == null || hash160.length != Address.LENGTH) {
+			throw new IllegalArgumentException("hash160 长度必须是 " + Address.LENGTH);
+		}
+		this.bytes = copy ? Arrays.copyOf(hash160, Address.LENGTH) : hash160;
+		this.hashCode = (bytes[0] & 0xff) << 24 | (bytes[1] & 0xff) << 16 | (bytes[2] & 0xff) << 8 | (bytes[3] & 0xff);
+	}
+
+	/**
+	 * 不复制传入的数组，只用来临时查询 Map，不能放进 Map 里保存
+	 * @param hash160
+	 * @return Hash160Key
+	 */
+	public static Hash160Key lookup(byte[] hash160) {
+		return new Hash160Key(hash160, false);
+	}
+
+	/**
+	 * 返回副本
+	 * @return byte[]
+	 */
+	public byte[] getBytes() {
+		return Arrays.copyOf(bytes, bytes.length);
+	}
+
+	/**
+	 * 和 hash160 的内容是否相同
+	 * @param hash160
+	 * @return boolean
+	 */
+	public boolean matches(byte[] hash160) {
+		return Arrays.equals(bytes, hash160);
+	}
+
+	@Override
+	public int hashCode() {
+		return hashCode;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if(this == obj) {
+			return true;
+		}
+		if(!(obj instanceof Hash160Key)) {
+			return false;
+		}
+		Hash160Key other = (Hash160Key) obj;
+		return hashCode == other.hashCode && Arrays.equals(bytes, other.bytes);
+	}
+
+	@Override
+	public int compareTo(Hash160Key other) {
+		for (int i = 0; i < bytes.length; i++) {
+			int diff = (bytes[i] & 0xff) - (other.bytes[i] & 0xff);
+			if(diff != 0) {
+				return diff;
+			}
+		}
+		return 0;
+	}
+
+	@Override
+	public String toString() {
+		return Hex.encode(bytes);
+	}
+}
@@ -0,0 +1,445 @@
+package org.inchain.core;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.inchain.Configure;
+import org.inchain.message.Block;
+import org.inchain.message.BlockTxnMessage;
+import org.inchain.message.CompactBlockMessage;
+import org.inchain.message.ConsensusMessage;
+import org.inchain.message.DataNotFoundMessage;
+import org.inchain.message.GetBlockTxnMessage;
+import org.inchain.message.GetBlocksMessage;
+import org.inchain.message.GetDatasMessage;
+import org.inchain.message.Message;
+import org.inchain.message.NewBlockMessage;
+import org.inchain.message.PingMessage;
+import org.inchain.message.PongMessage;
+import org.inchain.message.SendCompactMessage;
+import org.inchain.message.VerackMessage;
+import org.inchain.message.VersionMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 节点消息调度器，所有节点共用固定数量的线程处理接收到的消息
+ * 消息按类型分为共识、区块、交易三个优先级通道，共识消息不会排在大量交易消息后面
+ * 同一节点同一时间只处理一条消息，通道只决定该节点下一条处理哪个通道的消息，同一通道的消息按接收顺序处理
+ * 消息处理要等待同一节点之后的消息时，等待前调用 releasePeer，让该节点后面的消息由其它线程处理
+ * 有消息的节点轮流调度，单个节点占不满线程
+ * 单个节点待处理的消息达到上限时暂停读取该节点的数据，处理到一半以下时恢复
+ * @author ln
+ *
+ */
+public class MessageDispatcher {
+
+	private static final Logger log = LoggerFactory.getLogger(MessageDispatcher.class);
+
+	/**
+	 * 消息通道，按优先级从高到低
+	 */
+	public enum Lane {
+		//共识和握手、心跳消息
+		CONSENSUS,
+		//区块和区块下载
+		BLOCK,
+		//交易、inv、地址等其它消息
+		TX
+	}
+
+	//区块通道每调度这么多次，如果交易通道有消息，就让交易通道执行一次，避免同步区块时交易消息一直得不到处理
+	private final static int TX_LANE_TURN = 4;
+
+	//当前工作线程正在执行的节点，消息处理调用 releasePeer 之后清空
+	private final static ThreadLocal<PeerQueue> runningQueue = new ThreadLocal<PeerQueue>();
+
+	private final static MessageDispatcher INSTANCE = new MessageDispatcher(Math.max(Configure.MESSAGE_PROCESS_THREADS, 1),
+			Math.max(Configure.PEER_MAX_PENDING_MESSAGES, 2));
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+
+	//各通道里有待处理的消息的节点队列，按先后轮流调度，节点有消息正在执行时取到的会被跳过，执行完再重新排队
+	private final List<ArrayDeque<LaneQueue>> readyQueues;
+	//各通道待处理的消息数
+	private final int[] laneSizes;
+	//各通道已处理的消息数
+	private final AtomicLong[] processedCounts;
+	//被暂停读取的节点数
+	private int pausedPeers;
+	//调度区块或交易通道的次数
+	private long dispatchCount;
+
+	private final int maxPendingPerPeer;
+	private final Thread[] workers;
+
+	public MessageDispatcher(int threads, int maxPendingPerPeer) {
+		this.maxPendingPerPeer = maxPendingPerPeer;
+
+		int laneCount = Lane.values().length;
+		readyQueues = new ArrayList<ArrayDeque<LaneQueue>>(laneCount);
+		laneSizes = new int[laneCount];
+		processedCounts = new AtomicLong[laneCount];
+		for (int i = 0; i < laneCount; i++) {
+			readyQueues.add(new ArrayDeque<LaneQueue>());
+			processedCounts[i] = new AtomicLong();
+		}
+
+		workers = new Thread[threads];
+		for (int i = 0; i < threads; i++) {
+			workers[i] = new Thread("MessageDispatcher-" + i) {
+				@Override
+				public void run() {
+					work();
+				}
+			};
+			workers[i].setDaemon(true);
+			workers[i].start();
+		}
+	}
+
+	public static MessageDispatcher get() {
+		return INSTANCE;
+	}
+
+	/**
+	 * 消息所属的通道
+	 * @param message
+	 * @return Lane
+	 */
+	public static Lane laneOf(Message message) {
+		if(message instanceof ConsensusMessage || message instanceof VersionMessage || message instanceof VerackMessage
+				|| message instanceof PingMessage || message instanceof PongMessage || message instanceof SendCompactMessage) {
+			return Lane.CONSENSUS;
+		}
+		if(message instanceof Block || message instanceof NewBlockMessage || message instanceof GetBlocksMessage
+				|| message instanceof GetDatasMessage || message instanceof DataNotFoundMessage || message instanceof CompactBlockMessage
+				|| message instanceof GetBlockTxnMessage || message instanceof BlockTxnMessage) {
+			return Lane.BLOCK;
+		}
+		return Lane.TX;
+	}
+
+	/**
+	 * 调度器线程上的消息处理，要等待同一节点之后的消息（例如 getdata 的回复）时，在等待之前调用
+	 * 之后该节点的其它消息可以由其它工作线程处理，否则回复排在当前消息后面，只能等到超时
+	 * 当前消息处理完时不再改动节点的执行状态，不在调度器线程上调用时什么都不做
+	 * @return boolean 是否让出了节点
+	 */
+	public static boolean releasePeer() {
+		PeerQueue queue = runningQueue.get();
+		if(queue == null) {
+			return false;
+		}
+		runningQueue.remove();
+		queue.release();
+		return true;
+	}
+
+	/**
+	 * 为节点创建消息队列
+	 * @param peer
+	 * @return PeerQueue
+	 */
+	public PeerQueue newPeerQueue(PeerSocketHandler peer) {
+		return new PeerQueue(peer);
+	}
+
+	/*
+	 * 工作线程，取出下一个节点通道的一条消息执行
+	 */
+	private void work() {
+		while (true) {
+			LaneQueue laneQueue;
+			Runnable task;
+			lock.lock();
+			try {
+				while ((laneQueue = nextReady()) == null) {
+					notEmpty.awaitUninterruptibly();
+				}
+				task = laneQueue.tasks.poll();
+				laneQueue.owner.running = true;
+				laneSizes[laneQueue.lane.ordinal()]--;
+			} finally {
+				lock.unlock();
+			}
+
+			runningQueue.set(laneQueue.owner);
+			try {
+				task.run();
+			} catch (Throwable e) {
+				log.error("消息处理出错", e);
+			}
+			//处理过程中让出了节点，该节点可能已经在执行其它消息
+			boolean released = runningQueue.get() == null;
+			runningQueue.remove();
+			processedCounts[laneQueue.lane.ordinal()].incrementAndGet();
+
+			lock.lock();
+			try {
+				PeerQueue owner = laneQueue.owner;
+				if(!released) {
+					owner.running = false;
+				}
+				if(!owner.closed) {
+					owner.pending--;
+					if(owner.paused && owner.pending <= maxPendingPerPeer / 2) {
+						owner.paused = false;
+						pausedPeers--;
+						owner.peer.setReadingPaused(false);
+					}
+					owner.markLanesReady();
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	/*
+	 * 选择下一个要执行的节点通道，调用时必须持有锁
+	 */
+	private LaneQueue nextReady() {
+		ArrayDeque<LaneQueue> consensus = readyQueues.get(Lane.CONSENSUS.ordinal());
+		dropRunning(consensus);
+		if(!consensus.isEmpty()) {
+			return takeReady(consensus);
+		}
+		ArrayDeque<LaneQueue> block = readyQueues.get(Lane.BLOCK.ordinal());
+		ArrayDeque<LaneQueue> tx = readyQueues.get(Lane.TX.ordinal());
+		dropRunning(block);
+		dropRunning(tx);
+		if(block.isEmpty() && tx.isEmpty()) {
+			return null;
+		}
+		dispatchCount++;
+		if(!block.isEmpty() && (tx.isEmpty() || dispatchCount % TX_LANE_TURN != 0)) {
+			return takeReady(block);
+		}
+		return takeReady(tx);
+	}
+
+	/*
+	 * 去掉队首所属节点正在执行消息的通道，节点执行完之后会重新排队
+	 */
+	private void dropRunning(ArrayDeque<LaneQueue> queue) {
+		LaneQueue laneQueue;
+		while ((laneQueue = queue.peek()) != null && laneQueue.owner.running) {
+			queue.poll();
+			laneQueue.ready = false;
+		}
+	}
+
+	private LaneQueue takeReady(ArrayDeque<LaneQueue> queue) {
+		LaneQueue laneQueue = queue.poll();
+		laneQueue.ready = false;
+		return laneQueue;
+	}
+
+	private void markReady(LaneQueue laneQueue) {
+		laneQueue.ready = true;
+		readyQueues.get(laneQueue.lane.ordinal()).offer(laneQueue);
+		notEmpty.signal();
+	}
+
+	/**
+	 * 某个通道等待处理的消息数
+	 * @param lane
+	 * @return int
+	 */
+	public int getQueueSize(Lane lane) {
+		lock.lock();
+		try {
+			return laneSizes[lane.ordinal()];
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * 某个通道已处理的消息数
+	 * @param lane
+	 * @return long
+	 */
+	public long getProcessedCount(Lane lane) {
+		return processedCounts[lane.ordinal()].get();
+	}
+
+	/**
+	 * 因为消息积压被暂停读取的节点数
+	 * @return int
+	 */
+	public int getPausedPeerCount() {
+		lock.lock();
+		try {
+			return pausedPeers;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public int getThreadCount() {
+		return workers.length;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("MessageDispatcher [threads=").append(workers.length);
+		for (Lane lane : Lane.values()) {
+			sb.append(", ").append(lane.name().toLowerCase()).append("=").append(getQueueSize(lane))
+				.append("/").append(getProcessedCount(lane));
+		}
+		return sb.append(", pausedPeers=").append(getPausedPeerCount()).append("]").toString();
+	}
+
+	/**
+	 * 单个节点的消息队列
+	 */
+	public final class PeerQueue {
+
+		private final PeerSocketHandler peer;
+		private final LaneQueue[] lanes;
+		//等待处理和正在处理的消息数，由调度器的锁保护
+		private int pending;
+		//正在执行该节点的消息，同一节点同一时间只执行一条
+		private boolean running;
+		private boolean paused;
+		private boolean closed;
+
+		private PeerQueue(PeerSocketHandler peer) {
+			this.peer = peer;
+			Lane[] values = Lane.values();
+			lanes = new LaneQueue[values.length];
+			for (int i = 0; i < values.length; i++) {
+				lanes[i] = new LaneQueue(this, values[i]);
+			}
+		}
+
+		/**
+		 * 放入消息处理任务，按消息类型进入对应的通道
+		 * @param message
+		 * @param task
+		 */
+		public void submit(Message message, Runnable task) {
+			LaneQueue laneQueue = lanes[laneOf(message).ordinal()];
+			lock.lock();
+			try {
+				if(closed) {
+					return;
+				}
+				laneQueue.tasks.offer(task);
+				laneSizes[laneQueue.lane.ordinal()]++;
+				pending++;
+				if(!running && !laneQueue.ready) {
+					markReady(laneQueue);
+				}
+				//积压过多，暂停读取该节点的数据
+				if(!paused && pending >= maxPendingPerPeer) {
+					paused = true;
+					pausedPeers++;
+					log.info("节点 {} 待处理消息达到 {}，暂停读取", peer.getAddress(), pending);
+					peer.setReadingPaused(true);
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		/*
+		 * 正在执行的消息让出节点，该节点后面的消息可以开始执行
+		 */
+		private void release() {
+			lock.lock();
+			try {
+				running = false;
+				if(!closed) {
+					markLanesReady();
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		/*
+		 * 该节点还有消息的通道，排到队尾等下一轮，调用时必须持有锁
+		 */
+		private void markLanesReady() {
+			for (LaneQueue next : lanes) {
+				if(!next.ready && !next.tasks.isEmpty()) {
+					markReady(next);
+				}
+			}
+		}
+
+		/**
+		 * 连接关闭，丢弃还没有处理的消息
+		 */
+		public void close() {
+			lock.lock();
+			try {
+				if(closed) {
+					return;
+				}
+				closed = true;
+				for (LaneQueue laneQueue : lanes) {
+					laneSizes[laneQueue.lane.ordinal()] -= laneQueue.tasks.size();
+					laneQueue.tasks.clear();
+					if(laneQueue.ready) {
+						laneQueue.ready = false;
+						readyQueues.get(laneQueue.lane.ordinal()).remove(laneQueue);
+					}
+				}
+				pending = 0;
+				if(paused) {
+					paused = false;
+					pausedPeers--;
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * 等待处理和正在处理的消息数
+		 * @return int
+		 */
+		public int getPendingCount() {
+			lock.lock();
+			try {
+				return pending;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		public boolean isPaused() {
+			lock.lock();
+			try {
+				return paused;
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	/*
+	 * 单个节点的一个通道
+	 */
+	private static final class LaneQueue {
+		private final PeerQueue owner;
+		private final Lane lane;
+		private final ArrayDeque<Runnable> tasks = new ArrayDeque<Runnable>();
+		//已在调度队列里
+		private boolean ready;
+
+		LaneQueue(PeerQueue owner, Lane lane) {
+			this.owner = owner;
+			this.lane = lane;
+		}
+	}
+}
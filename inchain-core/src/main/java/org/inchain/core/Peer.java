@@ -7,8 +7,6 @@ import java.nio.channels.NotYetConnectedException;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
@@ -50,8 +48,8 @@ public class Peer extends PeerSocketHandler {
 	//ping futures
 	private Map<Long, SettableListenableFuture<Boolean>> pingFutures = new ConcurrentHashMap<Long, SettableListenableFuture<Boolean>>();
 	
-	//异步顺序执行所有接收到的消息，以免有处理时间较长的线程阻塞，影响性能
-	private ExecutorService executorService = Executors.newSingleThreadExecutor();
+	//接收到的消息交给共用的消息调度器异步处理，同类消息按顺序执行
+	private final MessageDispatcher.PeerQueue messageQueue = MessageDispatcher.get().newPeerQueue(this);
 	
 	//消息处理器工厂
 	private static MessageProcessFactory messageProcessFactory = DefaultMessageProcessFactory.getInstance();
@@ -77,6 +75,11 @@ public class Peer extends PeerSocketHandler {
 	//区块同步开始的hash
 	private Sha256Hash synchronizeDataStartHash;
 	
+	//对方支持紧凑区块，新区块可以用紧凑区块的方式获取
+	private volatile boolean compactBlockSupported;
+	//对方支持在区块清单之后直接发送区块
+	private volatile boolean blockStreamSupported;
+	
 	public Peer(NetworkParams network, InetSocketAddress address) {
 		this(network, new PeerAddress(address));
 	}
@@ -98,11 +101,12 @@ public class Peer extends PeerSocketHandler {
 		if(messageProcess == null) {
 			return;
 		} else{
-			executorService.submit(new Thread(){
+			messageQueue.submit(message, new Runnable() {
+				@Override
 				public void run() {
 					MessageProcessResult result = messageProcess.process(message, Peer.this);
 					processMessageResult(message, result);
-				};
+				}
 			});
 		}
 	}
@@ -208,6 +212,8 @@ public class Peer extends PeerSocketHandler {
 	public boolean waitBlockDownComplete(Sha256Hash startHash) throws Exception {
 		 downloadFuture = new SettableListenableFuture<Boolean>();
 		 synchronizeDataStartHash = startHash;
+		 //在消息处理里等待时，下载的区块不能排在当前消息后面
+		 MessageDispatcher.releasePeer();
 		 try {
 			return downloadFuture.get(120, TimeUnit.SECONDS);
 		} catch (InterruptedException | ExecutionException e) {
@@ -224,6 +230,14 @@ public class Peer extends PeerSocketHandler {
 		}
 	}
 	
+	/**
+	 * 等待处理和正在处理的消息数
+	 * @return int
+	 */
+	public int getPendingMessageCount() {
+		return messageQueue.getPendingCount();
+	}
+	
 	@Override
 	public int getMaxMessageSize() {
 		return Message.MAX_SIZE;
@@ -231,6 +245,8 @@ public class Peer extends PeerSocketHandler {
 	
 	@Override
 	public void connectionClosed() {
+		//丢弃还没有处理的消息
+		messageQueue.close();
 		log.info("peer {} connectionClosed ", peerAddress);
 		if(log.isDebugEnabled()) {
 			log.debug("peer {} connectionClosed ", this);
@@ -318,6 +334,22 @@ public class Peer extends PeerSocketHandler {
 		return handshake;
 	}
 
+	public boolean isCompactBlockSupported() {
+		return compactBlockSupported;
+	}
+
+	public void setCompactBlockSupported(boolean compactBlockSupported) {
+		this.compactBlockSupported = compactBlockSupported;
+	}
+
+	public boolean isBlockStreamSupported() {
+		return blockStreamSupported;
+	}
+
+	public void setBlockStreamSupported(boolean blockStreamSupported) {
+		this.blockStreamSupported = blockStreamSupported;
+	}
+
 	public void setHandshake(boolean handshake) {
 		this.handshake = handshake;
 	}
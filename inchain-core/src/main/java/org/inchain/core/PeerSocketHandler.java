@@ -3,7 +3,6 @@ package org.inchain.core;
 import static org.inchain.utils.Utils.checkNotNull;
 import static org.inchain.utils.Utils.checkState;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.net.ConnectException;
 import java.net.InetSocketAddress;
@@ -11,9 +10,12 @@ import java.net.ProtocolException;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.channels.NotYetConnectedException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
+import org.inchain.Configure;
 import org.inchain.message.Message;
 import org.inchain.message.MessageSerializer;
 import org.inchain.message.VerackMessage;
@@ -22,9 +24,12 @@ import org.inchain.message.MessageSerializer.MessagePacketHeader;
 import org.inchain.message.PingMessage;
 import org.inchain.message.PongMessage;
 import org.inchain.net.AbstractTimeoutHandler;
+import org.inchain.net.MessageFrame;
 import org.inchain.net.MessageWriteTarget;
 import org.inchain.net.StreamConnection;
 import org.inchain.network.NetworkParams;
+import org.inchain.utils.ContextPropagatingThreadFactory;
+import org.inchain.utils.SerialExecutor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -32,6 +37,20 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
 
 	private static final Logger log = LoggerFactory.getLogger(PeerSocketHandler.class);
 	
+	//消息校验和反序列化的线程池，所有节点共用，不在网络读写线程里做
+	private static final ExecutorService decodePool = Executors.newFixedThreadPool(Math.max(Configure.NET_DECODE_THREADS, 1),
+			new ContextPropagatingThreadFactory("PeerMessageDecoder"));
+	
+	//本节点的消息按接收顺序解码和处理
+	private final SerialExecutor decodeExecutor = new SerialExecutor(decodePool);
+	//等待解码的消息达到这个数时暂停读取，解码到一半以下时恢复
+	private int maxPendingDecodes = Math.max(Configure.PEER_MAX_PENDING_DECODES, 2);
+	
+	//消息处理积压和解码积压都会暂停读取，任意一个还在积压就不恢复
+	private final Object readingLock = new Object();
+	private boolean processPaused;
+	private boolean decodePaused;
+	
 	private byte[] largeReadBuffer;
     private int largeReadBufferPos;
     
@@ -65,10 +84,46 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
     }
 
     public void sendMessage(Message message) throws NotYetConnectedException, IOException {
+    	if(!checkCanSend(message)) {
+    		return;
+    	}
+        if(message.getSerializer() == null) {
+        	message.setSerializer(serializer);
+        }
+        MessageFrame frame;
+        try {
+        	frame = serializer.serializeFrame(message);
+        } catch (IOException e) {
+        	close();
+        	throw e;
+        }
+        try {
+        	writeFrame(frame);
+        } finally {
+        	frame.release();
+        }
+    }
+    
+    /**
+     * 发送已经序列化好的消息，广播时同一个消息帧被多个节点共享，只序列化一次
+     * 消息帧由调用者释放
+     * @param message	消息，用于判断握手状态
+     * @param frame		message 序列化后的消息帧
+     * @throws NotYetConnectedException
+     * @throws IOException
+     */
+    public void sendMessage(Message message, MessageFrame frame) throws NotYetConnectedException, IOException {
+    	if(!checkCanSend(message)) {
+    		return;
+    	}
+    	writeFrame(frame);
+    }
+    
+    private boolean checkCanSend(Message message) {
     	if(!handshake && !(message instanceof VersionMessage || message instanceof
 				VerackMessage|| message instanceof PingMessage || message instanceof PongMessage)) {
     		log.warn("handshake {} {} 节点还没有握手完成，不能通讯 {}", handshake, peerAddress, message);
-    		return;
+    		return false;
     	}
         lock.lock();
         try {
@@ -77,13 +132,12 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
         } finally {
             lock.unlock();
         }
-        if(message.getSerializer() == null) {
-        	message.setSerializer(serializer);
-        }
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        return true;
+    }
+    
+    private void writeFrame(MessageFrame frame) throws IOException {
         try {
-            serializer.serialize(message, out);
-            writeTarget.writeBytes(out.toByteArray());
+            writeTarget.writeFrame(frame);
         } catch (IOException e) {
         	close();
         	throw e;
@@ -113,18 +167,24 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
                     // Check the largeReadBuffer's status
                     if (largeReadBufferPos == largeReadBuffer.length) {
                         // ...processing a message if one is available
-                        processMessage(serializer.deserializePayload(header, ByteBuffer.wrap(largeReadBuffer)));
+                        decodeMessage(header, largeReadBuffer);
                         largeReadBuffer = null;
                         header = null;
                         firstMessage = false;
                     } else // ...or just returning if we don't have enough bytes yet
                         return buff.position();
                 }
-                // Now try to deserialize any messages left in buff
-                Message message;
+                // Now try to frame any messages left in buff, the checksum and deserialization run in decodeMessage
+                MessagePacketHeader packetHeader;
+                byte[] payload;
                 int preSerializePosition = buff.position();
                 try {
-                    message = serializer.deserialize(buff);
+                    serializer.seekPastMagicBytes(buff);
+                    packetHeader = serializer.deserializeHeader(buff);
+                    if (buff.remaining() < packetHeader.size)
+                        throw new BufferUnderflowException();
+                    payload = new byte[packetHeader.size];
+                    buff.get(payload);
                 } catch (BufferUnderflowException e) {
                     // If we went through the whole buffer without a full message, we need to use the largeReadBuffer
                     if (firstMessage && buff.limit() == buff.capacity()) {
@@ -152,8 +212,8 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
                     }
                     return buff.position();
                 }
-                // Process our freshly deserialized message
-                processMessage(message);
+                // Process our freshly framed message
+                decodeMessage(packetHeader, payload);
                 firstMessage = false;
             }
         } catch (Exception e) {
@@ -162,6 +222,80 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
         }
     }
     
+    /*
+     * 校验和反序列化消息，然后交给 processMessage，在解码线程池里按接收顺序执行
+     */
+    private void decodeMessage(final MessagePacketHeader packetHeader, final byte[] payload) {
+    	decodeExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					processMessage(serializer.deserializePayload(packetHeader, ByteBuffer.wrap(payload)));
+				} catch (Exception e) {
+					exceptionCaught(e);
+				} finally {
+					//解码到一半以下时恢复读取
+					synchronized (readingLock) {
+						if(decodePaused && getPendingDecodeCount() <= maxPendingDecodes / 2) {
+							decodePaused = false;
+							updateReadingPaused();
+						}
+					}
+				}
+			}
+		});
+    	//积压过多，暂停读取该节点的数据，数量在锁里重新读取，避免解码线程已经处理完却没有恢复
+    	synchronized (readingLock) {
+    		if(!decodePaused && getPendingDecodeCount() >= maxPendingDecodes) {
+    			decodePaused = true;
+    			log.info("节点 {} 待解码消息达到 {}，暂停读取", peerAddress, maxPendingDecodes);
+    			updateReadingPaused();
+    		}
+    	}
+    }
+    
+    /**
+     * 消息处理积压时暂停读取该节点的数据，处理完之后恢复
+     * 解码积压时同样会暂停，两者都恢复之后才继续读取
+     * @param paused
+     */
+    public void setReadingPaused(boolean paused) {
+    	synchronized (readingLock) {
+    		processPaused = paused;
+    		updateReadingPaused();
+    	}
+    }
+    
+    /*
+     * 调用时必须持有 readingLock
+     */
+    private void updateReadingPaused() {
+    	MessageWriteTarget target = writeTarget;
+    	if(target != null) {
+    		target.setReadingPaused(processPaused || decodePaused);
+    	}
+    }
+    
+    /**
+     * 发送队列里还没有写入网络的字节数，还没有连接时为0
+     * @return long
+     */
+    public long getPendingWriteBytes() {
+    	MessageWriteTarget target = writeTarget;
+    	if(target == null) {
+    		return 0l;
+    	}
+    	return target.getPendingWriteBytes();
+    }
+    
+    /**
+     * 已接收但还没有解码的消息数
+     * @return int
+     */
+    public int getPendingDecodeCount() {
+    	return decodeExecutor.getPendingCount();
+    }
+    
 	@Override
     public void setWriteTarget(MessageWriteTarget writeTarget) {
 		checkNotNull(writeTarget);
@@ -215,4 +349,4 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
         return peerAddress;
     }
 }
-
+
@@ -1,6 +1,8 @@
 package org.inchain.db;
 
 import java.io.IOException;
+import java.util.List;
+import java.util.Map.Entry;
 
 import org.iq80.leveldb.DB;
 
@@ -17,7 +19,68 @@ public interface Db {
 
 	boolean delete(byte[] key);
 	
+	/**
+	 * 开启批量写入
+	 * 开启之后当前线程的 put/delete 都会暂存到批次里，直到 commitBatch 时一次性原子写入
+	 * 批次未提交之前，当前线程的 get 能读取到批次里的数据，其它线程读取不到
+	 * 支持嵌套调用，只有最外层的 commitBatch 才会真正写入
+	 */
+	void beginBatch();
+
+	/**
+	 * 提交当前线程的批量写入
+	 * 嵌套时里层调用过 discardBatch 的，最外层提交不写入任何数据，抛出 IOException
+	 * @throws IOException
+	 */
+	void commitBatch() throws IOException;
+
+	/**
+	 * 放弃当前线程的批量写入，批次里暂存的数据全部丢弃
+	 * 嵌套时里层放弃只标记整个批次作废，批次在最外层的 commitBatch 或 discardBatch 时结束
+	 */
+	void discardBatch();
+
+	/**
+	 * 当前线程是否开启了批量写入
+	 * @return boolean
+	 */
+	boolean isBatching();
+
+	/**
+	 * 当前线程批次里暂存的所有key，包括已删除的，没有开启批量写入时返回空列表
+	 * @return List<byte[]>
+	 */
+	List<byte[]> getBatchKeys();
+
+	/**
+	 * 按前缀遍历，获取所有以 prefix 开头的数据，按 key 的字节顺序排列
+	 * 当前线程开启了批量写入时，结果包含批次里暂存的数据
+	 * @param prefix
+	 * @return List<Entry<byte[], byte[]>>
+	 */
+	List<Entry<byte[], byte[]>> listByPrefix(byte[] prefix);
+
+	/**
+	 * 按前缀遍历，逐条交给 visitor 处理，visitor 返回false时提前结束，数据不会全部读入内存
+	 * 按 key 的字节顺序，当前线程开启了批量写入时，包含批次里暂存的数据
+	 * @param prefix
+	 * @param visitor
+	 */
+	void forEachByPrefix(byte[] prefix, EntryVisitor visitor);
+
 	void close() throws IOException;
 	
 	DB getSourceDb();
+
+	/**
+	 * 遍历时逐条处理数据
+	 */
+	interface EntryVisitor {
+		/**
+		 * @param key
+		 * @param value
+		 * @return boolean 返回false时停止遍历
+		 */
+		boolean visit(byte[] key, byte[] value);
+	}
 }
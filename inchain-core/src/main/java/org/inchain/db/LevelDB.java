@@ -3,11 +3,20 @@ package org.inchain.db;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 
 import org.iq80.leveldb.DB;
 import org.iq80.leveldb.DBIterator;
 import org.iq80.leveldb.Options;
+import org.iq80.leveldb.WriteBatch;
 import org.iq80.leveldb.impl.Iq80DBFactory;
 
 /**
@@ -17,7 +26,7 @@ import org.iq80.leveldb.impl.Iq80DBFactory;
  */
 public class LevelDB implements Db {
 
-	//TODO 缓存
+	//解码后的对象缓存在存储提供器里，见 BaseStoreProvider
 	
 	private DB db = null;
 	
@@ -29,6 +38,8 @@ public class LevelDB implements Db {
 	private int leveldbWriteCache;
 	//数据保存目录
 	private String filename;
+	//批量写入，每个线程独立，保证区块入库时其它线程读不到未提交的数据
+	private final ThreadLocal<Batch> batchs = new ThreadLocal<Batch>();
 	
 	public LevelDB(String filename) {
 		this(filename, LEVELDB_READ_CACHE_DEFAULT, LEVELDB_WRITE_CACHE_DEFAULT);
@@ -73,21 +84,225 @@ public class LevelDB implements Db {
 	
 	@Override
 	public boolean put(byte[] key, byte[] value) {
-		db.put(key, value);
+		Batch batch = batchs.get();
+		if(batch != null) {
+			batch.put(key, value);
+		} else {
+			db.put(key, value);
+		}
 		return true;
 	}
 
 	@Override
 	public byte[] get(byte[] key) {
+		Batch batch = batchs.get();
+		if(batch != null) {
+			BatchKey batchKey = new BatchKey(key);
+			if(batch.pendings.containsKey(batchKey)) {
+				return batch.pendings.get(batchKey);
+			}
+		}
 		return db.get(key);
 	}
 
 	@Override
 	public boolean delete(byte[] key) {
-		db.delete(key);
+		Batch batch = batchs.get();
+		if(batch != null) {
+			batch.delete(key);
+		} else {
+			db.delete(key);
+		}
+		return true;
+	}
+
+	@Override
+	public void beginBatch() {
+		Batch batch = batchs.get();
+		if(batch == null) {
+			batch = new Batch(db.createWriteBatch());
+			batchs.set(batch);
+		}
+		batch.depth++;
+	}
+
+	@Override
+	public void commitBatch() throws IOException {
+		Batch batch = batchs.get();
+		if(batch == null) {
+			return;
+		}
+		batch.depth--;
+		if(batch.depth > 0) {
+			return;
+		}
+		batchs.remove();
+		try {
+			//里层已经放弃，外层提交时整个批次都不写入
+			if(batch.discarded) {
+				throw new IOException("批次已被里层放弃，没有写入");
+			}
+			db.write(batch.writeBatch);
+		} finally {
+			batch.writeBatch.close();
+		}
+	}
+
+	@Override
+	public void discardBatch() {
+		Batch batch = batchs.get();
+		if(batch == null) {
+			return;
+		}
+		//里层放弃时只做标记，批次留给外层结束，避免外层之后的写入绕过批次直接落盘
+		batch.discarded = true;
+		batch.depth--;
+		if(batch.depth > 0) {
+			return;
+		}
+		batchs.remove();
+		try {
+			batch.writeBatch.close();
+		} catch (IOException e) {
+			throw new RuntimeException("Can not close write batch", e);
+		}
+	}
+
+	@Override
+	public boolean isBatching() {
+		return batchs.get() != null;
+	}
+
+	@Override
+	public List<byte[]> getBatchKeys() {
+		List<byte[]> keys = new ArrayList<byte[]>();
+		Batch batch = batchs.get();
+		if(batch != null) {
+			for (BatchKey batchKey : batch.pendings.keySet()) {
+				keys.add(batchKey.key);
+			}
+		}
+		return keys;
+	}
+
+	@Override
+	public List<Entry<byte[], byte[]>> listByPrefix(byte[] prefix) {
+		final List<Entry<byte[], byte[]>> result = new ArrayList<Entry<byte[], byte[]>>();
+		forEachByPrefix(prefix, new EntryVisitor() {
+			@Override
+			public boolean visit(byte[] key, byte[] value) {
+				result.add(new AbstractMap.SimpleImmutableEntry<byte[], byte[]>(key, value));
+				return true;
+			}
+		});
+		return result;
+	}
+
+	@Override
+	public void forEachByPrefix(byte[] prefix, EntryVisitor visitor) {
+		//当前线程批次里暂存的数据，和存储里的数据按 key 的顺序合并，相同的 key 以批次里的为准
+		List<Entry<byte[], byte[]>> pendings = getPendings(prefix);
+		int index = 0;
+		DBIterator iterator = db.iterator();
+		try {
+			iterator.seek(prefix);
+			Entry<byte[], byte[]> item = nextByPrefix(iterator, prefix);
+			while(item != null || index < pendings.size()) {
+				Entry<byte[], byte[]> pending = index < pendings.size() ? pendings.get(index) : null;
+				int compare = pending == null ? 1 : item == null ? -1 : KEY_COMPARATOR.compare(pending.getKey(), item.getKey());
+				Entry<byte[], byte[]> current;
+				if(compare <= 0) {
+					current = pending;
+					index++;
+					if(compare == 0) {
+						item = nextByPrefix(iterator, prefix);
+					}
+				} else {
+					current = item;
+					item = nextByPrefix(iterator, prefix);
+				}
+				//批次里已删除的
+				if(current.getValue() == null) {
+					continue;
+				}
+				if(!visitor.visit(current.getKey(), current.getValue())) {
+					return;
+				}
+			}
+		} finally {
+			try {
+				iterator.close();
+			} catch (IOException e) {
+				throw new RuntimeException("Can not close iterator", e);
+			}
+		}
+	}
+
+	/*
+	 * 遍历器的下一条数据，不再以 prefix 开头时返回null
+	 */
+	private static Entry<byte[], byte[]> nextByPrefix(DBIterator iterator, byte[] prefix) {
+		if(!iterator.hasNext()) {
+			return null;
+		}
+		Entry<byte[], byte[]> item = iterator.next();
+		return startsWith(item.getKey(), prefix) ? item : null;
+	}
+
+	/*
+	 * 当前线程批次里以 prefix 开头的数据，按 key 排序，值为null代表已删除
+	 */
+	private List<Entry<byte[], byte[]>> getPendings(byte[] prefix) {
+		Batch batch = batchs.get();
+		if(batch == null) {
+			return Collections.emptyList();
+		}
+		List<Entry<byte[], byte[]>> pendings = new ArrayList<Entry<byte[], byte[]>>();
+		for (Entry<BatchKey, byte[]> pending : batch.pendings.entrySet()) {
+			byte[] key = pending.getKey().key;
+			if(startsWith(key, prefix)) {
+				pendings.add(new AbstractMap.SimpleImmutableEntry<byte[], byte[]>(key, pending.getValue()));
+			}
+		}
+		Collections.sort(pendings, new Comparator<Entry<byte[], byte[]>>() {
+			@Override
+			public int compare(Entry<byte[], byte[]> o1, Entry<byte[], byte[]> o2) {
+				return KEY_COMPARATOR.compare(o1.getKey(), o2.getKey());
+			}
+		});
+		return pendings;
+	}
+
+	private static boolean startsWith(byte[] key, byte[] prefix) {
+		if(key.length < prefix.length) {
+			return false;
+		}
+		for (int i = 0; i < prefix.length; i++) {
+			if(key[i] != prefix[i]) {
+				return false;
+			}
+		}
 		return true;
 	}
 
+	/*
+	 * 和 leveldb 默认的排序一致，按无符号字节比较
+	 */
+	private static final Comparator<byte[]> KEY_COMPARATOR = new Comparator<byte[]>() {
+		@Override
+		public int compare(byte[] o1, byte[] o2) {
+			int length = Math.min(o1.length, o2.length);
+			for (int i = 0; i < length; i++) {
+				int v1 = o1[i] & 0xff;
+				int v2 = o2[i] & 0xff;
+				if(v1 != v2) {
+					return v1 - v2;
+				}
+			}
+			return o1.length - o2.length;
+		}
+	};
+
 	@Override
 	public void close() throws IOException {
 		db.close();
@@ -97,4 +312,51 @@ public class LevelDB implements Db {
 	public DB getSourceDb() {
 		return db;
 	}
+
+	/*
+	 * 批量写入的上下文，pendings 记录已暂存但未提交的数据，值为null代表已删除
+	 */
+	private static class Batch {
+		private final WriteBatch writeBatch;
+		private final Map<BatchKey, byte[]> pendings = new HashMap<BatchKey, byte[]>();
+		private int depth;
+		private boolean discarded;
+		
+		Batch(WriteBatch writeBatch) {
+			this.writeBatch = writeBatch;
+		}
+		
+		void put(byte[] key, byte[] value) {
+			writeBatch.put(key, value);
+			pendings.put(new BatchKey(key), value);
+		}
+		
+		void delete(byte[] key) {
+			writeBatch.delete(key);
+			pendings.put(new BatchKey(key), null);
+		}
+	}
+	
+	private static class BatchKey {
+		private final byte[] key;
+		private final int hashCode;
+		
+		BatchKey(byte[] key) {
+			this.key = key;
+			this.hashCode = Arrays.hashCode(key);
+		}
+		
+		@Override
+		public boolean equals(Object obj) {
+			if(obj == null || !(obj instanceof BatchKey)) {
+				return false;
+			}
+			return Arrays.equals(key, ((BatchKey)obj).key);
+		}
+		
+		@Override
+		public int hashCode() {
+			return hashCode;
+		}
+	}
 }
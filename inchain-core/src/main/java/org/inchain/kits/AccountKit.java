@@ -2223,17 +2223,13 @@ public class AccountKit {
 	 * @return List<AccountStore>
 	 */
 	public List<AccountStore> getCertAccounts(List<AccountStore> certAccountList) {
-		byte[] certAccounts = chainstateStoreProvider.getBytes(Configure.CERT_ACCOUNT_KEYS);
-//		if(certAccountList != null && certAccountList.size() == certAccounts.length / Address.LENGTH) {
+		List<byte[]> certAccounts = chainstateStoreProvider.getCertAccountHash160s();
+//		if(certAccountList != null && certAccountList.size() == certAccounts.size()) {
 //			//没有变化，则直接返回
 //			return certAccountList;
 //		}
 		certAccountList = new ArrayList<AccountStore>();
-		if(certAccounts == null) {
-			return certAccountList;
-		}
-		for (int i = 0; i < certAccounts.length; i+=Address.LENGTH) {
-			byte[] hash160 = Arrays.copyOfRange(certAccounts, i, i + Address.LENGTH);
+		for (byte[] hash160 : certAccounts) {
 			AccountStore accountStore = chainstateStoreProvider.getAccountInfo(hash160);
 			if(accountStore != null) {
 				certAccountList.add(accountStore);
@@ -2247,13 +2243,9 @@ public class AccountKit {
 	 * @return List<AccountStore>
 	 */
 	public List<AccountStore> getConsensusAccounts() {
-		byte[] consensusAccounts = chainstateStoreProvider.getBytes(Configure.CONSENSUS_ACCOUNT_KEYS);
 		List<AccountStore> consensusAccountList = new ArrayList<AccountStore>();
-		if(consensusAccounts == null) {
-			return consensusAccountList;
-		}
-		for (int i = 0; i < consensusAccounts.length; i += (Address.LENGTH + Sha256Hash.LENGTH)) {
-			byte[] hash160 = Arrays.copyOfRange(consensusAccounts, i, i + Address.LENGTH);
+		for (byte[] consensusAccount : chainstateStoreProvider.getConsensusAccounts()) {
+			byte[] hash160 = Arrays.copyOfRange(consensusAccount, 0, Address.LENGTH);
 			AccountStore accountStore = chainstateStoreProvider.getAccountInfo(hash160);
 			if(accountStore == null) {
 				continue;
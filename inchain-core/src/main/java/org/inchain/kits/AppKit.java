@@ -182,6 +182,14 @@ public class AppKit {
 	 */
 	private void initBlock() throws IOException {
 		
+		if(blockStoreProvider.isSnapshotImporting()) {
+			throw new VerificationException("链快照导入没有完成，请重新导入快照或者清空数据目录");
+		}
+		
+		if(!blockStoreProvider.isChainstateConsistent()) {
+			throw new VerificationException("链状态和区块存储不一致，上次保存或撤销区块时区块存储没有写入成功，请清空数据目录重新同步或者导入快照");
+		}
+		
 		checkGenesisBlock();
 		
 		checkPoint();
@@ -254,6 +254,7 @@ public class PeerKit {
 				}
 				@Override
 				public void connectionClosed() {
+					super.connectionClosed();
 					if(!result.isDone()) {
 						result.set(false);
 					}
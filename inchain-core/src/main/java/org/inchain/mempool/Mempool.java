@@ -1,5 +1,7 @@
 package org.inchain.mempool;
 
+import java.util.List;
+
 import org.inchain.crypto.Sha256Hash;
 import org.inchain.transaction.Transaction;
 
@@ -30,13 +32,30 @@ public interface Mempool {
 	 * @return boolean
 	 */
 	boolean bathRemove(Sha256Hash[] hashs);
+	
+	/**
+	 * 放弃正在打包的交易，释放它占用的输入，已经放回内存池的不受影响
+	 * 用于打包时验证不通过的交易
+	 * @param hash	交易hash
+	 * @return boolean 是否在正在打包的交易里
+	 */
+	boolean discard(Sha256Hash hash);
 
 	/**
-	 * 获取最早的交易，同时从内存池中移除交易
+	 * 获取手续费率最高的交易，同时从内存池中移除交易
+	 * 引用了内存池里其它交易的，会排在被引用的交易之后
 	 * @return Transaction
 	 */
 	Transaction get();
 	
+	/**
+	 * 获取手续费率最高的交易，同时从内存池中移除交易
+	 * 内存池为空时，最多等待 waitTime 毫秒，超时返回null
+	 * @param waitTime	最长等待时间，单位毫秒
+	 * @return Transaction
+	 */
+	Transaction get(long waitTime);
+	
 	/**
 	 * 获取交易，不会移除
 	 * @param hash 交易hash
@@ -45,12 +64,18 @@ public interface Mempool {
 	Transaction get(Sha256Hash hash);
 	
 	/**
-	 * 批量获取最早的交易，获取之后同时从内存池中移除交易
+	 * 批量获取手续费率最高的交易，获取之后同时从内存池中移除交易
 	 * @param max	最大获取数量
 	 * @return Transaction[]
 	 */
 	Transaction[] getNewest(int max);
 	
+	/**
+	 * 获取内存池里所有交易的快照，包括正在打包的，不会移除
+	 * @return List<Transaction>
+	 */
+	List<Transaction> getAll();
+	
 	/**
 	 * 获取内存里面交易数量
 	 * @return int
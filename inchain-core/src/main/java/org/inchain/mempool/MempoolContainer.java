@@ -1,108 +1,144 @@
 package org.inchain.mempool;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 import org.inchain.crypto.Sha256Hash;
 import org.inchain.transaction.Transaction;
+import org.inchain.transaction.TransactionInput;
+import org.inchain.transaction.TransactionOutput;
 
 /**
  * 内存容器映射，必须要线程安全的
- * 先用ConcurrentSkipListMap简单实现
+ * 交易索引和输入索引都使用 ConcurrentHashMap，不再使用全局锁
+ * 待打包的交易按手续费率从高到低排列，费率相同的按进入内存池的先后排列
+ * 引用了内存池里其它交易的，费率不会高于被引用的交易，保证打包时父交易先出来
+ * 取出打包的交易在确认移除或者放回之前，仍然占用它引用的输出，打包期间不接受冲突的交易
  * @author ln
  *
  */
 public class MempoolContainer implements Mempool {
 
-	private Lock locker = new ReentrantLock();
-	
-	private static final Map<Sha256Hash, Transaction> packageingContainer = new HashMap<Sha256Hash, Transaction>();
-	
-	private static final ConcurrentLinkedQueue<Transaction> container = new ConcurrentLinkedQueue<Transaction>();
-	private static final Map<Sha256Hash, Transaction> indexContainer = new HashMap<Sha256Hash, Transaction>();
-	
+	//正在打包的交易，已被取出但还没有确认
+	private static final Map<Sha256Hash, MempoolEntry> packageingContainer = new ConcurrentHashMap<Sha256Hash, MempoolEntry>();
+
+	//待打包的交易，按优先级排列
+	private static final ConcurrentSkipListSet<MempoolEntry> container = new ConcurrentSkipListSet<MempoolEntry>();
+	//待打包的交易索引
+	private static final Map<Sha256Hash, MempoolEntry> indexContainer = new ConcurrentHashMap<Sha256Hash, MempoolEntry>();
+	//待打包交易已引用的输出，用来拒绝内存池内的双花
+	private static final Map<OutPoint, Sha256Hash> spentContainer = new ConcurrentHashMap<OutPoint, Sha256Hash>();
+
+	//进入内存池的顺序号
+	private static final AtomicLong sequence = new AtomicLong();
+
+	//等待新交易的打包线程数，没有等待者时新增交易不需要加锁通知
+	private final AtomicInteger waiters = new AtomicInteger();
+	private final Lock waitLocker = new ReentrantLock();
+	private final Condition notEmpty = waitLocker.newCondition();
+
 	private static final Mempool instace = new MempoolContainer();
 
-	
+
 	private MempoolContainer() {
 	}
-	
+
 	public static Mempool getInstace() {
 		return instace;
 	}
-	
+
 	@Override
 	public boolean add(Transaction tx) {
-		locker.lock();
-		try {
-			if(indexContainer.containsKey(tx.getHash())) {
+		Sha256Hash hash = tx.getHash();
+
+		MempoolEntry entry = new MempoolEntry(tx);
+		//打包失败被放回来的，放回成功之前输入仍然由正在打包的记录占用
+		MempoolEntry packaging = packageingContainer.get(hash);
+		if(indexContainer.putIfAbsent(hash, entry) != null) {
+			return false;
+		}
+		//保证新的交易不能双花
+		//在transactionValidator.valDo已经检测过了和区块上的不会重复花费，但是内存里面的没有检查
+		//这里就检查交易的输入和内存里面的交易输入是否相同，如果相同则代表有双花风险，应该制止
+		List<OutPoint> outPoints = getOutPoints(tx);
+		entry.outPoints = outPoints;
+		for (OutPoint outPoint : outPoints) {
+			Sha256Hash spentBy = spentContainer.putIfAbsent(outPoint, hash);
+			if(spentBy != null && !spentBy.equals(hash)) {
+				//释放已经占用的输入
+				indexContainer.remove(hash, entry);
+				if(packaging == null) {
+					release(entry);
+				}
 				return false;
 			}
-			
-			//保证新的交易不能双花
-			//在transactionValidator.valDo已经检测过了和区块上的不会重复花费，但是内存里面的没有检查
-			//这里就检查交易的输入和内存里面的交易输入是否相同，如果相同则代表有双花风险，应该制止
-			
-//			List<TransactionInput> thisInputs = tx.getInputs();
-//			//TODO 可以考虑这里改为布隆过滤器处理，应该会有性能提升？
-//			if(thisInputs != null && thisInputs.size() > 0) {
-//				for (TransactionInput input : thisInputs) {
-//					if(input.getFroms() == null || input.getFroms().size() == 0) {
-//						continue;
-//					}
-//					for (TransactionOutput from : input.getFroms()) {
-//						for (Transaction transaction : container) {
-//							List<TransactionInput> inputs = transaction.getInputs();
-//							if(inputs == null || inputs.size() == 0) {
-//								continue;
-//							}
-//							try {
-//								for (TransactionInput input2 : inputs) {
-//									if(input2.getFroms() == null || input2.getFroms().size() == 0) {
-//										continue;
-//									}
-//									for (TransactionOutput from2 : input2.getFroms()) {
-//										if(from2.getParent().getHash().equals(from.getParent().getHash()) && from2.getIndex() == from.getIndex()) {
-//											System.out.println("================");
-//											System.out.println("================");
-//											System.out.println("================");
-//											System.out.println("================");
-//											System.exit(0);
-//											return false;
-//										}
-//									}
-//								}
-//							}catch (Exception e) {
-//							}
-//						}
-//					}
-//				}
-//			}
-			
-			boolean success = container.add(tx);
-			if(success) {
-				indexContainer.put(tx.getHash(), tx);
-			}
-			return success;
-		} finally {
-			locker.unlock();
 		}
+
+		//引用了内存池里的交易，那么排在被引用的交易后面
+		long feeRate = entry.feeRate;
+		for (OutPoint outPoint : outPoints) {
+			MempoolEntry parent = indexContainer.get(outPoint.hash);
+			if(parent != null && parent.feeRate < feeRate) {
+				feeRate = parent.feeRate;
+			}
+		}
+		entry.feeRate = feeRate;
+		entry.sequence = sequence.incrementAndGet();
+
+		container.add(entry);
+		//放入过程中被并发移除了，被并发取出去打包的不算
+		if(indexContainer.get(hash) != entry && packageingContainer.get(hash) != entry) {
+			container.remove(entry);
+			if(packaging == null) {
+				release(entry);
+			}
+			return false;
+		}
+		//放回成功，占用的输入已经转给新的记录，从正在打包里移除，被并发取出的新记录不动
+		if(packaging != null) {
+			packageingContainer.remove(hash, packaging);
+		}
+
+		if(waiters.get() > 0) {
+			waitLocker.lock();
+			try {
+				notEmpty.signalAll();
+			} finally {
+				waitLocker.unlock();
+			}
+		}
+		return true;
 	}
 
 	@Override
 	public boolean remove(Sha256Hash hash) {
-		Transaction tx = indexContainer.remove(hash);
-		if(tx != null) {
-			packageingContainer.remove(tx.getHash());
-			return container.remove(tx);
-		} else {
+		boolean removed = discard(hash);
+
+		MempoolEntry entry = indexContainer.remove(hash);
+		if(entry == null) {
+			return removed;
+		}
+		release(entry);
+		return container.remove(entry) || removed;
+	}
+
+	@Override
+	public boolean discard(Sha256Hash hash) {
+		MempoolEntry entry = packageingContainer.remove(hash);
+		if(entry == null) {
 			return false;
 		}
+		release(entry);
+		return true;
 	}
 
 	@Override
@@ -115,21 +151,46 @@ public class MempoolContainer implements Mempool {
 
 	@Override
 	public Transaction get() {
-		Transaction tx = container.poll();
-		if(tx != null) {
-			indexContainer.remove(tx.getHash());
-			packageingContainer.put(tx.getHash(), tx);
+		MempoolEntry entry = poll();
+		if(entry == null) {
+			return null;
+		}
+		return entry.tx;
+	}
+
+	@Override
+	public Transaction get(long waitTime) {
+		Transaction tx = get();
+		if(tx != null || waitTime <= 0) {
+			return tx;
+		}
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(waitTime);
+		waiters.incrementAndGet();
+		waitLocker.lock();
+		try {
+			while((tx = get()) == null) {
+				long nanos = deadline - System.nanoTime();
+				if(nanos <= 0) {
+					break;
+				}
+				notEmpty.awaitNanos(nanos);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			waitLocker.unlock();
+			waiters.decrementAndGet();
 		}
 		return tx;
 	}
-	
+
 	@Override
 	public Transaction get(Sha256Hash hash) {
-		Transaction tx = indexContainer.get(hash);
-		if(tx == null) {
-			tx = packageingContainer.get(hash);
+		MempoolEntry entry = indexContainer.get(hash);
+		if(entry == null) {
+			entry = packageingContainer.get(hash);
 		}
-		return tx;
+		return entry == null ? null : entry.tx;
 	}
 
 	@Override
@@ -137,24 +198,164 @@ public class MempoolContainer implements Mempool {
 		List<Transaction> list = new ArrayList<Transaction>();
 
 		while(max > 0) {
-			Transaction tx = container.poll();
-			if(tx == null) {
+			MempoolEntry entry = poll();
+			if(entry == null) {
 				break;
-			} else {
-				indexContainer.remove(tx.getHash());
 			}
-			list.add(tx);
+			list.add(entry.tx);
 			max--;
 		}
 		return list.toArray(new Transaction[list.size()]);
 	}
 
+	@Override
+	public List<Transaction> getAll() {
+		List<Transaction> list = new ArrayList<Transaction>(indexContainer.size() + packageingContainer.size());
+		for (MempoolEntry entry : indexContainer.values()) {
+			list.add(entry.tx);
+		}
+		for (MempoolEntry entry : packageingContainer.values()) {
+			list.add(entry.tx);
+		}
+		return list;
+	}
+
 	/**
 	 * 获取内存里面交易数量
 	 * @return int
 	 */
 	@Override
 	public int getTxCount() {
-		return container.size();
+		return indexContainer.size();
+	}
+
+	/*
+	 * 取出优先级最高的交易，移除索引，放入正在打包，占用的输入不释放
+	 * 和 remove 并发时，以谁先移除了索引为准
+	 */
+	private MempoolEntry poll() {
+		MempoolEntry entry;
+		while((entry = container.pollFirst()) != null) {
+			if(indexContainer.remove(entry.tx.getHash(), entry)) {
+				packageingContainer.put(entry.tx.getHash(), entry);
+				return entry;
+			}
+		}
+		return null;
+	}
+
+	/*
+	 * 释放交易占用的输入
+	 */
+	private void release(MempoolEntry entry) {
+		List<OutPoint> outPoints = entry.outPoints;
+		if(outPoints == null) {
+			return;
+		}
+		Sha256Hash hash = entry.tx.getHash();
+		for (OutPoint outPoint : outPoints) {
+			spentContainer.remove(outPoint, hash);
+		}
+	}
+
+	/*
+	 * 获取交易引用的所有输出
+	 */
+	private static List<OutPoint> getOutPoints(Transaction tx) {
+		List<OutPoint> outPoints = new ArrayList<OutPoint>();
+		List<TransactionInput> inputs = tx.getInputs();
+		if(inputs == null) {
+			return outPoints;
+		}
+		for (TransactionInput input : inputs) {
+			if(input.getFroms() == null || input.getFroms().size() == 0) {
+				continue;
+			}
+			for (TransactionOutput from : input.getFroms()) {
+				if(from.getParent() == null) {
+					continue;
+				}
+				outPoints.add(new OutPoint(from.getParent().getHash(), from.getIndex()));
+			}
+		}
+		return outPoints;
+	}
+
+	/*
+	 * 内存池里的交易，费率为每千字节的手续费
+	 */
+	private static class MempoolEntry implements Comparable<MempoolEntry> {
+		private final Transaction tx;
+		private long feeRate;
+		private long sequence;
+		private List<OutPoint> outPoints;
+
+		MempoolEntry(Transaction tx) {
+			this.tx = tx;
+			this.feeRate = calculateFeeRate(tx);
+		}
+
+		@Override
+		public int compareTo(MempoolEntry o) {
+			if(feeRate != o.feeRate) {
+				return feeRate > o.feeRate ? -1 : 1;
+			}
+			return Long.compare(sequence, o.sequence);
+		}
+
+		private static long calculateFeeRate(Transaction tx) {
+			if(!tx.isPaymentTransaction() || tx.getInputs() == null) {
+				return 0l;
+			}
+			long inputValue = 0l;
+			for (TransactionInput input : tx.getInputs()) {
+				if(input.getFroms() == null) {
+					continue;
+				}
+				for (TransactionOutput from : input.getFroms()) {
+					inputValue += from.getValue();
+				}
+			}
+			long outputValue = 0l;
+			for (TransactionOutput output : tx.getOutputs()) {
+				outputValue += output.getValue();
+			}
+			long fee = inputValue - outputValue;
+			if(fee <= 0l) {
+				return 0l;
+			}
+			int length = tx.getLength();
+			if(length <= 0) {
+				length = tx.baseSerialize().length;
+			}
+			return fee * 1000 / Math.max(length, 1);
+		}
+	}
+
+	/*
+	 * 交易输出的引用，上一交易的hash加输出序号
+	 */
+	private static class OutPoint {
+		private final Sha256Hash hash;
+		private final int index;
+
+		OutPoint(Sha256Hash hash, int index) {
+			this.hash = hash;
+			this.index = index;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if(obj == null || !(obj instanceof OutPoint)) {
+				return false;
+			}
+			OutPoint temp = (OutPoint) obj;
+			return index == temp.index && hash.equals(temp.hash);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash.hashCode() * 31 + index;
+		}
 	}
 }
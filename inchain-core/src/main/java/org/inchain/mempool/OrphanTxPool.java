@@ -0,0 +1,207 @@
+package org.inchain.mempool;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.inchain.crypto.Sha256Hash;
+import org.inchain.transaction.Transaction;
+import org.inchain.transaction.TransactionInput;
+import org.inchain.transaction.TransactionOutput;
+
+/**
+ * 孤立交易池，存放引用的上一交易还没有收到的交易
+ * 按引用的上一交易hash建立索引，上一交易到达时直接取出依赖它的交易，不需要遍历整个池
+ * 超过最大数量时淘汰最早进入的，超过存活时间的也会被淘汰
+ * @author ln
+ *
+ */
+public class OrphanTxPool {
+
+	//最大数量
+	private final int maxCount;
+	//最长存活时间，毫秒
+	private final long expireTime;
+
+	//按进入的先后排列
+	private final LinkedHashMap<Sha256Hash, OrphanEntry> orphans = new LinkedHashMap<Sha256Hash, OrphanEntry>();
+	//上一交易hash -> 引用了它的孤立交易
+	private final Map<Sha256Hash, Set<Sha256Hash>> parentIndexs = new HashMap<Sha256Hash, Set<Sha256Hash>>();
+	//进入的顺序号
+	private long sequence;
+
+	public OrphanTxPool(int maxCount, long expireTime) {
+		this.maxCount = maxCount;
+		this.expireTime = expireTime;
+	}
+
+	/**
+	 * 加入孤立交易
+	 * @param tx
+	 * @return boolean 已存在时返回false
+	 */
+	public synchronized boolean add(Transaction tx) {
+		Sha256Hash hash = tx.getHash();
+		if(orphans.containsKey(hash)) {
+			return false;
+		}
+		removeExpired();
+		while(orphans.size() >= maxCount && !orphans.isEmpty()) {
+			remove(orphans.keySet().iterator().next());
+		}
+
+		OrphanEntry entry = new OrphanEntry(tx, getParents(tx), ++sequence);
+		orphans.put(hash, entry);
+		for (Sha256Hash parent : entry.parents) {
+			Set<Sha256Hash> children = parentIndexs.get(parent);
+			if(children == null) {
+				children = new HashSet<Sha256Hash>();
+				parentIndexs.put(parent, children);
+			}
+			children.add(hash);
+		}
+		return true;
+	}
+
+	/**
+	 * 上一交易已经到达，取出所有引用了该交易的孤立交易，按进入的先后排列
+	 * 这些交易仍留在池里，只是不再按该交易索引，验证通过或者失败后由调用方移除
+	 * 还有其它引用没找到的就继续留在原来的位置，进入时间和顺序不变
+	 * @param parentHash
+	 * @return List<Transaction>
+	 */
+	public synchronized List<Transaction> getChildren(Sha256Hash parentHash) {
+		List<Transaction> list = new ArrayList<Transaction>();
+		Set<Sha256Hash> children = parentIndexs.remove(parentHash);
+		if(children == null) {
+			return list;
+		}
+		List<OrphanEntry> entries = new ArrayList<OrphanEntry>();
+		for (Sha256Hash child : children) {
+			OrphanEntry entry = orphans.get(child);
+			if(entry != null) {
+				entry.parents.remove(parentHash);
+				entries.add(entry);
+			}
+		}
+		Collections.sort(entries);
+		for (OrphanEntry entry : entries) {
+			list.add(entry.tx);
+		}
+		return list;
+	}
+
+	/**
+	 * 移除孤立交易
+	 * @param hash
+	 * @return Transaction 不存在时返回null
+	 */
+	public synchronized Transaction remove(Sha256Hash hash) {
+		OrphanEntry entry = orphans.remove(hash);
+		if(entry == null) {
+			return null;
+		}
+		for (Sha256Hash parent : entry.parents) {
+			Set<Sha256Hash> children = parentIndexs.get(parent);
+			if(children == null) {
+				continue;
+			}
+			children.remove(hash);
+			if(children.isEmpty()) {
+				parentIndexs.remove(parent);
+			}
+		}
+		return entry.tx;
+	}
+
+	/**
+	 * 获取孤立交易
+	 * @param hash
+	 * @return Transaction 不存在时返回null
+	 */
+	public synchronized Transaction get(Sha256Hash hash) {
+		OrphanEntry entry = orphans.get(hash);
+		return entry == null ? null : entry.tx;
+	}
+
+	/**
+	 * 孤立交易数量
+	 * @return int
+	 */
+	public synchronized int size() {
+		return orphans.size();
+	}
+
+	/**
+	 * 淘汰超过存活时间的孤立交易
+	 * @return int 淘汰的数量
+	 */
+	public synchronized int removeExpired() {
+		long expire = System.currentTimeMillis() - expireTime;
+		int count = 0;
+		List<Sha256Hash> expireds = new ArrayList<Sha256Hash>();
+		Iterator<OrphanEntry> it = orphans.values().iterator();
+		while(it.hasNext()) {
+			OrphanEntry entry = it.next();
+			//按进入的先后排列，遇到没过期的就可以停止了
+			if(entry.time > expire) {
+				break;
+			}
+			expireds.add(entry.tx.getHash());
+		}
+		for (Sha256Hash hash : expireds) {
+			if(remove(hash) != null) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/*
+	 * 交易引用的所有上一交易hash
+	 */
+	private static Set<Sha256Hash> getParents(Transaction tx) {
+		Set<Sha256Hash> parents = new HashSet<Sha256Hash>();
+		List<TransactionInput> inputs = tx.getInputs();
+		if(inputs == null) {
+			return parents;
+		}
+		for (TransactionInput input : inputs) {
+			List<TransactionOutput> froms = input.getFroms();
+			if(froms == null) {
+				continue;
+			}
+			for (TransactionOutput from : froms) {
+				if(from.getParent() != null) {
+					parents.add(from.getParent().getHash());
+				}
+			}
+		}
+		return parents;
+	}
+
+	private static class OrphanEntry implements Comparable<OrphanEntry> {
+		private final Transaction tx;
+		private final Set<Sha256Hash> parents;
+		private final long sequence;
+		private final long time;
+
+		OrphanEntry(Transaction tx, Set<Sha256Hash> parents, long sequence) {
+			this.tx = tx;
+			this.parents = parents;
+			this.sequence = sequence;
+			this.time = System.currentTimeMillis();
+		}
+
+		@Override
+		public int compareTo(OrphanEntry o) {
+			return Long.compare(sequence, o.sequence);
+		}
+	}
+}
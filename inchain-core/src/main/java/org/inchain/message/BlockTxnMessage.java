@@ -0,0 +1,77 @@
+package org.inchain.message;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.inchain.core.VarInt;
+import org.inchain.core.exception.ProtocolException;
+import org.inchain.crypto.Sha256Hash;
+import org.inchain.network.NetworkParams;
+import org.inchain.transaction.Transaction;
+
+/**
+ * 紧凑区块中缺少的交易，回应 {@link GetBlockTxnMessage}，交易顺序和请求的位置顺序一致
+ * @author ln
+ *
+ */
+public class BlockTxnMessage extends Message {
+
+	//区块hash
+	private Sha256Hash blockHash;
+	//请求的交易
+	private List<Transaction> txs;
+	
+	public BlockTxnMessage(NetworkParams network, Sha256Hash blockHash, List<Transaction> txs) {
+		super(network);
+		this.blockHash = blockHash;
+		this.txs = txs;
+	}
+	
+	public BlockTxnMessage(NetworkParams network, byte[] payload) throws ProtocolException {
+		this(network, payload, 0);
+	}
+	
+	public BlockTxnMessage(NetworkParams network, byte[] payload, int offset) throws ProtocolException {
+		super(network, payload, offset);
+	}
+	
+	@Override
+	protected void parse() throws ProtocolException {
+		blockHash = readHash();
+		int count = (int) readVarInt();
+		if(count > GetDatasMessage.MAX_INVENTORY_ITEMS) {
+			throw new ProtocolException("Too many items in blocktxn message: " + count);
+		}
+		txs = new ArrayList<Transaction>(count);
+		for (int i = 0; i < count; i++) {
+			Transaction tx = network.getDefaultSerializer().makeTransaction(payload, cursor);
+			cursor += tx.getLength();
+			txs.add(tx);
+		}
+		length = cursor - offset;
+	}
+	
+	@Override
+	protected void serializeToStream(OutputStream stream) throws IOException {
+		stream.write(blockHash.getReversedBytes());
+		stream.write(new VarInt(txs.size()).encode());
+		for (Transaction tx : txs) {
+			stream.write(tx.baseSerialize());
+		}
+	}
+	
+	public Sha256Hash getBlockHash() {
+		return blockHash;
+	}
+	
+	public List<Transaction> getTxs() {
+		return txs;
+	}
+	
+	@Override
+	public String toString() {
+		return "BlockTxnMessage [blockHash=" + blockHash + ", txs=" + txs.size() + "]";
+	}
+}
@@ -0,0 +1,235 @@
+package org.inchain.message;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.inchain.core.VarInt;
+import org.inchain.core.exception.ProtocolException;
+import org.inchain.crypto.Sha256Hash;
+import org.inchain.network.NetworkParams;
+import org.inchain.transaction.Transaction;
+import org.inchain.utils.Utils;
+
+/**
+ * 紧凑区块消息，用于新区块的转播
+ * 只包含区块头、交易短ID和预先填充的交易（coinbase），接收方用内存池里的交易还原区块，缺少的交易再通过 {@link GetBlockTxnMessage} 获取
+ * 短ID为 sha256(盐 + 交易hash) 的前6个字节，盐由区块hash和随机数计算，每个区块不同，无法预先构造冲突的交易
+ * @author ln
+ *
+ */
+public class CompactBlockMessage extends Message {
+
+	//短ID长度
+	public static final int SHORT_ID_LENGTH = 6;
+
+	//区块hash
+	private Sha256Hash blockHash;
+	//区块头，不含交易
+	private BlockHeader header;
+	//计算短ID的随机数
+	private long nonce;
+	//没有预先填充的交易的短ID，按交易在区块中的顺序排列
+	private long[] shortIds;
+	//预先填充的交易在区块中的位置
+	private List<Integer> prefilledIndexes;
+	//预先填充的交易
+	private List<Transaction> prefilledTxs;
+
+	/**
+	 * 由完整区块创建，coinbase 交易预先填充，其余交易只发送短ID
+	 * @param network
+	 * @param block
+	 * @param nonce
+	 */
+	public CompactBlockMessage(NetworkParams network, Block block, long nonce) {
+		super(network);
+		this.blockHash = block.getHash();
+		this.header = block;
+		this.nonce = nonce;
+
+		List<Transaction> txs = block.getTxs();
+		prefilledIndexes = new ArrayList<Integer>();
+		prefilledTxs = new ArrayList<Transaction>();
+		prefilledIndexes.add(0);
+		prefilledTxs.add(txs.get(0));
+
+		byte[] salt = getSalt();
+		shortIds = new long[txs.size() - 1];
+		for (int i = 1; i < txs.size(); i++) {
+			shortIds[i - 1] = shortId(salt, txs.get(i).getHash());
+		}
+	}
+
+	public CompactBlockMessage(NetworkParams network, byte[] payload) throws ProtocolException {
+		this(network, payload, 0);
+	}
+
+	public CompactBlockMessage(NetworkParams network, byte[] payload, int offset) throws ProtocolException {
+		super(network, payload, offset);
+	}
+
+	@Override
+	protected void parse() throws ProtocolException {
+		blockHash = readHash();
+
+		header = new BlockHeader(network);
+		header.setVersion(readUint32());
+		header.setPreHash(Sha256Hash.wrap(readBytes(32)));
+		header.setMerkleHash(Sha256Hash.wrap(readBytes(32)));
+		header.setTime(readUint32());
+		header.setHeight(readUint32());
+		header.setPeriodCount((int) readVarInt());
+		header.setTimePeriod((int) readVarInt());
+		header.setPeriodStartTime(readUint32());
+		header.setScriptBytes(readBytes((int) readVarInt()));
+		header.setTxCount(readVarInt());
+
+		nonce = readInt64();
+
+		int shortIdCount = (int) readVarInt();
+		if(shortIdCount > header.getTxCount()) {
+			throw new ProtocolException("短ID数量超过交易数量");
+		}
+		shortIds = new long[shortIdCount];
+		for (int i = 0; i < shortIdCount; i++) {
+			shortIds[i] = readShortId();
+		}
+
+		int prefilledCount = (int) readVarInt();
+		if(prefilledCount + shortIdCount != header.getTxCount()) {
+			throw new ProtocolException("紧凑区块交易数量不正确");
+		}
+		prefilledIndexes = new ArrayList<Integer>(prefilledCount);
+		prefilledTxs = new ArrayList<Transaction>(prefilledCount);
+		for (int i = 0; i < prefilledCount; i++) {
+			prefilledIndexes.add((int) readVarInt());
+			Transaction tx = network.getDefaultSerializer().makeTransaction(payload, cursor);
+			cursor += tx.getLength();
+			prefilledTxs.add(tx);
+		}
+		length = cursor - offset;
+	}
+
+	@Override
+	protected void serializeToStream(OutputStream stream) throws IOException {
+		stream.write(blockHash.getReversedBytes());
+
+		Utils.uint32ToByteStreamLE(header.getVersion(), stream);
+		stream.write(header.getPreHash().getBytes());
+		stream.write(header.getMerkleHash().getBytes());
+		Utils.uint32ToByteStreamLE(header.getTime(), stream);
+		Utils.uint32ToByteStreamLE(header.getHeight(), stream);
+		stream.write(new VarInt(header.getPeriodCount()).encode());
+		stream.write(new VarInt(header.getTimePeriod()).encode());
+		Utils.uint32ToByteStreamLE(header.getPeriodStartTime(), stream);
+		stream.write(new VarInt(header.getScriptBytes().length).encode());
+		stream.write(header.getScriptBytes());
+		stream.write(new VarInt(header.getTxCount()).encode());
+
+		Utils.int64ToByteStreamLE(nonce, stream);
+
+		stream.write(new VarInt(shortIds.length).encode());
+		for (long shortId : shortIds) {
+			for (int i = 0; i < SHORT_ID_LENGTH; i++) {
+				stream.write((int) (shortId >>> (8 * i)) & 0xFF);
+			}
+		}
+
+		stream.write(new VarInt(prefilledTxs.size()).encode());
+		for (int i = 0; i < prefilledTxs.size(); i++) {
+			stream.write(new VarInt(prefilledIndexes.get(i)).encode());
+			stream.write(prefilledTxs.get(i).baseSerialize());
+		}
+	}
+
+	private long readShortId() throws ProtocolException {
+		byte[] bytes = readBytes(SHORT_ID_LENGTH);
+		long shortId = 0;
+		for (int i = 0; i < SHORT_ID_LENGTH; i++) {
+			shortId |= (bytes[i] & 0xFFL) << (8 * i);
+		}
+		return shortId;
+	}
+
+	/**
+	 * 计算短ID用的盐，sha256(区块hash + 随机数)
+	 * @return byte[]
+	 */
+	public byte[] getSalt() {
+		byte[] data = new byte[Sha256Hash.LENGTH + 8];
+		System.arraycopy(blockHash.getBytes(), 0, data, 0, Sha256Hash.LENGTH);
+		Utils.uint64ToByteArrayLE(nonce, data, Sha256Hash.LENGTH);
+		return Sha256Hash.hash(data);
+	}
+
+	/**
+	 * 计算交易的短ID
+	 * @param salt	{@link #getSalt()}
+	 * @param txHash
+	 * @return long 低6个字节有效
+	 */
+	public static long shortId(byte[] salt, Sha256Hash txHash) {
+		byte[] data = new byte[salt.length + Sha256Hash.LENGTH];
+		System.arraycopy(salt, 0, data, 0, salt.length);
+		System.arraycopy(txHash.getBytes(), 0, data, salt.length, Sha256Hash.LENGTH);
+		byte[] hash = Sha256Hash.hash(data);
+		long shortId = 0;
+		for (int i = 0; i < SHORT_ID_LENGTH; i++) {
+			shortId |= (hash[i] & 0xFFL) << (8 * i);
+		}
+		return shortId;
+	}
+
+	/**
+	 * 用还原的交易列表组装完整区块
+	 * @param txs
+	 * @return Block
+	 */
+	public Block toBlock(List<Transaction> txs) {
+		Block block = new Block(network);
+		block.setVersion(header.getVersion());
+		block.setPreHash(header.getPreHash());
+		block.setMerkleHash(header.getMerkleHash());
+		block.setTime(header.getTime());
+		block.setHeight(header.getHeight());
+		block.setPeriodCount(header.getPeriodCount());
+		block.setTimePeriod(header.getTimePeriod());
+		block.setPeriodStartTime(header.getPeriodStartTime());
+		block.setScriptBytes(header.getScriptBytes());
+		block.setTxCount(txs.size());
+		block.setTxs(txs);
+		return block;
+	}
+
+	public Sha256Hash getBlockHash() {
+		return blockHash;
+	}
+
+	public BlockHeader getHeader() {
+		return header;
+	}
+
+	public long getNonce() {
+		return nonce;
+	}
+
+	public long[] getShortIds() {
+		return shortIds;
+	}
+
+	public List<Integer> getPrefilledIndexes() {
+		return prefilledIndexes;
+	}
+
+	public List<Transaction> getPrefilledTxs() {
+		return prefilledTxs;
+	}
+
+	@Override
+	public String toString() {
+		return "CompactBlockMessage [blockHash=" + blockHash + ", height=" + header.getHeight() + ", txCount=" + header.getTxCount()
+			+ ", shortIds=" + shortIds.length + ", prefilled=" + prefilledTxs.size() + "]";
+	}
+}
@@ -10,6 +10,8 @@ import java.nio.ByteBuffer;
 import org.inchain.core.Definition;
 import org.inchain.core.exception.ProtocolException;
 import org.inchain.crypto.Sha256Hash;
+import org.inchain.net.DirectBufferPool;
+import org.inchain.net.MessageFrame;
 import org.inchain.network.NetworkParams;
 import org.inchain.transaction.Transaction;
 import org.inchain.transaction.business.UnkonwTransaction;
@@ -30,19 +32,7 @@ public class DefaultMessageSerializer extends MessageSerializer {
 
 	@Override
     public void serialize(String command, byte[] message, OutputStream out) throws IOException {
-        byte[] header = new byte[4 + COMMAND_LEN + 4 + 4 /* checksum */];
-        Utils.uint32ToByteArrayBE(network.getPacketMagic(), header, 0);
-
-        // The header array is initialized to zero by Java so we don't have to worry about
-        // NULL terminating the string here.
-        for (int i = 0; i < command.length() && i < COMMAND_LEN; i++) {
-            header[4 + i] = (byte) (command.codePointAt(i) & 0xFF);
-        }
-
-        Utils.uint32ToByteArrayLE(message.length, header, 4 + COMMAND_LEN);
-
-        byte[] hash = Sha256Hash.hashTwice(message);
-        System.arraycopy(hash, 0, header, 4 + COMMAND_LEN + 4, 4);
+        byte[] header = buildHeader(command, message);
         out.write(header);
         out.write(message);
 
@@ -52,12 +42,81 @@ public class DefaultMessageSerializer extends MessageSerializer {
 	
 	@Override
     public void serialize(Message message, OutputStream out) throws IOException {
-        String command = Definition.MESSAGE_COMMANDS.get(message.getClass());
+        serialize(getCommand(message), message.baseSerialize(), out);
+    }
+	
+	@Override
+	public MessageFrame serializeFrame(Message message) throws IOException {
+		String command = getCommand(message);
+		byte[] payload = message.baseSerialize();
+		byte[] header = buildHeader(command, payload);
+		
+		DirectBufferPool pool = DirectBufferPool.get();
+		ByteBuffer buffer = pool.acquire(header.length + payload.length);
+		buffer.put(header);
+		buffer.put(payload);
+		buffer.flip();
+		
+		if (log.isDebugEnabled())
+			log.debug("Sending {} message: {}", command, Hex.encode(header) + Hex.encode(payload));
+		return new MessageFrame(command, buffer, pool);
+	}
+	
+	@Override
+	public MessageFrame serializeFrame(Class<? extends Message> type, ByteBuffer payload, byte[] checksum) {
+		String command = getCommand(type);
+		ByteBuffer content = payload.duplicate();
+		byte[] header = buildHeader(command, content.remaining(), checksum);
+		
+		DirectBufferPool pool = DirectBufferPool.get();
+		ByteBuffer buffer = pool.acquire(header.length + content.remaining());
+		buffer.put(header);
+		buffer.put(content);
+		buffer.flip();
+		
+		if (log.isDebugEnabled())
+			log.debug("Sending {} message with {} bytes stored payload", command, buffer.remaining() - header.length);
+		return new MessageFrame(command, buffer, pool);
+	}
+	
+	private String getCommand(Message message) {
+        return getCommand(message.getClass());
+	}
+	
+	private String getCommand(Class<?> type) {
+        String command = Definition.MESSAGE_COMMANDS.get(type);
         if (command == null) {
-            throw new Error("DefaultSerializer doesn't currently know how to serialize " + message.getClass());
+            throw new Error("DefaultSerializer doesn't currently know how to serialize " + type);
         }
-        serialize(command, message.baseSerialize(), out);
-    }
+        return command;
+	}
+	
+	/*
+	 * 消息头：magic + 命令 + 长度 + 校验和
+	 */
+	private byte[] buildHeader(String command, byte[] message) {
+        byte[] hash = Sha256Hash.hashTwice(message);
+        return buildHeader(command, message.length, hash);
+	}
+	
+	/*
+	 * 消息头：magic + 命令 + 长度 + 校验和，校验和取 checksum 的前4个字节
+	 */
+	private byte[] buildHeader(String command, int length, byte[] checksum) {
+        byte[] header = new byte[4 + COMMAND_LEN + 4 + 4 /* checksum */];
+        Utils.uint32ToByteArrayBE(network.getPacketMagic(), header, 0);
+
+        // The header array is initialized to zero by Java so we don't have to worry about
+        // NULL terminating the string here.
+        for (int i = 0; i < command.length() && i < COMMAND_LEN; i++) {
+            header[4 + i] = (byte) (command.codePointAt(i) & 0xFF);
+        }
+
+        Utils.uint32ToByteArrayLE(length, header, 4 + COMMAND_LEN);
+
+        System.arraycopy(checksum, 0, header, 4 + COMMAND_LEN + 4, 4);
+        return header;
+	}
 	
 	@Override
 	public Message deserialize(ByteBuffer in) throws ProtocolException, IOException, UnsupportedOperationException {
@@ -0,0 +1,74 @@
+package org.inchain.message;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.inchain.core.VarInt;
+import org.inchain.core.exception.ProtocolException;
+import org.inchain.crypto.Sha256Hash;
+import org.inchain.network.NetworkParams;
+
+/**
+ * 获取紧凑区块中缺少的交易，对方回应 {@link BlockTxnMessage}
+ * @author ln
+ *
+ */
+public class GetBlockTxnMessage extends Message {
+
+	//区块hash
+	private Sha256Hash blockHash;
+	//缺少的交易在区块中的位置
+	private List<Integer> indexes;
+	
+	public GetBlockTxnMessage(NetworkParams network, Sha256Hash blockHash, List<Integer> indexes) {
+		super(network);
+		this.blockHash = blockHash;
+		this.indexes = indexes;
+	}
+	
+	public GetBlockTxnMessage(NetworkParams network, byte[] payload) throws ProtocolException {
+		this(network, payload, 0);
+	}
+	
+	public GetBlockTxnMessage(NetworkParams network, byte[] payload, int offset) throws ProtocolException {
+		super(network, payload, offset);
+	}
+	
+	@Override
+	protected void parse() throws ProtocolException {
+		blockHash = readHash();
+		int count = (int) readVarInt();
+		if(count > GetDatasMessage.MAX_INVENTORY_ITEMS) {
+			throw new ProtocolException("Too many items in getblocktxn message: " + count);
+		}
+		indexes = new ArrayList<Integer>(count);
+		for (int i = 0; i < count; i++) {
+			indexes.add((int) readVarInt());
+		}
+		length = cursor - offset;
+	}
+	
+	@Override
+	protected void serializeToStream(OutputStream stream) throws IOException {
+		stream.write(blockHash.getReversedBytes());
+		stream.write(new VarInt(indexes.size()).encode());
+		for (Integer index : indexes) {
+			stream.write(new VarInt(index).encode());
+		}
+	}
+	
+	public Sha256Hash getBlockHash() {
+		return blockHash;
+	}
+	
+	public List<Integer> getIndexes() {
+		return indexes;
+	}
+	
+	@Override
+	public String toString() {
+		return "GetBlockTxnMessage [blockHash=" + blockHash + ", indexes=" + indexes.size() + "]";
+	}
+}
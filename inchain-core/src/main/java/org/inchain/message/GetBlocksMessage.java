@@ -6,9 +6,12 @@ import java.io.OutputStream;
 import org.inchain.core.exception.ProtocolException;
 import org.inchain.crypto.Sha256Hash;
 import org.inchain.network.NetworkParams;
+import org.inchain.utils.Utils;
 
 /**
  * 获取区块信息消息，收到该消息的节点必须应答，返回相应的区块inv消息
+ * sendCount 大于0时，对方在inv消息之后按顺序直接发送清单里前 sendCount 个区块，省去一次 getdatas 往返
+ * sendCount 为0时不序列化，和老版本的消息格式一致，只向支持的节点（{@link SendCompactMessage#BLOCK_STREAM_VERSION}）发送非0的值
  * @author ln
  *
  */
@@ -18,6 +21,8 @@ public class GetBlocksMessage extends Message {
 	private Sha256Hash startHash;
 	//结束区块的hash
 	private Sha256Hash stopHash;
+	//清单之后直接发送的区块数
+	private int sendCount;
 	
 	public GetBlocksMessage(NetworkParams network, byte[] payloadBytes) {
 		super(network, payloadBytes, 0);
@@ -27,6 +32,11 @@ public class GetBlocksMessage extends Message {
 		this.startHash = startHash;
 		this.stopHash = stopHash;
 	}
+	
+	public GetBlocksMessage(NetworkParams network, Sha256Hash startHash, Sha256Hash stopHash, int sendCount) {
+		this(network, startHash, stopHash);
+		this.sendCount = sendCount;
+	}
 
 	/**
 	 * 序列化
@@ -35,6 +45,9 @@ public class GetBlocksMessage extends Message {
 	protected void serializeToStream(OutputStream stream) throws IOException {
 		stream.write(startHash.getReversedBytes());
 		stream.write(stopHash.getReversedBytes());
+		if(sendCount > 0) {
+			Utils.uint32ToByteStreamLE(sendCount, stream);
+		}
 	}
 	
 	/**
@@ -44,12 +57,15 @@ public class GetBlocksMessage extends Message {
 	protected void parse() throws ProtocolException {
 		this.startHash = readHash();
 		this.stopHash = readHash();
+		if(hasMoreBytes()) {
+			this.sendCount = (int) readUint32();
+		}
 		length = cursor;
 	}
 
 	@Override
 	public String toString() {
-		return "GetBlockMessage [startHash=" + startHash + ", stopHash=" + stopHash + "]";
+		return "GetBlockMessage [startHash=" + startHash + ", stopHash=" + stopHash + ", sendCount=" + sendCount + "]";
 	}
 
 	public Sha256Hash getStartHash() {
@@ -67,4 +83,12 @@ public class GetBlocksMessage extends Message {
 	public void setStopHash(Sha256Hash stopHash) {
 		this.stopHash = stopHash;
 	}
+
+	public int getSendCount() {
+		return sendCount;
+	}
+
+	public void setSendCount(int sendCount) {
+		this.sendCount = sendCount;
+	}
 }
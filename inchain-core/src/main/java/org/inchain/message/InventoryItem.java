@@ -19,6 +19,8 @@ public class InventoryItem {
         Block,
         NewBlock,
         Consensus,
+        //紧凑区块，只向发送过 SendCompactMessage 的节点请求
+        CompactBlock,
     	Unknown;
 
     	public static Type from(int code) {
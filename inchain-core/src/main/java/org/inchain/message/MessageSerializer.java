@@ -7,6 +7,7 @@ import java.nio.ByteBuffer;
 
 import org.inchain.core.exception.ProtocolException;
 import org.inchain.crypto.Sha256Hash;
+import org.inchain.net.MessageFrame;
 import org.inchain.transaction.Transaction;
 import org.inchain.utils.Utils;
 
@@ -55,6 +56,28 @@ public abstract class MessageSerializer {
     public abstract void serialize(String name, byte[] message, OutputStream out) throws IOException, UnsupportedOperationException;
 
     public abstract void serialize(Message message, OutputStream out) throws IOException, UnsupportedOperationException;
+    
+    /**
+     * 序列化成完整的网络消息帧，放在池化的 direct buffer 里，可以被多个节点的发送队列共享
+     * 用完必须调用 {@link MessageFrame#release()}
+     * @param message
+     * @return MessageFrame
+     * @throws IOException
+     * @throws UnsupportedOperationException
+     */
+    public abstract MessageFrame serializeFrame(Message message) throws IOException, UnsupportedOperationException;
+    
+    /**
+     * 用已经序列化好的消息内容和校验和生成网络消息帧，不需要反序列化和重新计算hash
+     * 用完必须调用 {@link MessageFrame#release()}
+     * @param type		消息类型
+     * @param payload	消息内容，从 position 读到 limit，不改变它的读位置
+     * @param checksum	消息内容的校验和
+     * @return MessageFrame
+     * @throws UnsupportedOperationException
+     */
+    public abstract MessageFrame serializeFrame(Class<? extends Message> type, ByteBuffer payload, byte[] checksum) throws UnsupportedOperationException;
+    
     /**
      * Whether the serializer will produce cached mode Messages
      */
@@ -0,0 +1,57 @@
+package org.inchain.message;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.inchain.core.exception.ProtocolException;
+import org.inchain.network.NetworkParams;
+import org.inchain.utils.Utils;
+
+/**
+ * 紧凑区块支持通知，握手完成后发送
+ * 收到该消息的节点，新区块可以通过 {@link CompactBlockMessage} 向发送方获取，不支持的老节点会忽略该消息
+ * @author ln
+ *
+ */
+public class SendCompactMessage extends Message {
+
+	//紧凑区块协议版本
+	public static final long COMPACT_VERSION = 1;
+	//从这个版本开始，GetBlocksMessage 可以要求对方在清单之后直接发送区块
+	public static final long BLOCK_STREAM_VERSION = 2;
+	
+	private long compactVersion;
+	
+	public SendCompactMessage(NetworkParams network) {
+		super(network);
+		this.compactVersion = BLOCK_STREAM_VERSION;
+	}
+	
+	public SendCompactMessage(NetworkParams network, byte[] payload) throws ProtocolException {
+		this(network, payload, 0);
+	}
+	
+	public SendCompactMessage(NetworkParams network, byte[] payload, int offset) throws ProtocolException {
+		super(network, payload, offset);
+	}
+	
+	@Override
+	protected void parse() throws ProtocolException {
+		compactVersion = readUint32();
+		length = cursor - offset;
+	}
+	
+	@Override
+	protected void serializeToStream(OutputStream stream) throws IOException {
+		Utils.uint32ToByteStreamLE(compactVersion, stream);
+	}
+	
+	public long getCompactVersion() {
+		return compactVersion;
+	}
+	
+	@Override
+	public String toString() {
+		return "SendCompactMessage [compactVersion=" + compactVersion + "]";
+	}
+}
@@ -6,6 +6,7 @@ import java.util.List;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
+import org.inchain.core.DataSynchronizeHandler;
 import org.inchain.core.Peer;
 import org.inchain.core.Result;
 import org.inchain.core.exception.VerificationException;
@@ -52,6 +53,8 @@ public class BlockMessageProcess implements MessageProcess {
 	protected BlockStoreProvider blockStoreProvider;
 	@Autowired
 	private BlockValidator blockValidator;
+	@Autowired
+	private DataSynchronizeHandler dataSynchronizeHandler;
 	
 	//错误的hash列表
 	private List<Sha256Hash> errorHashs = new ArrayList<Sha256Hash>();
@@ -67,6 +70,11 @@ public class BlockMessageProcess implements MessageProcess {
 		}
 		Block block = (Block) message;
 		
+		//同步器并行下载的区块，由同步器按高度顺序收录
+		if(dataSynchronizeHandler.onBlock(block)) {
+			return new MessageProcessResult(block.getHash(), true);
+		}
+		
 		lock.lock();
 		
 		try {
@@ -76,8 +84,8 @@ public class BlockMessageProcess implements MessageProcess {
 				return replyRejectMessage(block);
 			}
 			
-			//验证区块消息的合法性
-			Result verifyReuslt = blockValidator.verifyBlock(block);
+			//验证区块消息的合法性，assume-valid 之前的历史区块不验证交易签名
+			Result verifyReuslt = blockValidator.verifyBlock(block, blockValidator.isAssumeValid(block));
 			if(!verifyReuslt.isSuccess()) {
 				
 				blockForkService.addBlockFork(block);
@@ -118,6 +126,8 @@ public class BlockMessageProcess implements MessageProcess {
 			} catch (IOException e) {
 				throw new VerificationException(e);
 			}
+			blockValidator.checkAssumeValid(block);
+			blockForkService.onBlockConnected(block.getHash());
 			
 			//区块变化监听器
 			if(peerKit.getBlockChangedListener() != null) {
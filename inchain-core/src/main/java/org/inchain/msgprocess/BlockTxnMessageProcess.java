@@ -0,0 +1,35 @@
+package org.inchain.msgprocess;
+
+import org.inchain.core.Peer;
+import org.inchain.message.BlockTxnMessage;
+import org.inchain.message.Message;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+/**
+ * 收到紧凑区块缺少的交易，补全区块后按新区块处理
+ * @author ln
+ *
+ */
+@Service
+public class BlockTxnMessageProcess implements MessageProcess {
+
+	private static final Logger log = LoggerFactory.getLogger(BlockTxnMessageProcess.class);
+	
+	@Autowired
+	private CompactBlockMessageProcess compactBlockMessageProcess;
+	
+	@Override
+	public MessageProcessResult process(Message message, Peer peer) {
+		
+		BlockTxnMessage blockTxnMessage = (BlockTxnMessage) message;
+		
+		if(log.isDebugEnabled()) {
+			log.debug("receive blocktxn message: {}", blockTxnMessage);
+		}
+		
+		return compactBlockMessageProcess.onBlockTxn(blockTxnMessage, peer);
+	}
+}
@@ -0,0 +1,307 @@
+package org.inchain.msgprocess;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.inchain.core.Peer;
+import org.inchain.crypto.Sha256Hash;
+import org.inchain.mempool.MempoolContainer;
+import org.inchain.message.Block;
+import org.inchain.message.BlockTxnMessage;
+import org.inchain.message.CompactBlockMessage;
+import org.inchain.message.GetBlockTxnMessage;
+import org.inchain.message.GetDatasMessage;
+import org.inchain.message.InventoryItem;
+import org.inchain.message.Message;
+import org.inchain.message.NewBlockMessage;
+import org.inchain.network.NetworkParams;
+import org.inchain.store.BlockStoreProvider;
+import org.inchain.transaction.Transaction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+/**
+ * 紧凑区块处理器
+ * 用内存池里的交易还原区块，全部找到时直接交给新区块处理器，否则向对方请求缺少的交易，收到后再补全
+ * 还原失败（短ID冲突、预填充或补全的交易不对），或者请求之后超时还没有收录，改为下载完整区块
+ * @author ln
+ *
+ */
+@Service
+public class CompactBlockMessageProcess implements MessageProcess {
+
+	private static final Logger log = LoggerFactory.getLogger(CompactBlockMessageProcess.class);
+
+	//最多同时等待补全的区块数
+	private static final int MAX_PENDING_BLOCKS = 16;
+	//等待缺少交易的超时时间，毫秒
+	private static final long PENDING_TIMEOUT = 30000l;
+	//请求紧凑区块之后，等待收录的超时时间，毫秒
+	private static final long REQUEST_TIMEOUT = 3000l;
+	//请求超时的检查
+	private static final Timer requestTimer = new Timer("compact block requests", true);
+
+	@Autowired
+	private NetworkParams network;
+	@Autowired
+	private BlockStoreProvider blockStoreProvider;
+	@Autowired
+	private NewBlockMessageProcess newBlockMessageProcess;
+
+	//等待缺少交易的区块，按加入顺序
+	private final Map<Sha256Hash, PartialBlock> pendingBlocks = new LinkedHashMap<Sha256Hash, PartialBlock>();
+	//已请求紧凑区块，还没有还原成功的区块，失败或超时的时候从这里取出，只改为下载一次完整区块
+	private final Map<Sha256Hash, Peer> requests = new ConcurrentHashMap<Sha256Hash, Peer>();
+
+	/**
+	 * 向对方请求紧凑区块，不等待结果
+	 * 收到之后的还原在 process 里处理，失败或者超时没有收录，改为向对方下载完整区块
+	 * @param hash
+	 * @param peer
+	 * @throws IOException
+	 */
+	public void request(final Sha256Hash hash, Peer peer) throws IOException {
+		requests.put(hash, peer);
+		try {
+			peer.sendMessage(new GetDatasMessage(network, new InventoryItem(InventoryItem.Type.CompactBlock, hash)));
+		} catch (IOException e) {
+			requests.remove(hash);
+			throw e;
+		}
+		requestTimer.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				if(requests.containsKey(hash)) {
+					log.info("紧凑区块 {} 获取超时", hash);
+					downloadBlock(hash);
+				}
+			}
+		}, REQUEST_TIMEOUT);
+	}
+
+	@Override
+	public MessageProcessResult process(Message message, Peer peer) {
+
+		CompactBlockMessage compactBlock = (CompactBlockMessage) message;
+		Sha256Hash hash = compactBlock.getBlockHash();
+
+		if(log.isDebugEnabled()) {
+			log.debug("receive compact block message: {}", compactBlock);
+		}
+
+		//已经有了
+		if(blockStoreProvider.getHeader(hash.getBytes()) != null) {
+			return new MessageProcessResult(hash, true);
+		}
+
+		PartialBlock partialBlock = new PartialBlock(compactBlock, peer);
+		if(!partialBlock.fillPrefilled()) {
+			log.warn("紧凑区块 {} 预填充交易的位置不正确", hash);
+			downloadBlock(hash);
+			return new MessageProcessResult(hash, false);
+		}
+		partialBlock.fillFromMempool();
+
+		List<Integer> missing = partialBlock.getMissingIndexes();
+		if(missing.isEmpty()) {
+			return complete(partialBlock);
+		}
+
+		log.info("紧凑区块 {} 共 {} 笔交易，缺少 {} 笔，向对方请求", hash, compactBlock.getHeader().getTxCount(), missing.size());
+
+		putPending(partialBlock);
+		return new MessageProcessResult(null, true, new GetBlockTxnMessage(network, hash, missing));
+	}
+
+	/**
+	 * 收到缺少的交易，补全区块
+	 * @param blockTxnMessage
+	 * @param peer
+	 * @return MessageProcessResult
+	 */
+	public MessageProcessResult onBlockTxn(BlockTxnMessage blockTxnMessage, Peer peer) {
+		Sha256Hash hash = blockTxnMessage.getBlockHash();
+		PartialBlock partialBlock;
+		synchronized (pendingBlocks) {
+			partialBlock = pendingBlocks.get(hash);
+			if(partialBlock == null || partialBlock.peer != peer) {
+				if(log.isDebugEnabled()) {
+					log.debug("{} 没有等待补全的紧凑区块 {}", peer.getAddress(), hash);
+				}
+				return null;
+			}
+			pendingBlocks.remove(hash);
+		}
+
+		List<Integer> missing = partialBlock.getMissingIndexes();
+		List<Transaction> txs = blockTxnMessage.getTxs();
+		if(txs.size() != missing.size()) {
+			log.warn("紧凑区块 {} 请求 {} 笔交易，收到 {} 笔", hash, missing.size(), txs.size());
+			downloadBlock(hash);
+			return new MessageProcessResult(hash, false);
+		}
+		for (int i = 0; i < missing.size(); i++) {
+			partialBlock.txs[missing.get(i)] = txs.get(i);
+		}
+		return complete(partialBlock);
+	}
+
+	/**
+	 * 取消等待补全的区块，之后收到的交易会被忽略
+	 * @param hash
+	 */
+	public void cancel(Sha256Hash hash) {
+		synchronized (pendingBlocks) {
+			pendingBlocks.remove(hash);
+		}
+	}
+
+	/*
+	 * 交易已齐全，组装区块，交给新区块处理器
+	 */
+	private MessageProcessResult complete(PartialBlock partialBlock) {
+		CompactBlockMessage compactBlock = partialBlock.compactBlock;
+		Sha256Hash hash = compactBlock.getBlockHash();
+
+		Block block = compactBlock.toBlock(Arrays.asList(partialBlock.txs));
+		if(!hash.equals(block.getHash())) {
+			//短ID冲突，拿错了交易
+			log.warn("紧凑区块 {} 还原后hash不一致，需要下载完整区块", hash);
+			downloadBlock(hash);
+			return new MessageProcessResult(hash, false);
+		}
+		//已还原，验证和收录的时间不算超时
+		requests.remove(hash);
+
+		NewBlockMessage newBlockMessage = new NewBlockMessage(network, block.baseSerialize());
+		return newBlockMessageProcess.process(newBlockMessage, partialBlock.peer);
+	}
+
+	/*
+	 * 紧凑区块还原失败或超时，不再等待缺少的交易，改为向请求的节点下载完整区块
+	 * 不是本节点请求的紧凑区块，或者已经改为下载完整区块的，不处理
+	 */
+	private void downloadBlock(Sha256Hash hash) {
+		cancel(hash);
+		Peer peer = requests.remove(hash);
+		if(peer == null || blockStoreProvider.getHeader(hash.getBytes()) != null) {
+			return;
+		}
+		try {
+			peer.sendMessage(new GetDatasMessage(network, new InventoryItem(InventoryItem.Type.NewBlock, hash)));
+		} catch (IOException e) {
+			log.warn("向 {} 下载完整区块 {} 失败", peer.getAddress(), hash, e);
+		}
+	}
+
+	/*
+	 * 加入等待列表，同时清理超时的和超出数量的
+	 */
+	private void putPending(PartialBlock partialBlock) {
+		synchronized (pendingBlocks) {
+			long now = System.currentTimeMillis();
+			Iterator<PartialBlock> it = pendingBlocks.values().iterator();
+			while (it.hasNext()) {
+				PartialBlock pending = it.next();
+				if(now - pending.time > PENDING_TIMEOUT || pendingBlocks.size() >= MAX_PENDING_BLOCKS) {
+					it.remove();
+				}
+			}
+			pendingBlocks.put(partialBlock.compactBlock.getBlockHash(), partialBlock);
+		}
+	}
+
+	/*
+	 * 正在还原的区块
+	 */
+	private static class PartialBlock {
+		private final CompactBlockMessage compactBlock;
+		private final Peer peer;
+		private final Transaction[] txs;
+		private final long time;
+
+		PartialBlock(CompactBlockMessage compactBlock, Peer peer) {
+			this.compactBlock = compactBlock;
+			this.peer = peer;
+			this.txs = new Transaction[(int) compactBlock.getHeader().getTxCount()];
+			this.time = System.currentTimeMillis();
+		}
+
+		/*
+		 * 放入预先填充的交易
+		 */
+		boolean fillPrefilled() {
+			List<Integer> indexes = compactBlock.getPrefilledIndexes();
+			for (int i = 0; i < indexes.size(); i++) {
+				int index = indexes.get(i);
+				if(index < 0 || index >= txs.length || txs[index] != null) {
+					return false;
+				}
+				txs[index] = compactBlock.getPrefilledTxs().get(i);
+			}
+			return true;
+		}
+
+		/*
+		 * 用内存池里的交易按短ID填充，同一个短ID匹配到多笔交易的，当作缺少
+		 */
+		void fillFromMempool() {
+			//短ID -> 区块里的位置
+			Map<Long, Integer> positions = new HashMap<Long, Integer>();
+			Set<Long> duplicates = new HashSet<Long>();
+			long[] shortIds = compactBlock.getShortIds();
+			int shortIdIndex = 0;
+			for (int i = 0; i < txs.length && shortIdIndex < shortIds.length; i++) {
+				if(txs[i] != null) {
+					continue;
+				}
+				long shortId = shortIds[shortIdIndex++];
+				if(positions.put(shortId, i) != null) {
+					duplicates.add(shortId);
+				}
+			}
+			if(positions.isEmpty()) {
+				return;
+			}
+
+			byte[] salt = compactBlock.getSalt();
+			for (Transaction tx : MempoolContainer.getInstace().getAll()) {
+				long shortId = CompactBlockMessage.shortId(salt, tx.getHash());
+				Integer position = positions.get(shortId);
+				if(position == null || duplicates.contains(shortId)) {
+					continue;
+				}
+				if(txs[position] != null && !txs[position].getHash().equals(tx.getHash())) {
+					//内存池里两笔交易短ID相同，不知道是哪一笔，向对方请求
+					duplicates.add(shortId);
+					txs[position] = null;
+					continue;
+				}
+				txs[position] = tx;
+			}
+		}
+
+		List<Integer> getMissingIndexes() {
+			List<Integer> missing = new ArrayList<Integer>();
+			for (int i = 0; i < txs.length; i++) {
+				if(txs[i] == null) {
+					missing.add(i);
+				}
+			}
+			return missing;
+		}
+	}
+}
@@ -1,10 +1,12 @@
 package org.inchain.msgprocess;
 
+import org.inchain.core.DataSynchronizeHandler;
 import org.inchain.core.Peer;
 import org.inchain.message.DataNotFoundMessage;
 import org.inchain.message.Message;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
 /**
@@ -17,6 +19,9 @@ public class DataNotFoundMessageProcess implements MessageProcess {
 
 	private static final Logger log = LoggerFactory.getLogger(DataNotFoundMessageProcess.class);
 	
+	@Autowired
+	private DataSynchronizeHandler dataSynchronizeHandler;
+	
 	@Override
 	public MessageProcessResult process(Message message, Peer peer) {
 		
@@ -28,6 +33,8 @@ public class DataNotFoundMessageProcess implements MessageProcess {
 		
 		log.info("信息没有找到 {}", dataNotFoundMessage);
 		
+		dataSynchronizeHandler.onDataNotFound(peer, dataNotFoundMessage.getHash());
+		
 		return new MessageProcessResult(dataNotFoundMessage.getHash(), false);
 	}
 }
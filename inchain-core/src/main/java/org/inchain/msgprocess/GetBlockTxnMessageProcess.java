@@ -0,0 +1,80 @@
+package org.inchain.msgprocess;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.inchain.core.Peer;
+import org.inchain.message.Block;
+import org.inchain.message.BlockTxnMessage;
+import org.inchain.message.DataNotFoundMessage;
+import org.inchain.message.GetBlockTxnMessage;
+import org.inchain.message.Message;
+import org.inchain.network.NetworkParams;
+import org.inchain.service.BlockForkService;
+import org.inchain.store.BlockHeaderStore;
+import org.inchain.store.BlockStore;
+import org.inchain.store.BlockStoreProvider;
+import org.inchain.transaction.Transaction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+/**
+ * 紧凑区块缺少的交易获取，按请求的位置回应区块里的交易
+ * @author ln
+ *
+ */
+@Service
+public class GetBlockTxnMessageProcess implements MessageProcess {
+
+	private static final Logger log = LoggerFactory.getLogger(GetBlockTxnMessageProcess.class);
+	
+	@Autowired
+	private NetworkParams network;
+	@Autowired
+	private BlockStoreProvider blockStoreProvider;
+	@Autowired
+	private BlockForkService blockForkService;
+	
+	@Override
+	public MessageProcessResult process(Message message, Peer peer) {
+		
+		GetBlockTxnMessage getBlockTxnMessage = (GetBlockTxnMessage) message;
+		
+		if(log.isDebugEnabled()) {
+			log.debug("receive getblocktxn message: {}", getBlockTxnMessage);
+		}
+		
+		//已裁剪的区块交易不完整，不能发送
+		BlockHeaderStore header = blockStoreProvider.getHeader(getBlockTxnMessage.getBlockHash().getBytes());
+		if(header != null && header.getBlockHeader().getHeight() <= blockStoreProvider.getPrunedHeight()) {
+			if(log.isDebugEnabled()) {
+				log.debug("{} 请求的区块 {} 已裁剪", peer.getAddress(), getBlockTxnMessage.getBlockHash());
+			}
+			return new MessageProcessResult(null, false, new DataNotFoundMessage(network, getBlockTxnMessage.getBlockHash()));
+		}
+		
+		Block block = null;
+		BlockStore blockStore = header == null ? null : blockStoreProvider.getBlockByHeader(header);
+		if(blockStore == null) {
+			block = blockForkService.getBlock(getBlockTxnMessage.getBlockHash());
+		} else {
+			block = blockStore.getBlock();
+		}
+		if(block == null) {
+			return new MessageProcessResult(null, false, new DataNotFoundMessage(network, getBlockTxnMessage.getBlockHash()));
+		}
+		
+		List<Transaction> blockTxs = block.getTxs();
+		List<Transaction> txs = new ArrayList<Transaction>(getBlockTxnMessage.getIndexes().size());
+		for (Integer index : getBlockTxnMessage.getIndexes()) {
+			if(index < 0 || index >= blockTxs.size()) {
+				log.warn("{} 请求的交易位置 {} 超出区块 {} 的交易数", peer.getAddress(), index, block.getHash());
+				return new MessageProcessResult(null, false, new DataNotFoundMessage(network, getBlockTxnMessage.getBlockHash()));
+			}
+			txs.add(blockTxs.get(index));
+		}
+		return new MessageProcessResult(null, true, new BlockTxnMessage(network, block.getHash(), txs));
+	}
+}
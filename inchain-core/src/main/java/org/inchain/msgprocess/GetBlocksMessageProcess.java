@@ -1,19 +1,30 @@
 package org.inchain.msgprocess;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.channels.NotYetConnectedException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PreDestroy;
 
 import org.inchain.core.Peer;
 import org.inchain.crypto.Sha256Hash;
+import org.inchain.message.Block;
 import org.inchain.message.DataNotFoundMessage;
 import org.inchain.message.GetBlocksMessage;
 import org.inchain.message.InventoryItem;
 import org.inchain.message.InventoryMessage;
 import org.inchain.message.Message;
+import org.inchain.net.MessageFrame;
 import org.inchain.network.NetworkParams;
+import org.inchain.store.BlockFilePointer;
+import org.inchain.store.BlockFileStore;
 import org.inchain.store.BlockHeaderStore;
+import org.inchain.store.BlockStore;
 import org.inchain.store.BlockStoreProvider;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -22,13 +33,23 @@ import org.springframework.stereotype.Service;
 
 /**
  * 区块信息获取消息处理器
+ * 区块hash清单通过高度索引一次范围读取得到，对方要求时在清单之后按顺序直接发送区块
+ * 直接发送的区块根据对方连接的发送队列做流量控制，队列满了就等它发出去再继续，不占用消息处理线程
  * @author ln
  *
  */
 @Service
 public class GetBlocksMessageProcess implements MessageProcess {
-	
-	private final static int MAX_COUNT = 1000;
+
+	public final static int MAX_COUNT = 1000;
+	//清单之后直接发送的区块数上限
+	public final static int MAX_SEND_COUNT = 128;
+	//直接发送区块时，对方连接发送队列里最多积压的字节数
+	private final static long SEND_WINDOW_BYTES = 4 * 1024 * 1024;
+	//发送队列满时，等待多久再检查
+	private final static long SEND_RETRY_DELAY = 20l;
+	//发送队列一直没有空间的超时时间，超时后放弃剩下的区块
+	private final static long SEND_STALL_TIMEOUT = 30000l;
 
 	private Logger log = LoggerFactory.getLogger(getClass());
 
@@ -37,25 +58,37 @@ public class GetBlocksMessageProcess implements MessageProcess {
 	//区块提供器
 	@Autowired
 	private BlockStoreProvider blockStoreProvider;
-	
+	@Autowired
+	private BlockFileStore blockFileStore;
+
+	//直接发送区块的调度器，所有节点共用
+	private final ScheduledThreadPoolExecutor sendExecutor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "block stream sender");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
 	public GetBlocksMessageProcess() {
 	}
-	
+
 	/**
 	 * 接收到区块拉取消息
 	 */
 	@Override
 	public MessageProcessResult process(Message message, Peer peer) {
-		
+
 		if(log.isDebugEnabled()) {
 			log.debug("receive get block message : {}", message);
 		}
-		
+
 		GetBlocksMessage getBlockMessage = (GetBlocksMessage) message;
 		//要获取的区块，从哪里开始
 		Sha256Hash startHash = getBlockMessage.getStartHash();
 		Sha256Hash stopHash = getBlockMessage.getStopHash();
-		
+
 		//验证
 		BlockHeaderStore startBlockHeader = blockStoreProvider.getHeader(startHash.getBytes());
 		//如果开始的块没有找到，则返回DataNotFound消息
@@ -67,40 +100,132 @@ public class GetBlocksMessageProcess implements MessageProcess {
 			}
 			return null;
 		}
-		
-		BlockHeaderStore stopBlockHeader = null;
-		
+
+		//每次最大不能超过1000个，结束的块不在主链上时按最大数量返回
+		long startHeight = startBlockHeader.getBlockHeader().getHeight();
+		long endHeight = startHeight + MAX_COUNT;
+
 		if(!Sha256Hash.ZERO_HASH.equals(stopHash)) {
-			stopBlockHeader = blockStoreProvider.getHeader(stopHash.getBytes());
-		}
-		
-		//每次最大不能超过1000个
-		if(stopBlockHeader == null || stopBlockHeader.getBlockHeader().getHeight() - startBlockHeader.getBlockHeader().getHeight() > MAX_COUNT) {
-			BlockHeaderStore bestBlockHeader = blockStoreProvider.getBestBlockHeader();
-			if(bestBlockHeader.getBlockHeader().getHeight() - startBlockHeader.getBlockHeader().getHeight() <= MAX_COUNT) {
-				stopBlockHeader = bestBlockHeader;
+			BlockHeaderStore stopBlockHeader = blockStoreProvider.getHeader(stopHash.getBytes());
+			if(stopBlockHeader != null && stopBlockHeader.getBlockHeader().getHeight() > startHeight) {
+				endHeight = Math.min(endHeight, stopBlockHeader.getBlockHeader().getHeight());
 			}
 		}
-		
-		List<InventoryItem> list = new ArrayList<InventoryItem>();
-		int count = 0;
-		while (count < MAX_COUNT) {
 
-			if(Sha256Hash.ZERO_HASH.equals(startBlockHeader.getNextHash()) || 
-					(stopBlockHeader != null && startBlockHeader.getBlockHeader().getHash().equals(stopBlockHeader.getBlockHeader().getHash()))) {
-				break;
-			}
-			
-			list.add(new InventoryItem(InventoryItem.Type.Block, startBlockHeader.getNextHash()));
-			count ++;
-			startBlockHeader = blockStoreProvider.getHeader(startBlockHeader.getNextHash().getBytes());
+		//开始的块已经不在主链上（被撤销）时，高度索引里的块接不上，直接返回空清单
+		List<Sha256Hash> hashs = blockStoreProvider.getBlockHashsByHeight(startHeight + 1, endHeight);
+		if(!Sha256Hash.ZERO_HASH.equals(startBlockHeader.getNextHash()) && !hashs.isEmpty() && !hashs.get(0).equals(startBlockHeader.getNextHash())) {
+			hashs.clear();
+		}
+
+		List<InventoryItem> list = new ArrayList<InventoryItem>();
+		for (Sha256Hash hash : hashs) {
+			list.add(new InventoryItem(InventoryItem.Type.Block, hash));
 		}
 		try {
 			peer.sendMessage(new InventoryMessage(peer.getNetwork(), list));
 		} catch (NotYetConnectedException | IOException e) {
 			e.printStackTrace();
+			return null;
 		}
-		
+
+		//清单之后直接发送区块
+		int sendCount = Math.min(Math.min(getBlockMessage.getSendCount(), MAX_SEND_COUNT), hashs.size());
+		if(sendCount > 0) {
+			sendExecutor.execute(new BlockSender(peer, new ArrayList<Sha256Hash>(hashs.subList(0, sendCount))));
+		}
+
 		return null;
 	}
+
+	/*
+	 * 区块序列化后的消息帧，区块文件里有原始数据的直接使用，不需要重新组装和序列化
+	 * 区块不存在或者已被裁剪返回null
+	 */
+	private MessageFrame getBlockFrame(Sha256Hash hash) throws IOException {
+		BlockFilePointer pointer = blockStoreProvider.getBlockFilePointer(hash.getBytes());
+		if(pointer != null) {
+			ByteBuffer payload = blockFileStore.read(pointer);
+			if(payload != null) {
+				return network.getDefaultSerializer().serializeFrame(Block.class, payload, pointer.getChecksum());
+			}
+		}
+		BlockStore blockStore = blockStoreProvider.getBlock(hash.getBytes());
+		if(blockStore == null || blockStore.getBlock().getHeight() <= blockStoreProvider.getPrunedHeight()) {
+			return null;
+		}
+		return network.getDefaultSerializer().serializeFrame(blockStore.getBlock());
+	}
+
+	@PreDestroy
+	public void stop() {
+		sendExecutor.shutdownNow();
+	}
+
+	/*
+	 * 按顺序发送一批区块，对方发送队列积压超过窗口时暂停，稍后在调度器里继续
+	 */
+	private class BlockSender implements Runnable {
+
+		private final Peer peer;
+		private final List<Sha256Hash> hashs;
+		//下一个要发送的区块
+		private int index;
+		//已取出还没有发送的区块
+		private MessageFrame pending;
+		//发送队列开始没有空间的时间
+		private long stallTime;
+
+		public BlockSender(Peer peer, List<Sha256Hash> hashs) {
+			this.peer = peer;
+			this.hashs = hashs;
+		}
+
+		@Override
+		public void run() {
+			try {
+				while(index < hashs.size()) {
+					Sha256Hash hash = hashs.get(index);
+					if(pending == null) {
+						pending = getBlockFrame(hash);
+						if(pending == null) {
+							index++;
+							peer.sendMessage(new DataNotFoundMessage(network, hash));
+							continue;
+						}
+					}
+					long pendingBytes = peer.getPendingWriteBytes();
+					if(pendingBytes > 0 && pendingBytes + pending.length() > SEND_WINDOW_BYTES) {
+						long now = System.currentTimeMillis();
+						if(stallTime == 0l) {
+							stallTime = now;
+						} else if(now - stallTime > SEND_STALL_TIMEOUT) {
+							log.warn("节点 {} 接收区块停滞，停止发送剩余的 {} 个区块", peer.getAddress(), hashs.size() - index);
+							break;
+						}
+						sendExecutor.schedule(this, SEND_RETRY_DELAY, TimeUnit.MILLISECONDS);
+						return;
+					}
+					stallTime = 0l;
+					try {
+						peer.sendMessage(null, pending);
+					} finally {
+						pending.release();
+						pending = null;
+					}
+					index++;
+				}
+			} catch (NotYetConnectedException | IOException e) {
+				if(log.isDebugEnabled()) {
+					log.debug("发送区块出错，可能原因是连接已关闭 {}", e.getMessage());
+				}
+			} catch (Exception e) {
+				log.error("发送区块出错", e);
+			}
+			if(pending != null) {
+				pending.release();
+				pending = null;
+			}
+		}
+	}
 }
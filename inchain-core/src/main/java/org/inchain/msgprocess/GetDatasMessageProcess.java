@@ -1,6 +1,7 @@
 package org.inchain.msgprocess;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.channels.NotYetConnectedException;
 import java.util.List;
 
@@ -8,18 +9,23 @@ import org.inchain.consensus.ConsensusMeeting;
 import org.inchain.core.Peer;
 import org.inchain.mempool.MempoolContainer;
 import org.inchain.message.Block;
+import org.inchain.message.CompactBlockMessage;
 import org.inchain.message.ConsensusMessage;
 import org.inchain.message.DataNotFoundMessage;
 import org.inchain.message.GetDatasMessage;
 import org.inchain.message.InventoryItem;
 import org.inchain.message.Message;
 import org.inchain.message.NewBlockMessage;
+import org.inchain.net.MessageFrame;
 import org.inchain.network.NetworkParams;
 import org.inchain.service.BlockForkService;
+import org.inchain.store.BlockFilePointer;
+import org.inchain.store.BlockFileStore;
 import org.inchain.store.BlockStore;
 import org.inchain.store.BlockStoreProvider;
 import org.inchain.store.TransactionStore;
 import org.inchain.transaction.Transaction;
+import org.inchain.utils.RandomUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -40,6 +46,8 @@ public class GetDatasMessageProcess implements MessageProcess {
 	@Autowired
 	private BlockStoreProvider blockStoreProvider;
 	@Autowired
+	private BlockFileStore blockFileStore;
+	@Autowired
 	private BlockForkService blockForkService;
 	@Autowired
 	private ConsensusMeeting consensusMeeting;
@@ -64,10 +72,17 @@ public class GetDatasMessageProcess implements MessageProcess {
 			if(inventoryItem.getType() == InventoryItem.Type.NewBlock) {
 				//新区块数据获取
 				newBlockInventory(inventoryItem, peer);
+			} else if(inventoryItem.getType() == InventoryItem.Type.CompactBlock) {
+				//新区块以紧凑区块的方式获取
+				compactBlockInventory(inventoryItem, peer);
 			} else if(inventoryItem.getType() == InventoryItem.Type.Transaction) {
 				//交易数据获取
 				txInventory(inventoryItem, peer);
 			} else if(inventoryItem.getType() == InventoryItem.Type.Block){
+				//区块文件里有原始数据的，直接发送
+				if(sendStoredBlock(inventoryItem, peer)) {
+					continue;
+				}
 				//获取区块数据
 				Block block = getBlock(inventoryItem);
 				if(block == null) {
@@ -99,6 +114,32 @@ public class GetDatasMessageProcess implements MessageProcess {
 		}
 	}
 
+	/*
+	 * 发送区块文件里保存的区块原始数据和校验和，不需要从交易重新组装区块，也不需要重新序列化和计算hash
+	 * 没有保存原始数据的区块返回false，按原来的方式处理
+	 */
+	private boolean sendStoredBlock(InventoryItem inventoryItem, Peer peer) {
+		BlockFilePointer pointer = blockStoreProvider.getBlockFilePointer(inventoryItem.getHash().getBytes());
+		if(pointer == null) {
+			return false;
+		}
+		ByteBuffer payload = blockFileStore.read(pointer);
+		if(payload == null) {
+			return false;
+		}
+		MessageFrame frame = network.getDefaultSerializer().serializeFrame(Block.class, payload, pointer.getChecksum());
+		try {
+			peer.sendMessage(null, frame);
+		} catch (NotYetConnectedException | IOException e) {
+			if(log.isDebugEnabled()) {
+				log.debug("发送消息出错，可能原因是连接已关闭", e.getMessage());
+			}
+		} finally {
+			frame.release();
+		}
+		return true;
+	}
+
 	/**
 	 * 获取交易数据
 	 * @param inventoryItem
@@ -138,12 +179,27 @@ public class GetDatasMessageProcess implements MessageProcess {
 		}
 	}
 
+	/*
+	 * 下载紧凑区块
+	 */
+	private void compactBlockInventory(InventoryItem inventoryItem, Peer peer) {
+		Block block = getBlock(inventoryItem);
+		if(block == null || block.getTxs() == null || block.getTxs().isEmpty()) {
+			sendMessage(peer, new DataNotFoundMessage(network, inventoryItem.getHash()));
+		} else {
+			sendMessage(peer, new CompactBlockMessage(peer.getNetwork(), block, RandomUtil.randomLong()));
+		}
+	}
+
 	private Block getBlock(InventoryItem inventoryItem) {
 		Block block = null;
 		
 		BlockStore blockStore = blockStoreProvider.getBlock(inventoryItem.getHash().getBytes());
 		if(blockStore == null) {
 			block = blockForkService.getBlock(inventoryItem.getHash());
+		} else if(blockStore.getBlock().getHeight() <= blockStoreProvider.getPrunedHeight()) {
+			//已裁剪的区块交易不完整，不能发送
+			return null;
 		} else {
 			block = blockStore.getBlock();
 		}
@@ -20,7 +20,6 @@ import org.inchain.core.GetDataResult;
 import org.inchain.core.Peer;
 import org.inchain.filter.InventoryFilter;
 import org.inchain.kits.PeerKit;
-import org.inchain.message.Block;
 import org.inchain.message.GetDatasMessage;
 import org.inchain.message.InventoryItem;
 import org.inchain.message.InventoryMessage;
@@ -62,6 +61,8 @@ public class InventoryMessageProcess implements MessageProcess {
 	private DataSynchronizeHandler dataSynchronizeHandler;
 	@Autowired
 	private ConsensusMeeting consensusMeeting;
+	@Autowired
+	private CompactBlockMessageProcess compactBlockMessageProcess;
 
 //	private Sha256Hash monitorBlockDownload;
 	
@@ -75,6 +76,10 @@ public class InventoryMessageProcess implements MessageProcess {
 		InventoryMessage invMessage = (InventoryMessage) message;
 		
 		List<InventoryItem> invList = invMessage.getInvs();
+		//同步器请求的区块清单，交给同步器处理
+		if(dataSynchronizeHandler.onBlockInventory(peer, invList)) {
+			return null;
+		}
 		if(invList == null || invList.isEmpty()) {
 			//通知下载完成
 			peer.notifyDownloadComplete();
@@ -196,25 +201,15 @@ public class InventoryMessageProcess implements MessageProcess {
 				}
 				return;
 			}
-			Future<GetDataResult> resultFuture = peer.sendGetDataMessage(new GetDatasMessage(peer.getNetwork(), inventoryItem));
-			
-			//获取下载结果，有超时时间
-			GetDataResult result = resultFuture.get(3, TimeUnit.SECONDS);
-
 			filter.insert(inventoryItem.getHash().getBytes());
 			
-			if(result.isSuccess()) {
-				Block block = (Block) result.getData();
-				
-				if(log.isDebugEnabled()) {
-					log.debug("新区块:高度 {} hash{} 同步成功", block.getHeight(), inventoryItem.getHash());
-				}
-				//区块变化监听器
-				if(peerKit.getBlockChangedListener() != null) {
-					peerKit.getBlockChangedListener().onChanged(-1l, block.getHeight(), null, inventoryItem.getHash());
-				}
+			//只发出请求，不在这里等待结果，区块收录之后由新区块处理器通知区块变化
+			//对方支持紧凑区块时，先用内存池里的交易还原，失败或超时由紧凑区块处理器改为下载完整区块
+			if(peer.isCompactBlockSupported()) {
+				compactBlockMessageProcess.request(inventoryItem.getHash(), peer);
+			} else {
+				peer.sendMessage(new GetDatasMessage(peer.getNetwork(), inventoryItem));
 			}
-			
 		} catch (Exception e) {
 			log.error("新区块inv消息处理失败 {}", inventoryItem, e);
 		} finally {
@@ -62,6 +62,11 @@ public class NewBlockMessageProcess extends BlockMessageProcess {
 
 		Block block = (Block) message;
 		
+		//同一个区块可能先后以紧凑区块和完整区块的方式收到，已收录的不再处理，也不能当作重复出块
+		if(blockStoreProvider.getHeader(block.getHash().getBytes()) != null) {
+			return new MessageProcessResult(block.getHash(), false);
+		}
+		
 		//打包人重复检测
 		if(!checkRepeat(block)) {
 			return new MessageProcessResult(block.getHash(), false);
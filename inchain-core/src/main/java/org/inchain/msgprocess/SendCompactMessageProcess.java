@@ -0,0 +1,34 @@
+package org.inchain.msgprocess;
+
+import org.inchain.core.Peer;
+import org.inchain.message.Message;
+import org.inchain.message.SendCompactMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+/**
+ * 对方支持紧凑区块，之后的新区块可以用紧凑区块的方式向对方获取
+ * @author ln
+ *
+ */
+@Service
+public class SendCompactMessageProcess implements MessageProcess {
+
+	private static final Logger log = LoggerFactory.getLogger(SendCompactMessageProcess.class);
+	
+	@Override
+	public MessageProcessResult process(Message message, Peer peer) {
+		
+		SendCompactMessage sendCompactMessage = (SendCompactMessage) message;
+		
+		if(log.isDebugEnabled()) {
+			log.debug("{} 支持紧凑区块 {}", peer.getAddress(), sendCompactMessage);
+		}
+		
+		peer.setCompactBlockSupported(sendCompactMessage.getCompactVersion() >= SendCompactMessage.COMPACT_VERSION);
+		peer.setBlockStreamSupported(sendCompactMessage.getCompactVersion() >= SendCompactMessage.BLOCK_STREAM_VERSION);
+		
+		return null;
+	}
+}
@@ -1,7 +1,7 @@
 package org.inchain.msgprocess;
 
+import java.util.LinkedList;
 import java.util.List;
-import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.inchain.core.Definition;
 import org.inchain.core.Peer;
@@ -10,6 +10,7 @@ import org.inchain.crypto.Sha256Hash;
 import org.inchain.kits.PeerKit;
 import org.inchain.mempool.Mempool;
 import org.inchain.mempool.MempoolContainer;
+import org.inchain.mempool.OrphanTxPool;
 import org.inchain.message.InventoryItem;
 import org.inchain.message.InventoryItem.Type;
 import org.inchain.message.InventoryMessage;
@@ -21,7 +22,6 @@ import org.inchain.store.BlockStoreProvider;
 import org.inchain.store.TransactionStore;
 import org.inchain.transaction.Output;
 import org.inchain.transaction.Transaction;
-import org.inchain.transaction.TransactionInput;
 import org.inchain.transaction.TransactionOutput;
 import org.inchain.transaction.business.CertAccountTransaction;
 import org.inchain.utils.Hex;
@@ -53,8 +53,13 @@ public class TransactionMessageProcess implements MessageProcess {
 	@Autowired
 	private TransactionValidator transactionValidator;
 	
-	//没有找到的交易暂存
-	private List<Transaction> notFoundTxList = new CopyOnWriteArrayList<Transaction>();
+	//孤立交易最大数量
+	private final static int MAX_ORPHAN_COUNT = 5000;
+	//孤立交易最长存活时间，20分钟
+	private final static long ORPHAN_EXPIRE_TIME = 20 * 60 * 1000l;
+	
+	//引用的交易没有找到的交易暂存，按引用的交易索引
+	private final OrphanTxPool orphanTxPool = new OrphanTxPool(MAX_ORPHAN_COUNT, ORPHAN_EXPIRE_TIME);
 	
 	public TransactionMessageProcess() {
 	}
@@ -112,66 +117,33 @@ public class TransactionMessageProcess implements MessageProcess {
 		}
 	}
 
+	/*
+	 * 检查是否有依赖该交易的积压交易，有则重新验证，通过的加入内存池，并继续检查依赖它们的交易
+	 */
 	private void checkFoundOld(Transaction tx) {
-		if(notFoundTxList != null && notFoundTxList.size() > 0) {
-			for (Transaction transaction : notFoundTxList) {
-				List<TransactionInput> inputs = transaction.getInputs();
-				if(inputs == null || inputs.size() == 0) {
-					continue;
-				}
-				boolean hasFound = false;
-				for (TransactionInput transactionInput : inputs) {
-					List<TransactionOutput> froms = transactionInput.getFroms();
-					if(froms == null || froms.size() == 0) {
-						continue;
-					}
-					for (TransactionOutput transactionOutput : froms) {
-						if(transactionOutput.getParent().getHash().equals(tx.getHash())) {
-							//找到了
-							mempool.add(transaction);
-							notFoundTxList.remove(transaction);
-							hasFound = true;
-							
-							//递归查找
-							foundInOlds(transaction);
-							break;
-						}
-					}
-					if(hasFound) {
-						break;
-					}
-				}
-			}
-		}
-	}
-	
-	private void foundInOlds(Transaction tx) {
-		if(notFoundTxList != null && notFoundTxList.size() > 0) {
-			for (Transaction transaction : notFoundTxList) {
-				List<TransactionInput> inputs = transaction.getInputs();
-				if(inputs == null || inputs.size() == 0) {
-					continue;
-				}
-				boolean hasFound = false;
-				for (TransactionInput transactionInput : inputs) {
-					List<TransactionOutput> froms = transactionInput.getFroms();
-					if(froms == null || froms.size() == 0) {
+		LinkedList<Sha256Hash> parents = new LinkedList<Sha256Hash>();
+		parents.add(tx.getHash());
+		
+		while(!parents.isEmpty()) {
+			List<Transaction> children = orphanTxPool.getChildren(parents.poll());
+			for (Transaction child : children) {
+				try {
+					TransactionValidatorResult rs = transactionValidator.valDo(child, null).getResult();
+					if(!rs.isSuccess() && rs.getErrorCode() == TransactionValidatorResult.ERROR_CODE_NOT_FOUND) {
+						//还有其它引用没有找到，留在池里继续等待
 						continue;
 					}
-					for (TransactionOutput transactionOutput : froms) {
-						if(transactionOutput.getParent().getHash().equals(tx.getHash())) {
-							//找到了
-							mempool.add(transaction);
-							notFoundTxList.remove(transaction);
-							hasFound = true;
-							//递归查找
-							foundInOlds(transaction);
-							break;
-						}
-					}
-					if(hasFound) {
-						break;
+					orphanTxPool.remove(child.getHash());
+					if(rs.isSuccess()) {
+						mempool.add(child);
+						checkIsMine(child);
+						parents.add(child.getHash());
+					} else if(log.isDebugEnabled()) {
+						log.debug("积压交易验证失败 {} , {}", child.getHash(), rs.getMessage());
 					}
+				} catch (Exception e) {
+					orphanTxPool.remove(child.getHash());
+					log.warn("积压交易验证出错 {} , {}", child.getHash(), e.getMessage());
 				}
 			}
 		}
@@ -185,7 +157,7 @@ public class TransactionMessageProcess implements MessageProcess {
 			//没有找到的交易
 			if(rs.getErrorCode() == TransactionValidatorResult.ERROR_CODE_NOT_FOUND) {
 				//没有找到，当验证成功处理，只是暂时不加入内存池
-				notFoundTxList.add(tx);
+				orphanTxPool.add(tx);
 				//转发交易
 				InventoryItem item = new InventoryItem(Type.Transaction, tx.getHash());
 				InventoryMessage invMessage = new InventoryMessage(network, item);
@@ -229,15 +201,14 @@ public class TransactionMessageProcess implements MessageProcess {
 	 * @return Transaction
 	 */
 	public Transaction getPendingTx(Sha256Hash hash) {
-		for (Transaction transaction : notFoundTxList) {
-			if(transaction.getHash().equals(hash)) {
-				return transaction;
-			}
-		}
-		return null;
+		return orphanTxPool.get(hash);
 	}
 
+	/**
+	 * 获取待定交易数量
+	 * @return int
+	 */
 	public int getPendingTxCount() {
-		return notFoundTxList.size();
+		return orphanTxPool.size();
 	}
 }
@@ -5,6 +5,7 @@ import org.inchain.core.TimeService;
 import org.inchain.core.exception.ProtocolException;
 import org.inchain.kits.PeerKit;
 import org.inchain.message.Message;
+import org.inchain.message.SendCompactMessage;
 import org.inchain.message.VerackMessage;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -57,7 +58,8 @@ public class VerackMessageProcess implements MessageProcess {
         	
         	log.info("时间偏差 {} 毫秒, {}", peer.getTimeOffset(), peer.getAddress().getSocketAddress());
         	
-        	return new MessageProcessResult(null, true);
+        	//告诉对方本节点支持紧凑区块
+        	return new MessageProcessResult(null, true, new SendCompactMessage(peer.getNetwork()));
         }
       		
 		return null;
@@ -24,6 +24,8 @@ class ConnectionHandler implements MessageWriteTarget {
     private static final int BUFFER_SIZE_UPPER_BOUND = 65536;
 
     private static final int OUTBOUND_BUFFER_BYTE_COUNT = Message.MAX_SIZE + 24; // 24 byte message header
+    // 一次 gathering write 最多合并的缓冲区个数
+    private static final int MAX_GATHER_BUFFERS = 16;
 
     // We lock when touching local flags and when writing data, but NEVER when calling any methods which leave this
     // class into non-Java classes.
@@ -35,7 +37,8 @@ class ConnectionHandler implements MessageWriteTarget {
     private boolean closeCalled = false;
 
     private long bytesToWriteRemaining = 0;
-    private final LinkedList<ByteBuffer> bytesToWrite = new LinkedList<ByteBuffer>();
+    private final LinkedList<PendingWrite> bytesToWrite = new LinkedList<PendingWrite>();
+    private final ByteBuffer[] gatherBuffers = new ByteBuffer[MAX_GATHER_BUFFERS];
 
     private Set<ConnectionHandler> connectedHandlers;
 
@@ -110,13 +113,25 @@ class ConnectionHandler implements MessageWriteTarget {
         lock.lock();
         try {
             // Iterate through the outbound ByteBuff queue, pushing as much as possible into the OS' network buffer.
-            Iterator<ByteBuffer> bytesIterator = bytesToWrite.iterator();
-            while (bytesIterator.hasNext()) {
-                ByteBuffer buff = bytesIterator.next();
-                bytesToWriteRemaining -= channel.write(buff);
-                if (!buff.hasRemaining())
-                    bytesIterator.remove();
-                else {
+            // 多个排队的消息合并成一次 gathering write，减少系统调用
+            while (!bytesToWrite.isEmpty()) {
+                int count = 0;
+                Iterator<PendingWrite> bytesIterator = bytesToWrite.iterator();
+                while (bytesIterator.hasNext() && count < MAX_GATHER_BUFFERS)
+                    gatherBuffers[count++] = bytesIterator.next().buffer;
+                try {
+                    bytesToWriteRemaining -= channel.write(gatherBuffers, 0, count);
+                } finally {
+                    Arrays.fill(gatherBuffers, 0, count, null);
+                }
+                // Drop (and release) the buffers which were written completely
+                int completed = 0;
+                while (!bytesToWrite.isEmpty() && !bytesToWrite.peek().buffer.hasRemaining()) {
+                    bytesToWrite.poll().release();
+                    completed++;
+                }
+                if (completed < count) {
+                    // The OS' network buffer is full, wait until we can write again
                     setWriteOps();
                     break;
                 }
@@ -132,6 +147,18 @@ class ConnectionHandler implements MessageWriteTarget {
 
     @Override
     public void writeBytes(byte[] message) throws IOException {
+        // The caller hands the array over to us, so it is not copied again
+        enqueue(ByteBuffer.wrap(message), null);
+    }
+
+    @Override
+    public void writeFrame(MessageFrame frame) throws IOException {
+        // 共享同一块内存，只有读位置是自己的
+        enqueue(frame.duplicate(), frame);
+    }
+
+    private void enqueue(ByteBuffer buffer, MessageFrame frame) throws IOException {
+        int length = buffer.remaining();
         boolean andUnlock = true;
         lock.lock();
         try {
@@ -140,12 +167,13 @@ class ConnectionHandler implements MessageWriteTarget {
             // append to it when we want to send a message. We then let tryWriteBytes() either send the message or
             // register our SelectionKey to wakeup when we have free outbound buffer space available.
 
-            if (bytesToWriteRemaining + message.length > OUTBOUND_BUFFER_BYTE_COUNT)
+            if (closeCalled)
+                throw new IOException("Connection closed");
+            if (bytesToWriteRemaining + length > OUTBOUND_BUFFER_BYTE_COUNT)
                 throw new IOException("Outbound buffer overflowed");
             // Just dump the message onto the write buffer and call tryWriteBytes
-            // TODO: Kill the needless message duplication when the write completes right away
-            bytesToWrite.offer(ByteBuffer.wrap(Arrays.copyOf(message, message.length)));
-            bytesToWriteRemaining += message.length;
+            bytesToWrite.offer(new PendingWrite(buffer, frame == null ? null : frame.retain()));
+            bytesToWriteRemaining += length;
             setWriteOps();
         } catch (IOException e) {
             lock.unlock();
@@ -165,6 +193,35 @@ class ConnectionHandler implements MessageWriteTarget {
         }
     }
 
+    @Override
+    public void setReadingPaused(boolean paused) {
+        lock.lock();
+        try {
+            if (closeCalled)
+                return;
+            if (paused) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            } else {
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+                key.selector().wakeup();
+            }
+        } catch (CancelledKeyException e) {
+            // The connection is being closed, nothing to pause or resume
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public long getPendingWriteBytes() {
+        lock.lock();
+        try {
+            return bytesToWriteRemaining;
+        } finally {
+            lock.unlock();
+        }
+    }
+
     // May NOT be called with lock held
     @Override
     public void closeConnection() {
@@ -183,6 +240,11 @@ class ConnectionHandler implements MessageWriteTarget {
         try {
             callClosed = !closeCalled;
             closeCalled = true;
+            // 连接已关闭，释放还没有发送的消息帧
+            for (PendingWrite write : bytesToWrite)
+                write.release();
+            bytesToWrite.clear();
+            bytesToWriteRemaining = 0;
         } finally {
             lock.unlock();
         }
@@ -231,4 +293,22 @@ class ConnectionHandler implements MessageWriteTarget {
         	handler.closeConnection();
         }
     }
+
+    /*
+     * 发送队列里的一条消息，来自共享消息帧的需要在发送完成后释放引用
+     */
+    private static class PendingWrite {
+        private final ByteBuffer buffer;
+        private final MessageFrame frame;
+
+        PendingWrite(ByteBuffer buffer, MessageFrame frame) {
+            this.buffer = buffer;
+            this.frame = frame;
+        }
+
+        void release() {
+            if (frame != null)
+                frame.release();
+        }
+    }
 }
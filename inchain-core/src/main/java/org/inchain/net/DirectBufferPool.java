@@ -0,0 +1,118 @@
+package org.inchain.net;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 堆外内存池，按 2 的幂分级缓存 direct buffer
+ * 发送消息时 direct buffer 写 socket 不需要再复制一次到堆外，但分配和回收的代价比堆内存高得多，所以复用
+ * 超过最大级别的缓冲区（大区块）直接分配，不缓存，由 GC 回收
+ * @author ln
+ *
+ */
+public class DirectBufferPool {
+
+	//最小 1KB，最大 1MB
+	private final static int MIN_SHIFT = 10;
+	private final static int MAX_SHIFT = 20;
+	//每个级别最多缓存的个数
+	private final static int MAX_CACHED_PER_CLASS = 64;
+
+	private final static DirectBufferPool INSTANCE = new DirectBufferPool();
+
+	private final List<Queue<ByteBuffer>> pools;
+	private final AtomicInteger[] cachedCounts;
+
+	//新分配的次数，复用的次数
+	private final AtomicLong allocateCount = new AtomicLong();
+	private final AtomicLong reuseCount = new AtomicLong();
+
+	public DirectBufferPool() {
+		int classes = MAX_SHIFT - MIN_SHIFT + 1;
+		pools = new ArrayList<Queue<ByteBuffer>>(classes);
+		cachedCounts = new AtomicInteger[classes];
+		for (int i = 0; i < classes; i++) {
+			pools.add(new ConcurrentLinkedQueue<ByteBuffer>());
+			cachedCounts[i] = new AtomicInteger();
+		}
+	}
+
+	public static DirectBufferPool get() {
+		return INSTANCE;
+	}
+
+	/**
+	 * 获取一个容量不小于 size 的缓冲区，position 为 0，limit 为 size
+	 * @param size
+	 * @return ByteBuffer
+	 */
+	public ByteBuffer acquire(int size) {
+		int index = classIndex(size);
+		if(index < 0) {
+			allocateCount.incrementAndGet();
+			return ByteBuffer.allocateDirect(size);
+		}
+		ByteBuffer buffer = pools.get(index).poll();
+		if(buffer == null) {
+			allocateCount.incrementAndGet();
+			buffer = ByteBuffer.allocateDirect(1 << (index + MIN_SHIFT));
+		} else {
+			cachedCounts[index].decrementAndGet();
+			reuseCount.incrementAndGet();
+		}
+		buffer.clear();
+		buffer.limit(size);
+		return buffer;
+	}
+
+	/**
+	 * 归还缓冲区，调用之后不能再使用该缓冲区以及它的任何视图
+	 * @param buffer
+	 */
+	public void release(ByteBuffer buffer) {
+		if(buffer == null || !buffer.isDirect() || buffer.isReadOnly()) {
+			return;
+		}
+		int capacity = buffer.capacity();
+		//只缓存本池分配的整级别缓冲区
+		if(Integer.bitCount(capacity) != 1) {
+			return;
+		}
+		int index = classIndex(capacity);
+		if(index < 0) {
+			return;
+		}
+		if(cachedCounts[index].incrementAndGet() > MAX_CACHED_PER_CLASS) {
+			cachedCounts[index].decrementAndGet();
+			return;
+		}
+		pools.get(index).offer(buffer);
+	}
+
+	/*
+	 * 对应的级别，超过最大级别返回 -1
+	 */
+	private int classIndex(int size) {
+		if(size <= (1 << MIN_SHIFT)) {
+			return 0;
+		}
+		int shift = 32 - Integer.numberOfLeadingZeros(size - 1);
+		if(shift > MAX_SHIFT) {
+			return -1;
+		}
+		return shift - MIN_SHIFT;
+	}
+
+	public long getAllocateCount() {
+		return allocateCount.get();
+	}
+
+	public long getReuseCount() {
+		return reuseCount.get();
+	}
+}
@@ -0,0 +1,87 @@
+package org.inchain.net;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 已序列化好的完整消息（消息头 + 内容），放在池化的 direct buffer 里
+ * 广播时只序列化一次，每个节点的发送队列通过 {@link #duplicate()} 拿到各自独立读位置的只读视图，共享同一块内存
+ * 引用计数归零后缓冲区归还到内存池，创建者持有一个引用，用完必须调用 {@link #release()}
+ * @author ln
+ *
+ */
+public class MessageFrame {
+
+	private final String command;
+	//可写的原始缓冲区，只用来归还到内存池
+	private final ByteBuffer buffer;
+	//只读视图，所有节点共享
+	private final ByteBuffer readOnly;
+	private final DirectBufferPool pool;
+	private final AtomicInteger refCount = new AtomicInteger(1);
+
+	/**
+	 * @param command	消息命令
+	 * @param buffer	已写好并 flip 的缓冲区
+	 * @param pool		缓冲区所属的内存池
+	 */
+	public MessageFrame(String command, ByteBuffer buffer, DirectBufferPool pool) {
+		this.command = command;
+		this.buffer = buffer;
+		this.readOnly = buffer.asReadOnlyBuffer();
+		this.pool = pool;
+	}
+
+	/**
+	 * 共享内容的只读视图，读位置互不影响
+	 * @return ByteBuffer
+	 */
+	public ByteBuffer duplicate() {
+		return readOnly.duplicate();
+	}
+
+	/**
+	 * 增加一个引用，放入发送队列之前调用
+	 * @return MessageFrame
+	 */
+	public MessageFrame retain() {
+		for (;;) {
+			int count = refCount.get();
+			if(count <= 0) {
+				throw new IllegalStateException("消息缓冲区已释放");
+			}
+			if(refCount.compareAndSet(count, count + 1)) {
+				return this;
+			}
+		}
+	}
+
+	/**
+	 * 释放一个引用，最后一个引用释放时缓冲区归还内存池
+	 */
+	public void release() {
+		int count = refCount.decrementAndGet();
+		if(count == 0) {
+			pool.release(buffer);
+		} else if(count < 0) {
+			throw new IllegalStateException("消息缓冲区重复释放");
+		}
+	}
+
+	/**
+	 * 消息总长度，包括消息头
+	 * @return int
+	 */
+	public int length() {
+		return readOnly.remaining();
+	}
+
+	public String getCommand() {
+		return command;
+	}
+
+	@Override
+	public String toString() {
+		return "MessageFrame [command=" + command + ", length=" + length() + ", refCount=" + refCount.get() + "]";
+	}
+}
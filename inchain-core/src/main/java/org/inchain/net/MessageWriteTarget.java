@@ -6,5 +6,24 @@ public interface MessageWriteTarget {
 	
     void writeBytes(byte[] message) throws IOException;
     
+    /**
+     * 发送已序列化好的消息帧，发送队列持有一个引用，发送完成或者连接关闭后释放
+     * @param frame
+     * @throws IOException
+     */
+    void writeFrame(MessageFrame frame) throws IOException;
+    
+    /**
+     * 暂停或恢复读取连接上的数据，接收的消息处理不过来时暂停
+     * @param paused
+     */
+    void setReadingPaused(boolean paused);
+    
+    /**
+     * 发送队列里还没有写入网络的字节数，连续发送大量数据时用来做流量控制
+     * @return long
+     */
+    long getPendingWriteBytes();
+    
     void closeConnection();
 }
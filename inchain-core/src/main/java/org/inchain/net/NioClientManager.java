@@ -5,20 +5,19 @@ import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.nio.channels.ClosedChannelException;
 import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
-import java.nio.channels.spi.SelectorProvider;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
-import java.util.Iterator;
-import java.util.Queue;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Future;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.inchain.Configure;
 import org.inchain.core.Peer;
@@ -33,8 +32,9 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
 /**
- * A class which manages a set of client connections. Uses Java NIO to select network events and processes them in a
- * single network processing thread.
+ * A class which manages a set of client connections. Uses Java NIO to select network events.
+ * 一个 boss 循环只负责接受被动连接，N 个 worker 循环负责连接的建立和读写，新连接轮流分配到各个 worker
+ * 消息的校验和反序列化在 {@link org.inchain.core.PeerSocketHandler} 里交给解码线程池，不占用 selector 线程
  */
 @Service
 public class NioClientManager implements ClientConnectionManager {
@@ -45,7 +45,12 @@ public class NioClientManager implements ClientConnectionManager {
     @Autowired
     private NetworkParams network;
     
-    private Selector selector;
+    //接受被动连接的循环
+    private NioEventLoop bossLoop;
+    //负责连接读写的循环
+    private final NioEventLoop[] workerLoops;
+    //下一个分配连接的 worker
+    private final AtomicInteger nextWorker = new AtomicInteger();
     
     //被动连接监听
     private NewInConnectionListener newInConnectionListener;
@@ -56,8 +61,12 @@ public class NioClientManager implements ClientConnectionManager {
     
     public NioClientManager() {
     	try {
-            selector = SelectorProvider.provider().openSelector();
+    		workerLoops = new NioEventLoop[Math.max(Configure.NET_WORKER_THREADS, 1)];
+    		for (int i = 0; i < workerLoops.length; i++) {
+    			workerLoops[i] = new NioEventLoop("NioWorker-" + i, workerHandler);
+			}
             if(this.isServer) {
+            	bossLoop = new NioEventLoop("NioBoss", bossHandler);
 	            // 打开服务器套接字通道  
 	            serverSocketChannel = ServerSocketChannel.open();  
 	            // 服务器配置为非阻塞  
@@ -66,8 +75,8 @@ public class NioClientManager implements ClientConnectionManager {
 	            serverSocket = serverSocketChannel.socket();  
 	            // 进行服务的绑定  
 	            serverSocket.bind(new InetSocketAddress(Configure.PORT));  
-	            // 注册到selector，等待连接  
-	            serverSocketChannel.register(selector, SelectionKey.OP_ACCEPT);  
+	            // 注册到 boss 循环的 selector，等待连接  
+	            serverSocketChannel.register(bossLoop.getSelector(), SelectionKey.OP_ACCEPT);  
 	            log.info("Server Started on port {}", Configure.PORT);
             }
         } catch (IOException e) {
@@ -83,91 +92,129 @@ public class NioClientManager implements ClientConnectionManager {
 
         PendingConnect(SocketChannel sc, StreamConnection connection) { this.sc = sc; this.connection = connection;}
     }
-    final Queue<PendingConnect> newConnectionChannels = new LinkedBlockingQueue<PendingConnect>();
 
     // Added to/removed from by the individual ConnectionHandler's, thus must by synchronized on its own.
     private final Set<ConnectionHandler> connectedHandlers = Collections.synchronizedSet(new HashSet<ConnectionHandler>());
 
-    // Handle a SelectionKey which was selected
-    private void handleKey(SelectionKey key) throws IOException {
-        // We could have a !isValid() key here if the connection is already closed at this point
-        if (key.isValid() && key.isConnectable()) { // ie a client connection which has finished the initial connect process
-            // Create a ConnectionHandler and hook everything together
-            PendingConnect data = (PendingConnect) key.attachment();
-            StreamConnection connection = data.connection;
-            SocketChannel sc = (SocketChannel) key.channel();
-            ConnectionHandler handler = new ConnectionHandler(connection, key, connectedHandlers);
-            try {
-                if (sc.finishConnect()) {
-                	if(log.isDebugEnabled()) {
-                		log.debug("Connected to {}", sc.socket().getRemoteSocketAddress());
-                	}
-                    key.interestOps((key.interestOps() | SelectionKey.OP_READ) & ~SelectionKey.OP_CONNECT).attach(handler);
-                    connection.connectionOpened();
-                } else {
-                    log.warn("Failed to connect to {}", sc.socket().getRemoteSocketAddress());
-                    handler.closeConnection(); // Failed to connect for some reason
-                }
-            } catch (Exception e) {
-                // If e is a CancelledKeyException, there is a race to get to interestOps after finishConnect() which
-                // may cause this. Otherwise it may be any arbitrary kind of connection failure.
-                // Calling sc.socket().getRemoteSocketAddress() here throws an exception, so we can only log the error itself
-                log.warn("Failed connect to {} with exception: {}", connection, e.getMessage());
-                handler.closeConnection();
-            }
-        } else {
-        	ConnectionHandler handler = ((ConnectionHandler)key.attachment());
-            if (handler == null) {
-            	if(key.isValid() && key.isAcceptable()) {
-	            	ServerSocketChannel sc = (ServerSocketChannel) key.channel();
-	            	SocketChannel socketChannel = sc.accept();
-	            	
-	            	if(newInConnectionListener == null || !newInConnectionListener.allowConnection((InetSocketAddress)socketChannel.getRemoteAddress())) {
-	            		log.info("refush connection on " + socketChannel.getRemoteAddress());
-	            		socketChannel.close();
-	            		return;
-	            	}
-	            	
-                    // 配置为非阻塞  
-            		socketChannel.configureBlocking(false);
-            		SelectionKey newKey = socketChannel.register(selector, SelectionKey.OP_READ);
-//            		key.cancel();
-            		
-            		Peer peer = new Peer(network, new PeerAddress((InetSocketAddress)socketChannel.getRemoteAddress())) {
-            			@Override
-            			public void connectionOpened() {
-            				super.connectionOpened();
-            			}
-                		@Override
-                		public void connectionClosed() {
-                			if(newInConnectionListener != null) 
-                				newInConnectionListener.connectionClosed(this);
-                		}
-                	};
-            		handler = new ConnectionHandler(peer, newKey, socketChannel, connectedHandlers);
-            		newKey.attach(handler);
-		      		peer.connectionOpened();
-            		
-            		if(newInConnectionListener != null) 
-        				newInConnectionListener.connectionOpened(peer);
-                    
-                    return;
-                }
-            }
-            
-        	// Process bytes read
-        	ConnectionHandler.handleKey(key);
-        }
+    /*
+     * 轮流选择 worker
+     */
+    private NioEventLoop nextWorker() {
+    	return workerLoops[(nextWorker.getAndIncrement() & Integer.MAX_VALUE) % workerLoops.length];
     }
+    
+    /*
+     * boss 循环只处理被动连接，接受之后交给 worker 注册读事件
+     */
+    private final NioEventLoop.KeyHandler bossHandler = new NioEventLoop.KeyHandler() {
+		@Override
+		public void handleKey(NioEventLoop loop, SelectionKey key) throws IOException {
+			if(!key.isValid() || !key.isAcceptable()) {
+				return;
+			}
+        	ServerSocketChannel sc = (ServerSocketChannel) key.channel();
+        	final SocketChannel socketChannel = sc.accept();
+        	if(socketChannel == null) {
+        		return;
+        	}
+        	
+        	if(newInConnectionListener == null || !newInConnectionListener.allowConnection((InetSocketAddress)socketChannel.getRemoteAddress())) {
+        		log.info("refush connection on " + socketChannel.getRemoteAddress());
+        		socketChannel.close();
+        		return;
+        	}
+        	
+            // 配置为非阻塞  
+    		socketChannel.configureBlocking(false);
+    		
+    		final NioEventLoop worker = nextWorker();
+    		worker.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						registerInbound(worker, socketChannel);
+					} catch (IOException e) {
+						log.warn("注册被动连接出错 {}", e.getMessage());
+						try {
+							socketChannel.close();
+						} catch (IOException e1) {
+						}
+					}
+				}
+			});
+		}
+	};
+	
+	/*
+	 * 被动连接注册到 worker 的 selector，运行在 worker 线程里
+	 */
+	private void registerInbound(NioEventLoop worker, SocketChannel socketChannel) throws IOException {
+		SelectionKey newKey = socketChannel.register(worker.getSelector(), SelectionKey.OP_READ);
+		
+		Peer peer = new Peer(network, new PeerAddress((InetSocketAddress)socketChannel.getRemoteAddress())) {
+			@Override
+			public void connectionOpened() {
+				super.connectionOpened();
+			}
+    		@Override
+    		public void connectionClosed() {
+    			super.connectionClosed();
+    			if(newInConnectionListener != null) 
+    				newInConnectionListener.connectionClosed(this);
+    		}
+    	};
+    	ConnectionHandler handler = new ConnectionHandler(peer, newKey, socketChannel, connectedHandlers);
+		newKey.attach(handler);
+  		peer.connectionOpened();
+		
+		if(newInConnectionListener != null) 
+			newInConnectionListener.connectionOpened(peer);
+	}
+
+    // Handle a SelectionKey which was selected
+	private final NioEventLoop.KeyHandler workerHandler = new NioEventLoop.KeyHandler() {
+		@Override
+		public void handleKey(NioEventLoop loop, SelectionKey key) throws IOException {
+	        // We could have a !isValid() key here if the connection is already closed at this point
+	        if (key.isValid() && key.isConnectable()) { // ie a client connection which has finished the initial connect process
+	            // Create a ConnectionHandler and hook everything together
+	            PendingConnect data = (PendingConnect) key.attachment();
+	            StreamConnection connection = data.connection;
+	            SocketChannel sc = (SocketChannel) key.channel();
+	            ConnectionHandler handler = new ConnectionHandler(connection, key, connectedHandlers);
+	            try {
+	                if (sc.finishConnect()) {
+	                	if(log.isDebugEnabled()) {
+	                		log.debug("Connected to {}", sc.socket().getRemoteSocketAddress());
+	                	}
+	                    key.interestOps((key.interestOps() | SelectionKey.OP_READ) & ~SelectionKey.OP_CONNECT).attach(handler);
+	                    connection.connectionOpened();
+	                } else {
+	                    log.warn("Failed to connect to {}", sc.socket().getRemoteSocketAddress());
+	                    handler.closeConnection(); // Failed to connect for some reason
+	                }
+	            } catch (Exception e) {
+	                // If e is a CancelledKeyException, there is a race to get to interestOps after finishConnect() which
+	                // may cause this. Otherwise it may be any arbitrary kind of connection failure.
+	                // Calling sc.socket().getRemoteSocketAddress() here throws an exception, so we can only log the error itself
+	                log.warn("Failed connect to {} with exception: {}", connection, e.getMessage());
+	                handler.closeConnection();
+	            }
+	        } else if (key.attachment() instanceof ConnectionHandler) {
+	        	// Process bytes read
+	        	ConnectionHandler.handleKey(key);
+	        }
+	    }
+	};
 
 	@Override
     public void start() {
-//    	executor.scheduleWithFixedDelay(this, 0, 1, TimeUnit.SECONDS);
-    	new Thread() {
-    		public void run() {
-    			NioClientManager.this.run();
-    		};
-    	}.start();
+		for (NioEventLoop worker : workerLoops) {
+			worker.start(Thread.NORM_PRIORITY);
+		}
+		if(bossLoop != null) {
+			bossLoop.start(Thread.MIN_PRIORITY);
+		}
     }
 
 	@Override
@@ -177,61 +224,16 @@ public class NioClientManager implements ClientConnectionManager {
     	triggerShutdown();
     	
         try {
-        	serverSocket.close();
-        	serverSocketChannel.close();
+        	if(serverSocket != null) {
+        		serverSocket.close();
+        		serverSocketChannel.close();
+        	}
         } catch (Exception e) {
         	log.warn("Error closing serverSocket", e);
 		}
         log.info("stoped service");
     }
 
-    public void run() {
-        try {
-            Thread.currentThread().setPriority(Thread.MIN_PRIORITY);
-            
-            while (!executor.isShutdown()) {
-                PendingConnect conn;
-                while ((conn = newConnectionChannels.poll()) != null) {
-                    try {
-                        SelectionKey key = conn.sc.register(selector, SelectionKey.OP_CONNECT);
-                        key.attach(conn);
-                    } catch (ClosedChannelException e) {
-                        log.warn("SocketChannel was closed before it could be registered");
-                    }
-                }
-
-                selector.select();
-
-                Iterator<SelectionKey> keyIterator = selector.selectedKeys().iterator();
-                while (keyIterator.hasNext()) {
-                    SelectionKey key = keyIterator.next();
-                    keyIterator.remove();
-                    handleKey(key);
-                }
-            }
-        } catch (Exception e) {
-            log.warn("Error trying to open/read from connection: ", e);
-        } finally {
-            
-            // Go through and close everything, without letting IOExceptions get in our way
-            for (SelectionKey key : selector.keys()) {
-                try {
-                    key.channel().close();
-                } catch (IOException e) {
-                    log.warn("Error closing channel", e);
-                }
-                key.cancel();
-                if (key.attachment() instanceof ConnectionHandler)
-                    ConnectionHandler.handleKey(key); // Close connection if relevant
-            }
-            try {
-            	selector.close();
-            } catch (IOException e) {
-            	log.warn("Error closing client manager selector", e);
-            }
-        }
-    }
-
 	@Override
     public Future<Seed> openConnection(InetSocketAddress address, StreamConnection connection) {
         if (executor.isShutdown())
@@ -239,13 +241,23 @@ public class NioClientManager implements ClientConnectionManager {
         // address not null
         Utils.checkNotNull(address);
         try {
-            SocketChannel sc = SocketChannel.open();
+            final SocketChannel sc = SocketChannel.open();
             sc.configureBlocking(false);
             sc.socket().setReuseAddress(true);
             sc.connect(address);
-            PendingConnect data = new PendingConnect(sc, connection);
-            newConnectionChannels.offer(data);
-            selector.wakeup();
+            final PendingConnect data = new PendingConnect(sc, connection);
+            final NioEventLoop worker = nextWorker();
+            worker.execute(new Runnable() {
+				@Override
+				public void run() {
+                    try {
+                        SelectionKey key = sc.register(worker.getSelector(), SelectionKey.OP_CONNECT);
+                        key.attach(data);
+                    } catch (ClosedChannelException e) {
+                        log.warn("SocketChannel was closed before it could be registered");
+                    }
+				}
+			});
             return data.future;
         } catch (Throwable e) {
             return null;
@@ -253,7 +265,12 @@ public class NioClientManager implements ClientConnectionManager {
     }
 
     public void triggerShutdown() {
-        selector.wakeup();
+    	if(bossLoop != null) {
+    		bossLoop.shutdown();
+    	}
+    	for (NioEventLoop worker : workerLoops) {
+    		worker.shutdown();
+		}
     }
 
     @Override
@@ -273,6 +290,19 @@ public class NioClientManager implements ClientConnectionManager {
         }
     }
     
+    /**
+     * 网络事件循环，第一个是 boss（启动了本地监听时），其余是 worker，用于查看各循环的统计信息
+     * @return List<NioEventLoop>
+     */
+    public List<NioEventLoop> getEventLoops() {
+    	List<NioEventLoop> loops = new ArrayList<NioEventLoop>();
+    	if(bossLoop != null) {
+    		loops.add(bossLoop);
+    	}
+    	loops.addAll(Arrays.asList(workerLoops));
+    	return loops;
+    }
+    
     public void setNewInConnectionListener(NewInConnectionListener newInConnectionListener) {
 		this.newInConnectionListener = newInConnectionListener;
 	}
@@ -0,0 +1,251 @@
+package org.inchain.net;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.spi.SelectorProvider;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 网络事件循环，一个线程加一个 selector
+ * 通道的注册等需要在 selector 线程里做的操作，通过 {@link #execute(Runnable)} 放入任务队列，由循环线程在 select 之前执行
+ * 统计任务队列深度、单次循环耗时、任务排队延迟，用于观察网络线程是否跟得上
+ * @author ln
+ *
+ */
+public class NioEventLoop implements Executor {
+
+	private static final Logger log = LoggerFactory.getLogger(NioEventLoop.class);
+
+	private final String name;
+	private final Selector selector;
+	private final KeyHandler keyHandler;
+	private final Queue<TimedTask> tasks = new ConcurrentLinkedQueue<TimedTask>();
+	//任务队列深度，ConcurrentLinkedQueue 的 size 需要遍历，这里单独计数
+	private final AtomicInteger pendingTasks = new AtomicInteger();
+
+	private volatile boolean running;
+	private Thread thread;
+
+	//循环次数
+	private final AtomicLong loopCount = new AtomicLong();
+	//处理就绪的key和任务的总耗时，纳秒
+	private final AtomicLong loopTime = new AtomicLong();
+	//最近一次、最大的单次循环耗时，纳秒
+	private volatile long lastLoopTime;
+	private volatile long maxLoopTime;
+	//任务从提交到开始执行的最大延迟，纳秒
+	private volatile long maxTaskDelay;
+	//处理的key数量
+	private final AtomicLong handledKeys = new AtomicLong();
+
+	/**
+	 * 就绪的 key 由这里处理，运行在循环线程里
+	 */
+	public interface KeyHandler {
+		void handleKey(NioEventLoop loop, SelectionKey key) throws IOException;
+	}
+
+	public NioEventLoop(String name, KeyHandler keyHandler) throws IOException {
+		this.name = name;
+		this.keyHandler = keyHandler;
+		this.selector = SelectorProvider.provider().openSelector();
+	}
+
+	/**
+	 * 启动循环线程
+	 */
+	public synchronized void start(int priority) {
+		if(thread != null) {
+			return;
+		}
+		running = true;
+		thread = new Thread(name) {
+			@Override
+			public void run() {
+				NioEventLoop.this.run();
+			}
+		};
+		thread.setPriority(priority);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * 停止循环，关闭所有通道
+	 */
+	public void shutdown() {
+		running = false;
+		selector.wakeup();
+	}
+
+	/**
+	 * 在循环线程里执行任务，当前就是循环线程则直接执行
+	 */
+	@Override
+	public void execute(Runnable task) {
+		if(Thread.currentThread() == thread) {
+			task.run();
+			return;
+		}
+		tasks.offer(new TimedTask(task));
+		pendingTasks.incrementAndGet();
+		selector.wakeup();
+	}
+
+	private void run() {
+		try {
+			while (running) {
+				selector.select();
+
+				long start = System.nanoTime();
+				runTasks();
+
+				Iterator<SelectionKey> keyIterator = selector.selectedKeys().iterator();
+				while (keyIterator.hasNext()) {
+					SelectionKey key = keyIterator.next();
+					keyIterator.remove();
+					handledKeys.incrementAndGet();
+					try {
+						keyHandler.handleKey(this, key);
+					} catch (IOException e) {
+						log.warn("{} 处理网络事件出错 {}", name, e.getMessage());
+					}
+				}
+
+				long time = System.nanoTime() - start;
+				lastLoopTime = time;
+				if(time > maxLoopTime) {
+					maxLoopTime = time;
+				}
+				loopTime.addAndGet(time);
+				loopCount.incrementAndGet();
+			}
+		} catch (Exception e) {
+			log.warn("{} 网络事件循环异常退出", name, e);
+		} finally {
+			//关闭所有通道，不让单个通道的异常影响其它通道
+			for (SelectionKey key : selector.keys()) {
+				try {
+					key.channel().close();
+				} catch (IOException e) {
+					log.warn("Error closing channel", e);
+				}
+				key.cancel();
+				if (key.attachment() instanceof ConnectionHandler)
+					ConnectionHandler.handleKey(key); // Close connection if relevant
+			}
+			try {
+				selector.close();
+			} catch (IOException e) {
+				log.warn("Error closing selector", e);
+			}
+		}
+	}
+
+	private void runTasks() {
+		TimedTask task;
+		while ((task = tasks.poll()) != null) {
+			pendingTasks.decrementAndGet();
+			long delay = System.nanoTime() - task.time;
+			if(delay > maxTaskDelay) {
+				maxTaskDelay = delay;
+			}
+			try {
+				task.task.run();
+			} catch (Exception e) {
+				log.warn("{} 执行网络任务出错", name, e);
+			}
+		}
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public Selector getSelector() {
+		return selector;
+	}
+
+	/**
+	 * 注册在该循环上的通道数
+	 * @return int
+	 */
+	public int getChannelCount() {
+		return selector.isOpen() ? selector.keys().size() : 0;
+	}
+
+	/**
+	 * 等待执行的任务数
+	 * @return int
+	 */
+	public int getPendingTaskCount() {
+		return pendingTasks.get();
+	}
+
+	public long getLoopCount() {
+		return loopCount.get();
+	}
+
+	public long getHandledKeyCount() {
+		return handledKeys.get();
+	}
+
+	/**
+	 * 最近一次循环的耗时，微秒
+	 * @return long
+	 */
+	public long getLastLoopMicros() {
+		return lastLoopTime / 1000;
+	}
+
+	/**
+	 * 最大的单次循环耗时，微秒
+	 * @return long
+	 */
+	public long getMaxLoopMicros() {
+		return maxLoopTime / 1000;
+	}
+
+	/**
+	 * 平均每次循环的耗时，微秒
+	 * @return long
+	 */
+	public long getAvgLoopMicros() {
+		long count = loopCount.get();
+		return count == 0 ? 0 : loopTime.get() / count / 1000;
+	}
+
+	/**
+	 * 任务从提交到执行的最大延迟，微秒
+	 * @return long
+	 */
+	public long getMaxTaskDelayMicros() {
+		return maxTaskDelay / 1000;
+	}
+
+	@Override
+	public String toString() {
+		return name + " [channels=" + getChannelCount() + ", pendingTasks=" + getPendingTaskCount() + ", loops=" + getLoopCount()
+			+ ", keys=" + getHandledKeyCount() + ", lastLoop=" + getLastLoopMicros() + "us, avgLoop=" + getAvgLoopMicros()
+			+ "us, maxLoop=" + getMaxLoopMicros() + "us, maxTaskDelay=" + getMaxTaskDelayMicros() + "us]";
+	}
+
+	private static class TimedTask {
+		private final Runnable task;
+		private final long time;
+
+		TimedTask(Runnable task) {
+			this.task = task;
+			this.time = System.nanoTime();
+		}
+	}
+}
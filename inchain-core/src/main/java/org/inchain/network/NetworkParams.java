@@ -1,6 +1,7 @@
 package org.inchain.network;
 
 import org.inchain.Configure;
+import org.inchain.crypto.Sha256Hash;
 import org.inchain.message.BlockHeader;
 import org.inchain.message.MessageSerializer;
 import org.inchain.store.BlockHeaderStore;
@@ -103,6 +104,23 @@ public abstract class NetworkParams {
         }
     }
     
+	/**
+	 * 内置的 assume-valid 区块hash，这个区块及之前的区块已被网络广泛确认，初始同步时可以不验证交易签名
+	 * 发布新版本时更新，没有时返回null
+	 * @return Sha256Hash
+	 */
+	public Sha256Hash getAssumeValidHash() {
+		return null;
+	}
+	
+	/**
+	 * 内置的 assume-valid 区块高度，没有时返回-1
+	 * @return long
+	 */
+	public long getAssumeValidHeight() {
+		return -1l;
+	}
+	
 	/**
 	 * 获取最新区块高度
 	 * @return long
@@ -1,6 +1,10 @@
 package org.inchain.rpc;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
 
 import org.codehaus.jettison.json.JSONArray;
 import org.codehaus.jettison.json.JSONException;
@@ -56,11 +60,36 @@ import org.springframework.stereotype.Service;
 public class RPCHanlder {
 	
 	private final static Logger log = LoggerFactory.getLogger(RPCHanlder.class);
+	
+	//只读的命令，可以并发执行，其它命令会修改钱包或者广播交易，按顺序逐个执行
+	private final static Set<String> READ_ONLY_COMMANDS = Collections.unmodifiableSet(new HashSet<String>(Arrays.asList(
+			"help", "getblockcount", "getbestblockheight", "getbestblockhash", "getblockhash", "getblockheader",
+			"getblock", "getforkblock", "getaccounts", "getbalance", "getcredit", "getaccountinfo", "gettx",
+			"gettransaction", "queryantifake", "querycirculations", "querycirculationcount", "querytransfers",
+			"querytransfercount", "queryantifakeowner", "getsubaccounts", "getsubaccountcount", "checksssubaccount",
+			"getaccountbyalias", "getaliasbyaccount", "getconsensus", "getconsensuscount", "getconsensusstatus",
+			"getpeers", "getcachestats", "getrpcstats", "getaddressbypubkey", "getblocks", "gettxs", "getbalances")));
+	
+	//一次批量获取的区块数上限，获取期间会挡住新区块的保存，不能太大
+	public final static int MAX_BATCH_BLOCKS = 100;
+	//批量命令、批量获取交易和余额的条数上限
+	public final static int MAX_BATCH_ITEMS = 1000;
 
 	@Autowired
 	private NetworkParams network;
 	@Autowired
 	private RPCService rpcService;
+	@Autowired
+	private RPCStatistics rpcStatistics;
+	
+	/**
+	 * 是否是只读的命令，不认识的命令按会修改钱包处理
+	 * @param command
+	 * @return boolean
+	 */
+	public static boolean isReadOnly(String command) {
+		return command != null && READ_ONLY_COMMANDS.contains(command);
+	}
 	
 	/**
 	 * 处理命令
@@ -78,6 +107,21 @@ public class RPCHanlder {
 		}
 	}
 
+	/**
+	 * 批量命令是否全部是只读的
+	 * @param commands
+	 * @return boolean
+	 */
+	public static boolean isReadOnly(JSONArray commands) {
+		for (int i = 0; i < commands.length(); i++) {
+			JSONObject commandInfos = commands.optJSONObject(i);
+			if(commandInfos != null && !isReadOnly(commandInfos.optString("command", null))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
 	public JSONObject hanlder(JSONObject commandInfos, JSONObject inputInfos) throws JSONException {
 		String command = commandInfos.getString("command");
 		
@@ -155,6 +199,37 @@ public class RPCHanlder {
 			return result;
 		}
 		
+		//通过高度范围批量获取完整的区块
+		case "getblocks": {
+			if(params.length() < 2) {
+				return new JSONObject().put("success", false).put("message", "缺少参数，命令用法：getblocks [start height] [end height]");
+			}
+			long startHeight;
+			long endHeight;
+			try {
+				startHeight = Long.parseLong(params.getString(0));
+				endHeight = Long.parseLong(params.getString(1));
+			} catch (NumberFormatException e) {
+				return new JSONObject().put("success", false).put("message", "高度不正确");
+			}
+			if(startHeight < 0 || endHeight < startHeight) {
+				return new JSONObject().put("success", false).put("message", "高度范围不正确");
+			}
+			if(endHeight - startHeight >= MAX_BATCH_BLOCKS) {
+				return new JSONObject().put("success", false).put("message", "一次最多获取 " + MAX_BATCH_BLOCKS + " 个区块");
+			}
+			
+			try {
+				result.put("blocks", rpcService.getBlocks(startHeight, endHeight));
+				result.put("success", true);
+			} catch (VerificationException e) {
+				//开始高度已被裁剪
+				result.put("success", false);
+				result.put("message", e.getMessage());
+			}
+			return result;
+		}
+		
 		//通过hash获取一个分叉快
 		case "getforkblock": {
 			result.put("success", true);
@@ -282,6 +357,21 @@ public class RPCHanlder {
 			return result;
 		}
 		
+		//批量获取地址的余额
+		case "getbalances": {
+			if(params.length() == 0) {
+				return new JSONObject().put("success", false).put("message", "缺少参数，命令用法：getbalances [address] ...");
+			}
+			if(params.length() > MAX_BATCH_ITEMS) {
+				return new JSONObject().put("success", false).put("message", "一次最多获取 " + MAX_BATCH_ITEMS + " 个地址");
+			}
+			
+			result.put("success", true);
+			result.put("balances", rpcService.getBalances(params));
+			
+			return result;
+		}
+		
 		//获取账户信用
 		case "getcredit": {
 			try {
@@ -349,6 +439,21 @@ public class RPCHanlder {
 			return result;
 		}
 		
+		//通过hash列表批量获取交易详情
+		case "gettxs": {
+			if(params.length() == 0) {
+				return new JSONObject().put("success", false).put("message", "缺少参数，命令用法：gettxs [tx hash] ...");
+			}
+			if(params.length() > MAX_BATCH_ITEMS) {
+				return new JSONObject().put("success", false).put("message", "一次最多获取 " + MAX_BATCH_ITEMS + " 笔交易");
+			}
+			
+			result.put("success", true);
+			result.put("txs", rpcService.getTxs(params));
+			
+			return result;
+		}
+		
 		//获取账户交易
 		case "gettransaction": {
 			String address = null;
@@ -831,6 +936,22 @@ public class RPCHanlder {
 			return result;
 		}
 		
+		//获取存储缓存的命中统计
+		case "getcachestats": {
+			result = rpcService.getCacheStats();
+			
+			result.put("success", true);
+			return result;
+		}
+		
+		//获取rpc命令的耗时统计
+		case "getrpcstats": {
+			result = rpcStatistics.toJSON();
+			
+			result.put("success", true);
+			return result;
+		}
+		
 		//通过公钥得到地址
 		case "getaddressbypubkey": {
 			String pubkey = params.getString(0);
@@ -881,9 +1002,11 @@ public class RPCHanlder {
 		sb.append("  getblockhash                    通过高度获取区块hash\n");
 		sb.append("  getblockheader [param] (block hash or height)   通过区块的hash或者高度获取区块的头信息\n");
 		sb.append("  getblock [param] (block hash or height)         通过区块的hash或者高度获取区块的完整信息\n");
+		sb.append("  getblocks [start height] [end height]           通过高度范围批量获取完整的区块，一次最多100个\n");
 		sb.append("\n");
 		sb.append(" --- 帐户相关 --- \n");
 		sb.append("  getbalance                      获取账户的余额\n");
+		sb.append("  getbalances [address] ...       批量获取地址的余额\n");
 		sb.append("  getcredit                       获取账户的信用\n");
 		sb.append("  getaccountinfo                  获取账户的详细信息\n");
 		sb.append("  gettransaction                  获取帐户的交易记录\n");
@@ -893,6 +1016,7 @@ public class RPCHanlder {
 		sb.append("\n");
 		sb.append(" --- 交易相关 --- \n");
 		sb.append("  gettx [param] (tx hash)             通过交易hash获取一条交易详情\n");
+		sb.append("  gettxs [tx hash] ...                通过交易hash批量获取交易详情\n");
 		sb.append("  send [to address] [money] [fee]     转账\n");
 		sb.append("  broadcast [txcontent]               广播交易\n");
 		sb.append("\n");
@@ -905,6 +1029,8 @@ public class RPCHanlder {
 		sb.append("\n");
 		sb.append(" --- 节点相关 --- \n");
 		sb.append("  getpeers                        获取连接节点信息\n");
+		sb.append("  getcachestats                   获取存储缓存的命中统计\n");
+		sb.append("  getrpcstats                     获取rpc命令的耗时统计\n");
 		sb.append("\n");
 		sb.append(" --- 业务相关 --- \n");
 		sb.append("  createproduct [productinfo] [password]                               认证账户创建商品[仅适用于认证账户]\n");
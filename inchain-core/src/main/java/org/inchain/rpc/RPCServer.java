@@ -9,10 +9,22 @@ import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
 import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.codehaus.jettison.json.JSONArray;
 import org.codehaus.jettison.json.JSONException;
 import org.codehaus.jettison.json.JSONObject;
 import org.inchain.Configure;
@@ -41,6 +53,11 @@ import org.springframework.stereotype.Service;
  * 
  * ---交易相关 TODO ···
  * 
+ * 连接认证通过后保持打开，客户端可以在同一个连接上一行一个json连续发送多条命令，不必等待上一条的响应，响应按命令的发送顺序逐行返回
+ * 一行也可以是命令数组，作为一个批量命令执行，返回对应的结果数组
+ * 只读命令在读线程池里并发执行，会修改钱包的命令在单独的线程里逐个执行，并且执行完之前不再读取该连接后续的命令，需要输入密码的交互仍按原来的方式进行
+ * 每个命令的耗时记录在 {@link RPCStatistics}，通过 getrpcstats 查看
+ * 
  * @author ln
  *
  */
@@ -51,22 +68,38 @@ public class RPCServer implements Server {
 	
 	public final static String RPC_USER_KEY = "rpc_user";
 	public final static String RPC_PASSWORD_KEY = "rpc_password";
+	//读线程数，默认为cpu核数
+	public final static String RPC_READ_THREADS_KEY = "rpc_read_threads";
+	//最大连接数
+	public final static String RPC_MAX_CONNECTIONS_KEY = "rpc_max_connections";
+	//连接空闲多久关闭，秒
+	public final static String RPC_IDLE_TIMEOUT_KEY = "rpc_idle_timeout";
+	
+	private final static int DEFAULT_MAX_CONNECTIONS = 32;
+	private final static int DEFAULT_IDLE_TIMEOUT = 300;
+	//单个连接最多同时执行的命令数，超过之后等前面的响应写回再读取
+	private final static int MAX_PIPELINED_COMMANDS = 64;
+	//批量命令在统计里的名称
+	private final static String BATCH_COMMAND = "batch";
 	
 	//rpc参数配置
 	private final static Properties property = new Properties();
 
-	/**
-	 * RPC服务启动方法，启动之后监听本地端口 {@link org.inchain.Configure.RPC_SERVER_PORT}提供服务
-	 * 
-	 */
-	private static ExecutorService executor = Executors.newSingleThreadExecutor();
+	//连接线程池，每个连接一个线程负责读取命令和按顺序写回响应
+	private ThreadPoolExecutor connectionExecutor;
+	//只读命令线程池
+	private ExecutorService readExecutor;
+	//修改钱包的命令，逐个执行
+	private ExecutorService writeExecutor;
 
 	@Autowired
 	private RPCHanlder rpcHanlder;
+	@Autowired
+	private RPCStatistics rpcStatistics;
 	
 	private ServerSocket server;
 	
-	private boolean isRunning = false;
+	private volatile boolean isRunning = false;
 	
 	public void startSyn() {
 		Thread t = new Thread() {
@@ -85,18 +118,44 @@ public class RPCServer implements Server {
 		log.info("rpc service started");
 	}
 
+	/**
+	 * RPC服务启动方法，启动之后监听本地端口 {@link org.inchain.Configure.RPC_SERVER_PORT}提供服务
+	 * 
+	 */
 	public void start() throws IOException {
 		
 		init();
-		log.info("will start rpc service on port {}", Integer.parseInt(property.getProperty("rpc_port")));
+		
+		int readThreads = getIntProperty(RPC_READ_THREADS_KEY, Runtime.getRuntime().availableProcessors());
+		int maxConnections = getIntProperty(RPC_MAX_CONNECTIONS_KEY, DEFAULT_MAX_CONNECTIONS);
+		final int idleTimeout = getIntProperty(RPC_IDLE_TIMEOUT_KEY, DEFAULT_IDLE_TIMEOUT);
+		
+		connectionExecutor = new ThreadPoolExecutor(0, maxConnections, 60l, TimeUnit.SECONDS, 
+				new SynchronousQueue<Runnable>(), new NamedThreadFactory("rpc connection"));
+		readExecutor = Executors.newFixedThreadPool(readThreads, new NamedThreadFactory("rpc read"));
+		writeExecutor = Executors.newSingleThreadExecutor(new NamedThreadFactory("rpc write"));
+		
+		log.info("will start rpc service on port {}, read threads {}, max connections {}", 
+				Integer.parseInt(property.getProperty("rpc_port")), readThreads, maxConnections);
 		server = new ServerSocket(Integer.parseInt(property.getProperty("rpc_port")));
 		log.debug("rpc service started");
 		isRunning = true;
 		while (isRunning) {
-			// 1.监听客户端的TCP连接，接到TCP连接后将其封装成task，由线程池执行
+			// 1.监听客户端的TCP连接，接到TCP连接后交给连接线程池处理
+			Socket socket = null;
 			try {
-				executor.execute(new RPCRequestCertification(server.accept()));
+				socket = server.accept();
+				socket.setSoTimeout(idleTimeout * 1000);
+				socket.setTcpNoDelay(true);
+				connectionExecutor.execute(new RPCConnection(socket));
+			} catch (RejectedExecutionException e) {
+				log.warn("rpc 连接数已达上限 {}，拒绝连接", maxConnections);
+				closeQuietly(socket);
 			} catch (Exception e) {
+				closeQuietly(socket);
+				if(!isRunning) {
+					break;
+				}
 				try {
 					Thread.sleep(100l);
 				} catch (InterruptedException e1) {
@@ -106,17 +165,22 @@ public class RPCServer implements Server {
 	}
 
 	/*
-	 * rpc请求认证
+	 * rpc连接，认证通过之后循环读取命令，直到客户端关闭连接或者空闲超时
 	 * @author ln
 	 *
 	 */
-	class RPCRequestCertification implements Runnable {
+	class RPCConnection implements Runnable {
 
 		private Socket socket;
 		private BufferedReader br;
 		private PrintWriter pw;
 		
-		public RPCRequestCertification(Socket socket) throws IOException {
+		//已读取还没写回响应的命令，按读取顺序
+		private final ArrayDeque<PendingCommand> pendings = new ArrayDeque<PendingCommand>();
+		//队列中修改钱包的命令数，不为0时不再读取后续命令
+		private int pendingWrites;
+		
+		public RPCConnection(Socket socket) throws IOException {
 			this.socket = socket;
 			this.br = new BufferedReader(new InputStreamReader(socket.getInputStream(), "utf-8"));
 			this.pw = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), "utf-8"));
@@ -140,22 +204,9 @@ public class RPCServer implements Server {
 				//认证通过，处理业务逻辑
 				writeMessage(true, "ok");
 				
-				JSONObject commandInfos = readMessage();
-				if(commandInfos == null) {
-					writeMessage(false, "rpc命令获取失败");
-					return;
-				}
-				
-				JSONObject result = rpcHanlder.hanlder(commandInfos);
-				
-				if(result.has("needInput") && result.getBoolean("needInput")) {
-					writeMessage(result);
-					JSONObject inputInfos = readMessage();
-					result = rpcHanlder.hanlder(commandInfos, inputInfos);
-					writeMessage(result);
-				} else {
-					writeMessage(result);
-				}
+				processCommands();
+			} catch (SocketTimeoutException e) {
+				log.debug("rpc 连接空闲超时，关闭连接");
 			} catch (JSONException | IOException e) {
 				try {
 					writeMessage(false, "rpc命令错误,详情:" + e.getMessage());
@@ -163,6 +214,11 @@ public class RPCServer implements Server {
 					e1.printStackTrace();
 				}
 			} finally {
+				for (PendingCommand pending : pendings) {
+					if(pending.future != null) {
+						pending.future.cancel(false);
+					}
+				}
 				try {
 					close();
 				} catch (IOException e) {
@@ -171,6 +227,106 @@ public class RPCServer implements Server {
 			}
 		}
 		
+		/*
+		 * 读取命令交给线程池执行，按顺序写回响应
+		 * 输入流里还有已到达的命令时继续读取，这样连续发送的命令可以同时执行
+		 */
+		private void processCommands() throws JSONException, IOException {
+			while (isRunning) {
+				if(pendings.isEmpty()) {
+					String line = br.readLine();
+					if(line == null) {
+						return;
+					}
+					submit(line);
+				} else if(pendingWrites == 0 && pendings.size() < MAX_PIPELINED_COMMANDS && br.ready()) {
+					String line = br.readLine();
+					if(line == null) {
+						break;
+					}
+					submit(line);
+				} else {
+					writeResult(pendings.poll());
+				}
+			}
+			//客户端已关闭输入，把已读取的命令执行完
+			while (!pendings.isEmpty()) {
+				writeResult(pendings.poll());
+			}
+		}
+		
+		private void submit(String line) {
+			if(StringUtil.isEmpty(line.trim())) {
+				return;
+			}
+			JSONObject commandInfos = null;
+			JSONArray batchCommands = null;
+			try {
+				if(line.trim().startsWith("[")) {
+					batchCommands = new JSONArray(line);
+				} else {
+					commandInfos = new JSONObject(line);
+				}
+			} catch (JSONException e) {
+				pendings.add(new PendingCommand(null, false, null, "解析rpc命令失败"));
+				return;
+			}
+			String command;
+			boolean readOnly;
+			if(batchCommands != null) {
+				command = BATCH_COMMAND;
+				readOnly = RPCHanlder.isReadOnly(batchCommands);
+			} else {
+				command = commandInfos.optString("command", null);
+				readOnly = RPCHanlder.isReadOnly(command);
+			}
+			ExecutorService executor = readOnly ? readExecutor : writeExecutor;
+			try {
+				Callable<Object> task = batchCommands != null ? new BatchTask(batchCommands) : new CommandTask(command, commandInfos, null);
+				Future<Object> future = executor.submit(task);
+				pendings.add(new PendingCommand(commandInfos, readOnly, future, null));
+				if(!readOnly) {
+					pendingWrites++;
+				}
+			} catch (RejectedExecutionException e) {
+				pendings.add(new PendingCommand(commandInfos, readOnly, null, "rpc服务已停止"));
+			}
+		}
+		
+		/*
+		 * 等待命令执行完并写回响应，需要输入的命令在这里读取输入后继续执行
+		 */
+		private void writeResult(PendingCommand pending) throws JSONException, IOException {
+			if(!pending.readOnly) {
+				pendingWrites--;
+			}
+			if(pending.future == null) {
+				writeMessage(false, pending.errorMessage);
+				return;
+			}
+			Object result = waitResult(pending.future);
+			while(result instanceof JSONObject && ((JSONObject) result).optBoolean("needInput")) {
+				writeMessage((JSONObject) result);
+				JSONObject inputInfos = readMessage();
+				String command = pending.commandInfos.optString("command", null);
+				result = waitResult(writeExecutor.submit(new CommandTask(command, pending.commandInfos, inputInfos)));
+			}
+			writeMessage(result, pendings.isEmpty() || !pendings.peek().isDone());
+		}
+		
+		private Object waitResult(Future<Object> future) throws JSONException {
+			try {
+				return future.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return new JSONObject().put("success", false).put("message", "rpc服务已停止");
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause() == null ? e : e.getCause();
+				log.error("执行rpc命令出错", cause);
+				return new JSONObject().put("success", false).put("message", "rpc命令错误,详情:" + cause.getMessage());
+			}
+		}
+		
 		private JSONObject readMessage() throws JSONException, IOException {
 			return new JSONObject(br.readLine());
 		}
@@ -183,17 +339,17 @@ public class RPCServer implements Server {
 		}
 		
 		private void writeMessage(JSONObject result) throws JSONException {
-//			try {
-//				System.out.println("================");
-//				System.out.println(new String(result.toString()));
-//				System.out.println("================");
-//				pw.println(new String(result.toString().getBytes("utf-8")));
-//				pw.flush();
-//			} catch (UnsupportedEncodingException e) {
-//				e.printStackTrace();
-//			}
+			writeMessage(result, true);
+		}
+		
+		/*
+		 * 后面还有已执行完的响应时先不刷新，一起写出
+		 */
+		private void writeMessage(Object result, boolean flush) throws JSONException {
 			pw.println(result.toString());
-			pw.flush();
+			if(flush) {
+				pw.flush();
+			}
 		}
 
 		public void close() throws IOException {
@@ -203,6 +359,148 @@ public class RPCServer implements Server {
 		}
 	}
 	
+	/*
+	 * 执行一条命令并记录耗时
+	 */
+	class CommandTask implements Callable<Object> {
+		
+		private final String command;
+		private final JSONObject commandInfos;
+		private final JSONObject inputInfos;
+		
+		CommandTask(String command, JSONObject commandInfos, JSONObject inputInfos) {
+			this.command = command;
+			this.commandInfos = commandInfos;
+			this.inputInfos = inputInfos;
+		}
+		
+		@Override
+		public Object call() throws Exception {
+			long time = System.nanoTime();
+			boolean success = false;
+			try {
+				JSONObject result;
+				if(inputInfos == null) {
+					result = rpcHanlder.hanlder(commandInfos);
+				} else {
+					result = rpcHanlder.hanlder(commandInfos, inputInfos);
+				}
+				success = !result.has("success") || result.optBoolean("success");
+				return result;
+			} finally {
+				rpcStatistics.record(command, System.nanoTime() - time, success);
+			}
+		}
+	}
+	
+	/*
+	 * 执行一个批量命令，每条命令单独记录耗时，整批的耗时记在 batch 里
+	 */
+	class BatchTask implements Callable<Object> {
+		
+		private final JSONArray commands;
+		
+		BatchTask(JSONArray commands) {
+			this.commands = commands;
+		}
+		
+		@Override
+		public Object call() throws Exception {
+			long time = System.nanoTime();
+			boolean success = false;
+			try {
+				JSONArray results = new JSONArray();
+				if(commands.length() > RPCHanlder.MAX_BATCH_ITEMS) {
+					results.put(new JSONObject().put("success", false).put("message", "批量命令最多 " + RPCHanlder.MAX_BATCH_ITEMS + " 条"));
+					return results;
+				}
+				for (int i = 0; i < commands.length(); i++) {
+					JSONObject commandInfos = commands.optJSONObject(i);
+					if(commandInfos == null) {
+						results.put(new JSONObject().put("success", false).put("message", "解析rpc命令失败"));
+						continue;
+					}
+					try {
+						results.put(new CommandTask(commandInfos.optString("command", null), commandInfos, null).call());
+					} catch (RuntimeException e) {
+						log.error("执行rpc命令出错", e);
+						results.put(new JSONObject().put("success", false).put("message", "rpc命令错误,详情:" + e.getMessage()));
+					}
+				}
+				success = true;
+				return results;
+			} finally {
+				rpcStatistics.record(BATCH_COMMAND, System.nanoTime() - time, success);
+			}
+		}
+	}
+	
+	/*
+	 * 已读取的命令，执行失败或者无法执行时 future 为空，记录错误信息
+	 */
+	static class PendingCommand {
+		
+		private final JSONObject commandInfos;
+		private final boolean readOnly;
+		private final Future<Object> future;
+		private final String errorMessage;
+		
+		PendingCommand(JSONObject commandInfos, boolean readOnly, Future<Object> future, String errorMessage) {
+			this.commandInfos = commandInfos;
+			this.readOnly = readOnly;
+			this.future = future;
+			this.errorMessage = errorMessage;
+		}
+		
+		boolean isDone() {
+			return future == null || future.isDone();
+		}
+	}
+	
+	/*
+	 * 给线程命名，方便排查
+	 */
+	static class NamedThreadFactory implements ThreadFactory {
+		
+		private final String name;
+		private final AtomicInteger count = new AtomicInteger();
+		
+		NamedThreadFactory(String name) {
+			this.name = name;
+		}
+		
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, name + " " + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+	
+	private static int getIntProperty(String key, int defaultValue) {
+		String value = property.getProperty(key);
+		if(StringUtil.isEmpty(value)) {
+			return defaultValue;
+		}
+		try {
+			int intValue = Integer.parseInt(value.trim());
+			return intValue > 0 ? intValue : defaultValue;
+		} catch (NumberFormatException e) {
+			log.warn("rpc 配置 {} 不正确：{}，使用默认值 {}", key, value, defaultValue);
+			return defaultValue;
+		}
+	}
+	
+	private static void closeQuietly(Socket socket) {
+		if(socket == null) {
+			return;
+		}
+		try {
+			socket.close();
+		} catch (IOException e) {
+		}
+	}
+	
 	/*
 	 * 初始化rpc服务参数，如果有配置文件，则读取配置文件
 	 * 如果没有配置文件，则生成新的rpc配置文件
@@ -255,5 +553,14 @@ public class RPCServer implements Server {
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
+		if(connectionExecutor != null) {
+			connectionExecutor.shutdownNow();
+		}
+		if(readExecutor != null) {
+			readExecutor.shutdownNow();
+		}
+		if(writeExecutor != null) {
+			writeExecutor.shutdownNow();
+		}
 	}
 }
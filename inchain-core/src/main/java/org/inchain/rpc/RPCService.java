@@ -85,6 +85,15 @@ public interface RPCService {
 	 * @throws JSONException 
 	 */
 	JSONObject getBlock(String hashOrHeight) throws JSONException;
+	
+	/**
+	 * 批量获取一段高度的完整区块
+	 * @param startHeight
+	 * @param endHeight		包含
+	 * @return JSONArray
+	 * @throws JSONException 
+	 */
+	JSONArray getBlocks(long startHeight, long endHeight) throws JSONException;
 
 	/**
 	 * 通过hash获取一个分叉块
@@ -188,6 +197,22 @@ public interface RPCService {
 	 */
 	JSONObject getTx(String txid) throws JSONException;
 	
+	/**
+	 * 通过交易hash批量获取交易详情，顺序和传入的一致
+	 * @param txids
+	 * @return JSONArray
+	 * @throws JSONException 
+	 */
+	JSONArray getTxs(JSONArray txids) throws JSONException;
+	
+	/**
+	 * 批量获取地址的余额，顺序和传入的一致
+	 * @param addresses
+	 * @return JSONArray
+	 * @throws JSONException 
+	 */
+	JSONArray getBalances(JSONArray addresses) throws JSONException;
+	
 	/**
 	 * 认证账户创建商品
 	 * @param address
@@ -254,6 +279,12 @@ public interface RPCService {
 	 */
 	JSONObject getPeers() throws JSONException;
 
+	/**
+	 * 获取存储缓存的命中统计
+	 * @return JSONObject
+	 */
+	JSONObject getCacheStats() throws JSONException;
+
 	/**
 	 * 加密钱包
 	 * @param password 
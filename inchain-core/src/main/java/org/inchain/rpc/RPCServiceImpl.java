@@ -56,6 +56,7 @@ import org.inchain.store.BlockHeaderStore;
 import org.inchain.store.BlockStore;
 import org.inchain.store.BlockStoreProvider;
 import org.inchain.store.ChainstateStoreProvider;
+import org.inchain.store.StoreCache;
 import org.inchain.store.TransactionStore;
 import org.inchain.store.TransactionStoreProvider;
 import org.inchain.transaction.Output;
@@ -182,30 +183,60 @@ public class RPCServiceImpl implements RPCService {
 	}
 	
 	/**
-	 * 通过区块的hash或者高度获取区块的完整信息
+	 * 通过区块的hash或者高度获取区块的完整信息，已裁剪的区块交易不完整，不返回
 	 * @throws JSONException 
 	 */
 	@Override
 	public JSONObject getBlock(String hashOrHeight) throws JSONException {
-		Block block = null;
+		BlockHeaderStore header = null;
 		try {
 			Long height = Long.parseLong(hashOrHeight);
-			BlockStore blockStore = blockStoreProvider.getBlockByHeight(height);
-			if(blockStore != null) {
-				block = blockStore.getBlock();
-			}
+			header = blockStoreProvider.getHeaderByHeight(height);
 		} catch (Exception e) {
-			BlockStore blockStore = blockStoreProvider.getBlock(Hex.decode(hashOrHeight));
-			if(blockStore != null) {
-				block = blockStore.getBlock();
-			}
+			header = blockStoreProvider.getHeader(Hex.decode(hashOrHeight));
 		}
 		
-		JSONObject json = new JSONObject();
-		if(block == null) {
+		long prunedHeight = blockStoreProvider.getPrunedHeight();
+		if(header != null && header.getBlockHeader().getHeight() <= prunedHeight) {
+			JSONObject json = new JSONObject();
+			json.put("message", "pruned");
+			json.put("prunedHeight", prunedHeight);
+			return json;
+		}
+		
+		BlockStore blockStore = header == null ? null : blockStoreProvider.getBlockByHeader(header);
+		if(blockStore == null) {
+			JSONObject json = new JSONObject();
 			json.put("message", "not found");
 			return json;
 		}
+		return blockConver(blockStore.getBlock(), network.getBestBlockHeight(), accountKit.getAccountList());
+	}
+	
+	/**
+	 * 批量获取一段高度的完整区块
+	 * @param startHeight
+	 * @param endHeight
+	 * @return JSONArray
+	 * @throws JSONException 
+	 */
+	@Override
+	public JSONArray getBlocks(long startHeight, long endHeight) throws JSONException {
+		JSONArray array = new JSONArray();
+		
+		long bestHeight = network.getBestBlockHeight();
+		List<Account> accountList = accountKit.getAccountList();
+		for (BlockStore blockStore : blockStoreProvider.getBlocksByHeight(startHeight, endHeight)) {
+			array.put(blockConver(blockStore.getBlock(), bestHeight, accountList));
+		}
+		return array;
+	}
+	
+	/*
+	 * 转换区块为json
+	 */
+	private JSONObject blockConver(Block block, long bestHeight, List<Account> accountList) throws JSONException {
+		JSONObject json = new JSONObject();
 		json.put("version", block.getVersion())
 		.put("height", block.getHeight())
 		.put("hash", block.getHash())
@@ -223,9 +254,6 @@ public class RPCServiceImpl implements RPCService {
 		
 		JSONArray txs = new JSONArray();
 		
-		long bestHeight = network.getBestBlockHeight();
-		List<Account> accountList = accountKit.getAccountList();
-		
 		for (Transaction transaction : txList) {
 			txs.put(txConver(new TransactionStore(network, transaction, block.getHeight(), new byte[] {1}), bestHeight, accountList));
 		}
@@ -1749,6 +1777,81 @@ public class RPCServiceImpl implements RPCService {
 		return txConver(txs);
 	}
 	
+	/**
+	 * 通过交易hash批量获取交易详情
+	 * @param txids
+	 * @return JSONArray
+	 * @throws JSONException 
+	 */
+	@Override
+	public JSONArray getTxs(JSONArray txids) throws JSONException {
+		List<byte[]> hashs = new ArrayList<byte[]>(txids.length());
+		for (int i = 0; i < txids.length(); i++) {
+			try {
+				hashs.add(Hex.decode(txids.getString(i)));
+			} catch (Exception e) {
+				hashs.add(null);
+			}
+		}
+		
+		long bestHeight = getBestBlockHeight();
+		List<Account> accountList = accountKit.getAccountList();
+		
+		JSONArray array = new JSONArray();
+		List<TransactionStore> txsList = blockStoreProvider.getTransactions(hashs);
+		for (int i = 0; i < txsList.size(); i++) {
+			TransactionStore txs = txsList.get(i);
+			if(txs == null) {
+				array.put(new JSONObject().put("txid", txids.getString(i)).put("message", "not found"));
+			} else {
+				array.put(txConver(txs, bestHeight, accountList));
+			}
+		}
+		return array;
+	}
+	
+	/**
+	 * 批量获取地址的余额，通过地址交易索引计算，没有开启索引时只能查询钱包里的账户
+	 * @param addresses
+	 * @return JSONArray
+	 * @throws JSONException 
+	 */
+	@Override
+	public JSONArray getBalances(JSONArray addresses) throws JSONException {
+		List<byte[]> hash160s = new ArrayList<byte[]>(addresses.length());
+		List<Integer> indexs = new ArrayList<Integer>(addresses.length());
+		JSONObject[] results = new JSONObject[addresses.length()];
+		for (int i = 0; i < addresses.length(); i++) {
+			String address = addresses.getString(i);
+			try {
+				hash160s.add(Address.fromBase58(network, address).getHash160());
+				indexs.add(i);
+			} catch (Exception e) {
+				results[i] = new JSONObject().put("address", address).put("message", "地址不正确");
+			}
+		}
+		
+		List<Coin[]> balances = blockStoreProvider.getAddressBalances(hash160s);
+		for (int i = 0; i < indexs.size(); i++) {
+			int index = indexs.get(i);
+			String address = addresses.getString(index);
+			Coin[] balance = balances == null ? getAccountBalance(address) : balances.get(i);
+			
+			JSONObject json = new JSONObject();
+			json.put("address", address);
+			json.put("blanace", balance[0].add(balance[1]).value);
+			json.put("canUseBlanace", balance[0].value);
+			json.put("cannotUseBlanace", balance[1].value);
+			results[index] = json;
+		}
+		
+		JSONArray array = new JSONArray();
+		for (JSONObject json : results) {
+			array.put(json);
+		}
+		return array;
+	}
+	
 	/**
 	 * 发送交易
 	 * @param toAddress
@@ -2140,6 +2243,37 @@ public class RPCServiceImpl implements RPCService {
 		return json;
 	}
 	
+	/**
+	 * 获取存储缓存的命中统计
+	 * @return JSONObject
+	 */
+	@Override
+	public JSONObject getCacheStats() throws JSONException {
+		List<StoreCache<?>> caches = new ArrayList<StoreCache<?>>();
+		caches.addAll(blockStoreProvider.getCaches());
+		caches.addAll(chainstateStoreProvider.getCaches());
+		
+		JSONArray array = new JSONArray();
+		for (StoreCache<?> cache : caches) {
+			JSONObject cacheJson = new JSONObject();
+			
+			cacheJson.put("name", cache.getName());
+			cacheJson.put("size", cache.size());
+			cacheJson.put("capacity", cache.getCapacity());
+			cacheJson.put("segments", cache.getSegmentCount());
+			cacheJson.put("hits", cache.getHitCount());
+			cacheJson.put("misses", cache.getMissCount());
+			cacheJson.put("hitRate", String.format("%.2f%%", cache.getHitRate() * 100));
+			
+			array.put(cacheJson);
+		}
+		
+		JSONObject json = new JSONObject();
+		json.put("caches", array);
+		
+		return json;
+	}
+	
 	/**
 	 * 通过公钥得到地址
 	 * @param pubkey
@@ -0,0 +1,148 @@
+package org.inchain.rpc;
+
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.codehaus.jettison.json.JSONArray;
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+import org.springframework.stereotype.Service;
+
+/**
+ * RPC命令耗时统计
+ * 每个命令一个耗时直方图，按固定的毫秒区间计数，记录时只做原子加，不加锁
+ * @author ln
+ *
+ */
+@Service
+public class RPCStatistics {
+
+	//直方图区间上限，毫秒，最后一个区间是超过 5000 毫秒的
+	private final static long[] BUCKET_BOUNDS = { 1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000 };
+
+	//统计的命令数上限，防止随意的命令名把内存占满，超过的记到 other 里
+	private final static int MAX_COMMANDS = 128;
+	private final static String OTHER_COMMAND = "other";
+
+	private final ConcurrentHashMap<String, Histogram> histograms = new ConcurrentHashMap<String, Histogram>();
+
+	/**
+	 * 记录一次命令执行的耗时
+	 * @param command
+	 * @param nanos		耗时，纳秒
+	 * @param success	是否执行成功
+	 */
+	public void record(String command, long nanos, boolean success) {
+		if(command == null) {
+			command = OTHER_COMMAND;
+		}
+		Histogram histogram = histograms.get(command);
+		if(histogram == null) {
+			if(histograms.size() >= MAX_COMMANDS) {
+				command = OTHER_COMMAND;
+			}
+			histogram = new Histogram();
+			Histogram old = histograms.putIfAbsent(command, histogram);
+			if(old != null) {
+				histogram = old;
+			}
+		}
+		histogram.record(nanos, success);
+	}
+
+	/**
+	 * 清空统计
+	 */
+	public void reset() {
+		histograms.clear();
+	}
+
+	/**
+	 * 所有命令的统计，按命令名排序
+	 * @return JSONObject
+	 * @throws JSONException
+	 */
+	public JSONObject toJSON() throws JSONException {
+		JSONArray array = new JSONArray();
+		for (Entry<String, Histogram> entry : new TreeMap<String, Histogram>(histograms).entrySet()) {
+			JSONObject json = entry.getValue().toJSON();
+			json.put("command", entry.getKey());
+			array.put(json);
+		}
+		JSONObject json = new JSONObject();
+		json.put("commands", array);
+		return json;
+	}
+
+	/*
+	 * 单个命令的耗时直方图
+	 */
+	private static final class Histogram {
+		private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_BOUNDS.length + 1);
+		private final AtomicLong count = new AtomicLong();
+		private final AtomicLong errors = new AtomicLong();
+		private final AtomicLong totalNanos = new AtomicLong();
+		private final AtomicLong maxNanos = new AtomicLong();
+
+		void record(long nanos, boolean success) {
+			long millis = nanos / 1000000l;
+			int index = 0;
+			while(index < BUCKET_BOUNDS.length && millis >= BUCKET_BOUNDS[index]) {
+				index++;
+			}
+			buckets.incrementAndGet(index);
+			count.incrementAndGet();
+			if(!success) {
+				errors.incrementAndGet();
+			}
+			totalNanos.addAndGet(nanos);
+			long max;
+			while(nanos > (max = maxNanos.get()) && !maxNanos.compareAndSet(max, nanos)) {
+			}
+		}
+
+		/*
+		 * 根据区间计数估算分位数，返回所在区间的上限
+		 */
+		private String percentile(long[] snapshot, long total, double p) {
+			long target = (long) Math.ceil(total * p);
+			long seen = 0;
+			for (int i = 0; i < snapshot.length; i++) {
+				seen += snapshot[i];
+				if(seen >= target) {
+					return i < BUCKET_BOUNDS.length ? "<" + BUCKET_BOUNDS[i] + "ms" : ">=" + BUCKET_BOUNDS[BUCKET_BOUNDS.length - 1] + "ms";
+				}
+			}
+			return "-";
+		}
+
+		JSONObject toJSON() throws JSONException {
+			long[] snapshot = new long[buckets.length()];
+			long total = 0;
+			for (int i = 0; i < snapshot.length; i++) {
+				snapshot[i] = buckets.get(i);
+				total += snapshot[i];
+			}
+
+			JSONObject json = new JSONObject();
+			json.put("count", count.get());
+			json.put("errors", errors.get());
+			json.put("avgMs", total == 0 ? 0 : String.format("%.3f", totalNanos.get() / 1000000d / total));
+			json.put("maxMs", String.format("%.3f", maxNanos.get() / 1000000d));
+			json.put("p50", percentile(snapshot, total, 0.5));
+			json.put("p90", percentile(snapshot, total, 0.9));
+			json.put("p99", percentile(snapshot, total, 0.99));
+
+			JSONObject histogram = new JSONObject();
+			for (int i = 0; i < snapshot.length; i++) {
+				String key = i < BUCKET_BOUNDS.length ? "<" + BUCKET_BOUNDS[i] + "ms" : ">=" + BUCKET_BOUNDS[BUCKET_BOUNDS.length - 1] + "ms";
+				histogram.put(key, snapshot[i]);
+			}
+			json.put("histogram", histogram);
+			return json;
+		}
+	}
+}
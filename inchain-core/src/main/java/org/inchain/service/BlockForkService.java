@@ -25,6 +25,12 @@ public interface BlockForkService {
 	 */
 	void addBlockFork(Block block);
 
+	/**
+	 * 主链上连接了新区块，以它为父块的分叉块立即处理，不用等定时检查
+	 * @param hash
+	 */
+	void onBlockConnected(Sha256Hash hash);
+
 	/**
 	 * 添加到待处罚列表
 	 * @param block
@@ -1,10 +1,19 @@
 package org.inchain.service.impl;
 
 import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -36,6 +45,9 @@ import org.springframework.stereotype.Service;
 
 /**
  * 分叉块处理服务
+ * 分叉块按hash和父块hash建成块树，每个块记录它在分叉里往前连续的块数和这段分叉的起点，新块加入时增量更新
+ * 有新的分叉块加入、或者某个分叉块的父块到达主链时，立即处理对应的分叉，不再定时扫描全部分叉块
+ * 分叉块数量有上限，长时间没有变化的分支按最近使用顺序淘汰
  * @author ln
  *
  */
@@ -69,8 +81,19 @@ public class BlockForkServiceImpl implements BlockForkService {
 	
 	//违规列表锁
 	private Lock penalizeLock = new ReentrantLock();
-	//待处理分叉块列表
-	private List<BlockForkStore> blockForks = new CopyOnWriteArrayList<BlockForkStore>();
+	//最多保留的分叉块数
+	private final static int MAX_FORK_BLOCKS = 1000;
+	//分叉块多久没有被使用就丢弃，毫秒
+	private final static long FORK_BLOCK_TIMEOUT = 60000l;
+	
+	//分叉块树锁
+	private final Lock forkLock = new ReentrantLock();
+	//分叉块，按插入顺序排列，刷新使用时间时重新插入到最后，所以最久没用的在最前面，查询不改变顺序
+	private final LinkedHashMap<Sha256Hash, ForkNode> forkBlocks = new LinkedHashMap<Sha256Hash, ForkNode>();
+	//父块hash -> 子块hash
+	private final Map<Sha256Hash, Set<Sha256Hash>> forkChildren = new HashMap<Sha256Hash, Set<Sha256Hash>>();
+	//需要处理的分叉块
+	private final LinkedBlockingQueue<Sha256Hash> forkEvents = new LinkedBlockingQueue<Sha256Hash>();
 	//待处理违规块列表
 	private List<List<BlockHeader>> penalizeList = new CopyOnWriteArrayList<List<BlockHeader>>();
 
@@ -106,7 +129,14 @@ public class BlockForkServiceImpl implements BlockForkService {
 		
 		BlockForkStore blockStore = new BlockForkStore(network, block, 0);
 		chainstateStoreProvider.put(block.getHash().getBytes(), blockStore.baseSerialize());
-		blockForks.add(blockStore);
+		if(addForkNode(blockStore)) {
+			forkEvents.offer(block.getHash());
+		}
+	}
+
+	@Override
+	public void onBlockConnected(Sha256Hash hash) {
+		offerChildren(hash);
 	}
 
 	/*
@@ -118,25 +148,25 @@ public class BlockForkServiceImpl implements BlockForkService {
 	 * 如果是遭受大量垃圾块的恶意攻击，直接丢弃，同时交给miningService做出处罚
 	 */
 	private boolean check(Block block) {
-		for (BlockForkStore blockForkStore : blockForks) {
-			//过滤重复的
-			if(blockForkStore.getBlock().getHash().equals(block.getHash())) {
-				return false;
-			}
-			//找出同一轮中同一个人的多个块，并交给miningService做出相应的处罚 TODO
-			
-		}
-		return true;
+		//过滤重复的
+		//找出同一轮中同一个人的多个块，并交给miningService做出相应的处罚 TODO
+		return findInForkBlocks(block.getHash()) == null;
 	}
 
 	/*
-	 * 监控分叉块
+	 * 监控分叉块，有事件时立即处理，没有事件时每秒检查一次主链的变化和过期的分叉块
 	 */
 	private void monitor() {
 		while(running) {
 			try {
-				Thread.sleep(1000l);
+				Sha256Hash hash = forkEvents.poll(1, TimeUnit.SECONDS);
 				scanning();
+				if(hash != null) {
+					processForkEvent(hash);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
 			} catch (Exception e) {
 				log.error("处理分叉块出错", e);
 			}
@@ -168,6 +198,8 @@ public class BlockForkServiceImpl implements BlockForkService {
 			localBestHash = bestBlockHeader.getHash();
 			localBestHashLastTime = TimeService.currentTimeMillis();
 			hasReset = false;
+			//主链有了新块，以它为父块的分叉块可以处理了
+			offerChildren(localBestHash);
 		} else {
 			//是否到达设定时间区块没有变化的条件
 			//3分钟
@@ -190,15 +222,37 @@ public class BlockForkServiceImpl implements BlockForkService {
 		//TODO
 		
 		
-		for (BlockForkStore blockForkStore : blockForks) {
-			//最多分析60次，就丢弃掉
-			if(blockForkStore.getProcessCount() > 60) {
-				discardBlock(blockForkStore);
-			} else {
-				blockForkStore.addProcessCount();
-				processForkBlock(blockForkStore, null);
+		//丢弃长时间没有进展的分叉块
+		evictExpired();
+	}
+
+	/*
+	 * 处理分叉块事件，找到该块所在分支里最长的一条，父块已在主链上并且长度超过主链时才做完整的验证和切换
+	 */
+	private void processForkEvent(Sha256Hash hash) {
+		ForkNode tip;
+		forkLock.lock();
+		try {
+			ForkNode node = forkBlocks.get(hash);
+			if(node == null) {
+				return;
 			}
+			tip = findLongestTip(node);
+		} finally {
+			forkLock.unlock();
+		}
+		
+		//分叉的起点还没有连到主链上，等父块到达
+		BlockHeaderStore rootParent = blockStoreProvider.getHeader(tip.rootPreHash.getBytes());
+		if(rootParent == null) {
+			return;
 		}
+		//链长度不超过主链，切换不了，等后续的块
+		long forkHeight = rootParent.getBlockHeader().getHeight() + tip.length;
+		if(tip.length <= 1 || forkHeight <= network.getBestBlockHeight()) {
+			return;
+		}
+		processForkBlock(tip.store, null);
 	}
 
 	/*
@@ -344,15 +398,15 @@ public class BlockForkServiceImpl implements BlockForkService {
 				BlockForkStore rockBlockStore = new BlockForkStore(network, bestBlock.getBlock(), 8);
 				chainstateStoreProvider.put(rockBlockStore.getBlock().getHash().getBytes(), rockBlockStore.baseSerialize());
 				//把回滚的块加入内存，以衔接更长的链
-				blockForks.add(rockBlockStore);
+				addForkNode(rockBlockStore);
 				
 				Block revokedBlock = blockStoreProvider.revokedNewestBlock();
 				//处理并发情况，这里进行回滚的同时，又写入了一个最新的块
-				if(revokedBlock.getHash().equals(bestBlock.getBlock().getHash())) {
+				if(revokedBlock != null && revokedBlock.getHash().equals(bestBlock.getBlock().getHash())) {
 					//回滚的块不是刚刚查询到的最新的块
 					rockBlockStore = new BlockForkStore(network, revokedBlock, 8);
 					chainstateStoreProvider.put(rockBlockStore.getBlock().getHash().getBytes(), rockBlockStore.baseSerialize());
-					blockForks.add(rockBlockStore);
+					addForkNode(rockBlockStore);
 				}
 			}
 			
@@ -390,30 +444,250 @@ public class BlockForkServiceImpl implements BlockForkService {
 	 * 在分叉块列表中寻找对应的块，找不到则返回null
 	 */
 	private BlockForkStore findInForkBlocks(Sha256Hash hash) {
-		for (BlockForkStore blockForkStore : blockForks) {
-			if(blockForkStore.getBlock().getHash().equals(hash)) {
-				return blockForkStore;
-			}
+		forkLock.lock();
+		try {
+			ForkNode node = forkBlocks.get(hash);
+			return node == null ? null : node.store;
+		} finally {
+			forkLock.unlock();
 		}
-		return null;
 	}
 
 	/*
-	 * 丢弃块
+	 * 丢弃块，以它为父块的分叉也一起丢弃
 	 */
 	private void discardBlock(BlockForkStore blockForkStore) {
-		blockForkStore.setStatus(1);
-		chainstateStoreProvider.put(blockForkStore.getBlock().getHash().getBytes(), blockForkStore.baseSerialize());
-		blockForks.remove(blockForkStore);
+		List<ForkNode> removed;
+		forkLock.lock();
+		try {
+			removed = removeSubtree(blockForkStore.getBlock().getHash());
+		} finally {
+			forkLock.unlock();
+		}
+		if(removed.isEmpty()) {
+			removed.add(new ForkNode(blockForkStore));
+		}
+		for (ForkNode node : removed) {
+			node.store.setStatus(1);
+			chainstateStoreProvider.put(node.hash.getBytes(), node.store.baseSerialize());
+		}
 	}
 
 	/*
-	 * 成功处理了分叉块
+	 * 成功处理了分叉块，它的子块的父块已在主链上，重新计算并处理
 	 */
 	private void processSuccessForkBlock(BlockForkStore blockForkStore) {
 		blockForkStore.setStatus(3);
 		chainstateStoreProvider.put(blockForkStore.getBlock().getHash().getBytes(), blockForkStore.baseSerialize());
-		blockForks.remove(blockForkStore);
+		
+		Sha256Hash hash = blockForkStore.getBlock().getHash();
+		forkLock.lock();
+		try {
+			ForkNode node = forkBlocks.remove(hash);
+			if(node == null) {
+				return;
+			}
+			unlinkParent(node);
+			Set<Sha256Hash> children = forkChildren.get(hash);
+			if(children != null) {
+				for (Sha256Hash childHash : children) {
+					ForkNode child = forkBlocks.get(childHash);
+					if(child != null) {
+						updateSubtree(child, 1, hash);
+					}
+				}
+			}
+		} finally {
+			forkLock.unlock();
+		}
+		offerChildren(hash);
+	}
+	
+	/*
+	 * 加入块树，已存在返回false
+	 */
+	private boolean addForkNode(BlockForkStore blockForkStore) {
+		List<ForkNode> evicted = new ArrayList<ForkNode>();
+		forkLock.lock();
+		try {
+			ForkNode node = new ForkNode(blockForkStore);
+			if(forkBlocks.containsKey(node.hash)) {
+				return false;
+			}
+			forkBlocks.put(node.hash, node);
+			
+			Set<Sha256Hash> siblings = forkChildren.get(node.preHash);
+			if(siblings == null) {
+				siblings = new HashSet<Sha256Hash>();
+				forkChildren.put(node.preHash, siblings);
+			}
+			siblings.add(node.hash);
+			
+			//接到已有的分叉上，或者作为一段分叉的起点，之后的块跟着更新
+			ForkNode parent = forkBlocks.get(node.preHash);
+			if(parent != null) {
+				updateSubtree(node, parent.length + 1, parent.rootPreHash);
+				//分支有了新块，往前的块也算刚用过，不会先于新块被淘汰
+				long now = TimeService.currentTimeMillis();
+				while(parent != null) {
+					touch(parent, now);
+					parent = forkBlocks.get(parent.preHash);
+				}
+			} else {
+				updateSubtree(node, 1, node.preHash);
+			}
+			
+			//超过上限，淘汰最久没用的分支
+			while(forkBlocks.size() > MAX_FORK_BLOCKS) {
+				Sha256Hash eldest = forkBlocks.keySet().iterator().next();
+				evicted.addAll(removeSubtree(eldest));
+			}
+		} finally {
+			forkLock.unlock();
+		}
+		for (ForkNode removed : evicted) {
+			removed.store.setStatus(1);
+			chainstateStoreProvider.put(removed.hash.getBytes(), removed.store.baseSerialize());
+		}
+		return true;
+	}
+	
+	/*
+	 * 丢弃长时间没有使用的分叉块，按使用时间排列，从最前面开始检查
+	 */
+	private void evictExpired() {
+		List<ForkNode> expired = new ArrayList<ForkNode>();
+		long now = TimeService.currentTimeMillis();
+		forkLock.lock();
+		try {
+			while(!forkBlocks.isEmpty()) {
+				Iterator<ForkNode> it = forkBlocks.values().iterator();
+				ForkNode eldest = it.next();
+				if(now - eldest.touchTime <= FORK_BLOCK_TIMEOUT) {
+					break;
+				}
+				expired.addAll(removeSubtree(eldest.hash));
+			}
+		} finally {
+			forkLock.unlock();
+		}
+		for (ForkNode node : expired) {
+			node.store.setStatus(1);
+			chainstateStoreProvider.put(node.hash.getBytes(), node.store.baseSerialize());
+		}
+	}
+	
+	/*
+	 * 以某个块为父块的分叉块加入处理队列
+	 */
+	private void offerChildren(Sha256Hash hash) {
+		forkLock.lock();
+		try {
+			Set<Sha256Hash> children = forkChildren.get(hash);
+			if(children != null) {
+				forkEvents.addAll(children);
+			}
+		} finally {
+			forkLock.unlock();
+		}
+	}
+	
+	/*
+	 * 从某个块开始往后的分叉里，长度最长的块，调用时必须持有锁
+	 */
+	private ForkNode findLongestTip(ForkNode node) {
+		ForkNode tip = node;
+		ArrayDeque<ForkNode> queue = new ArrayDeque<ForkNode>();
+		queue.add(node);
+		while(!queue.isEmpty()) {
+			ForkNode current = queue.poll();
+			if(current.length > tip.length) {
+				tip = current;
+			}
+			Set<Sha256Hash> children = forkChildren.get(current.hash);
+			if(children == null) {
+				continue;
+			}
+			for (Sha256Hash childHash : children) {
+				ForkNode child = forkBlocks.get(childHash);
+				if(child != null) {
+					queue.add(child);
+				}
+			}
+		}
+		return tip;
+	}
+	
+	/*
+	 * 设置某个块的分叉长度和起点，之后的块依次更新，同时刷新使用时间，调用时必须持有锁
+	 */
+	private void updateSubtree(ForkNode node, int length, Sha256Hash rootPreHash) {
+		long now = TimeService.currentTimeMillis();
+		ArrayDeque<ForkNode> queue = new ArrayDeque<ForkNode>();
+		node.length = length;
+		node.rootPreHash = rootPreHash;
+		queue.add(node);
+		while(!queue.isEmpty()) {
+			ForkNode current = queue.poll();
+			touch(current, now);
+			Set<Sha256Hash> children = forkChildren.get(current.hash);
+			if(children == null) {
+				continue;
+			}
+			for (Sha256Hash childHash : children) {
+				ForkNode child = forkBlocks.get(childHash);
+				if(child != null) {
+					child.length = current.length + 1;
+					child.rootPreHash = current.rootPreHash;
+					queue.add(child);
+				}
+			}
+		}
+	}
+	
+	/*
+	 * 刷新使用时间，重新插入移到最后，调用时必须持有锁
+	 */
+	private void touch(ForkNode node, long now) {
+		node.touchTime = now;
+		forkBlocks.remove(node.hash);
+		forkBlocks.put(node.hash, node);
+	}
+	
+	/*
+	 * 移除某个块和以它为父块的所有分叉块，调用时必须持有锁
+	 */
+	private List<ForkNode> removeSubtree(Sha256Hash hash) {
+		List<ForkNode> removed = new ArrayList<ForkNode>();
+		ArrayDeque<Sha256Hash> queue = new ArrayDeque<Sha256Hash>();
+		queue.add(hash);
+		while(!queue.isEmpty()) {
+			Sha256Hash current = queue.poll();
+			ForkNode node = forkBlocks.remove(current);
+			if(node == null) {
+				continue;
+			}
+			unlinkParent(node);
+			removed.add(node);
+			Set<Sha256Hash> children = forkChildren.remove(current);
+			if(children != null) {
+				queue.addAll(children);
+			}
+		}
+		return removed;
+	}
+	
+	/*
+	 * 从父块的子块索引里删除，调用时必须持有锁
+	 */
+	private void unlinkParent(ForkNode node) {
+		Set<Sha256Hash> siblings = forkChildren.get(node.preHash);
+		if(siblings != null) {
+			siblings.remove(node.hash);
+			if(siblings.isEmpty()) {
+				forkChildren.remove(node.preHash);
+			}
+		}
 	}
 	
 	/**
@@ -506,10 +780,9 @@ public class BlockForkServiceImpl implements BlockForkService {
 	 * @return Block
 	 */
 	public Block getBlock(Sha256Hash hash) {
-		for (BlockForkStore blockForkStore : blockForks) {
-			if(blockForkStore.getBlock().getHash().equals(hash)) {
-				return blockForkStore.getBlock();
-			}
+		BlockForkStore forkStore = findInForkBlocks(hash);
+		if(forkStore != null) {
+			return forkStore.getBlock();
 		}
 		
 		byte[] blockStroeBytes = chainstateStoreProvider.getBytes(hash.getBytes());
@@ -519,4 +792,28 @@ public class BlockForkServiceImpl implements BlockForkService {
 		BlockForkStore blockForkStore = new BlockForkStore(network, blockStroeBytes);
 		return blockForkStore.getBlock();
 	}
+	
+	/*
+	 * 块树里的一个分叉块
+	 */
+	private static final class ForkNode {
+		private final BlockForkStore store;
+		private final Sha256Hash hash;
+		private final Sha256Hash preHash;
+		//从这段分叉的起点到该块的块数
+		private int length;
+		//这段分叉起点的父块，连上主链时就是分叉点
+		private Sha256Hash rootPreHash;
+		//最近使用时间
+		private long touchTime;
+		
+		ForkNode(BlockForkStore store) {
+			this.store = store;
+			this.hash = store.getBlock().getHash();
+			this.preHash = store.getBlock().getPreHash();
+			this.rootPreHash = preHash;
+			this.length = 1;
+			this.touchTime = TimeService.currentTimeMillis();
+		}
+	}
 }
@@ -2,22 +2,28 @@ package org.inchain.service.impl;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 
 import javax.annotation.PostConstruct;
 
 import org.inchain.Configure;
+import org.inchain.account.Address;
 import org.inchain.core.Definition;
+import org.inchain.core.Hash160Key;
 import org.inchain.core.TimeService;
 import org.inchain.crypto.Sha256Hash;
 import org.inchain.message.Block;
 import org.inchain.service.CreditCollectionService;
 import org.inchain.store.BlockStore;
 import org.inchain.store.BlockStoreProvider;
+import org.inchain.store.ChainstateStoreProvider;
 import org.inchain.transaction.Transaction;
 import org.inchain.transaction.business.CreditTransaction;
+import org.inchain.utils.Utils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -25,22 +31,36 @@ import org.springframework.stereotype.Service;
 
 /**
  * 信用采集服务
- * //TODO 定时清理过期的资源，以免造成OOM
+ * 每类信用、每个账户只保留最近几次的累积时间（环形缓冲），同一类信用两次累积至少间隔 CERT_CHANGE_PAY_INTERVAL，更早的记录用不上
+ * 记录按最近一次累积的时间分桶，区块时间前进时整桶检查，超过间隔的账户从内存和链状态里移除
+ * 记录同时写入链状态，随区块一起提交，启动时直接加载，不用再遍历区块
  * @author ln
  *
  */
 @Service
 public class CreditCollectionServiceImpl implements CreditCollectionService {
-	
+
 	private static final Logger log = LoggerFactory.getLogger(CreditCollectionServiceImpl.class);
-	
-	private Map<Integer, Map<ByteHash, List<Long>>> container = new HashMap<Integer, Map<ByteHash, List<Long>>>();
+
+	//每个账户每类信用保留的最近记录数，间隔内正常只有一条，多留几条给区块回滚用
+	private final static int MAX_RECORDS = 4;
+	//时间桶长度，秒
+	private final static long BUCKET_SECONDS = 60 * 60l;
+	//超过间隔之后再多保留的时间，秒，区块回滚之后仍能查到之前的记录
+	private final static long EVICT_MARGIN_SECONDS = 2 * 60 * 60l;
+
+	//类型 -> 账户 -> 最近的累积记录
+	private final ConcurrentHashMap<Integer, ConcurrentHashMap<Hash160Key, CreditRecord>> container = new ConcurrentHashMap<Integer, ConcurrentHashMap<Hash160Key, CreditRecord>>();
+	//时间桶 -> 最近一次累积在该时间段内的记录，记录之后有新的累积时会同时出现在新的桶里，清理时以记录本身的时间为准
+	private final ConcurrentSkipListMap<Long, Set<CreditRecord>> buckets = new ConcurrentSkipListMap<Long, Set<CreditRecord>>();
 
 	@Autowired
 	private BlockStoreProvider blockStoreProvider;
-	
+	@Autowired
+	private ChainstateStoreProvider chainstateStoreProvider;
+
 	/**
-	 * 初始化，加载最近48小时内的信用累积记录
+	 * 初始化，加载最近的信用累积记录
 	 */
 	@PostConstruct
 	public void init() {
@@ -59,7 +79,7 @@ public class CreditCollectionServiceImpl implements CreditCollectionService {
 		t.setName("credit collection service");
 		t.start();
 	}
-	
+
 	/**
 	 * 验证是否可以获得信用
 	 * @param type			类型，参考 Definition 里的定义
@@ -69,18 +89,16 @@ public class CreditCollectionServiceImpl implements CreditCollectionService {
 	 */
 	@Override
 	public boolean verification(int type, byte[] hash160, long time) {
-		Map<ByteHash, List<Long>> map = container.get(type);
-		if(map == null) {
-			return true;
-		}
-		List<Long> times = map.get(new ByteHash(hash160));
-		if(times == null || times.size() == 0) {
+		CreditRecord record = getRecord(type, hash160);
+		if(record == null) {
 			return true;
 		}
-		if(time - times.get(0) >= Configure.CERT_CHANGE_PAY_INTERVAL_SECOND) {
-			return true;
+		synchronized (record) {
+			if(record.size == 0) {
+				return true;
+			}
+			return time - record.newest() >= Configure.CERT_CHANGE_PAY_INTERVAL_SECOND;
 		}
-		return false;
 	}
 
 	/**
@@ -92,17 +110,29 @@ public class CreditCollectionServiceImpl implements CreditCollectionService {
 	 */
 	@Override
 	public boolean addCredit(int type, byte[] hash160, long time) {
-		Map<ByteHash, List<Long>> map = container.get(type);
-		if(map == null) {
-			map = new HashMap<ByteHash, List<Long>>();
-			container.put(type, map);
-		}
-		List<Long> times = map.get(new ByteHash(hash160));
-		if(times == null) {
-			times = new ArrayList<Long>();
-			map.put(new ByteHash(hash160), times);
+		ConcurrentHashMap<Hash160Key, CreditRecord> map = getTypeMap(type);
+		Hash160Key key = new Hash160Key(hash160);
+		while (true) {
+			CreditRecord record = map.get(key);
+			if(record == null) {
+				CreditRecord newRecord = new CreditRecord(type, key);
+				record = map.putIfAbsent(key, newRecord);
+				if(record == null) {
+					record = newRecord;
+				}
+			}
+			synchronized (record) {
+				//刚好被清理掉了，重新创建
+				if(record.evicted) {
+					continue;
+				}
+				record.push(time);
+				chainstateStoreProvider.saveCreditRecord(type, hash160, record.serialize());
+			}
+			addToBucket(record, time);
+			break;
 		}
-		times.add(0, time);
+		evict(time);
 		return true;
 	}
 
@@ -114,19 +144,27 @@ public class CreditCollectionServiceImpl implements CreditCollectionService {
 	 */
 	@Override
 	public boolean removeCredit(int type, byte[] hash160) {
-		Map<ByteHash, List<Long>> map = container.get(type);
-		if(map == null) {
+		CreditRecord record = getRecord(type, hash160);
+		if(record == null) {
 			return false;
 		}
-		List<Long> times = map.get(new ByteHash(hash160));
-		if(times == null || times.size() == 0) {
-			return false;
+		synchronized (record) {
+			if(record.evicted || record.size == 0) {
+				return false;
+			}
+			record.pop();
+			chainstateStoreProvider.saveCreditRecord(type, hash160, record.serialize());
+			if(record.size == 0) {
+				record.evicted = true;
+				getTypeMap(type).remove(record.key, record);
+			}
 		}
-		return times.remove(0) != null;
+		return true;
 	}
 
 	/**
 	 * 系统启动初始加载，加载最近的信用累积记录，具体多少时间根据设置而定
+	 * 链状态里有完整记录时直接加载，否则遍历最近的区块重建一次
 	 * 会阻塞直到加载完成
 	 * @return boolean
 	 */
@@ -134,29 +172,53 @@ public class CreditCollectionServiceImpl implements CreditCollectionService {
 	public boolean onload() {
 
 		long nowTime = TimeService.currentTimeMillis();
-		
+
 		BlockStore blockStore = blockStoreProvider.getBestBlock();
-		
+
 		if(blockStore == null) {
-			//代表第一次启动，不做任何处理
+			//代表第一次启动，不做任何处理，之后的记录由区块的保存来维护
+			chainstateStoreProvider.setCreditRecordComplete();
+			return true;
+		}
+		long cutoff = getEvictTime(blockStore.getBlock().getTime());
+
+		if(chainstateStoreProvider.isCreditRecordComplete()) {
+			int count = 0;
+			for (Entry<byte[], byte[]> item : chainstateStoreProvider.listCreditRecords()) {
+				byte[] key = item.getKey();
+				int type = key[0] & 0xff;
+				byte[] hash160 = Arrays.copyOfRange(key, 1, 1 + Address.LENGTH);
+
+				CreditRecord record = new CreditRecord(type, new Hash160Key(hash160));
+				record.parse(item.getValue());
+				if(record.size == 0 || record.newest() < cutoff) {
+					//已过期，顺便清理掉
+					chainstateStoreProvider.saveCreditRecord(type, hash160, null);
+					continue;
+				}
+				if(getTypeMap(type).putIfAbsent(record.key, record) == null) {
+					addToBucket(record, record.newest());
+					count++;
+				}
+			}
+			log.info("加载信用记录{}条，耗时{}毫秒", count, TimeService.currentTimeMillis() - nowTime);
 			return true;
 		}
+
+		//没有记录，遍历最近的区块，找出信用累积交易，按时间从早到晚加入
+		List<CreditTransaction> creditTxs = new ArrayList<CreditTransaction>();
+		List<Long> creditTimes = new ArrayList<Long>();
 		Block block = blockStore.getBlock();
-		
 		while(true) {
-			
-			//遍历交易记录，找出信用累积交易
 			List<Transaction> txs = block.getTxs();
-			
-			for (Transaction tx : txs) {
+			for (int i = txs.size() - 1; i >= 0; i--) {
+				Transaction tx = txs.get(i);
 				if(tx.getType() == Definition.TYPE_CREDIT) {
-					CreditTransaction ctx = (CreditTransaction) tx;
-					byte[] hash160 = ctx.getOwnerHash160();
-					
-					addCredit(ctx.getReasonType(), hash160, block.getTime());
+					creditTxs.add((CreditTransaction) tx);
+					creditTimes.add(block.getTime());
 				}
 			}
-			
+
 			if(Sha256Hash.ZERO_HASH.equals(block.getPreHash())) {
 				break;
 			}
@@ -167,37 +229,145 @@ public class CreditCollectionServiceImpl implements CreditCollectionService {
 			}
 			block = blockStore.getBlock();
 			//如果时间超过了要取的范围，就停止
-			if(nowTime - block.getTime() * 1000 > Configure.CERT_CHANGE_PAY_INTERVAL) {
+			if(block.getTime() < cutoff) {
 				break;
 			}
 		}
-		log.info("加载信用记录成功，耗时{}毫秒", TimeService.currentTimeMillis() - nowTime);
-		
+		for (int i = creditTxs.size() - 1; i >= 0; i--) {
+			CreditTransaction ctx = creditTxs.get(i);
+			addCredit(ctx.getReasonType(), ctx.getOwnerHash160(), creditTimes.get(i));
+		}
+		chainstateStoreProvider.setCreditRecordComplete();
+		log.info("重建信用记录成功，耗时{}毫秒", TimeService.currentTimeMillis() - nowTime);
+
 		return true;
 	}
 
-	static class ByteHash {
-		byte[] hash;
+	private ConcurrentHashMap<Hash160Key, CreditRecord> getTypeMap(int type) {
+		ConcurrentHashMap<Hash160Key, CreditRecord> map = container.get(type);
+		if(map == null) {
+			ConcurrentHashMap<Hash160Key, CreditRecord> newMap = new ConcurrentHashMap<Hash160Key, CreditRecord>();
+			map = container.putIfAbsent(type, newMap);
+			if(map == null) {
+				map = newMap;
+			}
+		}
+		return map;
+	}
 
-		public ByteHash(byte[] hash) {
-			this.hash = hash;
+	private CreditRecord getRecord(int type, byte[] hash160) {
+		ConcurrentHashMap<Hash160Key, CreditRecord> map = container.get(type);
+		if(map == null || hash160 == null || hash160.length != Address.LENGTH) {
+			return null;
 		}
-		
-		@Override
-		public boolean equals(Object obj) {
-			if(obj == null || !(obj instanceof ByteHash)) {
-				return false;
+		return map.get(Hash160Key.lookup(hash160));
+	}
+
+	private void addToBucket(CreditRecord record, long time) {
+		Long bucket = time / BUCKET_SECONDS;
+		Set<CreditRecord> set = buckets.get(bucket);
+		if(set == null) {
+			Set<CreditRecord> newSet = ConcurrentHashMap.<CreditRecord>newKeySet();
+			set = buckets.putIfAbsent(bucket, newSet);
+			if(set == null) {
+				set = newSet;
 			}
-			ByteHash temp = (ByteHash)obj;
-			if(hash == null || temp.hash == null) {
-				return false;
+		}
+		set.add(record);
+	}
+
+	/*
+	 * 早于这个时间的记录不再需要
+	 */
+	private static long getEvictTime(long time) {
+		return time - Configure.CERT_CHANGE_PAY_INTERVAL_SECOND - EVICT_MARGIN_SECONDS;
+	}
+
+	/*
+	 * 清理已经过了间隔的记录，整桶处理
+	 */
+	private void evict(long time) {
+		long cutoff = getEvictTime(time);
+		long cutoffBucket = cutoff / BUCKET_SECONDS;
+		while (true) {
+			Entry<Long, Set<CreditRecord>> first = buckets.firstEntry();
+			if(first == null || first.getKey() >= cutoffBucket) {
+				return;
+			}
+			if(!buckets.remove(first.getKey(), first.getValue())) {
+				continue;
+			}
+			int count = 0;
+			for (CreditRecord record : first.getValue()) {
+				synchronized (record) {
+					//之后又有新的累积，已经在新的桶里
+					if(record.evicted || (record.size > 0 && record.newest() >= cutoff)) {
+						continue;
+					}
+					record.evicted = true;
+					getTypeMap(record.type).remove(record.key, record);
+					chainstateStoreProvider.saveCreditRecord(record.type, record.key.getBytes(), null);
+					count++;
+				}
+			}
+			if(log.isDebugEnabled()) {
+				log.debug("清理过期的信用记录{}条", count);
+			}
+		}
+	}
+
+	/*
+	 * 某个账户某类信用最近的累积时间，环形缓冲，最新的在 head 位置
+	 * 由自身的锁保护
+	 */
+	private static final class CreditRecord {
+		private final int type;
+		private final Hash160Key key;
+		private final long[] times = new long[MAX_RECORDS];
+		private int head = -1;
+		private int size;
+		//已从容器中移除
+		private boolean evicted;
+
+		CreditRecord(int type, Hash160Key key) {
+			this.type = type;
+			this.key = key;
+		}
+
+		void push(long time) {
+			head = (head + 1) % MAX_RECORDS;
+			times[head] = time;
+			if(size < MAX_RECORDS) {
+				size++;
 			}
-			return Arrays.equals(hash, temp.hash);
 		}
-		
-		@Override
-		public int hashCode() {
-			return Arrays.hashCode(hash);
+
+		void pop() {
+			head = (head - 1 + MAX_RECORDS) % MAX_RECORDS;
+			size--;
+		}
+
+		long newest() {
+			return times[head];
+		}
+
+		/*
+		 * 从新到旧，每条4字节时间
+		 */
+		byte[] serialize() {
+			byte[] content = new byte[size * 4];
+			for (int i = 0; i < size; i++) {
+				Utils.uint32ToByteArrayLE(times[(head - i + MAX_RECORDS) % MAX_RECORDS], content, i * 4);
+			}
+			return content;
+		}
+
+		void parse(byte[] content) {
+			int count = Math.min(content.length / 4, MAX_RECORDS);
+			//从旧到新依次加入
+			for (int i = count - 1; i >= 0; i--) {
+				push(Utils.readUint32(content, i * 4));
+			}
 		}
 	}
 }
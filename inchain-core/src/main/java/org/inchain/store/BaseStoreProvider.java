@@ -1,6 +1,10 @@
 package org.inchain.store;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.inchain.db.Db;
 import org.inchain.db.LevelDB;
@@ -24,6 +28,9 @@ public abstract class BaseStoreProvider implements StoreProvider {
 
 	protected Db db;
 	
+	//解码后的对象缓存，存储有写入时按 key 失效
+	private final List<StoreCache<?>> caches = new CopyOnWriteArrayList<StoreCache<?>>();
+	
 	@Autowired
 	protected NetworkParams network;
 	
@@ -45,6 +52,7 @@ public abstract class BaseStoreProvider implements StoreProvider {
 	
 	public void put(byte[] key, byte[] value) {
 		db.put(key, value);
+		invalidateCaches(key);
 	}
 	
 	public byte[] getBytes(byte[] key) {
@@ -55,6 +63,7 @@ public abstract class BaseStoreProvider implements StoreProvider {
 	public void put(Store store) {
 		byte[] content = toByte(store);
 		db.put(store.getKey(), content);
+		invalidateCaches(store.getKey());
 	}
 
 	@Override
@@ -72,8 +81,113 @@ public abstract class BaseStoreProvider implements StoreProvider {
 	@Override
 	public void delete(byte[] key) {
 		db.delete(key);
+		invalidateCaches(key);
 	}
-	
+
+	/**
+	 * 开启批量写入，当前线程之后的写操作会暂存起来，直到提交
+	 */
+	public void beginBatch() {
+		db.beginBatch();
+	}
+
+	/**
+	 * 提交批量写入
+	 * @throws IOException
+	 */
+	public void commitBatch() throws IOException {
+		List<byte[]> keys = db.getBatchKeys();
+		db.commitBatch();
+		//最外层提交之后数据才真正写入，这时再让批次里的 key 失效
+		//批次期间其它线程可能把旧数据放进了缓存
+		if(!db.isBatching()) {
+			invalidateCaches(keys);
+		}
+	}
+
+	/**
+	 * 放弃批量写入
+	 */
+	public void discardBatch() {
+		List<byte[]> keys = db.getBatchKeys();
+		db.discardBatch();
+		invalidateCaches(keys);
+	}
+
+	/**
+	 * 创建一个缓存，存储有写入时自动失效
+	 * @param name 缓存名称
+	 * @param capacity 最大缓存数量，为0时不缓存
+	 * @return StoreCache<V>
+	 */
+	protected <V> StoreCache<V> newCache(String name, int capacity) {
+		return newCache(name, capacity, 1);
+	}
+
+	/**
+	 * 创建一个分段的缓存，存储有写入时自动失效
+	 * @param name 缓存名称
+	 * @param capacity 最大缓存数量，为0时不缓存
+	 * @param segmentCount 分段数量
+	 * @return StoreCache<V>
+	 */
+	protected <V> StoreCache<V> newCache(String name, int capacity, int segmentCount) {
+		StoreCache<V> cache = new StoreCache<V>(name, capacity, segmentCount);
+		caches.add(cache);
+		return cache;
+	}
+
+	/**
+	 * 当前线程是否可以使用缓存
+	 * 开启了批量写入的线程能读到批次里未提交的数据，这些数据不能放入缓存，缓存里的对象也可能被修改，所以都直接读存储
+	 * @return boolean
+	 */
+	protected boolean isCacheable() {
+		return !db.isBatching();
+	}
+
+	/**
+	 * 使对应 key 的缓存失效
+	 * @param key
+	 */
+	protected void invalidateCaches(byte[] key) {
+		for (StoreCache<?> cache : caches) {
+			cache.invalidate(key);
+		}
+	}
+
+	/**
+	 * 使对应 key 的缓存失效
+	 * @param keys
+	 */
+	protected void invalidateCaches(List<byte[]> keys) {
+		if(keys.isEmpty()) {
+			return;
+		}
+		for (StoreCache<?> cache : caches) {
+			for (byte[] key : keys) {
+				cache.invalidate(key);
+			}
+		}
+	}
+
+	/**
+	 * 清空所有缓存
+	 */
+	public void clearCaches() {
+		for (StoreCache<?> cache : caches) {
+			cache.clear();
+		}
+	}
+
+	/**
+	 * 获取所有缓存，用于查看命中统计
+	 * @return List<StoreCache<?>>
+	 */
+	public List<StoreCache<?>> getCaches() {
+		return Collections.unmodifiableList(new ArrayList<StoreCache<?>>(caches));
+	}
+
 	/**
 	 * 释放资源
 	 * @throws IOException 
@@ -0,0 +1,71 @@
+package org.inchain.store;
+
+import org.inchain.utils.Utils;
+
+/**
+ * 区块文件里一段数据的位置，存放在区块存储里作为索引
+ * 格式：4字节文件编号 + 4字节偏移 + 4字节长度 + 4字节校验和，校验和是网络消息头里用的 sha256(sha256(数据)) 的前4个字节
+ * @author ln
+ *
+ */
+public class BlockFilePointer {
+
+	public final static int LENGTH = 16;
+
+	private final int file;
+	private final int offset;
+	private final int length;
+	private final byte[] checksum;
+
+	public BlockFilePointer(int file, int offset, int length, byte[] checksum) {
+		this.file = file;
+		this.offset = offset;
+		this.length = length;
+		this.checksum = checksum;
+	}
+
+	/**
+	 * 解析存储的索引，格式不对返回null
+	 * @param content
+	 * @return BlockFilePointer
+	 */
+	public static BlockFilePointer parse(byte[] content) {
+		if(content == null || content.length != LENGTH) {
+			return null;
+		}
+		byte[] checksum = new byte[4];
+		System.arraycopy(content, 12, checksum, 0, 4);
+		return new BlockFilePointer((int) Utils.readUint32(content, 0), (int) Utils.readUint32(content, 4),
+				(int) Utils.readUint32(content, 8), checksum);
+	}
+
+	public byte[] serialize() {
+		byte[] content = new byte[LENGTH];
+		Utils.uint32ToByteArrayLE(file, content, 0);
+		Utils.uint32ToByteArrayLE(offset, content, 4);
+		Utils.uint32ToByteArrayLE(length, content, 8);
+		System.arraycopy(checksum, 0, content, 12, 4);
+		return content;
+	}
+
+	public int getFile() {
+		return file;
+	}
+
+	public int getOffset() {
+		return offset;
+	}
+
+	public int getLength() {
+		return length;
+	}
+
+	public byte[] getChecksum() {
+		return checksum;
+	}
+
+	@Override
+	public String toString() {
+		return "BlockFilePointer [file=" + file + ", offset=" + offset + ", length=" + length + "]";
+	}
+}
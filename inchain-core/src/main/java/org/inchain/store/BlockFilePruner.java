@@ -0,0 +1,73 @@
+package org.inchain.store;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.inchain.Configure;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+/**
+ * 区块文件裁剪服务
+ * 配置了 {@link Configure#PRUNE_KEEP_BLOCKS} 时在后台定时删除旧的区块文件，只保留最近的区块
+ * @author ln
+ *
+ */
+@Service
+public class BlockFilePruner {
+
+	private static final Logger log = LoggerFactory.getLogger(BlockFilePruner.class);
+	
+	//最少保留的区块数，保证正常的分叉切换和给其它节点同步最近的区块
+	public final static int MIN_KEEP_BLOCKS = 2000;
+	
+	@Autowired
+	private BlockStoreProvider blockStoreProvider;
+	
+	private volatile boolean running;
+	
+	@PostConstruct
+	public void init() {
+		if(Configure.PRUNE_KEEP_BLOCKS <= 0) {
+			return;
+		}
+		running = true;
+		Thread t = new Thread() {
+			@Override
+			public void run() {
+				startPrune();
+			}
+		};
+		t.setName("block file pruner");
+		t.setDaemon(true);
+		t.start();
+	}
+	
+	@PreDestroy
+	public void stop() {
+		running = false;
+	}
+	
+	protected void startPrune() {
+		int keepBlocks = Math.max(Configure.PRUNE_KEEP_BLOCKS, MIN_KEEP_BLOCKS);
+		log.info("开启区块文件裁剪，保留最近 {} 个区块", keepBlocks);
+		
+		while(running) {
+			try {
+				//每分钟检查一次
+				Thread.sleep(60000l);
+				if(!blockStoreProvider.isFlatFileEngine()) {
+					log.warn("区块存储不是 flatfile 引擎，不能裁剪");
+					return;
+				}
+				blockStoreProvider.pruneBlockFiles(keepBlocks);
+			} catch (InterruptedException e) {
+				return;
+			} catch (Exception e) {
+				log.error("裁剪区块文件出错", e);
+			}
+		}
+	}
+}
@@ -0,0 +1,276 @@
+package org.inchain.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.annotation.PreDestroy;
+
+import org.inchain.Configure;
+import org.inchain.crypto.Sha256Hash;
+import org.inchain.network.NetworkParams;
+import org.inchain.utils.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Repository;
+
+/**
+ * 区块原始数据文件
+ * 区块序列化后的数据按顺序追加写入 blk00000.dat、blk00001.dat ... ，单个文件写满 {@link Configure#BLOCK_FILE_SIZE} 后换下一个，写入的数据不再修改
+ * 每条记录：4字节网络魔法数 + 4字节数据长度 + 数据，数据的位置 {@link BlockFilePointer} 由调用者保存到索引里
+ * 读取时把文件映射到内存，直接返回对应区间的只读视图，不需要复制和反序列化
+ * @author ln
+ *
+ */
+@Repository
+public class BlockFileStore {
+
+	private static final Logger log = LoggerFactory.getLogger(BlockFileStore.class);
+
+	private final static String FILE_PREFIX = "blk";
+	private final static String FILE_SUFFIX = ".dat";
+	//记录头长度，魔法数 + 数据长度
+	private final static int RECORD_HEADER_LENGTH = 8;
+
+	@Autowired
+	private NetworkParams network;
+
+	private final Lock writeLock = new ReentrantLock();
+	//正在写入的文件
+	private int currentFile = -1;
+	private FileChannel currentChannel;
+	private long currentSize;
+
+	//已映射的文件，正在写入的文件变长后重新映射
+	private final ConcurrentHashMap<Integer, MappedByteBuffer> mappings = new ConcurrentHashMap<Integer, MappedByteBuffer>();
+
+	/**
+	 * 追加一条数据，返回数据的位置，写入后立即刷到磁盘，之后再保存索引
+	 * @param content
+	 * @return BlockFilePointer
+	 * @throws IOException
+	 */
+	public BlockFilePointer append(byte[] content) throws IOException {
+		writeLock.lock();
+		try {
+			int recordLength = RECORD_HEADER_LENGTH + content.length;
+			if(currentChannel == null) {
+				openCurrentFile();
+			}
+			if(currentSize > 0 && currentSize + recordLength > Configure.BLOCK_FILE_SIZE) {
+				currentChannel.close();
+				currentFile++;
+				currentChannel = openChannel(currentFile);
+				currentSize = currentChannel.size();
+			}
+
+			ByteBuffer buffer = ByteBuffer.allocate(recordLength);
+			byte[] header = new byte[RECORD_HEADER_LENGTH];
+			Utils.uint32ToByteArrayBE(network.getPacketMagic(), header, 0);
+			Utils.uint32ToByteArrayLE(content.length, header, 4);
+			buffer.put(header);
+			buffer.put(content);
+			buffer.flip();
+
+			long position = currentSize;
+			while(buffer.hasRemaining()) {
+				currentChannel.write(buffer, position + buffer.position());
+			}
+			currentChannel.force(false);
+			currentSize = position + recordLength;
+
+			byte[] checksum = new byte[4];
+			System.arraycopy(Sha256Hash.hashTwice(content), 0, checksum, 0, 4);
+			return new BlockFilePointer(currentFile, (int) position + RECORD_HEADER_LENGTH, content.length, checksum);
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * 读取数据，返回文件映射的只读视图，position 为 0，limit 为数据长度
+	 * 文件不存在或者位置超出文件时返回null
+	 * @param pointer
+	 * @return ByteBuffer
+	 */
+	public ByteBuffer read(BlockFilePointer pointer) {
+		long end = (long) pointer.getOffset() + pointer.getLength();
+		MappedByteBuffer mapping = getMapping(pointer.getFile(), end);
+		if(mapping == null) {
+			return null;
+		}
+		ByteBuffer buffer = mapping.duplicate();
+		buffer.limit((int) end);
+		buffer.position(pointer.getOffset());
+		return buffer.slice();
+	}
+
+	/**
+	 * 读取数据到新的数组
+	 * @param pointer
+	 * @return byte[]
+	 */
+	public byte[] readBytes(BlockFilePointer pointer) {
+		ByteBuffer buffer = read(pointer);
+		if(buffer == null) {
+			return null;
+		}
+		byte[] content = new byte[buffer.remaining()];
+		buffer.get(content);
+		return content;
+	}
+
+	/**
+	 * 正在写入的文件编号
+	 * @return int
+	 * @throws IOException
+	 */
+	public int getCurrentFile() throws IOException {
+		writeLock.lock();
+		try {
+			if(currentChannel == null) {
+				openCurrentFile();
+			}
+			return currentFile;
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * 删除整个文件，正在写入的文件不能删除
+	 * 已经拿到的映射视图仍然可以读取，映射在没有引用之后由GC释放
+	 * @param file
+	 * @return boolean
+	 */
+	public boolean delete(int file) {
+		writeLock.lock();
+		try {
+			if(file == currentFile) {
+				return false;
+			}
+			synchronized (mappings) {
+				mappings.remove(file);
+			}
+			File f = getFile(file);
+			return !f.exists() || f.delete();
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/*
+	 * 获取文件的映射，映射的长度不够时重新映射
+	 */
+	private MappedByteBuffer getMapping(int file, long end) {
+		MappedByteBuffer mapping = mappings.get(file);
+		if(mapping != null && mapping.capacity() >= end) {
+			return mapping;
+		}
+		synchronized (mappings) {
+			mapping = mappings.get(file);
+			if(mapping != null && mapping.capacity() >= end) {
+				return mapping;
+			}
+			File f = getFile(file);
+			if(!f.exists()) {
+				return null;
+			}
+			RandomAccessFile raf = null;
+			try {
+				raf = new RandomAccessFile(f, "r");
+				FileChannel channel = raf.getChannel();
+				long size = channel.size();
+				if(size < end) {
+					return null;
+				}
+				//关闭文件后映射仍然有效
+				mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+				mappings.put(file, mapping);
+				return mapping;
+			} catch (IOException e) {
+				log.error("映射区块文件 {} 出错", f, e);
+				return null;
+			} finally {
+				if(raf != null) {
+					try {
+						raf.close();
+					} catch (IOException e) {
+					}
+				}
+			}
+		}
+	}
+
+	/*
+	 * 找到编号最大的文件继续写入
+	 */
+	private void openCurrentFile() throws IOException {
+		File dir = new File(Configure.DATA_BLOCK_FILES);
+		if(!dir.exists() && !dir.mkdirs()) {
+			throw new IOException("创建区块文件目录失败 " + dir);
+		}
+		int last = 0;
+		String[] names = dir.list();
+		if(names != null) {
+			for (String name : names) {
+				int number = parseFileNumber(name);
+				if(number > last) {
+					last = number;
+				}
+			}
+		}
+		currentFile = last;
+		currentChannel = openChannel(currentFile);
+		currentSize = currentChannel.size();
+		log.info("区块文件 {}，已写入 {} 字节", getFile(currentFile).getName(), currentSize);
+	}
+
+	@SuppressWarnings("resource")
+	private FileChannel openChannel(int file) throws IOException {
+		return new RandomAccessFile(getFile(file), "rw").getChannel();
+	}
+
+	/**
+	 * 文件名对应的编号，不是区块文件返回-1
+	 * @param name
+	 * @return int
+	 */
+	static int parseFileNumber(String name) {
+		if(!name.startsWith(FILE_PREFIX) || !name.endsWith(FILE_SUFFIX)) {
+			return -1;
+		}
+		try {
+			return Integer.parseInt(name.substring(FILE_PREFIX.length(), name.length() - FILE_SUFFIX.length()));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	File getFile(int file) {
+		return new File(Configure.DATA_BLOCK_FILES, String.format("%s%05d%s", FILE_PREFIX, file, FILE_SUFFIX));
+	}
+
+	@PreDestroy
+	public void close() {
+		writeLock.lock();
+		try {
+			if(currentChannel != null) {
+				currentChannel.close();
+				currentChannel = null;
+			}
+		} catch (IOException e) {
+			log.error("关闭区块文件出错", e);
+		} finally {
+			writeLock.unlock();
+		}
+		mappings.clear();
+	}
+}
@@ -3,8 +3,11 @@ package org.inchain.store;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map.Entry;
 import java.util.Set;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -16,10 +19,14 @@ import org.inchain.account.AccountBody;
 import org.inchain.account.Address;
 import org.inchain.consensus.ConsensusMeeting;
 import org.inchain.consensus.ConsensusPool;
+import org.inchain.consensus.ConsensusRosterDelta;
+import org.inchain.consensus.ConsensusRosterHistory;
 import org.inchain.core.Coin;
 import org.inchain.core.Definition;
+import org.inchain.core.TimeService;
 import org.inchain.core.exception.VerificationException;
 import org.inchain.crypto.Sha256Hash;
+import org.inchain.db.Db;
 import org.inchain.filter.BloomFilter;
 import org.inchain.listener.TransactionListener;
 import org.inchain.mempool.MempoolContainer;
@@ -62,13 +69,76 @@ public class BlockStoreProvider extends BaseStoreProvider {
 	//区块锁，保证每次新增区块时，不会有并发问题，每次读取最新区块时始终会返回本地最新的一个块
 	//当新增时也要检查要保存的块是否和最新的块能衔接上
 	private final static Lock blockLock = new ReentrantLock();
+	//索引类记录的 key 以它开头，后面接1字节记录类型
+	//比4字节的高度key长，按前缀遍历不会经过高度key，区块和交易hash以它开头的概率可以忽略，并且长度和这些记录都不同
+	private final static byte[] INDEX_KEY_NAMESPACE = new byte[] { (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff };
 	//最新区块标识
-	private final static byte[] bestBlockKey = Sha256Hash.ZERO_HASH.getBytes();
+	final static byte[] bestBlockKey = Sha256Hash.ZERO_HASH.getBytes();
+	//地址交易索引前缀，key 为 前缀 + hash160 + 4字节高度 + 交易hash + 4字节输出序号
+	final static byte[] ADDRESS_INDEX_PREFIX = getIndexKeyPrefix(9);
+	final static int ADDRESS_INDEX_KEY_LENGTH = ADDRESS_INDEX_PREFIX.length + Address.LENGTH + 4 + Sha256Hash.LENGTH + 4;
+	//版本1和版本2的地址交易索引前缀，和 0x00090000 - 0x0009ffff 的高度key重叠
+	final static byte[] OLD_ADDRESS_INDEX_PREFIX = new byte[] { 0, 9 };
+	//版本1的key长度，输出序号只有1个字节
+	final static int ADDRESS_INDEX_V1_KEY_LENGTH = OLD_ADDRESS_INDEX_PREFIX.length + Address.LENGTH + 4 + Sha256Hash.LENGTH + 1;
+	//版本2的key长度，除了前缀和当前的格式相同
+	final static int ADDRESS_INDEX_V2_KEY_LENGTH = OLD_ADDRESS_INDEX_PREFIX.length + Address.LENGTH + 4 + Sha256Hash.LENGTH + 4;
+	//交易和地址的关联不是输出时，输出序号记为-1，存储为0xffffffff
+	final static int ADDRESS_INDEX_NOT_OUTPUT = -1;
+	//地址交易索引是否已覆盖整条链，值为索引格式版本，没有或者版本不对的话需要先清空，再遍历一次区块重建
+	final static byte[] ADDRESS_INDEX_COMPLETE_KEY = Sha256Hash.of("address_index_complete".getBytes()).getBytes();
+	//版本1的输出序号只有1个字节，超过255的输出会和其它输出混淆，版本2的前缀和高度key重叠
+	final static byte ADDRESS_INDEX_VERSION = 3;
+	//共识变化记录前缀，key 为 前缀 + 4字节高度，只有包含共识变化的区块才有记录
+	final static byte[] CONSENSUS_DELTA_PREFIX = getIndexKeyPrefix(10);
+	//版本1的共识变化记录前缀，和 0x000a0000 - 0x000affff 的高度key重叠
+	final static byte[] OLD_CONSENSUS_DELTA_PREFIX = new byte[] { 0, 10 };
+	//共识变化记录是否已覆盖整条链，值为记录格式版本
+	final static byte[] CONSENSUS_DELTA_COMPLETE_KEY = Sha256Hash.of("consensus_delta_complete".getBytes()).getBytes();
+	//版本1的前缀和高度key重叠
+	final static byte CONSENSUS_DELTA_VERSION = 2;
+	//区块原始数据在区块文件里的位置，key 为 前缀 + 区块hash
+	final static byte[] BLOCK_FILE_PREFIX = getIndexKeyPrefix(12);
+	//区块文件信息前缀，后面是4字节文件编号，值是文件里区块的最小和最大高度
+	final static byte[] BLOCK_FILE_INFO_PREFIX = getIndexKeyPrefix(13);
+	//老版本的区块文件记录前缀，和 0x000c0000 - 0x000dffff 的高度key重叠
+	final static byte[] OLD_BLOCK_FILE_PREFIX = new byte[] { 0, 12 };
+	final static byte[] OLD_BLOCK_FILE_INFO_PREFIX = new byte[] { 0, 13 };
+	//区块文件记录已从老版本的前缀转移过来
+	final static byte[] BLOCK_FILE_KEYS_MOVED_KEY = Sha256Hash.of("block_file_keys_moved".getBytes()).getBytes();
+	//区块存储使用的引擎，新建区块存储时写入
+	final static byte[] STORE_ENGINE_KEY = Sha256Hash.of("store_engine".getBytes()).getBytes();
+	private final static String STORE_ENGINE_FLATFILE = "flatfile";
+	//已裁剪到的区块高度
+	final static byte[] PRUNED_HEIGHT_KEY = Sha256Hash.of("pruned_height".getBytes()).getBytes();
+	//快照导入开始时写入，和最新块标识在同一批次里删除，存在时说明导入中断，存储里的数据不完整
+	final static byte[] SNAPSHOT_IMPORTING_KEY = Sha256Hash.of("snapshot_importing".getBytes()).getBytes();
+	//链状态存储里记录的，状态已包含到的区块hash，和状态的修改在同一批次里写入
+	//链状态和区块存储分别提交，区块存储提交失败时两边会不一致，启动时用它来发现
+	final static byte[] CHAINSTATE_BLOCK_KEY = Sha256Hash.of("chainstate_block".getBytes()).getBytes();
+	//flatfile 引擎下交易的存储内容：1字节标记 + 4字节区块高度 + 交易在区块文件里的位置
+	//正常的交易存储第一个字节是状态长度，不会是这个值
+	final static byte TX_POINTER_FLAG = (byte) 0xff;
+	final static int TX_POINTER_LENGTH = 5 + BlockFilePointer.LENGTH;
+	//区块头缓存，key为区块hash
+	private final StoreCache<BlockHeaderStore> headerCache = newCache("header", Configure.CACHE_HEADER_SIZE);
+	//区块高度缓存，key为4字节高度，值为区块hash
+	private final StoreCache<byte[]> heightCache = newCache("height", Configure.CACHE_HEADER_SIZE);
+	//交易缓存，key为交易hash
+	private final StoreCache<TransactionStore> transactionCache = newCache("transaction", Configure.CACHE_TRANSACTION_SIZE);
+	//是否使用 flatfile 引擎，第一次用到时确定
+	private volatile Boolean flatFileEngine;
 	//账户过滤器，用于判断交易是否与我有关
 	private BloomFilter accountFilter = new BloomFilter(100000, 0.0001, RandomUtil.randomLong());;
 	//区块状态提供器
 	@Autowired
 	private ChainstateStoreProvider chainstateStoreProvider;
+	//交易输出花费状态
+	@Autowired
+	private UtxoSet utxoSet;
+	//区块原始数据文件
+	@Autowired
+	private BlockFileStore blockFileStore;
 	//共识缓存器
 	@Autowired
 	private ConsensusPool consensusPool;
@@ -76,13 +146,120 @@ public class BlockStoreProvider extends BaseStoreProvider {
 	private ConsensusMeeting consensusMeeting;
 	@Autowired
 	private CreditCollectionService creditCollectionService;
+	@Autowired
+	private ConsensusRosterHistory consensusRosterHistory;
 
 	//新交易监听器
 	private TransactionListener transactionListener;
 	
 	//单例
 	BlockStoreProvider() {
-		super(Configure.DATA_BLOCK);
+		this(Configure.DATA_BLOCK);
+	}
+	
+	BlockStoreProvider(String dir) {
+		super(dir);
+		//老版本的区块文件记录、地址交易索引和共识变化记录转移到新的前缀
+		moveBlockFileKeys();
+		moveAddressIndexKeys();
+		moveConsensusDeltaKeys();
+	}
+	
+	/*
+	 * 索引类记录的 key 前缀
+	 */
+	private static byte[] getIndexKeyPrefix(int type) {
+		byte[] prefix = Arrays.copyOf(INDEX_KEY_NAMESPACE, INDEX_KEY_NAMESPACE.length + 1);
+		prefix[INDEX_KEY_NAMESPACE.length] = (byte) type;
+		return prefix;
+	}
+	
+	/*
+	 * 把老版本前缀的区块文件记录转移到新的前缀，只执行一次
+	 */
+	private void moveBlockFileKeys() {
+		if(db.get(BLOCK_FILE_KEYS_MOVED_KEY) != null) {
+			return;
+		}
+		int count = moveIndexKeys(OLD_BLOCK_FILE_PREFIX, OLD_BLOCK_FILE_PREFIX.length + Sha256Hash.LENGTH, BLOCK_FILE_PREFIX);
+		count += moveIndexKeys(OLD_BLOCK_FILE_INFO_PREFIX, OLD_BLOCK_FILE_INFO_PREFIX.length + 4, BLOCK_FILE_INFO_PREFIX);
+		db.put(BLOCK_FILE_KEYS_MOVED_KEY, new byte[] { 1 });
+		if(count > 0) {
+			log.info("区块文件记录转移了 {} 条", count);
+		}
+	}
+	
+	/*
+	 * 版本2的地址交易索引格式不变，转移到新的前缀并更新标记，返回是否转移了
+	 */
+	private boolean moveAddressIndexKeys() {
+		byte[] version = db.get(ADDRESS_INDEX_COMPLETE_KEY);
+		if(version == null || version.length != 1 || version[0] != 2) {
+			return false;
+		}
+		int count = moveIndexKeys(OLD_ADDRESS_INDEX_PREFIX, ADDRESS_INDEX_V2_KEY_LENGTH, ADDRESS_INDEX_PREFIX);
+		db.put(ADDRESS_INDEX_COMPLETE_KEY, new byte[] { ADDRESS_INDEX_VERSION });
+		log.info("地址交易索引转移了 {} 条", count);
+		return true;
+	}
+	
+	/*
+	 * 版本1的共识变化记录格式不变，转移到新的前缀并更新标记
+	 */
+	private void moveConsensusDeltaKeys() {
+		byte[] version = db.get(CONSENSUS_DELTA_COMPLETE_KEY);
+		if(version == null || version.length != 1 || version[0] != 1) {
+			return;
+		}
+		int count = moveIndexKeys(OLD_CONSENSUS_DELTA_PREFIX, OLD_CONSENSUS_DELTA_PREFIX.length + 4, CONSENSUS_DELTA_PREFIX);
+		db.put(CONSENSUS_DELTA_COMPLETE_KEY, new byte[] { CONSENSUS_DELTA_VERSION });
+		log.info("共识变化记录转移了 {} 条", count);
+	}
+	
+	/*
+	 * 把以 oldPrefix 开头并且长度为 keyLength 的记录，换成 newPrefix 开头
+	 * 老前缀的范围里还有高度key和hash，按长度区分，先写新的再删老的，中途中断重新执行也不会丢数据
+	 */
+	int moveIndexKeys(final byte[] oldPrefix, final int keyLength, final byte[] newPrefix) {
+		final int[] count = new int[1];
+		//遍历的是打开时的快照，边遍历边改不影响遍历
+		db.forEachByPrefix(oldPrefix, new Db.EntryVisitor() {
+			@Override
+			public boolean visit(byte[] key, byte[] value) {
+				if(key.length != keyLength) {
+					return true;
+				}
+				byte[] newKey = new byte[newPrefix.length + key.length - oldPrefix.length];
+				System.arraycopy(newPrefix, 0, newKey, 0, newPrefix.length);
+				System.arraycopy(key, oldPrefix.length, newKey, newPrefix.length, key.length - oldPrefix.length);
+				db.put(newKey, value);
+				db.delete(key);
+				count[0]++;
+				return true;
+			}
+		});
+		return count[0];
+	}
+	
+	/*
+	 * 删除以 prefix 开头并且长度是 keyLengths 之一的记录
+	 */
+	private int deleteIndexKeys(byte[] prefix, final int... keyLengths) {
+		final int[] count = new int[1];
+		db.forEachByPrefix(prefix, new Db.EntryVisitor() {
+			@Override
+			public boolean visit(byte[] key, byte[] value) {
+				for (int keyLength : keyLengths) {
+					if(key.length == keyLength) {
+						db.delete(key);
+						count[0]++;
+						break;
+					}
+				}
+				return true;
+			}
+		});
+		return count[0];
 	}
 
 	@Override
@@ -102,7 +279,18 @@ public class BlockStoreProvider extends BaseStoreProvider {
 	 */
 	public void saveBlock(BlockStore blockStore) throws IOException, VerificationException {
 		blockLock.lock();
+		//区块和状态的所有写入先暂存到批次里，最后一起提交，避免中途出错导致数据只写了一半
+		boolean committed = false;
+		ConsensusRosterDelta consensusDelta = null;
+		//内存状态和监听器的修改，提交之后才执行
+		BlockChanges changes = new BlockChanges();
 		try {
+			consensusRosterHistory.beginChange();
+			db.beginBatch();
+			chainstateStoreProvider.beginBatch();
+			chainstateStoreProvider.recordConsensusChanges(changes.consensusChanges);
+			utxoSet.begin();
+			
 			//最新的区块
 			BlockHeaderStore bestBlockHeader = getBestBlockHeader();
 			//判断当前要保存的区块，是否是在最新区块之后
@@ -125,6 +313,32 @@ public class BlockStoreProvider extends BaseStoreProvider {
 			if(blockStore.getNextHash() == null) {
 				blockStore.setNextHash(Sha256Hash.ZERO_HASH);
 			}
+			//新链从创世块开始维护地址交易索引，关闭索引期间保存的区块没有索引，之后需要重建
+			if(!Configure.ADDRESS_INDEX) {
+				if(db.get(ADDRESS_INDEX_COMPLETE_KEY) != null) {
+					db.delete(ADDRESS_INDEX_COMPLETE_KEY);
+				}
+			} else if(block.getHeight() == 0l) {
+				db.put(ADDRESS_INDEX_COMPLETE_KEY, new byte[] { ADDRESS_INDEX_VERSION });
+			}
+			//共识变化记录，创世块的不需要，计算历史共识名单时不会撤销创世块
+			if(block.getHeight() > 0l) {
+				consensusDelta = ConsensusRosterDelta.of(block);
+				if(consensusDelta != null) {
+					db.put(getConsensusDeltaKey(block.getHeight()), consensusDelta.serialize());
+				}
+			} else {
+				db.put(CONSENSUS_DELTA_COMPLETE_KEY, new byte[] { CONSENSUS_DELTA_VERSION });
+				db.put(STORE_ENGINE_KEY, (isFlatFileEngine() ? STORE_ENGINE_FLATFILE : "leveldb").getBytes());
+			}
+			
+			//区块原始数据追加到区块文件，给其它节点发送时直接使用，flatfile 引擎下交易也只存在区块文件里
+			//文件先写入，索引随区块一起提交，区块保存失败时文件里多出的数据没有索引指向，不影响
+			boolean flatFile = isFlatFileEngine();
+			BlockFilePointer[] txPointers = null;
+			if(Configure.BLOCK_FILES || flatFile) {
+				txPointers = appendBlockFile(block, flatFile);
+			}
 			//先保存交易，再保存区块，保证区块体不出错
 			//保存交易
 			for (int i = 0; i < block.getTxCount(); i++) {
@@ -132,7 +346,18 @@ public class BlockStoreProvider extends BaseStoreProvider {
 		        
 				Transaction tx = txs.getTransaction();
 				
-				db.put(tx.getHash().getBytes(), txs.baseSerialize());
+				if(txPointers != null) {
+					db.put(tx.getHash().getBytes(), getTxPointerContent(block.getHeight(), txPointers[i]));
+				} else {
+					db.put(tx.getHash().getBytes(), txs.baseSerialize());
+				}
+				
+				//地址交易索引
+				if(Configure.ADDRESS_INDEX) {
+					for (byte[] indexKey : getAddressIndexKeys(tx, block.getHeight())) {
+						db.put(indexKey, new byte[0]);
+					}
+				}
 				
 				//TODO 下面的代码请使用状态模式重构
 				if(tx instanceof CreditTransaction) {
@@ -176,7 +401,8 @@ public class BlockStoreProvider extends BaseStoreProvider {
 					//存在时，增加信用
 					accountInfo.setCert(accountInfo.getCert() + creditTransaction.getCredit());
 					chainstateStoreProvider.saveAccountInfo(accountInfo);
-					creditCollectionService.addCredit(creditTransaction.getReasonType(), creditTransaction.getOwnerHash160(), block.getTime());
+					changes.addedCredits.add(creditTransaction);
+					changes.creditTime = block.getTime();
 				} else if(tx.isPaymentTransaction()) {
 					
 					//转账交易
@@ -188,31 +414,15 @@ public class BlockStoreProvider extends BaseStoreProvider {
 								continue;
 							}
 							for (TransactionOutput from : input.getFroms()) {
-								//对上一交易的引用以及索引值
-								Sha256Hash fromId = from.getParent().getHash();
-								int index = from.getIndex();
-								
-								byte[] key = new byte[fromId.getBytes().length + 1];
-								
-								System.arraycopy(fromId.getBytes(), 0, key, 0, key.length - 1);
-								key[key.length - 1] = (byte) index;
-								
-								chainstateStoreProvider.put(key, new byte[]{ TransactionStore.STATUS_USED});
+								//引用的上一交易输出标记为已花费
+								utxoSet.spend(from.getKey());
 							}
 						}
 					}
 					//添加输出
 					List<TransactionOutput> outputs = tx.getOutputs();
 					for (TransactionOutput output : outputs) {
-						Sha256Hash id = tx.getHash();
-						int index = output.getIndex();
-						
-						byte[] key = new byte[id.getBytes().length + 1];
-						
-						System.arraycopy(id.getBytes(), 0, key, 0, key.length - 1);
-						key[key.length - 1] = (byte) index;
-						
-						chainstateStoreProvider.put(key, new byte[]{ TransactionStore.STATUS_UNUSE});
+						utxoSet.add(UtxoSet.getKey(tx.getHash(), output.getIndex()));
 					}
 					//特殊业务交易处理
 					if(tx.getType() == Definition.TYPE_ANTIFAKE_CODE_MAKE) {
@@ -258,7 +468,7 @@ public class BlockStoreProvider extends BaseStoreProvider {
 						Account consensusAccount = consensusMeeting.getAccount();
 						if(consensusAccount != null && Arrays.equals(consensusAccount.getAddress().getHash160(), hash160)) {
 							//下一轮停止共识
-							consensusMeeting.resetCurrentMeetingItem();
+							changes.resetMeeting = true;
 						}
 					}
 				} else if(tx.getType() == Definition.TYPE_CERT_ACCOUNT_REGISTER || 
@@ -287,35 +497,10 @@ public class BlockStoreProvider extends BaseStoreProvider {
 						if(oldHash != null) {
 							chainstateStoreProvider.delete(oldHash.getBytes());
 						}
-						//修改之前的信息
-						byte[] certAccountHash160s = chainstateStoreProvider.getBytes(Configure.CERT_ACCOUNT_KEYS);
-						if(certAccountHash160s == null) {
-							certAccountHash160s = new byte[0];
-						}
-						
-						for (int j = 0; j < certAccountHash160s.length; j += (Address.LENGTH + Sha256Hash.LENGTH)) {
-							byte[] addressHash160 = Arrays.copyOfRange(certAccountHash160s, j, j + Address.LENGTH);
-							if(Arrays.equals(addressHash160, rtx.getHash160())) {
-								byte[] newBusinessHash160s = new byte[certAccountHash160s.length];
-
-								System.arraycopy(certAccountHash160s, 0, newBusinessHash160s, 0, j);
-								System.arraycopy(addressHash160, 0, newBusinessHash160s, 0, Address.LENGTH);
-								System.arraycopy(rtx.getHash().getBytes(), 0, newBusinessHash160s, 0, Sha256Hash.LENGTH);
-								System.arraycopy(certAccountHash160s, j + (Address.LENGTH + Sha256Hash.LENGTH), newBusinessHash160s, j, certAccountHash160s.length - j - (Address.LENGTH + Sha256Hash.LENGTH));
-								chainstateStoreProvider.put(Configure.CERT_ACCOUNT_KEYS, newBusinessHash160s);
-								break;
-							}
-						}
+						//认证账户列表里只有账户的hash160，修改信息不需要更新列表
 					} else {
 						//账户注册，加入到认证账户列表中
-						byte[] certAccountHash160s = chainstateStoreProvider.getBytes(Configure.CERT_ACCOUNT_KEYS);
-						if(certAccountHash160s == null) {
-							certAccountHash160s = new byte[0];
-						}
-						byte[] newBusinessHash160s = new byte[certAccountHash160s.length + Address.LENGTH];
-						System.arraycopy(certAccountHash160s, 0, newBusinessHash160s, 0, certAccountHash160s.length);
-						System.arraycopy(rtx.getHash160(), 0, newBusinessHash160s, certAccountHash160s.length, Address.LENGTH);
-						chainstateStoreProvider.put(Configure.CERT_ACCOUNT_KEYS, newBusinessHash160s);
+						chainstateStoreProvider.addCertAccount(rtx.getHash160());
 					}
 					chainstateStoreProvider.put(rtx.getHash().getBytes(), rtx.baseSerialize());
 					
@@ -352,7 +537,9 @@ public class BlockStoreProvider extends BaseStoreProvider {
 					chainstateStoreProvider.antifakeTransfer(attx.getAntifakeCode(), attx.getHash160(), attx.getReceiveHashs(), attx.getHash());
 				}
 				//交易是否与我有关
-				checkIsMineAndUpdate(txs);
+				if(checkTxIsMine(tx)) {
+					changes.newMineTxs.add(txs);
+				}
 			}
 			
 			//保存块头
@@ -372,23 +559,53 @@ public class BlockStoreProvider extends BaseStoreProvider {
 				preBlockHeader.setNextHash(block.getHash());
 				db.put(preBlockHeader.getBlockHeader().getHash().getBytes(), preBlockHeader.baseSerialize());
 			}
+			
+			//先提交状态，再提交区块，最新区块标识在区块批次里，作为整个区块的提交点
+			//两个存储不是原子提交，状态里记下包含到的区块，区块存储提交失败时启动检查能发现
+			//输出状态的修改在区块边界一次性写入
+			chainstateStoreProvider.put(CHAINSTATE_BLOCK_KEY, hash.getBytes());
+			utxoSet.flush();
+			chainstateStoreProvider.commitBatch();
+			utxoSet.commit();
+			commitBatch();
+			committed = true;
+			chainstateStoreProvider.applyConsensusChanges(changes.consensusChanges);
+			consensusPool.setHeight(block.getHeight());
+			applyChanges(changes);
 		} catch (Exception e) {
 			log.info("保存区块出错：", e);
 			throw e;
 		} finally {
-			blockLock.unlock();
+			try {
+				chainstateStoreProvider.recordConsensusChanges(null);
+				if(!committed) {
+					discardBlockBatch();
+				}
+				consensusRosterHistory.endSave(committed ? blockStore.getBlock() : null, consensusDelta);
+			} finally {
+				blockLock.unlock();
+			}
 		}
 	}
 
 	/**
 	 * 撤销本地最新块，放入分叉块中，目前先放到状态存储中
 	 * 注意块的撤销，只能重最新块依次处理
-	 * 需要有出错回滚事务 TODO
+	 * 撤销过程的写入和保存区块一样，暂存到批次里一起提交，出错则全部放弃
 	 */
 	public Block revokedNewestBlock() {
 		blockLock.lock();
+		boolean committed = false;
+		Block bestBlock = null;
+		BlockChanges changes = new BlockChanges();
 		try {
-			Block bestBlock = getBestBlock().getBlock();
+			consensusRosterHistory.beginChange();
+			db.beginBatch();
+			chainstateStoreProvider.beginBatch();
+			chainstateStoreProvider.recordConsensusChanges(changes.consensusChanges);
+			utxoSet.begin();
+			
+			bestBlock = getBestBlock().getBlock();
 			
 			if(bestBlock.getHash().equals(network.getGengsisBlock().getBlock().getHash())) {
 				//创世块，禁止
@@ -406,6 +623,8 @@ public class BlockStoreProvider extends BaseStoreProvider {
 			Utils.uint32ToByteArrayBE(bestBlock.getHeight(), heightBytes, 0);
 			
 			db.delete(heightBytes);
+			db.delete(getConsensusDeltaKey(bestBlock.getHeight()));
+			db.delete(getBlockFileKey(bestBlockHash.getBytes()));
 			
 			//更新最新区块
 			db.put(bestBlockKey, bestBlock.getPreHash().getBytes());
@@ -423,11 +642,56 @@ public class BlockStoreProvider extends BaseStoreProvider {
 			for (int i = (int) (bestBlock.getTxCount() - 1); i >= 0 ; i--) {
 				TransactionStore txs = new TransactionStore(network, bestBlock.getTxs().get(i), bestBlock.getHeight(), null);
 				
-				revokedTransaction(txs);
+				revokedTransaction(txs, false, changes);
+			}
+			
+			//输出状态的修改在区块边界一次性写入
+			chainstateStoreProvider.put(CHAINSTATE_BLOCK_KEY, bestBlock.getPreHash().getBytes());
+			utxoSet.flush();
+			chainstateStoreProvider.commitBatch();
+			utxoSet.commit();
+			commitBatch();
+			committed = true;
+			chainstateStoreProvider.applyConsensusChanges(changes.consensusChanges);
+			consensusPool.setHeight(bestBlock.getHeight() - 1);
+			applyChanges(changes);
+			
+			//交易按区块里的顺序放回内存池，父交易先放回，子交易的费率才会按父交易限制
+			for (Transaction tx : bestBlock.getTxs()) {
+				if(isMempoolTransaction(tx)) {
+					MempoolContainer.getInstace().add(tx);
+				}
 			}
+			
 			return bestBlock;
+		} catch (IOException | RuntimeException e) {
+			log.error("撤销区块出错：", e);
+			return null;
 		} finally {
-			blockLock.unlock();
+			try {
+				chainstateStoreProvider.recordConsensusChanges(null);
+				if(!committed) {
+					discardBlockBatch();
+				}
+				consensusRosterHistory.endRevoke(committed ? bestBlock : null);
+			} finally {
+				blockLock.unlock();
+			}
+		}
+	}
+	
+	/*
+	 * 放弃保存或撤销区块的批次，前面的放弃出错也要保证后面的批次结束，不在当前线程留下未结束的批次
+	 */
+	private void discardBlockBatch() {
+		try {
+			utxoSet.discard();
+		} finally {
+			try {
+				chainstateStoreProvider.discardBatch();
+			} finally {
+				discardBatch();
+			}
 		}
 	}
 	
@@ -436,16 +700,31 @@ public class BlockStoreProvider extends BaseStoreProvider {
 	 * @param txs
 	 */
 	public void revokedTransaction(TransactionStore txs) {
+		BlockChanges changes = new BlockChanges();
+		revokedTransaction(txs, true, changes);
+		applyChanges(changes);
+	}
+	
+	/*
+	 * 重置交易，returnToMempool 为false时由调用者放回内存池
+	 * 内存状态和监听器的修改记在 changes 里，由调用者在写入之后执行
+	 */
+	private void revokedTransaction(TransactionStore txs, boolean returnToMempool, BlockChanges changes) {
 		
 		Transaction tx = txs.getTransaction();
 		
+		//删除地址交易索引，需要在交易删除之前，因为要读取引用的交易
+		if(Configure.ADDRESS_INDEX) {
+			for (byte[] indexKey : getAddressIndexKeys(tx, txs.getHeight())) {
+				db.delete(indexKey);
+			}
+		}
+		
 		db.delete(tx.getHash().getBytes());
 		
 		//把这些交易再次放回内存中
 		//除信用交易外
-		if(!(tx.getType() == Definition.TYPE_COINBASE ||
-				tx.getType() == Definition.TYPE_CREDIT ||
-				tx.getType() == Definition.TYPE_VIOLATION)) {
+		if(returnToMempool && isMempoolTransaction(tx)) {
 			MempoolContainer.getInstace().add(tx);
 		}
 		
@@ -461,31 +740,15 @@ public class BlockStoreProvider extends BaseStoreProvider {
 					}
 					
 					for (TransactionOutput from : input.getFroms()) {
-						//对上一交易的引用以及索引值
-						Sha256Hash fromId = from.getParent().getHash();
-						int index = from.getIndex();
-						
-						byte[] key = new byte[fromId.getBytes().length + 1];
-						
-						System.arraycopy(fromId.getBytes(), 0, key, 0, key.length - 1);
-						key[key.length - 1] = (byte) index;
-						
-						chainstateStoreProvider.put(key, new byte[]{ TransactionStore.STATUS_UNUSE});
+						//引用的上一交易输出恢复为未花费
+						utxoSet.add(from.getKey());
 					}
 				}
 			}
 			//添加输出
 			List<TransactionOutput> outputs = tx.getOutputs();
 			for (TransactionOutput output : outputs) {
-				Sha256Hash id = tx.getHash();
-				int index = output.getIndex();
-				
-				byte[] key = new byte[id.getBytes().length + 1];
-				
-				System.arraycopy(id.getBytes(), 0, key, 0, key.length - 1);
-				key[key.length - 1] = (byte) index;
-				
-				chainstateStoreProvider.delete(key);
+				utxoSet.remove(UtxoSet.getKey(tx.getHash(), output.getIndex()));
 			}
 			//特殊业务交易处理
 			if(tx.getType() == Definition.TYPE_ANTIFAKE_CODE_MAKE) {
@@ -516,13 +779,13 @@ public class BlockStoreProvider extends BaseStoreProvider {
 				Account consensusAccount = consensusMeeting.getAccount();
 				if(consensusAccount != null && Arrays.equals(consensusAccount.getAddress().getHash160(), hash160)) {
 					//下一轮停止共识
-					consensusMeeting.resetCurrentMeetingItem();
+					changes.resetMeeting = true;
 				}
 			} else if(tx.getType() == Definition.TYPE_REM_CONSENSUS || tx.getType() == Definition.TYPE_VIOLATION) {
 				//退出或者被踢出共识，这里需要再次加入
 				chainstateStoreProvider.revokedConsensus(tx);
 				
-				consensusMeeting.resetCurrentMeetingItem();
+				changes.resetMeeting = true;
 			}
 		} else if(tx instanceof CreditTransaction) {
 			//信用值的增加
@@ -533,7 +796,7 @@ public class BlockStoreProvider extends BaseStoreProvider {
 			accountInfo.setCert(accountInfo.getCert() - creditTransaction.getCredit());
 			chainstateStoreProvider.saveAccountInfo(accountInfo);
 
-			creditCollectionService.removeCredit(creditTransaction.getReasonType(), creditTransaction.getOwnerHash160());
+			changes.removedCredits.add(creditTransaction);
 		} else if(tx.getType() == Definition.TYPE_RELEVANCE_SUBACCOUNT) {
 			//认证账户关联子账户
 			RelevanceSubAccountTransaction relevancSubAccountTx = (RelevanceSubAccountTransaction) tx;
@@ -579,26 +842,6 @@ public class BlockStoreProvider extends BaseStoreProvider {
 						
 						chainstateStoreProvider.put(newCertTx.getHash().getBytes(), newCertTx.baseSerialize());
 						
-						//修改之前的信息
-						byte[] certAccountHash160s = chainstateStoreProvider.getBytes(Configure.CERT_ACCOUNT_KEYS);
-						if(certAccountHash160s == null) {
-							certAccountHash160s = new byte[0];
-						}
-						
-						for (int j = 0; j < certAccountHash160s.length; j += (Address.LENGTH + Sha256Hash.LENGTH)) {
-							byte[] addressHash160 = Arrays.copyOfRange(certAccountHash160s, j, j + Address.LENGTH);
-							if(Arrays.equals(addressHash160, newCertTx.getHash160())) {
-								byte[] newBusinessHash160s = new byte[certAccountHash160s.length];
-
-								System.arraycopy(certAccountHash160s, 0, newBusinessHash160s, 0, j);
-								System.arraycopy(addressHash160, 0, newBusinessHash160s, 0, Address.LENGTH);
-								System.arraycopy(newCertTx.getHash().getBytes(), 0, newBusinessHash160s, 0, Sha256Hash.LENGTH);
-								System.arraycopy(certAccountHash160s, j + (Address.LENGTH + Sha256Hash.LENGTH), newBusinessHash160s, j, certAccountHash160s.length - j - (Address.LENGTH + Sha256Hash.LENGTH));
-								chainstateStoreProvider.put(Configure.CERT_ACCOUNT_KEYS, newBusinessHash160s);
-								break;
-							}
-						}
-						
 						AccountStore accountInfo = chainstateStoreProvider.getAccountInfo(newCertTx.getHash160());
 						byte[][] pubkeys = new byte[][] {newCertTx.getMgPubkeys()[0], newCertTx.getMgPubkeys()[1], newCertTx.getTrPubkeys()[0], newCertTx.getTrPubkeys()[1]};
 						accountInfo.setAccountBody(newCertTx.getBody());
@@ -617,44 +860,73 @@ public class BlockStoreProvider extends BaseStoreProvider {
 				chainstateStoreProvider.delete(rtx.getHash160());
 				
 				//从列表中删除
-				byte[] certAccountHash160s = chainstateStoreProvider.getBytes(Configure.CERT_ACCOUNT_KEYS);
-				if(certAccountHash160s != null) {
-					for (int j = 0; j < certAccountHash160s.length; j += (Address.LENGTH + Sha256Hash.LENGTH)) {
-						byte[] addressHash160 = Arrays.copyOfRange(certAccountHash160s, j, j + Address.LENGTH);
-						if(Arrays.equals(addressHash160, rtx.getHash160())) {
-							byte[] newBusinessHash160s = new byte[certAccountHash160s.length - (Address.LENGTH + Sha256Hash.LENGTH)];
-							
-							System.arraycopy(certAccountHash160s, 0, newBusinessHash160s, 0, j);
-							System.arraycopy(certAccountHash160s, j + (Address.LENGTH + Sha256Hash.LENGTH), newBusinessHash160s, j, certAccountHash160s.length - j - (Address.LENGTH + Sha256Hash.LENGTH));
-							chainstateStoreProvider.put(Configure.CERT_ACCOUNT_KEYS, newBusinessHash160s);
-							break;
-						}
-					}
-				}
+				chainstateStoreProvider.removeCertAccount(rtx.getHash160());
 			}
 		} else {
 			//TODO
 		}
 		
 		//交易是否与我有关
-		checkIsMineAndRevoked(txs);
+		if(checkTxIsMine(tx)) {
+			changes.revokedMineTxs.add(txs);
+		}
+	}
+	
+	/*
+	 * 撤销后可以放回内存池的交易，coinbase、信用和违规处理交易是出块时生成的，不放回
+	 */
+	private boolean isMempoolTransaction(Transaction tx) {
+		return !(tx.getType() == Definition.TYPE_COINBASE ||
+				tx.getType() == Definition.TYPE_CREDIT ||
+				tx.getType() == Definition.TYPE_VIOLATION);
 	}
 
-	/**
-	 * 检查交易是否与我有关，并且回滚交易状态
-	 * @param txs
+	/*
+	 * 保存或撤销区块的批次提交之后，执行内存状态和监听器的修改，批次放弃时这些修改直接丢掉
+	 * 这时数据已经写入，出错只记录，不影响区块的保存或撤销结果
 	 */
-	private void checkIsMineAndRevoked(TransactionStore txs) {
-		Transaction transaction = txs.getTransaction();
-		
-		boolean isMine = checkTxIsMine(transaction);
-		if(isMine) {
+	private void applyChanges(BlockChanges changes) {
+		try {
+			for (CreditTransaction creditTransaction : changes.addedCredits) {
+				creditCollectionService.addCredit(creditTransaction.getReasonType(), creditTransaction.getOwnerHash160(), changes.creditTime);
+			}
+			for (CreditTransaction creditTransaction : changes.removedCredits) {
+				creditCollectionService.removeCredit(creditTransaction.getReasonType(), creditTransaction.getOwnerHash160());
+			}
+			if(changes.resetMeeting) {
+				consensusMeeting.resetCurrentMeetingItem();
+			}
+			for (TransactionStore txs : changes.newMineTxs) {
+				updateMineTx(txs);
+			}
 			if(transactionListener != null) {
-				transactionListener.revokedTransaction(txs);
+				for (TransactionStore txs : changes.revokedMineTxs) {
+					transactionListener.revokedTransaction(txs);
+				}
 			}
+		} catch (RuntimeException e) {
+			log.error("区块已写入，更新内存状态出错", e);
 		}
 	}
 	
+	/*
+	 * 保存或撤销一个区块过程中，不在存储里的修改，先记下来，等批次提交
+	 */
+	private static class BlockChanges {
+		//增加信用的交易，信用时间为区块时间
+		private final List<CreditTransaction> addedCredits = new ArrayList<CreditTransaction>();
+		private long creditTime;
+		//撤销信用的交易
+		private final List<CreditTransaction> removedCredits = new ArrayList<CreditTransaction>();
+		//本节点的共识账户进入或者退出了共识，下一轮重新确定
+		private boolean resetMeeting;
+		//共识池的加入和退出，提交之后在更新共识池高度之前执行
+		private final List<ChainstateStoreProvider.ConsensusChange> consensusChanges = new ArrayList<ChainstateStoreProvider.ConsensusChange>();
+		//与我有关的交易
+		private final List<TransactionStore> newMineTxs = new ArrayList<TransactionStore>();
+		private final List<TransactionStore> revokedMineTxs = new ArrayList<TransactionStore>();
+	}
+	
 	/**
 	 * 检查交易是否与我有关，并且更新状态
 	 * @param txs
@@ -772,15 +1044,41 @@ public class BlockStoreProvider extends BaseStoreProvider {
 	 * @return BlockHeaderStore
 	 */
 	public BlockHeaderStore getHeader(byte[] hash) {
+		if(hash == null) {
+			return null;
+		}
+		boolean cacheable = isCacheable();
+		if(cacheable) {
+			BlockHeaderStore cached = headerCache.get(hash);
+			if(cached != null) {
+				return copyHeader(cached);
+			}
+		}
+		long version = headerCache.getVersion();
 		byte[] content = db.get(hash);
 		if(content == null) {
 			return null;
 		}
 		BlockHeaderStore blockHeaderStore = new BlockHeaderStore(network, content);
 		blockHeaderStore.getBlockHeader().setHash(Sha256Hash.wrap(hash));
+		if(cacheable) {
+			headerCache.put(hash, blockHeaderStore, version);
+			return copyHeader(blockHeaderStore);
+		}
 		return blockHeaderStore;
 	}
 	
+	/*
+	 * 缓存里的对象是共享的，返回给调用者的是一个浅拷贝，调用者修改下一区块指针不影响缓存
+	 */
+	private BlockHeaderStore copyHeader(BlockHeaderStore header) {
+		BlockHeaderStore copy = new BlockHeaderStore(network);
+		copy.setBlockHeader(header.getBlockHeader());
+		copy.setNextHash(header.getNextHash());
+		copy.setKey(header.getKey());
+		return copy;
+	}
+	
 	/**
 	 * 获取区块头信息
 	 * @param height
@@ -790,9 +1088,17 @@ public class BlockStoreProvider extends BaseStoreProvider {
 		byte[] heightBytes = new byte[4]; 
 		Utils.uint32ToByteArrayBE(height, heightBytes, 0);
 		
-		byte[] hash = db.get(heightBytes);
+		boolean cacheable = isCacheable();
+		byte[] hash = cacheable ? heightCache.get(heightBytes) : null;
 		if(hash == null) {
-			return null;
+			long version = heightCache.getVersion();
+			hash = db.get(heightBytes);
+			if(hash == null) {
+				return null;
+			}
+			if(cacheable) {
+				heightCache.put(heightBytes, hash, version);
+			}
 		}
 		return getHeader(hash);
 	}
@@ -822,6 +1128,7 @@ public class BlockStoreProvider extends BaseStoreProvider {
 	
 	/**
 	 * 通过区块头获取区块的完整信息，主要是把交易详情查询出来
+	 * 区块已被裁剪、交易不全时返回null，不返回不完整的区块
 	 * @param header
 	 * @return BlockStore
 	 */
@@ -834,7 +1141,10 @@ public class BlockStoreProvider extends BaseStoreProvider {
 			for (Sha256Hash txHash : header.getBlockHeader().getTxHashs()) {
 				TransactionStore tx = getTransaction(txHash.getBytes());
 				if(tx == null) {
-					continue;
+					if(log.isDebugEnabled()) {
+						log.debug("区块 {} 的交易 {} 不存在，高度 {}，已裁剪到 {}", blockHeader.getHash(), txHash, blockHeader.getHeight(), getPrunedHeight());
+					}
+					return null;
 				}
 				txs.add(tx.getTransaction());
 			}
@@ -862,192 +1172,958 @@ public class BlockStoreProvider extends BaseStoreProvider {
 		return blockStore;
 	}
 	
+	/**
+	 * 获取区块原始数据在区块文件里的位置，没有保存到区块文件的返回null
+	 * @param hash
+	 * @return BlockFilePointer
+	 */
+	public BlockFilePointer getBlockFilePointer(byte[] hash) {
+		if(hash == null) {
+			return null;
+		}
+		return BlockFilePointer.parse(db.get(getBlockFileKey(hash)));
+	}
+	
+	/*
+	 * 区块原始数据追加到区块文件，记录区块在文件里的位置
+	 * flatFile 为true时返回每笔交易在文件里的位置，否则返回null
+	 */
+	BlockFilePointer[] appendBlockFile(Block block, boolean flatFile) throws IOException {
+		byte[] payload = block.baseSerialize();
+		BlockFilePointer blockPointer = blockFileStore.append(payload);
+		db.put(getBlockFileKey(block.getHash().getBytes()), blockPointer.serialize());
+		updateBlockFileInfo(blockPointer.getFile(), block.getHeight());
+		if(!flatFile) {
+			return null;
+		}
+		
+		//交易数据在区块头之后依次排列
+		List<Transaction> txs = block.getTxs();
+		int[] txLengths = new int[txs.size()];
+		int txOffset = blockPointer.getOffset() + payload.length;
+		for (int i = 0; i < txLengths.length; i++) {
+			txLengths[i] = txs.get(i).baseSerialize().length;
+			txOffset -= txLengths[i];
+		}
+		BlockFilePointer[] txPointers = new BlockFilePointer[txLengths.length];
+		for (int i = 0; i < txLengths.length; i++) {
+			txPointers[i] = new BlockFilePointer(blockPointer.getFile(), txOffset, txLengths[i], new byte[4]);
+			txOffset += txLengths[i];
+		}
+		return txPointers;
+	}
+	
+	private byte[] getBlockFileKey(byte[] hash) {
+		byte[] key = new byte[BLOCK_FILE_PREFIX.length + Sha256Hash.LENGTH];
+		System.arraycopy(BLOCK_FILE_PREFIX, 0, key, 0, BLOCK_FILE_PREFIX.length);
+		System.arraycopy(hash, 0, key, BLOCK_FILE_PREFIX.length, Sha256Hash.LENGTH);
+		return key;
+	}
+	
 	/**
 	 * 获取一笔交易
 	 * @param hash
 	 * @return TransactionStore
 	 */
 	public TransactionStore getTransaction(byte[] hash) {
+		if(hash == null) {
+			return null;
+		}
+		boolean cacheable = isCacheable();
+		if(cacheable) {
+			TransactionStore cached = transactionCache.get(hash);
+			if(cached != null) {
+				return copyTransaction(cached);
+			}
+		}
+		long version = transactionCache.getVersion();
 		byte[] content = db.get(hash);
 		if(content == null) {
 			return null;
 		}
-		TransactionStore store = new TransactionStore(network, content);
+		TransactionStore store;
+		if(isTxPointer(content)) {
+			store = readFileTransaction(hash, content);
+			if(store == null) {
+				return null;
+			}
+		} else {
+			store = new TransactionStore(network, content);
+		}
 		store.setKey(hash);
 		
+		if(cacheable) {
+			transactionCache.put(hash, store, version);
+			return copyTransaction(store);
+		}
 		return store;
 	}
 	
-	/**
-	 * 获取最新块的头信息
-	 * @return BlockHeaderStore
+	private boolean isTxPointer(byte[] content) {
+		return content.length == TX_POINTER_LENGTH && content[0] == TX_POINTER_FLAG;
+	}
+	
+	byte[] getTxPointerContent(long height, BlockFilePointer pointer) {
+		byte[] content = new byte[TX_POINTER_LENGTH];
+		content[0] = TX_POINTER_FLAG;
+		Utils.uint32ToByteArrayLE(height, content, 1);
+		System.arraycopy(pointer.serialize(), 0, content, 5, BlockFilePointer.LENGTH);
+		return content;
+	}
+	
+	/*
+	 * 从区块文件读取交易，文件已被裁剪或者数据和交易哈希对不上时返回null
 	 */
-	public BlockHeaderStore getBestBlockHeader() {
-		blockLock.lock();
-		
-		byte[] bestBlockHash = null;
-		try {
-			if(db == null) {
-				return null;
-			}
-			bestBlockHash = db.get(bestBlockKey);
-		} catch (Exception e) {
+	private TransactionStore readFileTransaction(byte[] hash, byte[] content) {
+		long height = Utils.readUint32(content, 1);
+		BlockFilePointer pointer = BlockFilePointer.parse(Arrays.copyOfRange(content, 5, content.length));
+		byte[] txBytes = blockFileStore.readBytes(pointer);
+		if(txBytes == null) {
+			log.warn("区块文件里没有交易 {}, {}", Sha256Hash.wrap(hash), pointer);
 			return null;
-		} finally {
-			blockLock.unlock();
 		}
-		if(bestBlockHash == null) {
+		Transaction tx = network.getDefaultSerializer().makeTransaction(txBytes, 0);
+		if(!Arrays.equals(tx.getHash().getBytes(), hash)) {
+			log.error("区块文件里的交易数据错误 {}, {}", Sha256Hash.wrap(hash), pointer);
 			return null;
-		} else {
-			return getHeader(bestBlockHash);
 		}
+		return new TransactionStore(network, tx, height, new byte[0]);
 	}
 	
 	/**
-	 * 获取最新区块的完整信息
-	 * @return BlockStore
+	 * 是否使用 flatfile 引擎
+	 * 已有的区块存储按创建时记录的引擎，老版本创建的没有记录，是 leveldb；新建的按配置
+	 * @return boolean
 	 */
-	public BlockStore getBestBlock() {
-		//获取最新的区块
-		BlockHeaderStore header = getBestBlockHeader();
-		if(header == null) {
-			return null;
+	public boolean isFlatFileEngine() {
+		Boolean engine = flatFileEngine;
+		if(engine == null) {
+			boolean configured = STORE_ENGINE_FLATFILE.equalsIgnoreCase(Configure.STORE_ENGINE);
+			byte[] value = db.get(STORE_ENGINE_KEY);
+			if(value != null) {
+				engine = STORE_ENGINE_FLATFILE.equals(new String(value));
+			} else if(db.get(bestBlockKey) == null) {
+				engine = configured;
+			} else {
+				engine = false;
+			}
+			if(engine != configured) {
+				log.warn("区块存储已使用 {} 引擎，配置的 {} 不生效，切换引擎需要重新同步", engine ? STORE_ENGINE_FLATFILE : "leveldb", Configure.STORE_ENGINE);
+			}
+			flatFileEngine = engine;
 		}
-		return getBlockByHeader(header);
+		return engine;
 	}
 	
 	/**
-	 * 初始化账户过滤器
-	 * @param hash160s
+	 * 链状态和区块存储是否一致，链状态已提交而区块存储提交失败时，链状态会多包含一个区块的修改
+	 * 没有记录的老数据视为一致
+	 * @return boolean
 	 */
-	public void initAccountFilter(List<byte[]> hash160s) {
-		accountFilter = new BloomFilter(100000, 0.0001, RandomUtil.randomLong());
-		for (byte[] hash160 : hash160s) {
-			accountFilter.insert(hash160);
-		}
+	public boolean isChainstateConsistent() {
+		byte[] stateBlock = chainstateStoreProvider.getBytes(CHAINSTATE_BLOCK_KEY);
+		return stateBlock == null || Arrays.equals(stateBlock, db.get(bestBlockKey));
 	}
 	
 	/**
-	 * 添加账户过滤器记录
-	 * @param hash160
+	 * 快照导入是否中断，中断时区块存储和链状态存储的数据不完整，需要重新导入或者清空数据目录
+	 * @return boolean
 	 */
-	public void addAccountFilter(byte[] hash160) {
-		accountFilter.insert(hash160);
+	public boolean isSnapshotImporting() {
+		return db.get(SNAPSHOT_IMPORTING_KEY) != null;
+	}
+	
+	/*
+	 * 记录区块文件里区块的高度范围，裁剪时按文件整个删除
+	 */
+	private void updateBlockFileInfo(int file, long height) {
+		byte[] key = getBlockFileInfoKey(file);
+		byte[] value = db.get(key);
+		if(value == null) {
+			value = new byte[8];
+			Utils.uint32ToByteArrayBE(height, value, 0);
+		}
+		if(Utils.readUint32BE(value, 4) < height) {
+			Utils.uint32ToByteArrayBE(height, value, 4);
+		}
+		db.put(key, value);
+	}
+	
+	private byte[] getBlockFileInfoKey(int file) {
+		byte[] key = new byte[BLOCK_FILE_INFO_PREFIX.length + 4];
+		System.arraycopy(BLOCK_FILE_INFO_PREFIX, 0, key, 0, BLOCK_FILE_INFO_PREFIX.length);
+		Utils.uint32ToByteArrayBE(file, key, BLOCK_FILE_INFO_PREFIX.length);
+		return key;
 	}
 	
 	/**
-	 * 获取账户过滤器
-	 * @return BloomFilter
+	 * 已裁剪到的区块高度，这个高度及之前的区块不再完整，没有裁剪过返回-1
+	 * @return long
 	 */
-	public BloomFilter getAccountFilter() {
-		return accountFilter;
+	public long getPrunedHeight() {
+		byte[] value = db.get(PRUNED_HEIGHT_KEY);
+		if(value == null) {
+			return -1l;
+		}
+		return Utils.readUint32BE(value, 0);
 	}
-
+	
+	/*
+	 * 需要从创世块开始遍历完整区块的操作，区块裁剪过之后不能进行
+	 */
+	private void checkUnpruned(String operation) {
+		long prunedHeight = getPrunedHeight();
+		if(prunedHeight >= 0) {
+			throw new VerificationException(operation + "需要完整的区块，高度 " + prunedHeight + " 及之前的区块已裁剪");
+		}
+	}
+	
 	/**
-	 * 重新加载相关的所有交易，意味着会遍历整个区块
-	 * 该操作一遍只会在账号导入之后进行操作
-	 * @param hash160s
-	 * @return List<TransactionStore>  返回交易列表
+	 * 裁剪区块文件，只保留最近 keepBlocks 个区块所在的文件，只在 flatfile 引擎下有效
+	 * 按文件从旧到新删除，正在写入的文件不删除，不需要压缩整理 leveldb
+	 * @param keepBlocks
+	 * @return int 删除的文件数
 	 */
-	public List<TransactionStore> loadRelatedTransactions(List<byte[]> hash160s) {
-		blockLock.lock();
+	public int pruneBlockFiles(long keepBlocks) {
+		if(!isFlatFileEngine()) {
+			return 0;
+		}
+		int count = 0;
 		try {
-			accountFilter.init();
-			for (byte[] hash160 : hash160s) {
-				accountFilter.insert(hash160);
+			while(true) {
+				BlockHeaderStore bestBlockHeader = getBestBlockHeader();
+				if(bestBlockHeader == null) {
+					break;
+				}
+				long pruneHeight = bestBlockHeader.getBlockHeader().getHeight() - keepBlocks;
+				//最旧的区块文件
+				final byte[][] info = new byte[2][];
+				db.forEachByPrefix(BLOCK_FILE_INFO_PREFIX, new Db.EntryVisitor() {
+					@Override
+					public boolean visit(byte[] key, byte[] value) {
+						if(key.length != BLOCK_FILE_INFO_PREFIX.length + 4) {
+							return true;
+						}
+						info[0] = key;
+						info[1] = value;
+						return false;
+					}
+				});
+				if(info[0] == null) {
+					break;
+				}
+				int file = (int) Utils.readUint32BE(info[0], BLOCK_FILE_INFO_PREFIX.length);
+				long minHeight = Utils.readUint32BE(info[1], 0);
+				long maxHeight = Utils.readUint32BE(info[1], 4);
+				if(maxHeight >= pruneHeight || file == blockFileStore.getCurrentFile()) {
+					break;
+				}
+				pruneBlockFile(file, minHeight, maxHeight);
+				count++;
 			}
-			
-			//从创始快开始遍历所有区块
-			BlockStore blockStore = network.getGengsisBlock();
-			Sha256Hash nextHash = blockStore.getBlock().getHash();
-			
-			List<TransactionStore> mineTxs = new ArrayList<TransactionStore>();
-			while(!nextHash.equals(Sha256Hash.ZERO_HASH)) {
-				BlockStore nextBlockStore = getBlock(nextHash.getBytes());
-				
-				Block block = nextBlockStore.getBlock();
+		} catch (IOException e) {
+			log.error("裁剪区块文件出错", e);
+		}
+		return count;
+	}
+	
+	/*
+	 * 删除一个区块文件，先在一个批次里删除指向这个文件的索引，提交后再删文件
+	 * 还有未花费输出、业务数据或者与我有关的交易，转存为完整的交易存储
+	 */
+	private void pruneBlockFile(int file, long minHeight, long maxHeight) throws IOException {
+		blockLock.lock();
+		boolean committed = false;
+		db.beginBatch();
+		try {
+			int keepCount = 0;
+			int pruneCount = 0;
+			for (long height = minHeight; height <= maxHeight; height++) {
+				BlockHeaderStore header = getHeaderByHeight(height);
+				if(header == null) {
+					continue;
+				}
+				byte[] blockHash = header.getBlockHeader().getHash().getBytes();
+				BlockFilePointer blockPointer = getBlockFilePointer(blockHash);
+				if(blockPointer == null || blockPointer.getFile() != file) {
+					continue;
+				}
+				db.delete(getBlockFileKey(blockHash));
 				
-				List<Transaction> txs = block.getTxs();
+				List<Sha256Hash> txHashs = header.getBlockHeader().getTxHashs();
+				if(txHashs == null) {
+					continue;
+				}
+				for (Sha256Hash txHash : txHashs) {
+					byte[] content = db.get(txHash.getBytes());
+					if(content == null || !isTxPointer(content)) {
+						continue;
+					}
+					TransactionStore txs = readFileTransaction(txHash.getBytes(), content);
+					if(txs == null) {
+						continue;
+					}
+					if(isPrunable(txs.getTransaction())) {
+						db.delete(txHash.getBytes());
+						pruneCount++;
+					} else {
+						db.put(txHash.getBytes(), txs.baseSerialize());
+						keepCount++;
+					}
+				}
+			}
+			db.delete(getBlockFileInfoKey(file));
+			byte[] prunedHeight = new byte[4];
+			Utils.uint32ToByteArrayBE(maxHeight, prunedHeight, 0);
+			db.put(PRUNED_HEIGHT_KEY, prunedHeight);
+			commitBatch();
+			committed = true;
+			
+			blockFileStore.delete(file);
+			log.info("裁剪区块文件 {}，高度 {} - {}，删除交易 {} 笔，保留交易 {} 笔", file, minHeight, maxHeight, pruneCount, keepCount);
+		} finally {
+			if(!committed) {
+				discardBatch();
+			}
+			blockLock.unlock();
+		}
+	}
+	
+	/*
+	 * 只有转账和coinbase交易，并且输出都已花费，才可以删除，其它交易可能还会被业务数据引用
+	 */
+	private boolean isPrunable(Transaction tx) {
+		if(tx.getType() != Definition.TYPE_PAY && tx.getType() != Definition.TYPE_COINBASE) {
+			return false;
+		}
+		if(checkTxIsMine(tx)) {
+			return false;
+		}
+		for (TransactionOutput output : tx.getOutputs()) {
+			if(!utxoSet.isSpent(UtxoSet.getKey(tx.getHash(), output.getIndex()))) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/*
+	 * 缓存里的对象是共享的，返回给调用者的是一个浅拷贝，交易状态单独复制一份
+	 */
+	private TransactionStore copyTransaction(TransactionStore txs) {
+		byte[] status = txs.getStatus() == null ? null : txs.getStatus().clone();
+		TransactionStore copy = new TransactionStore(network, txs.getTransaction(), txs.getHeight(), status);
+		copy.setKey(txs.getKey());
+		return copy;
+	}
+	
+	/**
+	 * 获取最新块的头信息
+	 * @return BlockHeaderStore
+	 */
+	public BlockHeaderStore getBestBlockHeader() {
+		blockLock.lock();
+		
+		byte[] bestBlockHash = null;
+		try {
+			if(db == null) {
+				return null;
+			}
+			bestBlockHash = db.get(bestBlockKey);
+		} catch (Exception e) {
+			return null;
+		} finally {
+			blockLock.unlock();
+		}
+		if(bestBlockHash == null) {
+			return null;
+		} else {
+			return getHeader(bestBlockHash);
+		}
+	}
+	
+	/**
+	 * 获取最新区块的完整信息
+	 * @return BlockStore
+	 */
+	public BlockStore getBestBlock() {
+		//获取最新的区块
+		BlockHeaderStore header = getBestBlockHeader();
+		if(header == null) {
+			return null;
+		}
+		return getBlockByHeader(header);
+	}
+	
+	/**
+	 * 批量获取一段高度的区块，只拿一次区块锁，返回的区块都在同一条主链上
+	 * 高度超过最新块时只返回到最新块，开始高度已被裁剪时抛出异常
+	 * @param startHeight
+	 * @param endHeight		包含
+	 * @return List<BlockStore>
+	 */
+	public List<BlockStore> getBlocksByHeight(long startHeight, long endHeight) {
+		List<BlockStore> blocks = new ArrayList<BlockStore>();
+		blockLock.lock();
+		try {
+			long prunedHeight = getPrunedHeight();
+			if(startHeight <= prunedHeight) {
+				throw new VerificationException("区块已裁剪，高度 " + prunedHeight + " 及之前的区块不再完整");
+			}
+			for (long height = startHeight; height <= endHeight; height++) {
+				BlockHeaderStore header = getHeaderByHeight(height);
+				if(header == null) {
+					break;
+				}
+				BlockStore blockStore = getBlockByHeader(header);
+				if(blockStore == null) {
+					break;
+				}
+				blocks.add(blockStore);
+			}
+		} finally {
+			blockLock.unlock();
+		}
+		return blocks;
+	}
+	
+	/**
+	 * 获取一段高度的区块hash，直接按高度key读取，不需要逐个读取区块头
+	 * 遇到缺失的高度就停止，返回的hash高度连续，从 startHeight 开始
+	 * @param startHeight
+	 * @param endHeight		包含
+	 * @return List<Sha256Hash>
+	 */
+	public List<Sha256Hash> getBlockHashsByHeight(long startHeight, long endHeight) {
+		List<Sha256Hash> hashs = new ArrayList<Sha256Hash>();
+		byte[] heightBytes = new byte[4];
+		for (long height = startHeight; height <= endHeight; height++) {
+			Utils.uint32ToByteArrayBE(height, heightBytes, 0);
+			byte[] hash = db.get(heightBytes);
+			if(hash == null || hash.length != Sha256Hash.LENGTH) {
+				break;
+			}
+			hashs.add(Sha256Hash.wrap(hash));
+		}
+		return hashs;
+	}
+	
+	/**
+	 * 批量获取交易，只拿一次区块锁，找不到的交易对应位置为null
+	 * @param hashs
+	 * @return List<TransactionStore>
+	 */
+	public List<TransactionStore> getTransactions(List<byte[]> hashs) {
+		List<TransactionStore> txs = new ArrayList<TransactionStore>(hashs.size());
+		blockLock.lock();
+		try {
+			for (byte[] hash : hashs) {
+				txs.add(getTransaction(hash));
+			}
+		} finally {
+			blockLock.unlock();
+		}
+		return txs;
+	}
+	
+	/**
+	 * 通过地址交易索引批量计算地址的余额，只拿一次区块锁
+	 * 返回的每一项为 [可用余额, 锁定中的余额]，没有开启地址交易索引时返回null
+	 * @param hash160s
+	 * @return List<Coin[]>
+	 */
+	public List<Coin[]> getAddressBalances(List<byte[]> hash160s) {
+		if(!Configure.ADDRESS_INDEX) {
+			return null;
+		}
+		List<Coin[]> balances = new ArrayList<Coin[]>(hash160s.size());
+		blockLock.lock();
+		try {
+			//之前没有维护索引的数据，先遍历一次区块重建
+			if(!isAddressIndexComplete()) {
+				rebuildAddressIndex();
+			}
+			long bestHeight = network.getBestBlockHeight();
+			long now = TimeService.currentTimeMillis();
+			for (byte[] hash160 : hash160s) {
+				balances.add(getAddressBalance(hash160, bestHeight, now));
+			}
+		} finally {
+			blockLock.unlock();
+		}
+		return balances;
+	}
+	
+	/*
+	 * 地址索引里该地址的所有输出，未花费的按锁定时间分别累加
+	 */
+	private Coin[] getAddressBalance(byte[] hash160, long bestHeight, long now) {
+		byte[] prefix = new byte[ADDRESS_INDEX_PREFIX.length + Address.LENGTH];
+		System.arraycopy(ADDRESS_INDEX_PREFIX, 0, prefix, 0, ADDRESS_INDEX_PREFIX.length);
+		System.arraycopy(hash160, 0, prefix, ADDRESS_INDEX_PREFIX.length, Address.LENGTH);
+		
+		Coin balance = Coin.ZERO;
+		Coin lockedBalance = Coin.ZERO;
+		for (Entry<byte[], byte[]> item : db.listByPrefix(prefix)) {
+			byte[] key = item.getKey();
+			int outputIndex = getAddressIndexOutput(key);
+			if(outputIndex == ADDRESS_INDEX_NOT_OUTPUT) {
+				continue;
+			}
+			Sha256Hash txHash = getAddressIndexTxHash(key);
+			if(!utxoSet.isUnspent(UtxoSet.getKey(txHash, outputIndex))) {
+				continue;
+			}
+			TransactionStore txs = getTransaction(txHash.getBytes());
+			if(txs == null) {
+				continue;
+			}
+			TransactionOutput output = txs.getTransaction().getOutput(outputIndex);
+			long lockTime = output.getLockTime();
+			if(lockTime == -1l || (lockTime < Definition.LOCKTIME_THRESHOLD && lockTime > bestHeight) ||
+					(lockTime >= Definition.LOCKTIME_THRESHOLD && lockTime > now)) {
+				lockedBalance = lockedBalance.add(Coin.valueOf(output.getValue()));
+			} else {
+				balance = balance.add(Coin.valueOf(output.getValue()));
+			}
+		}
+		return new Coin[] {balance, lockedBalance};
+	}
+	
+	/**
+	 * 初始化账户过滤器
+	 * @param hash160s
+	 */
+	public void initAccountFilter(List<byte[]> hash160s) {
+		accountFilter = new BloomFilter(100000, 0.0001, RandomUtil.randomLong());
+		for (byte[] hash160 : hash160s) {
+			accountFilter.insert(hash160);
+		}
+	}
+	
+	/**
+	 * 添加账户过滤器记录
+	 * @param hash160
+	 */
+	public void addAccountFilter(byte[] hash160) {
+		accountFilter.insert(hash160);
+	}
+	
+	/**
+	 * 获取账户过滤器
+	 * @return BloomFilter
+	 */
+	public BloomFilter getAccountFilter() {
+		return accountFilter;
+	}
+
+	/**
+	 * 重新加载相关的所有交易
+	 * 开启了地址交易索引时，直接按地址读取索引，否则会遍历整个区块
+	 * 该操作一遍只会在账号导入之后进行操作
+	 * @param hash160s
+	 * @return List<TransactionStore>  返回交易列表
+	 */
+	public List<TransactionStore> loadRelatedTransactions(List<byte[]> hash160s) {
+		blockLock.lock();
+		try {
+			accountFilter.init();
+			for (byte[] hash160 : hash160s) {
+				accountFilter.insert(hash160);
+			}
+			if(!Configure.ADDRESS_INDEX) {
+				return scanRelatedTransactions();
+			}
+			//之前没有维护索引的数据，先遍历一次区块重建
+			if(!isAddressIndexComplete()) {
+				rebuildAddressIndex();
+			}
+		} finally {
+			blockLock.unlock();
+		}
+		
+		Set<Sha256Hash> txHashs = new HashSet<Sha256Hash>();
+		List<TransactionStore> mineTxs = new ArrayList<TransactionStore>();
+		for (byte[] hash160 : hash160s) {
+			for (Sha256Hash txHash : getAddressTransactions(hash160)) {
+				if(!txHashs.add(txHash)) {
+					continue;
+				}
+				TransactionStore txs = getTransaction(txHash.getBytes());
+				if(txs == null) {
+					continue;
+				}
+				Transaction tx = txs.getTransaction();
+				if(!tx.isPaymentTransaction()) {
+					mineTxs.add(new TransactionStore(network, tx, txs.getHeight(), new byte[]{}));
+					continue;
+				}
+				List<TransactionOutput> outputs = tx.getOutputs();
+				if(outputs == null) {
+					continue;
+				}
+				//过滤掉coinbase里的0交易
+				if(tx.getType() == Definition.TYPE_COINBASE && outputs.get(0).getValue() == 0l) {
+					continue;
+				}
+				//与我有关的输出，根据状态表判断是否已花费
+				byte[] status = new byte[outputs.size()];
+				for (int i = 0; i < outputs.size(); i++) {
+					byte[] outputHash160 = getSentToHash160(outputs.get(i).getScript());
+					if(outputHash160 == null || !accountFilter.contains(outputHash160)) {
+						continue;
+					}
+					if(utxoSet.isSpent(UtxoSet.getKey(tx.getHash(), i))) {
+						status[i] = TransactionStore.STATUS_USED;
+					} else {
+						status[i] = TransactionStore.STATUS_UNUSE;
+					}
+				}
+				mineTxs.add(new TransactionStore(network, tx, txs.getHeight(), status));
+			}
+		}
+		//多个地址的交易合并后，按高度排序
+		Collections.sort(mineTxs, new Comparator<TransactionStore>() {
+			@Override
+			public int compare(TransactionStore o1, TransactionStore o2) {
+				return Long.compare(o1.getHeight(), o2.getHeight());
+			}
+		});
+		return mineTxs;
+	}
+	
+	/**
+	 * 通过地址交易索引，获取与该地址有关的所有交易
+	 * @param hash160
+	 * @return List<Sha256Hash> 交易hash，按高度排序
+	 */
+	public List<Sha256Hash> getAddressTransactions(byte[] hash160) {
+		byte[] prefix = new byte[ADDRESS_INDEX_PREFIX.length + Address.LENGTH];
+		System.arraycopy(ADDRESS_INDEX_PREFIX, 0, prefix, 0, ADDRESS_INDEX_PREFIX.length);
+		System.arraycopy(hash160, 0, prefix, ADDRESS_INDEX_PREFIX.length, Address.LENGTH);
+		
+		List<Sha256Hash> txHashs = new ArrayList<Sha256Hash>();
+		Sha256Hash last = null;
+		for (Entry<byte[], byte[]> item : db.listByPrefix(prefix)) {
+			if(item.getKey().length != ADDRESS_INDEX_KEY_LENGTH) {
+				continue;
+			}
+			Sha256Hash txHash = getAddressIndexTxHash(item.getKey());
+			//同一交易的多个输出是相邻的
+			if(!txHash.equals(last)) {
+				txHashs.add(txHash);
+				last = txHash;
+			}
+		}
+		return txHashs;
+	}
+	
+	/*
+	 * 获取交易关联的所有地址的索引key
+	 */
+	List<byte[]> getAddressIndexKeys(Transaction tx, long height) {
+		List<byte[]> keys = new ArrayList<byte[]>();
+		if(tx.isPaymentTransaction()) {
+			//输入引用的输出所属的地址
+			List<TransactionInput> inputs = tx.getInputs();
+			if(tx.getType() != Definition.TYPE_COINBASE && inputs != null) {
+				for (TransactionInput input : inputs) {
+					if(input.getFroms() == null || input.getFroms().size() == 0) {
+						continue;
+					}
+					for (TransactionOutput from : input.getFroms()) {
+						TransactionStore fromTxs = getTransaction(from.getParent().getHash().getBytes());
+						if(fromTxs == null) {
+							continue;
+						}
+						TransactionOutput fromOutput = (TransactionOutput) fromTxs.getTransaction().getOutput(from.getIndex());
+						addAddressIndexKey(keys, getSentToHash160(fromOutput.getScript()), tx, height, ADDRESS_INDEX_NOT_OUTPUT);
+					}
+				}
+			}
+			//输出的地址
+			List<TransactionOutput> outputs = tx.getOutputs();
+			if(outputs != null) {
+				for (int i = 0; i < outputs.size(); i++) {
+					addAddressIndexKey(keys, getSentToHash160(outputs.get(i).getScript()), tx, height, i);
+				}
+			}
+		}
+		//业务交易关联的账户
+		if(tx instanceof CreditTransaction) {
+			addAddressIndexKey(keys, ((CreditTransaction) tx).getOwnerHash160(), tx, height, ADDRESS_INDEX_NOT_OUTPUT);
+		} else if(tx instanceof ViolationTransaction) {
+			addAddressIndexKey(keys, ((ViolationTransaction) tx).getViolationEvidence().getAudienceHash160(), tx, height, ADDRESS_INDEX_NOT_OUTPUT);
+		} else if(tx instanceof BaseCommonlyTransaction) {
+			addAddressIndexKey(keys, ((BaseCommonlyTransaction) tx).getHash160(), tx, height, ADDRESS_INDEX_NOT_OUTPUT);
+			if(tx instanceof AntifakeTransferTransaction) {
+				addAddressIndexKey(keys, ((AntifakeTransferTransaction) tx).getReceiveHash160(), tx, height, ADDRESS_INDEX_NOT_OUTPUT);
+			}
+		}
+		return keys;
+	}
+	
+	private void addAddressIndexKey(List<byte[]> keys, byte[] hash160, Transaction tx, long height, int outputIndex) {
+		if(hash160 == null || hash160.length != Address.LENGTH) {
+			return;
+		}
+		keys.add(getAddressIndexKey(hash160, height, tx.getHash(), outputIndex));
+	}
+	
+	/**
+	 * 地址交易索引的key
+	 * @param hash160
+	 * @param height
+	 * @param txHash
+	 * @param outputIndex	不是输出时为 {@link #ADDRESS_INDEX_NOT_OUTPUT}
+	 * @return byte[]
+	 */
+	static byte[] getAddressIndexKey(byte[] hash160, long height, Sha256Hash txHash, int outputIndex) {
+		byte[] key = new byte[ADDRESS_INDEX_KEY_LENGTH];
+		int offset = 0;
+		System.arraycopy(ADDRESS_INDEX_PREFIX, 0, key, offset, ADDRESS_INDEX_PREFIX.length);
+		offset += ADDRESS_INDEX_PREFIX.length;
+		System.arraycopy(hash160, 0, key, offset, Address.LENGTH);
+		offset += Address.LENGTH;
+		Utils.uint32ToByteArrayBE(height, key, offset);
+		offset += 4;
+		System.arraycopy(txHash.getBytes(), 0, key, offset, Sha256Hash.LENGTH);
+		offset += Sha256Hash.LENGTH;
+		Utils.uint32ToByteArrayBE(outputIndex & 0xffffffffl, key, offset);
+		return key;
+	}
+	
+	/**
+	 * 地址交易索引key里的交易hash
+	 * @param key
+	 * @return Sha256Hash
+	 */
+	static Sha256Hash getAddressIndexTxHash(byte[] key) {
+		return Sha256Hash.wrap(Arrays.copyOfRange(key, ADDRESS_INDEX_PREFIX.length + Address.LENGTH + 4, ADDRESS_INDEX_PREFIX.length + Address.LENGTH + 4 + Sha256Hash.LENGTH));
+	}
+	
+	/**
+	 * 地址交易索引key里的输出序号，不是输出或者key格式不对时返回 {@link #ADDRESS_INDEX_NOT_OUTPUT}
+	 * @param key
+	 * @return int
+	 */
+	static int getAddressIndexOutput(byte[] key) {
+		if(key.length != ADDRESS_INDEX_KEY_LENGTH) {
+			return ADDRESS_INDEX_NOT_OUTPUT;
+		}
+		return (int) Utils.readUint32BE(key, ADDRESS_INDEX_KEY_LENGTH - 4);
+	}
+	
+	/*
+	 * 地址交易索引是否已覆盖整条链，并且是当前的格式
+	 */
+	private boolean isAddressIndexComplete() {
+		byte[] value = db.get(ADDRESS_INDEX_COMPLETE_KEY);
+		return value != null && value.length == 1 && value[0] == ADDRESS_INDEX_VERSION;
+	}
+	
+	/*
+	 * 输出脚本对应的地址，不是普通地址的返回null
+	 */
+	private byte[] getSentToHash160(Script script) {
+		if(script != null && script.isSentToAddress()) {
+			return script.getChunks().get(2).data;
+		}
+		return null;
+	}
+	
+	/**
+	 * 读取主链上所有的共识变化记录，之前没有维护记录的数据先遍历一次区块重建
+	 * @return List<ConsensusRosterDelta>
+	 */
+	public List<ConsensusRosterDelta> loadConsensusDeltas() {
+		blockLock.lock();
+		try {
+			byte[] version = db.get(CONSENSUS_DELTA_COMPLETE_KEY);
+			if(version == null || version.length != 1 || version[0] != CONSENSUS_DELTA_VERSION) {
+				rebuildConsensusDeltas();
+			}
+			//前缀下只有共识变化记录，按高度顺序逐条读取
+			final List<ConsensusRosterDelta> deltas = new ArrayList<ConsensusRosterDelta>();
+			db.forEachByPrefix(CONSENSUS_DELTA_PREFIX, new Db.EntryVisitor() {
+				@Override
+				public boolean visit(byte[] key, byte[] value) {
+					long height = Utils.readUint32BE(key, CONSENSUS_DELTA_PREFIX.length);
+					deltas.add(ConsensusRosterDelta.parse(height, value));
+					return true;
+				}
+			});
+			return deltas;
+		} finally {
+			blockLock.unlock();
+		}
+	}
+	
+	/*
+	 * 遍历所有区块重建共识变化记录，重建完成之后写入标记，之后由区块的保存和回滚来维护
+	 */
+	private void rebuildConsensusDeltas() {
+		checkUnpruned("重建共识变化记录");
+		log.info("开始重建共识变化记录");
+		
+		BlockStore blockStore = network.getGengsisBlock();
+		Sha256Hash nextHash = blockStore.getBlock().getHash();
+		while(!nextHash.equals(Sha256Hash.ZERO_HASH)) {
+			BlockStore nextBlockStore = getBlock(nextHash.getBytes());
+			if(nextBlockStore == null) {
+				break;
+			}
+			Block block = nextBlockStore.getBlock();
+			if(block.getHeight() > 0l) {
+				ConsensusRosterDelta delta = ConsensusRosterDelta.of(block);
+				if(delta != null) {
+					db.put(getConsensusDeltaKey(block.getHeight()), delta.serialize());
+				}
+			}
+			nextHash = nextBlockStore.getNextHash();
+		}
+		db.put(CONSENSUS_DELTA_COMPLETE_KEY, new byte[] { CONSENSUS_DELTA_VERSION });
+		
+		log.info("共识变化记录重建完成");
+	}
+	
+	private byte[] getConsensusDeltaKey(long height) {
+		byte[] key = new byte[CONSENSUS_DELTA_PREFIX.length + 4];
+		System.arraycopy(CONSENSUS_DELTA_PREFIX, 0, key, 0, CONSENSUS_DELTA_PREFIX.length);
+		Utils.uint32ToByteArrayBE(height, key, CONSENSUS_DELTA_PREFIX.length);
+		return key;
+	}
+	
+	/*
+	 * 遍历所有区块重建地址交易索引，重建完成之后写入标记，之后由区块的保存和回滚来维护
+	 * 版本2的索引只需要转移到新的前缀，其它情况先清空已有的索引，老格式的索引和关闭索引期间残留的索引都不再使用
+	 */
+	private void rebuildAddressIndex() {
+		if(moveAddressIndexKeys()) {
+			return;
+		}
+		checkUnpruned("重建地址交易索引");
+		log.info("开始重建地址交易索引");
+		
+		//0x0009xxxx 的高度key和以 0x0009 开头的区块、交易hash也在老前缀的范围里，只删除索引长度的key
+		int removed = deleteIndexKeys(OLD_ADDRESS_INDEX_PREFIX, ADDRESS_INDEX_V1_KEY_LENGTH, ADDRESS_INDEX_V2_KEY_LENGTH);
+		removed += deleteIndexKeys(ADDRESS_INDEX_PREFIX, ADDRESS_INDEX_KEY_LENGTH);
+		log.info("清空地址交易索引 {} 条", removed);
+		
+		BlockStore blockStore = network.getGengsisBlock();
+		Sha256Hash nextHash = blockStore.getBlock().getHash();
+		while(!nextHash.equals(Sha256Hash.ZERO_HASH)) {
+			BlockStore nextBlockStore = getBlock(nextHash.getBytes());
+			if(nextBlockStore == null) {
+				break;
+			}
+			Block block = nextBlockStore.getBlock();
+			for (Transaction tx : block.getTxs()) {
+				for (byte[] indexKey : getAddressIndexKeys(tx, block.getHeight())) {
+					db.put(indexKey, new byte[0]);
+				}
+			}
+			nextHash = nextBlockStore.getNextHash();
+		}
+		db.put(ADDRESS_INDEX_COMPLETE_KEY, new byte[] { ADDRESS_INDEX_VERSION });
+		
+		log.info("地址交易索引重建完成");
+	}
+	
+	/*
+	 * 遍历所有区块，加载与我有关的交易，没有开启地址交易索引时使用
+	 */
+	private List<TransactionStore> scanRelatedTransactions() {
+		checkUnpruned("遍历区块加载相关交易");
+		
+		//从创始快开始遍历所有区块
+		BlockStore blockStore = network.getGengsisBlock();
+		Sha256Hash nextHash = blockStore.getBlock().getHash();
+		
+		List<TransactionStore> mineTxs = new ArrayList<TransactionStore>();
+		while(!nextHash.equals(Sha256Hash.ZERO_HASH)) {
+			BlockStore nextBlockStore = getBlock(nextHash.getBytes());
+			
+			Block block = nextBlockStore.getBlock();
+			
+			List<Transaction> txs = block.getTxs();
+			
+			for (Transaction tx : txs) {
 				
-				for (Transaction tx : txs) {
+				//普通交易
+				if(tx.isPaymentTransaction()) {
+					//获取转入交易转入的多少钱
+					List<TransactionOutput> outputs = tx.getOutputs();
+					
+					if(outputs == null) {
+						continue;
+					}
+					//过滤掉coinbase里的0交易
+					if(tx.getType() == Definition.TYPE_COINBASE && outputs.get(0).getValue() == 0l) {
+						continue;
+					}
 					
-					//普通交易
-					if(tx.isPaymentTransaction()) {
-						//获取转入交易转入的多少钱
-						List<TransactionOutput> outputs = tx.getOutputs();
+					//交易状态
+					byte[] status = new byte[outputs.size()];
+					//交易是否跟我有关
+					boolean isMineTx = false;
+					
+					for (int i = 0; i < outputs.size(); i++) {
+						Output output = outputs.get(i);
+						Script script = output.getScript();
 						
-						if(outputs == null) {
-							continue;
-						}
-						//过滤掉coinbase里的0交易
-						if(tx.getType() == Definition.TYPE_COINBASE && outputs.get(0).getValue() == 0l) {
-							continue;
+						if(script.isSentToAddress() && accountFilter.contains(script.getChunks().get(2).data)) {
+							status[i] = TransactionStore.STATUS_UNUSE;
+							isMineTx = true;
+							break;
 						}
-						
-						//交易状态
-						byte[] status = new byte[outputs.size()];
-						//交易是否跟我有关
-						boolean isMineTx = false;
-						
-						for (int i = 0; i < outputs.size(); i++) {
-							Output output = outputs.get(i);
-							Script script = output.getScript();
-							
-							if(script.isSentToAddress() && accountFilter.contains(script.getChunks().get(2).data)) {
-								status[i] = TransactionStore.STATUS_UNUSE;
-								isMineTx = true;
-								break;
+					}
+					List<TransactionInput> inputs = tx.getInputs();
+					if(inputs != null && inputs.size() > 0) {
+						for (TransactionInput input : inputs) {
+							if(input.getFroms() == null || input.getFroms().size() == 0) {
+								continue;
 							}
-						}
-						List<TransactionInput> inputs = tx.getInputs();
-						if(inputs != null && inputs.size() > 0) {
-							for (TransactionInput input : inputs) {
-								if(input.getFroms() == null || input.getFroms().size() == 0) {
-									continue;
-								}
-								for (TransactionOutput from : input.getFroms()) {
-									Sha256Hash fromTxHash = from.getParent().getHash();
-									
-									for (TransactionStore transactionStore : mineTxs) {
-										Transaction mineTx = transactionStore.getTransaction();
-										if(mineTx.getHash().equals(fromTxHash)) {
-											//对上一交易的引用以及索引值
-											TransactionOutput output = (TransactionOutput) mineTx.getOutput(from.getIndex());
-											Script script = output.getScript();
-											if(script.isSentToAddress() && accountFilter.contains(script.getChunks().get(2).data)) {
-												transactionStore.getStatus()[from.getIndex()] = TransactionStore.STATUS_USED;
-												isMineTx = true;
-												break;
-											}
+							for (TransactionOutput from : input.getFroms()) {
+								Sha256Hash fromTxHash = from.getParent().getHash();
+								
+								for (TransactionStore transactionStore : mineTxs) {
+									Transaction mineTx = transactionStore.getTransaction();
+									if(mineTx.getHash().equals(fromTxHash)) {
+										//对上一交易的引用以及索引值
+										TransactionOutput output = (TransactionOutput) mineTx.getOutput(from.getIndex());
+										Script script = output.getScript();
+										if(script.isSentToAddress() && accountFilter.contains(script.getChunks().get(2).data)) {
+											transactionStore.getStatus()[from.getIndex()] = TransactionStore.STATUS_USED;
+											isMineTx = true;
+											break;
 										}
 									}
 								}
 							}
 						}
-						
-						//除单纯的转账交易外，还有可能有业务逻辑附带代币交易的
-						if(!isMineTx && tx.getType() != Definition.TYPE_PAY &&
-								tx.getType() != Definition.TYPE_COINBASE) {
-							isMineTx = checkTxIsMine(tx);
-						}
-						
-						if(isMineTx) {
-							mineTxs.add(new TransactionStore(network, tx, block.getHeight(), status));
-						}
-					} else {
-						boolean isMine = checkTxIsMine(tx);
-						if(isMine) {
-							mineTxs.add(new TransactionStore(network, tx, block.getHeight(), new byte[]{}));
-						}
+					}
+					
+					//除单纯的转账交易外，还有可能有业务逻辑附带代币交易的
+					if(!isMineTx && tx.getType() != Definition.TYPE_PAY &&
+							tx.getType() != Definition.TYPE_COINBASE) {
+						isMineTx = checkTxIsMine(tx);
+					}
+					
+					if(isMineTx) {
+						mineTxs.add(new TransactionStore(network, tx, block.getHeight(), status));
+					}
+				} else {
+					boolean isMine = checkTxIsMine(tx);
+					if(isMine) {
+						mineTxs.add(new TransactionStore(network, tx, block.getHeight(), new byte[]{}));
 					}
 				}
-				nextHash = nextBlockStore.getNextHash();
 			}
-			
-			return mineTxs;
-		} finally {
-			blockLock.unlock();
+			nextHash = nextBlockStore.getNextHash();
 		}
+		
+		return mineTxs;
 	}
 
 	public void addTransactionListener(TransactionListener transactionListener) {
@@ -1172,42 +2248,50 @@ public class BlockStoreProvider extends BaseStoreProvider {
 	}
 
 	public void resetConsensusQueue() {
+		checkUnpruned("重置共识队列");
 		log.info("=========重置共识队列=======");
 		//从创始快开始遍历所有区块
 		BlockStore blockStore = network.getGengsisBlock();
 		Sha256Hash nextHash = blockStore.getBlock().getHash();
 		
-		//清除共识队列
-		consensusPool.clearAll();
+		consensusRosterHistory.beginChange();
+		try {
+			//清除共识队列
+			consensusPool.clearAll();
 		
-		while(!nextHash.equals(Sha256Hash.ZERO_HASH)) {
-			BlockStore nextBlockStore = getBlock(nextHash.getBytes());
-			if(nextBlockStore == null) {
-				break;
-			}
-			List<Transaction> txs = nextBlockStore.getBlock().getTxs();
-			for (Transaction tx : txs) {
-				if(tx.getType() == Definition.TYPE_REG_CONSENSUS) {
-					//注册
-					RegConsensusTransaction reg = (RegConsensusTransaction) tx;
-					chainstateStoreProvider.addConsensus(reg);
-				} else if(tx.getType() == Definition.TYPE_REM_CONSENSUS ||
-						tx.getType() == Definition.TYPE_VIOLATION) {
-					byte[] hash160 = null;
-					if(tx instanceof RemConsensusTransaction) {
-						//主动退出共识
-						RemConsensusTransaction remTransaction = (RemConsensusTransaction)tx;
-						hash160 = remTransaction.getHash160();
-					} else {
-						//违规被提出共识
-						ViolationTransaction vtx = (ViolationTransaction)tx;
-						hash160 = vtx.getViolationEvidence().getAudienceHash160();
+			while(!nextHash.equals(Sha256Hash.ZERO_HASH)) {
+				BlockStore nextBlockStore = getBlock(nextHash.getBytes());
+				if(nextBlockStore == null) {
+					break;
+				}
+				List<Transaction> txs = nextBlockStore.getBlock().getTxs();
+				for (Transaction tx : txs) {
+					if(tx.getType() == Definition.TYPE_REG_CONSENSUS) {
+						//注册
+						RegConsensusTransaction reg = (RegConsensusTransaction) tx;
+						chainstateStoreProvider.addConsensus(reg);
+					} else if(tx.getType() == Definition.TYPE_REM_CONSENSUS ||
+							tx.getType() == Definition.TYPE_VIOLATION) {
+						byte[] hash160 = null;
+						if(tx instanceof RemConsensusTransaction) {
+							//主动退出共识
+							RemConsensusTransaction remTransaction = (RemConsensusTransaction)tx;
+							hash160 = remTransaction.getHash160();
+						} else {
+							//违规被提出共识
+							ViolationTransaction vtx = (ViolationTransaction)tx;
+							hash160 = vtx.getViolationEvidence().getAudienceHash160();
+						}
+						//从集合中删除共识节点
+						chainstateStoreProvider.deleteConsensusFromCollection(hash160);
 					}
-					//从集合中删除共识节点
-					chainstateStoreProvider.deleteConsensusFromCollection(hash160);
 				}
+				nextHash = nextBlockStore.getNextHash();
+				consensusPool.setHeight(nextBlockStore.getBlock().getHeight());
 			}
-			nextHash = nextBlockStore.getNextHash();
+		} finally {
+			//共识池重建了，缓存的名单全部作废
+			consensusRosterHistory.endReset();
 		}
 		log.info("=========重置共识队列完成=======");
 	}
@@ -0,0 +1,736 @@
+package org.inchain.store;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.DigestInputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.inchain.core.Definition;
+import org.inchain.crypto.Sha256Hash;
+import org.inchain.db.LevelDB;
+import org.inchain.message.Block;
+import org.inchain.message.BlockHeader;
+import org.inchain.message.Message;
+import org.inchain.network.NetworkParams;
+import org.inchain.transaction.Transaction;
+import org.inchain.utils.Utils;
+import org.iq80.leveldb.DBIterator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 链状态快照
+ * 把最新高度的链状态存储（输出花费状态、账户、共识名单、别名和防伪码等全部数据）、整条区块头链、最近若干个完整区块，
+ * 以及更早区块里还需要的交易导出到一个文件，新节点导入后只需要从快照高度开始同步
+ * 更早的区块里，输出已全部花费的转账和coinbase交易不导出，这部分区块导入后视为已裁剪，不再提供给其它节点
+ * 文件格式（gzip压缩）：头部 + 链状态记录 + 索引记录 + 区块记录 + 结束标记 + 32字节sha256校验和，校验和覆盖压缩前的头部、记录和结束标记
+ * 头部：4字节魔法数 + 4字节版本 + 4字节网络魔法数 + 4字节高度 + 32字节区块hash + 4字节完整区块数
+ * 记录：1字节存储类型 + 4字节key长度 + key + 4字节value长度 + value，存储类型为0表示结束
+ * 区块记录按高度排列，每个高度依次是 高度->hash、hash->区块头、区块里的交易
+ * 校验和只能发现文件损坏，快照是否可信由导出方公布的两个hash确认：
+ * 最新区块hash，完整区块从交易重算区块hash，并沿 preHash 衔接到它；
+ * 状态hash，覆盖链状态记录、索引记录和已裁剪区块的区块头记录，这部分数据没有办法从区块hash推出，已裁剪区块里留下的交易通过区块头里的交易hash确认
+ * 区块存储和链状态存储同时只能被一个进程打开，导出和导入都要在节点停止时进行
+ * @author ln
+ *
+ */
+public class ChainSnapshot {
+
+	private static final Logger log = LoggerFactory.getLogger(ChainSnapshot.class);
+
+	private final static int MAGIC = 0x494e4353;
+	private final static int VERSION = 2;
+
+	//记录的存储类型
+	private final static int TYPE_END = 0;
+	private final static int TYPE_BLOCK = 1;
+	private final static int TYPE_CHAINSTATE = 2;
+	//区块存储里的地址交易索引和共识变化记录
+	private final static int TYPE_INDEX = 3;
+
+	//导入时每个批次写入的记录数
+	private final static int IMPORT_BATCH_SIZE = 10000;
+
+	private final NetworkParams network;
+	//区块存储目录
+	private final String blockDir;
+	//链状态存储目录
+	private final String chainstateDir;
+
+	public ChainSnapshot(NetworkParams network, String blockDir, String chainstateDir) {
+		this.network = network;
+		this.blockDir = blockDir;
+		this.chainstateDir = chainstateDir;
+	}
+
+	/**
+	 * 导出最新高度的快照，返回的区块hash和状态hash由导出方公布，导入方从可信的渠道获取后用于 {@link #load(File, Sha256Hash, Sha256Hash)}
+	 * @param file
+	 * @param keepBlocks	导出完整区块的个数，从最新块往前数
+	 * @return Summary
+	 * @throws IOException
+	 */
+	public Summary export(File file, long keepBlocks) throws IOException {
+		LevelDB blockDb = new LevelDB(blockDir);
+		LevelDB chainstateDb = new LevelDB(chainstateDir);
+		//flatfile 引擎下交易只存在区块文件里，读取时不需要网络参数
+		BlockFileStore blockFileStore = new BlockFileStore();
+		try {
+			byte[] bestHash = blockDb.get(BlockStoreProvider.bestBlockKey);
+			if(bestHash == null) {
+				throw new IOException("区块存储里没有区块 " + blockDir);
+			}
+			BlockHeaderStore bestHeader = new BlockHeaderStore(network, blockDb.get(bestHash));
+			long height = bestHeader.getBlockHeader().getHeight();
+			//这个高度及之前的区块只导出还需要的交易
+			long prunedHeight = height - keepBlocks;
+
+			MessageDigest digest = Sha256Hash.newDigest();
+			MessageDigest stateDigest = Sha256Hash.newDigest();
+			GZIPOutputStream zip = new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+			try {
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new DigestOutputStream(zip, digest)));
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeInt((int) network.getPacketMagic());
+				out.writeInt((int) height);
+				out.write(bestHash);
+				out.writeInt((int) keepBlocks);
+
+				//链状态全部导出，同时记下还有未花费输出的交易
+				Set<Sha256Hash> unspentTxs = new HashSet<Sha256Hash>();
+				long chainstateCount = 0;
+				DBIterator iterator = chainstateDb.getSourceDb().iterator();
+				try {
+					iterator.seekToFirst();
+					while(iterator.hasNext()) {
+						Entry<byte[], byte[]> item = iterator.next();
+						byte[] key = item.getKey();
+						byte[] value = item.getValue();
+						if(key.length == UtxoSet.KEY_LENGTH && value.length == 1 && value[0] == TransactionStore.STATUS_UNUSE) {
+							unspentTxs.add(Sha256Hash.wrap(Arrays.copyOf(key, Sha256Hash.LENGTH)));
+						}
+						writeRecord(out, stateDigest, TYPE_CHAINSTATE, key, value);
+						chainstateCount++;
+					}
+				} finally {
+					iterator.close();
+				}
+
+				//地址交易索引和共识变化记录，标记不是当前格式的话不导出标记，导入之后重建
+				writePrefix(out, stateDigest, blockDb, BlockStoreProvider.ADDRESS_INDEX_PREFIX);
+				writePrefix(out, stateDigest, blockDb, BlockStoreProvider.CONSENSUS_DELTA_PREFIX);
+				writeKey(out, stateDigest, blockDb, BlockStoreProvider.ADDRESS_INDEX_COMPLETE_KEY, new byte[] { BlockStoreProvider.ADDRESS_INDEX_VERSION });
+				writeKey(out, stateDigest, blockDb, BlockStoreProvider.CONSENSUS_DELTA_COMPLETE_KEY, new byte[] { BlockStoreProvider.CONSENSUS_DELTA_VERSION });
+
+				//区块头链和交易，按高度顺序，已裁剪区块的区块头计入状态hash
+				long txCount = 0;
+				long skipCount = 0;
+				byte[] heightKey = new byte[4];
+				for (long h = 0; h <= height; h++) {
+					Utils.uint32ToByteArrayBE(h, heightKey, 0);
+					byte[] hash = blockDb.get(heightKey);
+					byte[] headerContent = hash == null ? null : blockDb.get(hash);
+					if(headerContent == null) {
+						throw new IOException("区块存储不完整，缺少高度 " + h + " 的区块");
+					}
+					MessageDigest headerDigest = h <= prunedHeight ? stateDigest : null;
+					writeRecord(out, headerDigest, TYPE_BLOCK, heightKey, hash);
+					writeRecord(out, headerDigest, TYPE_BLOCK, hash, headerContent);
+
+					List<Sha256Hash> txHashs = new BlockHeaderStore(network, headerContent).getBlockHeader().getTxHashs();
+					if(txHashs == null) {
+						continue;
+					}
+					for (Sha256Hash txHash : txHashs) {
+						byte[] content = blockDb.get(txHash.getBytes());
+						if(content == null) {
+							//已被裁剪，完整区块的交易必须全部导出，否则导入时没有办法重算区块hash
+							if(h > prunedHeight) {
+								throw new IOException("高度 " + h + " 的区块已裁剪，减少导出的完整区块数");
+							}
+							continue;
+						}
+						if(isTxPointer(content)) {
+							content = readFileTransaction(blockFileStore, txHash, content);
+						}
+						if(h <= prunedHeight && isPrunable(content, txHash, unspentTxs)) {
+							skipCount++;
+							continue;
+						}
+						writeRecord(out, null, TYPE_BLOCK, txHash.getBytes(), content);
+						txCount++;
+					}
+				}
+
+				out.writeByte(TYPE_END);
+				out.flush();
+				//校验和不计入摘要，直接写到压缩流里
+				zip.write(digest.digest());
+				zip.finish();
+
+				Summary summary = new Summary(height, Sha256Hash.wrap(bestHash), Sha256Hash.wrap(stateDigest.digest()));
+				log.info("导出快照 {}，高度 {}，区块hash {}，状态hash {}，链状态 {} 条，交易 {} 笔，省略已花费的交易 {} 笔", file, height,
+						summary.getBestHash(), summary.getStateHash(), chainstateCount, txCount, skipCount);
+				return summary;
+			} finally {
+				zip.close();
+			}
+		} finally {
+			blockDb.close();
+			chainstateDb.close();
+			blockFileStore.close();
+		}
+	}
+
+	/**
+	 * 导入快照到空的区块存储和链状态存储，先完整校验一遍，再写入
+	 * 校验和只能发现文件损坏，快照是否可信由调用者提供的区块hash和状态hash确认，见类说明，任何一个对不上都拒绝导入
+	 * 写入时再校验一遍，避免两遍之间文件被替换
+	 * 开始写入前在区块存储里记下导入标记，和最新块标识在同一批次里删除，导入中断时节点拒绝启动，再次导入时先清除上次写入的数据
+	 * @param file
+	 * @param expectedHash			快照最新区块的hash，从可信的渠道获取
+	 * @param expectedStateHash		快照的状态hash，从可信的渠道获取
+	 * @return long 快照高度
+	 * @throws IOException
+	 */
+	public long load(File file, Sha256Hash expectedHash, Sha256Hash expectedStateHash) throws IOException {
+		if(expectedHash == null || expectedStateHash == null) {
+			throw new IOException("没有指定快照的区块hash和状态hash");
+		}
+		//第一遍只校验
+		SnapshotInput check = new SnapshotInput(file);
+		try {
+			if(!expectedHash.equals(Sha256Hash.wrap(check.bestHash))) {
+				throw new IOException("快照的区块hash " + Sha256Hash.wrap(check.bestHash) + " 和指定的 " + expectedHash + " 不一致");
+			}
+			SnapshotVerifier verifier = new SnapshotVerifier(check, expectedHash, expectedStateHash);
+			while(check.next()) {
+				verifier.add(check.type, check.key, check.value);
+			}
+			verifier.finish();
+			check.verify();
+		} finally {
+			check.close();
+		}
+
+		LevelDB blockDb = new LevelDB(blockDir);
+		LevelDB chainstateDb = new LevelDB(chainstateDir);
+		SnapshotInput in = null;
+		try {
+			if(blockDb.get(BlockStoreProvider.bestBlockKey) != null) {
+				throw new IOException("区块存储已有数据，快照只能导入到新节点");
+			}
+			if(blockDb.get(BlockStoreProvider.SNAPSHOT_IMPORTING_KEY) != null) {
+				log.warn("上次快照导入没有完成，清除后重新导入");
+				clear(chainstateDb);
+				clear(blockDb);
+			} else if(!isEmpty(chainstateDb)) {
+				throw new IOException("链状态存储已有数据，快照只能导入到新节点");
+			}
+			in = new SnapshotInput(file);
+			//先于所有数据写入
+			blockDb.put(BlockStoreProvider.SNAPSHOT_IMPORTING_KEY, in.bestHash);
+			SnapshotVerifier verifier = new SnapshotVerifier(in, expectedHash, expectedStateHash);
+
+			long count = 0;
+			blockDb.beginBatch();
+			chainstateDb.beginBatch();
+			while(in.next()) {
+				verifier.add(in.type, in.key, in.value);
+				if(in.type == TYPE_CHAINSTATE) {
+					chainstateDb.put(in.key, in.value);
+				} else {
+					blockDb.put(in.key, in.value);
+				}
+				if(++count % IMPORT_BATCH_SIZE == 0) {
+					chainstateDb.commitBatch();
+					blockDb.commitBatch();
+					chainstateDb.beginBatch();
+					blockDb.beginBatch();
+				}
+			}
+			verifier.finish();
+			in.verify();
+			chainstateDb.commitBatch();
+
+			//交易都是完整存储的，按 leveldb 引擎使用
+			blockDb.put(BlockStoreProvider.STORE_ENGINE_KEY, "leveldb".getBytes());
+			if(in.prunedHeight >= 0) {
+				byte[] prunedHeight = new byte[4];
+				Utils.uint32ToByteArrayBE(in.prunedHeight, prunedHeight, 0);
+				blockDb.put(BlockStoreProvider.PRUNED_HEIGHT_KEY, prunedHeight);
+			}
+			blockDb.put(BlockStoreProvider.bestBlockKey, in.bestHash);
+			blockDb.delete(BlockStoreProvider.SNAPSHOT_IMPORTING_KEY);
+			blockDb.commitBatch();
+
+			log.info("导入快照 {}，高度 {}，共 {} 条记录", file, in.height, count);
+			return in.height;
+		} finally {
+			if(blockDb.isBatching()) {
+				blockDb.discardBatch();
+			}
+			if(chainstateDb.isBatching()) {
+				chainstateDb.discardBatch();
+			}
+			if(in != null) {
+				in.close();
+			}
+			blockDb.close();
+			chainstateDb.close();
+		}
+	}
+
+	/*
+	 * 写入一条记录，stateDigest 不为空时计入状态hash
+	 */
+	private static void writeRecord(DataOutputStream out, MessageDigest stateDigest, int type, byte[] key, byte[] value) throws IOException {
+		out.writeByte(type);
+		out.writeInt(key.length);
+		out.write(key);
+		out.writeInt(value.length);
+		out.write(value);
+		if(stateDigest != null) {
+			updateState(stateDigest, type, key, value);
+		}
+	}
+
+	/*
+	 * 状态hash和记录的序列化格式一致：1字节存储类型 + 4字节key长度 + key + 4字节value长度 + value
+	 */
+	private static void updateState(MessageDigest stateDigest, int type, byte[] key, byte[] value) {
+		byte[] length = new byte[4];
+		stateDigest.update((byte) type);
+		Utils.uint32ToByteArrayBE(key.length, length, 0);
+		stateDigest.update(length);
+		stateDigest.update(key);
+		Utils.uint32ToByteArrayBE(value.length, length, 0);
+		stateDigest.update(length);
+		stateDigest.update(value);
+	}
+
+	private static void writeKey(DataOutputStream out, MessageDigest stateDigest, LevelDB db, byte[] key, byte[] current) throws IOException {
+		byte[] value = db.get(key);
+		if(Arrays.equals(value, current)) {
+			writeRecord(out, stateDigest, TYPE_INDEX, key, value);
+		}
+	}
+
+	/*
+	 * 前缀下的记录可能很多，直接遍历存储，不一次性加载
+	 */
+	private static void writePrefix(DataOutputStream out, MessageDigest stateDigest, LevelDB db, byte[] prefix) throws IOException {
+		DBIterator iterator = db.getSourceDb().iterator();
+		try {
+			iterator.seek(prefix);
+			while(iterator.hasNext()) {
+				Entry<byte[], byte[]> item = iterator.next();
+				byte[] key = item.getKey();
+				if(key.length < prefix.length || !Arrays.equals(Arrays.copyOf(key, prefix.length), prefix)) {
+					break;
+				}
+				writeRecord(out, stateDigest, TYPE_INDEX, key, item.getValue());
+			}
+		} finally {
+			iterator.close();
+		}
+	}
+
+	/*
+	 * 区块存储里只接受地址交易索引和共识变化记录作为索引记录
+	 */
+	private static boolean isIndexKey(byte[] key) {
+		return startsWith(key, BlockStoreProvider.ADDRESS_INDEX_PREFIX) || startsWith(key, BlockStoreProvider.CONSENSUS_DELTA_PREFIX)
+				|| Arrays.equals(key, BlockStoreProvider.ADDRESS_INDEX_COMPLETE_KEY) || Arrays.equals(key, BlockStoreProvider.CONSENSUS_DELTA_COMPLETE_KEY);
+	}
+
+	private static boolean startsWith(byte[] key, byte[] prefix) {
+		return key.length > prefix.length && Arrays.equals(Arrays.copyOf(key, prefix.length), prefix);
+	}
+
+	/*
+	 * 清除中断的导入写入的全部数据，分批删除
+	 */
+	private static void clear(LevelDB db) throws IOException {
+		DBIterator iterator = db.getSourceDb().iterator();
+		try {
+			long count = 0;
+			db.beginBatch();
+			iterator.seekToFirst();
+			while(iterator.hasNext()) {
+				db.delete(iterator.next().getKey());
+				if(++count % IMPORT_BATCH_SIZE == 0) {
+					db.commitBatch();
+					db.beginBatch();
+				}
+			}
+			db.commitBatch();
+		} finally {
+			if(db.isBatching()) {
+				db.discardBatch();
+			}
+			iterator.close();
+		}
+	}
+
+	private static boolean isEmpty(LevelDB db) throws IOException {
+		DBIterator iterator = db.getSourceDb().iterator();
+		try {
+			iterator.seekToFirst();
+			return !iterator.hasNext();
+		} finally {
+			iterator.close();
+		}
+	}
+
+	private static boolean isTxPointer(byte[] content) {
+		return content.length == BlockStoreProvider.TX_POINTER_LENGTH && content[0] == BlockStoreProvider.TX_POINTER_FLAG;
+	}
+
+	/*
+	 * 从区块文件读取交易，转换成完整的交易存储：0长度的状态 + 4字节区块高度 + 交易
+	 */
+	private static byte[] readFileTransaction(BlockFileStore blockFileStore, Sha256Hash txHash, byte[] content) throws IOException {
+		BlockFilePointer pointer = BlockFilePointer.parse(Arrays.copyOfRange(content, 5, content.length));
+		byte[] txBytes = blockFileStore.readBytes(pointer);
+		if(txBytes == null || !Arrays.equals(Arrays.copyOf(Sha256Hash.hashTwice(txBytes), 4), pointer.getChecksum())) {
+			throw new IOException("区块文件里的交易数据缺失或错误 " + txHash + ", " + pointer);
+		}
+		byte[] store = new byte[5 + txBytes.length];
+		System.arraycopy(content, 1, store, 1, 4);
+		System.arraycopy(txBytes, 0, store, 5, txBytes.length);
+		return store;
+	}
+
+	/*
+	 * 和区块文件裁剪的规则一致，只有转账和coinbase交易，并且没有未花费的输出，才可以省略
+	 * 交易类型是交易数据的第一个字节，不需要反序列化
+	 */
+	private static boolean isPrunable(byte[] content, Sha256Hash txHash, Set<Sha256Hash> unspentTxs) {
+		int type = content[5 + (content[0] & 0xff)] & 0xff;
+		if(type != Definition.TYPE_PAY && type != Definition.TYPE_COINBASE) {
+			return false;
+		}
+		return !unspentTxs.contains(txHash);
+	}
+
+	/*
+	 * 按顺序读取快照记录，读到结束标记后校验
+	 */
+	private class SnapshotInput {
+
+		private final MessageDigest digest = Sha256Hash.newDigest();
+		private final InputStream zip;
+		private final DataInputStream in;
+
+		private final long height;
+		private final byte[] bestHash;
+		private final long prunedHeight;
+
+		private int type;
+		private byte[] key;
+		private byte[] value;
+
+		public SnapshotInput(File file) throws IOException {
+			zip = new GZIPInputStream(new BufferedInputStream(new FileInputStream(file)));
+			in = new DataInputStream(new DigestInputStream(zip, digest));
+			try {
+				if(in.readInt() != MAGIC) {
+					throw new IOException("不是链状态快照文件 " + file);
+				}
+				int version = in.readInt();
+				if(version != VERSION) {
+					throw new IOException("不支持的快照版本 " + version);
+				}
+				if((in.readInt() & 0xffffffffl) != network.getPacketMagic()) {
+					throw new IOException("快照不属于当前网络");
+				}
+				height = in.readInt() & 0xffffffffl;
+				bestHash = new byte[Sha256Hash.LENGTH];
+				in.readFully(bestHash);
+				prunedHeight = height - (in.readInt() & 0xffffffffl);
+			} catch (IOException e) {
+				in.close();
+				throw e;
+			}
+		}
+
+		/*
+		 * 读取下一条记录，读到结束标记返回false
+		 */
+		boolean next() throws IOException {
+			try {
+				type = in.readUnsignedByte();
+				if(type == TYPE_END) {
+					return false;
+				}
+				if(type != TYPE_BLOCK && type != TYPE_CHAINSTATE && type != TYPE_INDEX) {
+					throw new IOException("快照记录类型错误 " + type);
+				}
+				key = readBytes();
+				value = readBytes();
+				return true;
+			} catch (EOFException e) {
+				throw new IOException("快照文件不完整", e);
+			}
+		}
+
+		private byte[] readBytes() throws IOException {
+			int length = in.readInt();
+			if(length < 0 || length > Message.MAX_SIZE) {
+				throw new IOException("快照记录长度错误 " + length);
+			}
+			byte[] bytes = new byte[length];
+			in.readFully(bytes);
+			return bytes;
+		}
+
+		/*
+		 * 读到结束标记之后，比对文件末尾的校验和
+		 */
+		void verify() throws IOException {
+			byte[] expected = digest.digest();
+			byte[] checksum = new byte[Sha256Hash.LENGTH];
+			try {
+				new DataInputStream(zip).readFully(checksum);
+			} catch (EOFException e) {
+				throw new IOException("快照文件不完整", e);
+			}
+			if(!Arrays.equals(expected, checksum)) {
+				throw new IOException("快照文件校验和错误");
+			}
+		}
+
+		void close() throws IOException {
+			in.close();
+		}
+	}
+	/*
+	 * 按记录顺序校验快照内容，确认快照属于调用者指定的链
+	 * 链状态、索引记录和已裁剪区块的区块头计入状态hash，读到第一个完整区块时比对
+	 * 区块记录逐个高度检查：高度连续，区块头的高度和 preHash 衔接上一个区块，上一个区块头的 nextHash 指向当前区块，
+	 * 交易属于区块头里的交易，交易hash和内容一致；已裁剪区块的区块头计入状态hash，完整区块用全部交易重算区块hash
+	 * 最后一个区块必须是指定的最新区块
+	 */
+	private class SnapshotVerifier {
+
+		private final SnapshotInput in;
+		private final Sha256Hash expectedHash;
+		private final Sha256Hash expectedStateHash;
+		private final MessageDigest stateDigest = Sha256Hash.newDigest();
+		private boolean stateChecked;
+
+		//当前区块
+		private long height = -1;
+		private Sha256Hash hash;
+		private BlockHeaderStore header;
+		//还没有读到的交易，及其在区块里的位置
+		private Map<Sha256Hash, Integer> txIndexes;
+		private Transaction[] txs;
+
+		//上一个区块
+		private Sha256Hash preHash;
+		private BlockHeaderStore preHeader;
+
+		public SnapshotVerifier(SnapshotInput in, Sha256Hash expectedHash, Sha256Hash expectedStateHash) {
+			this.in = in;
+			this.expectedHash = expectedHash;
+			this.expectedStateHash = expectedStateHash;
+		}
+
+		void add(int type, byte[] key, byte[] value) throws IOException {
+			if(type == TYPE_CHAINSTATE || type == TYPE_INDEX) {
+				if(height >= 0) {
+					throw new IOException("快照记录顺序错误");
+				}
+				if(type == TYPE_INDEX && !isIndexKey(key)) {
+					throw new IOException("快照里有未知的索引记录");
+				}
+				updateState(stateDigest, type, key, value);
+				return;
+			}
+			try {
+				if(key.length == 4) {
+					addHeight(key, value);
+				} else if(header == null) {
+					addHeader(key, value);
+				} else {
+					addTransaction(key, value);
+				}
+			} catch (RuntimeException e) {
+				throw new IOException("快照里高度 " + height + " 的区块数据错误", e);
+			}
+		}
+
+		/*
+		 * 读完全部记录之后调用
+		 */
+		void finish() throws IOException {
+			finishBlock();
+			checkState();
+			if(height != in.height || hash == null || !hash.equals(expectedHash)) {
+				throw new IOException("快照的区块链没有衔接到指定的区块 " + expectedHash);
+			}
+			if(!Sha256Hash.ZERO_HASH.equals(header.getNextHash())) {
+				throw new IOException("快照最新区块的区块头错误");
+			}
+		}
+
+		private void checkState() throws IOException {
+			if(stateChecked) {
+				return;
+			}
+			stateChecked = true;
+			Sha256Hash stateHash = Sha256Hash.wrap(stateDigest.digest());
+			if(!stateHash.equals(expectedStateHash)) {
+				throw new IOException("快照的状态hash " + stateHash + " 和指定的 " + expectedStateHash + " 不一致");
+			}
+		}
+
+		private void addHeight(byte[] key, byte[] value) throws IOException {
+			finishBlock();
+			height++;
+			if(Utils.readUint32BE(key, 0) != height || value.length != Sha256Hash.LENGTH) {
+				throw new IOException("快照的区块高度不连续 " + height);
+			}
+			hash = Sha256Hash.wrap(value);
+			header = null;
+			if(height <= in.prunedHeight) {
+				updateState(stateDigest, TYPE_BLOCK, key, value);
+			} else {
+				checkState();
+			}
+		}
+
+		private void addHeader(byte[] key, byte[] value) throws IOException {
+			if(hash == null || !hash.equals(Sha256Hash.wrap(key))) {
+				throw new IOException("快照的区块头和高度不对应 " + height);
+			}
+			header = new BlockHeaderStore(network, value);
+			BlockHeader blockHeader = header.getBlockHeader();
+			if(blockHeader.getHeight() != height) {
+				throw new IOException("快照的区块头高度错误 " + height);
+			}
+			if(height == 0) {
+				BlockStore gengsisBlock = network.getGengsisBlock();
+				if(gengsisBlock == null || !gengsisBlock.getBlock().getHash().equals(hash)) {
+					throw new IOException("快照的创世块和当前网络不一致");
+				}
+			} else if(!preHash.equals(blockHeader.getPreHash()) || !hash.equals(preHeader.getNextHash())) {
+				throw new IOException("快照的区块头不衔接 " + height);
+			}
+			if(height <= in.prunedHeight) {
+				updateState(stateDigest, TYPE_BLOCK, key, value);
+			}
+
+			List<Sha256Hash> txHashs = blockHeader.getTxHashs();
+			txIndexes = new HashMap<Sha256Hash, Integer>();
+			for (int i = 0; i < txHashs.size(); i++) {
+				if(txIndexes.put(txHashs.get(i), i) != null) {
+					throw new IOException("快照的区块头里有重复的交易 " + height);
+				}
+			}
+			txs = new Transaction[txHashs.size()];
+		}
+
+		private void addTransaction(byte[] key, byte[] value) throws IOException {
+			Sha256Hash txHash = Sha256Hash.wrap(key);
+			Integer index = txIndexes.remove(txHash);
+			if(index == null) {
+				throw new IOException("快照的交易 " + txHash + " 不属于高度 " + height + " 的区块");
+			}
+			TransactionStore store = new TransactionStore(network, value);
+			Transaction tx = store.getTransaction();
+			if((store.getStatus() != null && store.getStatus().length > 0) || store.getHeight() != height || !txHash.equals(tx.getHash())) {
+				throw new IOException("快照的交易 " + txHash + " 内容错误");
+			}
+			if(height > in.prunedHeight) {
+				txs[index] = tx;
+			}
+		}
+
+		/*
+		 * 一个高度的记录读完，完整区块重算区块hash
+		 */
+		private void finishBlock() throws IOException {
+			if(height < 0) {
+				return;
+			}
+			if(header == null) {
+				throw new IOException("快照缺少高度 " + height + " 的区块头");
+			}
+			if(height > in.prunedHeight) {
+				if(!txIndexes.isEmpty()) {
+					throw new IOException("快照缺少高度 " + height + " 的交易");
+				}
+				BlockHeader blockHeader = header.getBlockHeader();
+				Block block = new Block(network);
+				block.setVersion(blockHeader.getVersion());
+				block.setPreHash(blockHeader.getPreHash());
+				block.setMerkleHash(blockHeader.getMerkleHash());
+				block.setTime(blockHeader.getTime());
+				block.setHeight(blockHeader.getHeight());
+				block.setPeriodCount(blockHeader.getPeriodCount());
+				block.setTimePeriod(blockHeader.getTimePeriod());
+				block.setPeriodStartTime(blockHeader.getPeriodStartTime());
+				block.setScriptBytes(blockHeader.getScriptBytes());
+				block.setTxCount(txs.length);
+				block.setTxs(Arrays.asList(txs));
+				if(!hash.equals(block.getHash())) {
+					throw new IOException("快照里高度 " + height + " 的区块hash错误");
+				}
+			}
+			preHash = hash;
+			preHeader = header;
+			txIndexes = null;
+			txs = null;
+		}
+	}
+
+	/**
+	 * 导出结果，区块hash和状态hash需要公布给导入方
+	 */
+	public static class Summary {
+
+		private final long height;
+		private final Sha256Hash bestHash;
+		private final Sha256Hash stateHash;
+
+		public Summary(long height, Sha256Hash bestHash, Sha256Hash stateHash) {
+			this.height = height;
+			this.bestHash = bestHash;
+			this.stateHash = stateHash;
+		}
+
+		public long getHeight() {
+			return height;
+		}
+
+		public Sha256Hash getBestHash() {
+			return bestHash;
+		}
+
+		public Sha256Hash getStateHash() {
+			return stateHash;
+		}
+	}
+}
@@ -1,8 +1,11 @@
 package org.inchain.store;
 
+import java.io.IOException;
+import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map.Entry;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -13,6 +16,7 @@ import org.inchain.consensus.ConsensusPool;
 import org.inchain.core.Coin;
 import org.inchain.core.ViolationEvidence;
 import org.inchain.crypto.Sha256Hash;
+import org.inchain.db.Db;
 import org.inchain.transaction.Transaction;
 import org.inchain.transaction.business.AntifakeTransferTransaction;
 import org.inchain.transaction.business.BaseCommonlyTransaction;
@@ -34,7 +38,29 @@ import org.springframework.stereotype.Repository;
 @Repository
 public class ChainstateStoreProvider extends BaseStoreProvider {
 	
+	//防伪码流转信息列表前缀，后面接防伪码
+	private final static byte[] CIRCULATIONS_PREFIX = new byte[] { 0, 4 };
+	//认证账户的子账户列表前缀，后面接认证账户的hash160
+	private final static byte[] SUB_ACCOUNTS_PREFIX = new byte[] { 0, 5 };
+	//防伪码转让列表前缀，后面接防伪码
+	private final static byte[] ANTIFAKE_TRANSFERS_PREFIX = new byte[] { 0, 6 };
+	//认证账户列表
+	private final static byte[] CERT_ACCOUNTS_KEY = new byte[] { 0, 7 };
+	//共识账户列表
+	private final static byte[] CONSENSUS_ACCOUNTS_KEY = new byte[] { 0, 8 };
+	//信用累积记录前缀，后面接 1字节类型 + hash160
+	private final static byte[] CREDIT_RECORD_PREFIX = new byte[] { 0, 11 };
+	//信用累积记录是否由区块的保存和回滚维护，没有的话需要先遍历区块重建
+	private final static byte[] CREDIT_RECORD_COMPLETE_KEY = Sha256Hash.of("credit_record_complete".getBytes()).getBytes();
+	//列表已生成反查记录
+	final static byte[] LIST_INDEX_COMPLETE_KEY = Sha256Hash.of("list_index_complete".getBytes()).getBytes();
+	
+	//账户信息缓存，key为账户的hash160
+	private final StoreCache<AccountStore> accountCache = newCache("account", Configure.CACHE_ACCOUNT_SIZE);
+	
 	private Lock consensusLocker = new ReentrantLock();
+	//当前线程保存或撤销区块时共识池的修改，批次提交之后才执行，为null时直接修改共识池
+	private final ThreadLocal<List<ConsensusChange>> consensusChanges = new ThreadLocal<List<ConsensusChange>>();
 	
 	@Autowired
 	private BlockStoreProvider blockStoreProvider;
@@ -51,6 +77,10 @@ public class ChainstateStoreProvider extends BaseStoreProvider {
 	protected ChainstateStoreProvider(String dir, long leveldbReadCache,
 			int leveldbWriteCache) {
 		super(dir, leveldbReadCache, leveldbWriteCache);
+		//老版本的列表存储方式，转换成新的
+		migrateListStorage();
+		//之前的列表没有反查记录
+		rebuildListIndexes();
 	}
 
 	@Override
@@ -98,14 +128,47 @@ public class ChainstateStoreProvider extends BaseStoreProvider {
 	 * @return AccountStore
 	 */
 	public AccountStore getAccountInfo(byte[] hash160) {
+		if(hash160 == null) {
+			return null;
+		}
+		boolean cacheable = isCacheable();
+		if(cacheable) {
+			AccountStore cached = accountCache.get(hash160);
+			if(cached != null) {
+				return copyAccountInfo(cached);
+			}
+		}
+		long version = accountCache.getVersion();
 		byte[] accountBytes = getBytes(hash160);
 		if(accountBytes == null) {
 			return null;
 		}
 		AccountStore store = new AccountStore(network, accountBytes);
+		if(cacheable) {
+			accountCache.put(hash160, store, version);
+			return copyAccountInfo(store);
+		}
 		return store;
 	}
 	
+	/*
+	 * 缓存里的对象是共享的，返回给调用者的是一个拷贝，调用者修改余额、别名等不影响缓存
+	 */
+	private AccountStore copyAccountInfo(AccountStore accountInfo) {
+		AccountStore copy = new AccountStore(network);
+		copy.setType(accountInfo.getType());
+		copy.setHash160(accountInfo.getHash160());
+		copy.setAlias(accountInfo.getAlias());
+		copy.setPubkeys(accountInfo.getPubkeys() == null ? null : accountInfo.getPubkeys().clone());
+		copy.setBalance(accountInfo.getBalance());
+		copy.setLastModifyTime(accountInfo.getLastModifyTime());
+		copy.setCreateTime(accountInfo.getCreateTime());
+		copy.setCert(accountInfo.getCert());
+		copy.setInfoTxid(accountInfo.getInfoTxid());
+		copy.setAccountBody(accountInfo.getAccountBody());
+		return copy;
+	}
+	
 	/**
 	 * 保存账户信息
 	 * @param accountInfo
@@ -127,20 +190,11 @@ public class ChainstateStoreProvider extends BaseStoreProvider {
 	 * @return boolean
 	 */
 	public boolean addSubAccount(RelevanceSubAccountTransaction relevancSubAccountTx) {
-		byte[] subAccountKey = new byte[22];
-		subAccountKey[0] = 0;
-		subAccountKey[1] = 1;
-		System.arraycopy(relevancSubAccountTx.getHash160(), 0, subAccountKey, 2, Address.LENGTH);
-		
-		byte[] subAccounts = getBytes(subAccountKey);
-		if(subAccounts == null) {
-			subAccounts = new byte[0];
-		}
-		byte[] newSubAccounts = new byte[subAccounts.length + Address.HASH_LENGTH + Sha256Hash.LENGTH];
-		System.arraycopy(subAccounts, 0, newSubAccounts, 0, subAccounts.length);
-		System.arraycopy(relevancSubAccountTx.getRelevanceHashs(), 0, newSubAccounts, subAccounts.length, Address.HASH_LENGTH);
-		System.arraycopy(relevancSubAccountTx.getHash().getBytes(), 0, newSubAccounts, subAccounts.length + Address.HASH_LENGTH, Sha256Hash.LENGTH);
-		put(subAccountKey, newSubAccounts);
+		byte[] subAccount = new byte[Address.HASH_LENGTH + Sha256Hash.LENGTH];
+		System.arraycopy(relevancSubAccountTx.getRelevanceHashs(), 0, subAccount, 0, Address.HASH_LENGTH);
+		System.arraycopy(relevancSubAccountTx.getHash().getBytes(), 0, subAccount, Address.HASH_LENGTH, Sha256Hash.LENGTH);
+		
+		getSubAccounts(relevancSubAccountTx.getHash160()).add(subAccount);
 		return true;
 	}
 	
@@ -150,33 +204,7 @@ public class ChainstateStoreProvider extends BaseStoreProvider {
 	 * @return boolean
 	 */
 	public boolean revokedAddSubAccount(RelevanceSubAccountTransaction relevancSubAccountTx) {
-		byte[] subAccountKey = new byte[22];
-		subAccountKey[0] = 0;
-		subAccountKey[1] = 1;
-		System.arraycopy(relevancSubAccountTx.getHash160(), 0, subAccountKey, 2, Address.LENGTH);
-		
-		byte[] subAccounts = getBytes(subAccountKey);
-		
-		byte[] newSubAccounts = new byte[subAccounts.length - (Address.HASH_LENGTH + Sha256Hash.LENGTH)];
-		
-		//找出位置在哪里
-		//判断在列表里面才更新，否则就被清空了
-		boolean hashExist = false;
-		for (int j = 0; j < subAccounts.length; j += (Address.HASH_LENGTH + Sha256Hash.LENGTH)) {
-			byte[] addressHashsTemp = Arrays.copyOfRange(subAccounts, j, j + Address.HASH_LENGTH);
-			if(Arrays.equals(addressHashsTemp, relevancSubAccountTx.getRelevanceHashs())) {
-				hashExist = true;
-				System.arraycopy(subAccounts, 0, newSubAccounts, 0, j);
-				System.arraycopy(subAccounts, j + (Address.HASH_LENGTH + Sha256Hash.LENGTH), newSubAccounts, j, subAccounts.length - j - (Address.HASH_LENGTH + Sha256Hash.LENGTH));
-				break;
-			}
-		}
-		if(hashExist) {
-			put(subAccountKey, newSubAccounts);
-			return true;
-		} else {
-			return false;
-		}
+		return getSubAccounts(relevancSubAccountTx.getHash160()).remove(relevancSubAccountTx.getRelevanceHashs(), 0);
 	}
 	
 	/**
@@ -185,34 +213,11 @@ public class ChainstateStoreProvider extends BaseStoreProvider {
 	 * @return boolean
 	 */
 	public boolean removeSubAccount(RemoveSubAccountTransaction removeSubAccountTx) {
-		byte[] subAccountKey = new byte[22];
-		subAccountKey[0] = 0;
-		subAccountKey[1] = 1;
-		System.arraycopy(removeSubAccountTx.getHash160(), 0, subAccountKey, 2, Address.LENGTH);
-		
-		byte[] subAccounts = getBytes(subAccountKey);
-		
-		byte[] newSubAccounts = new byte[subAccounts.length - (Address.HASH_LENGTH + Sha256Hash.LENGTH)];
-		
-		//找出位置在哪里
-		//判断在列表里面才更新，否则就被清空了
-		boolean hashExist = false;
-		for (int j = 0; j < subAccounts.length; j += (Address.HASH_LENGTH + Sha256Hash.LENGTH)) {
-			byte[] addressHashsTemp = Arrays.copyOfRange(subAccounts, j, j + Address.HASH_LENGTH);
-			byte[] txhash = Arrays.copyOfRange(subAccounts, j + Address.HASH_LENGTH, j + Address.HASH_LENGTH + Sha256Hash.LENGTH);
-			if(Arrays.equals(addressHashsTemp, removeSubAccountTx.getRelevanceHashs()) && Arrays.equals(txhash, removeSubAccountTx.getTxhash().getBytes())) {
-				hashExist = true;
-				System.arraycopy(subAccounts, 0, newSubAccounts, 0, j);
-				System.arraycopy(subAccounts, j + (Address.HASH_LENGTH + Sha256Hash.LENGTH), newSubAccounts, j, subAccounts.length - j - (Address.HASH_LENGTH + Sha256Hash.LENGTH));
-				break;
-			}
-		}
-		if(hashExist) {
-			put(subAccountKey, newSubAccounts);
-			return true;
-		} else {
-			return false;
-		}
+		byte[] subAccount = new byte[Address.HASH_LENGTH + Sha256Hash.LENGTH];
+		System.arraycopy(removeSubAccountTx.getRelevanceHashs(), 0, subAccount, 0, Address.HASH_LENGTH);
+		System.arraycopy(removeSubAccountTx.getTxhash().getBytes(), 0, subAccount, Address.HASH_LENGTH, Sha256Hash.LENGTH);
+		
+		return getSubAccounts(removeSubAccountTx.getHash160()).remove(subAccount, 0);
 	}
 	
 	/**
@@ -221,20 +226,11 @@ public class ChainstateStoreProvider extends BaseStoreProvider {
 	 * @return boolean
 	 */
 	public boolean revokedRemoveSubAccount(RemoveSubAccountTransaction removeSubAccountTx) {
-		byte[] subAccountKey = new byte[22];
-		subAccountKey[0] = 0;
-		subAccountKey[1] = 1;
-		System.arraycopy(removeSubAccountTx.getHash160(), 0, subAccountKey, 2, Address.LENGTH);
-		
-		byte[] subAccounts = getBytes(subAccountKey);
-		if(subAccounts == null) {
-			subAccounts = new byte[0];
-		}
-		byte[] newSubAccounts = new byte[subAccounts.length + Address.HASH_LENGTH + Sha256Hash.LENGTH];
-		System.arraycopy(subAccounts, 0, newSubAccounts, 0, subAccounts.length);
-		System.arraycopy(removeSubAccountTx.getRelevanceHashs(), 0, newSubAccounts, subAccounts.length, Address.HASH_LENGTH);
-		System.arraycopy(removeSubAccountTx.getTxhash().getBytes(), 0, newSubAccounts, subAccounts.length + Address.HASH_LENGTH, Sha256Hash.LENGTH);
-		put(subAccountKey, newSubAccounts);
+		byte[] subAccount = new byte[Address.HASH_LENGTH + Sha256Hash.LENGTH];
+		System.arraycopy(removeSubAccountTx.getRelevanceHashs(), 0, subAccount, 0, Address.HASH_LENGTH);
+		System.arraycopy(removeSubAccountTx.getTxhash().getBytes(), 0, subAccount, Address.HASH_LENGTH, Sha256Hash.LENGTH);
+		
+		getSubAccounts(removeSubAccountTx.getHash160()).add(subAccount);
 		return true;
 	}
 	
@@ -246,18 +242,8 @@ public class ChainstateStoreProvider extends BaseStoreProvider {
 	public List<RelevanceSubAccountTransaction> getSubAccountList(byte[] certHash160) {
 		List<RelevanceSubAccountTransaction> list = new ArrayList<RelevanceSubAccountTransaction>();
 		
-		byte[] subAccountKey = new byte[22];
-		subAccountKey[0] = 0;
-		subAccountKey[1] = 1;
-		System.arraycopy(certHash160, 0, subAccountKey, 2, Address.LENGTH);
-		
-		byte[] subAccounts = getBytes(subAccountKey);
-		if(subAccounts == null || subAccounts.length == 0) {
-			return list;
-		}
-		
-		for (int j = 0; j < subAccounts.length; j += (Address.HASH_LENGTH + Sha256Hash.LENGTH)) {
-			Sha256Hash txHash = Sha256Hash.wrap(Arrays.copyOfRange(subAccounts, j + Address.HASH_LENGTH, j + Address.HASH_LENGTH + Sha256Hash.LENGTH));
+		for (byte[] subAccount : getSubAccounts(certHash160).list()) {
+			Sha256Hash txHash = Sha256Hash.wrap(Arrays.copyOfRange(subAccount, Address.HASH_LENGTH, Address.HASH_LENGTH + Sha256Hash.LENGTH));
 			
 			TransactionStore txs = blockStoreProvider.getTransaction(txHash.getBytes());
 			if(txs == null) {
@@ -275,16 +261,7 @@ public class ChainstateStoreProvider extends BaseStoreProvider {
 	 * @return int
 	 */
 	public int getSubAccountCount(byte[] certHash160) {
-		byte[] subAccountKey = new byte[22];
-		subAccountKey[0] = 0;
-		subAccountKey[1] = 1;
-		System.arraycopy(certHash160, 0, subAccountKey, 2, Address.LENGTH);
-		
-		byte[] subAccounts = getBytes(subAccountKey);
-		if(subAccounts == null || subAccounts.length == 0) {
-			return 0;
-		}
-		return (int)(subAccounts.length / (Address.HASH_LENGTH + Sha256Hash.LENGTH));
+		return getSubAccounts(certHash160).size();
 	}
 	
 	/**
@@ -294,22 +271,11 @@ public class ChainstateStoreProvider extends BaseStoreProvider {
 	 * @return Sha256Hash 返回商家添加子账户的交易id，有可能返回null
 	 */
 	public Sha256Hash checkIsSubAccount(byte[] certHash160, byte[] addressHashs) {
-		byte[] subAccountKey = new byte[22];
-		subAccountKey[0] = 0;
-		subAccountKey[1] = 1;
-		System.arraycopy(certHash160, 0, subAccountKey, 2, Address.LENGTH);
-		
-		byte[] subAccounts = getBytes(subAccountKey);
-		if(subAccounts == null || subAccounts.length == 0) {
+		byte[] subAccount = getSubAccounts(certHash160).find(addressHashs, 0);
+		if(subAccount == null) {
 			return null;
 		}
-		for (int j = 0; j < subAccounts.length; j += (Address.HASH_LENGTH + Sha256Hash.LENGTH)) {
-			byte[] addressHashsTemp = Arrays.copyOfRange(subAccounts, j, j + Address.HASH_LENGTH);
-			if(Arrays.equals(addressHashsTemp, addressHashs)) {
-				return Sha256Hash.wrap(Arrays.copyOfRange(subAccounts, j + Address.HASH_LENGTH, j + Address.HASH_LENGTH + Sha256Hash.LENGTH));
-			}
-		}
-		return null;
+		return Sha256Hash.wrap(Arrays.copyOfRange(subAccount, Address.HASH_LENGTH, Address.HASH_LENGTH + Sha256Hash.LENGTH));
 	}
 	
 	/**
@@ -426,20 +392,11 @@ public class ChainstateStoreProvider extends BaseStoreProvider {
 	 * @param txHash
 	 */
 	public void addCirculation(byte[] antifakeCode, byte[] hash160, Sha256Hash txHash) {
-		byte[] circulationKey = new byte[22];
-		circulationKey[0] = 0;
-		circulationKey[1] = 1;
-		System.arraycopy(antifakeCode, 0, circulationKey, 2, Address.LENGTH);
+		byte[] circulation = new byte[Address.LENGTH + Sha256Hash.LENGTH];
+		System.arraycopy(hash160, 0, circulation, 0, Address.LENGTH);
+		System.arraycopy(txHash.getBytes(), 0, circulation, Address.LENGTH, Sha256Hash.LENGTH);
 		
-		byte[] circulations = getBytes(circulationKey);
-		if(circulations == null) {
-			circulations = new byte[0];
-		}
-		byte[] newCirculations = new byte[circulations.length +  Address.LENGTH + Sha256Hash.LENGTH];
-		System.arraycopy(circulations, 0, newCirculations, 0, circulations.length);
-		System.arraycopy(hash160, 0, newCirculations, circulations.length, Address.LENGTH);
-		System.arraycopy(txHash.getBytes(), 0, newCirculations, circulations.length + Address.LENGTH, Sha256Hash.LENGTH);
-		put(circulationKey, newCirculations);
+		getCirculations(antifakeCode).add(circulation);
 	}
 	
 	/**
@@ -449,33 +406,11 @@ public class ChainstateStoreProvider extends BaseStoreProvider {
 	 * @param txHash
 	 */
 	public void revokedAddCirculation(byte[] antifakeCode, byte[] hash160, Sha256Hash txHash) {
-		byte[] circulationKey = new byte[22];
-		circulationKey[0] = 0;
-		circulationKey[1] = 1;
-		System.arraycopy(antifakeCode, 0, circulationKey, 2, Address.LENGTH);
-		
-		byte[] circulations = getBytes(circulationKey);
-		if(circulations == null) {
-			circulations = new byte[0];
-		}
-		byte[] newCirculations = new byte[circulations.length - (Address.LENGTH + Sha256Hash.LENGTH)];
-		
-		//找出位置在哪里
-		//判断在列表里面才更新，否则就被清空了
-		boolean hashExist = false;
-		for (int j = 0; j < circulations.length; j += (Address.LENGTH + Sha256Hash.LENGTH)) {
-			byte[] addressHashsTemp = Arrays.copyOfRange(circulations, j, j + Address.LENGTH);
-			byte[] txHashByte = Arrays.copyOfRange(circulations, j + Address.LENGTH, j + Address.LENGTH + Sha256Hash.LENGTH);
-			if(Arrays.equals(addressHashsTemp, hash160) && Arrays.equals(txHash.getBytes(), txHashByte)) {
-				hashExist = true;
-				System.arraycopy(circulations, 0, newCirculations, 0, j);
-				System.arraycopy(circulations, j + (Address.LENGTH + Sha256Hash.LENGTH), newCirculations, j, circulations.length - j - (Address.LENGTH + Sha256Hash.LENGTH));
-				break;
-			}
-		}
-		if(hashExist) {
-			put(circulationKey, circulations);
-		}
+		byte[] circulation = new byte[Address.LENGTH + Sha256Hash.LENGTH];
+		System.arraycopy(hash160, 0, circulation, 0, Address.LENGTH);
+		System.arraycopy(txHash.getBytes(), 0, circulation, Address.LENGTH, Sha256Hash.LENGTH);
+		
+		getCirculations(antifakeCode).remove(circulation, 0);
 	}
 
 	/**
@@ -485,20 +420,9 @@ public class ChainstateStoreProvider extends BaseStoreProvider {
 	 * @return int
 	 */
 	public int getCirculationCount(byte[] antifakeCode, byte[] hash160) {
-		byte[] circulationKey = new byte[22];
-		circulationKey[0] = 0;
-		circulationKey[1] = 1;
-		System.arraycopy(antifakeCode, 0, circulationKey, 2, Address.LENGTH);
-		
-		byte[] circulations = getBytes(circulationKey);
-		
-		if(circulations == null) {
-			return 0;
-		}
-		
 		int count = 0;
-		for (int j = 0; j < circulations.length; j += (Address.LENGTH + Sha256Hash.LENGTH)) {
-			byte[] addressHash160 = Arrays.copyOfRange(circulations, j, j + Address.LENGTH);
+		for (byte[] circulation : getCirculations(antifakeCode).list()) {
+			byte[] addressHash160 = Arrays.copyOfRange(circulation, 0, Address.LENGTH);
 			if(Arrays.equals(addressHash160, hash160)) {
 				count++;
 			}
@@ -512,18 +436,7 @@ public class ChainstateStoreProvider extends BaseStoreProvider {
 	 * @return int
 	 */
 	public int getCirculationCount(byte[] antifakeCode) {
-		byte[] circulationKey = new byte[22];
-		circulationKey[0] = 0;
-		circulationKey[1] = 1;
-		System.arraycopy(antifakeCode, 0, circulationKey, 2, Address.LENGTH);
-		
-		byte[] circulations = getBytes(circulationKey);
-		
-		if(circulations == null) {
-			return 0;
-		}
-		
-		return circulations.length / (Address.LENGTH + Sha256Hash.LENGTH);
+		return getCirculations(antifakeCode).size();
 	}
 	
 	/**
@@ -534,19 +447,8 @@ public class ChainstateStoreProvider extends BaseStoreProvider {
 	public List<CirculationTransaction> getCirculationList(byte[] antifakeCode) {
 		List<CirculationTransaction> list = new ArrayList<CirculationTransaction>();
 		
-		byte[] circulationKey = new byte[22];
-		circulationKey[0] = 0;
-		circulationKey[1] = 1;
-		System.arraycopy(antifakeCode, 0, circulationKey, 2, Address.LENGTH);
-		
-		byte[] circulations = getBytes(circulationKey);
-		
-		if(circulations == null) {
-			return list;
-		}
-		
-		for (int j = 0; j < circulations.length; j += (Address.LENGTH + Sha256Hash.LENGTH)) {
-			Sha256Hash txHash = Sha256Hash.wrap(Arrays.copyOfRange(circulations, j + Address.LENGTH, j + Address.LENGTH + Sha256Hash.LENGTH));
+		for (byte[] circulation : getCirculations(antifakeCode).list()) {
+			Sha256Hash txHash = Sha256Hash.wrap(Arrays.copyOfRange(circulation, Address.LENGTH, Address.LENGTH + Sha256Hash.LENGTH));
 			
 			TransactionStore txs = blockStoreProvider.getTransaction(txHash.getBytes());
 			if(txs == null) {
@@ -566,26 +468,16 @@ public class ChainstateStoreProvider extends BaseStoreProvider {
 	 * @param txHash
 	 */
 	public void antifakeTransfer(byte[] antifakeCode, byte[] hash160, byte[] receiveHashs, Sha256Hash txHash) {
-		byte[] transferKey = new byte[22];
-		transferKey[0] = 0;
-		transferKey[1] = 2;
-		System.arraycopy(antifakeCode, 0, transferKey, 2, Address.LENGTH);
-		
-		byte[] transfers = getBytes(transferKey);
-		if(transfers == null) {
-			transfers = new byte[0];
-		}
-		byte[] newTransfers = new byte[transfers.length +  Address.HASH_LENGTH + Sha256Hash.LENGTH];
-		System.arraycopy(transfers, 0, newTransfers, 0, transfers.length);
-		System.arraycopy(receiveHashs, 0, newTransfers, transfers.length, Address.HASH_LENGTH);
-		System.arraycopy(txHash.getBytes(), 0, newTransfers, transfers.length + Address.HASH_LENGTH, Sha256Hash.LENGTH);
+		byte[] transfer = new byte[Address.HASH_LENGTH + Sha256Hash.LENGTH];
+		System.arraycopy(receiveHashs, 0, transfer, 0, Address.HASH_LENGTH);
+		System.arraycopy(txHash.getBytes(), 0, transfer, Address.HASH_LENGTH, Sha256Hash.LENGTH);
 		
 		AccountStore accountInfo = getAccountInfo(hash160);
 		//扣除信用
 		accountInfo.setCert(accountInfo.getCert() + Configure.TRANSFER_ANTIFAKECODE_SUB_CREDIT);
 		saveAccountInfo(accountInfo);
-				
-		put(transferKey, newTransfers);
+		
+		getAntifakeTransfers(antifakeCode).add(transfer);
 	}
 	
 	/**
@@ -596,31 +488,8 @@ public class ChainstateStoreProvider extends BaseStoreProvider {
 	 * @param txHash
 	 */
 	public void revokedAntifakeTransfer(byte[] antifakeCode, byte[] hash160, byte[] receiveHashs, Sha256Hash txHash) {
-		byte[] transferKey = new byte[22];
-		transferKey[0] = 0;
-		transferKey[1] = 2;
-		System.arraycopy(antifakeCode, 0, transferKey, 2, Address.LENGTH);
-		
-		byte[] transfers = getBytes(transferKey);
-		if(transfers == null) {
-			return;
-		}
-		byte[] newTransfers = new byte[transfers.length - (Address.HASH_LENGTH + Sha256Hash.LENGTH)];
-		
-		boolean hashExist = false;
-		for (int j = 0; j < transfers.length; j += (Address.HASH_LENGTH + Sha256Hash.LENGTH)) {
-			byte[] addressHashsTemp = Arrays.copyOfRange(transfers, j, j + Address.HASH_LENGTH);
-			byte[] txHashByte = Arrays.copyOfRange(transfers, j + Address.HASH_LENGTH, j + Address.HASH_LENGTH + Sha256Hash.LENGTH);
-			if(Arrays.equals(addressHashsTemp, hash160) && Arrays.equals(txHash.getBytes(), txHashByte)) {
-				hashExist = true;
-				System.arraycopy(transfers, 0, newTransfers, 0, j);
-				System.arraycopy(transfers, j + (Address.HASH_LENGTH + Sha256Hash.LENGTH), newTransfers, j, transfers.length - j - (Address.HASH_LENGTH + Sha256Hash.LENGTH));
-				break;
-			}
-		}
-		if(hashExist) {
-			put(transferKey, newTransfers);
-			
+		//按转让交易查找，一次转让只有一条记录
+		if(getAntifakeTransfers(antifakeCode).remove(txHash.getBytes(), Address.HASH_LENGTH)) {
 			AccountStore accountInfo = getAccountInfo(hash160);
 			//扣除信用
 			accountInfo.setCert(accountInfo.getCert() - Configure.TRANSFER_ANTIFAKECODE_SUB_CREDIT);
@@ -634,18 +503,11 @@ public class ChainstateStoreProvider extends BaseStoreProvider {
 	 * @return byte[]
 	 */
 	public byte[] getAntifakeCodeOwner(byte[] antifakeCode) {
-		byte[] transferKey = new byte[22];
-		transferKey[0] = 0;
-		transferKey[1] = 2;
-		System.arraycopy(antifakeCode, 0, transferKey, 2, Address.LENGTH);
-		
-		byte[] transfers = getBytes(transferKey);
-		if(transfers == null || transfers.length == 0) {
+		byte[] transfer = getAntifakeTransfers(antifakeCode).last();
+		if(transfer == null) {
 			return null;
 		}
-		int count = transfers.length / (Address.HASH_LENGTH + Sha256Hash.LENGTH);
-		int index = (count - 1) * (Address.HASH_LENGTH + Sha256Hash.LENGTH);
-		return Arrays.copyOfRange(transfers, index, index + Address.HASH_LENGTH);
+		return Arrays.copyOfRange(transfer, 0, Address.HASH_LENGTH);
 	}
 	
 	/**
@@ -654,16 +516,7 @@ public class ChainstateStoreProvider extends BaseStoreProvider {
 	 * @return int
 	 */
 	public int getAntifakeCodeTransferCount(byte[] antifakeCode) {
-		byte[] transferKey = new byte[22];
-		transferKey[0] = 0;
-		transferKey[1] = 2;
-		System.arraycopy(antifakeCode, 0, transferKey, 2, Address.LENGTH);
-		
-		byte[] transfers = getBytes(transferKey);
-		if(transfers == null || transfers.length == 0) {
-			return 0;
-		}
-		return transfers.length / (Address.HASH_LENGTH + Sha256Hash.LENGTH);
+		return getAntifakeTransfers(antifakeCode).size();
 	}
 	
 	/**
@@ -674,19 +527,8 @@ public class ChainstateStoreProvider extends BaseStoreProvider {
 	public List<AntifakeTransferTransaction> getAntifakeCodeTransferList(byte[] antifakeCode) {
 		List<AntifakeTransferTransaction> list = new ArrayList<AntifakeTransferTransaction>();
 		
-		byte[] transferKey = new byte[22];
-		transferKey[0] = 0;
-		transferKey[1] = 2;
-		System.arraycopy(antifakeCode, 0, transferKey, 2, Address.LENGTH);
-		
-		byte[] transfers = getBytes(transferKey);
-		
-		if(transfers == null) {
-			return list;
-		}
-		
-		for (int j = 0; j < transfers.length; j += (Address.HASH_LENGTH + Sha256Hash.LENGTH)) {
-			Sha256Hash txHash = Sha256Hash.wrap(Arrays.copyOfRange(transfers, j + Address.HASH_LENGTH, j + Address.HASH_LENGTH + Sha256Hash.LENGTH));
+		for (byte[] transfer : getAntifakeTransfers(antifakeCode).list()) {
+			Sha256Hash txHash = Sha256Hash.wrap(Arrays.copyOfRange(transfer, Address.HASH_LENGTH, Address.HASH_LENGTH + Sha256Hash.LENGTH));
 			
 			TransactionStore txs = blockStoreProvider.getTransaction(txHash.getBytes());
 			if(txs == null) {
@@ -753,16 +595,11 @@ public class ChainstateStoreProvider extends BaseStoreProvider {
 		consensusLocker.lock();
 		try {
 			//注册共识，加入到共识账户列表中
-			byte[] consensusAccountHash160s = getBytes(Configure.CONSENSUS_ACCOUNT_KEYS);
-			if(consensusAccountHash160s == null) {
-				consensusAccountHash160s = new byte[0];
-			}
 			byte[] hash160 = tx.getHash160();
-			byte[] newConsensusHash160s = new byte[consensusAccountHash160s.length + (Address.LENGTH + Sha256Hash.LENGTH)];
-			System.arraycopy(consensusAccountHash160s, 0, newConsensusHash160s, 0, consensusAccountHash160s.length);
-			System.arraycopy(hash160, 0, newConsensusHash160s, consensusAccountHash160s.length, Address.LENGTH);
-			System.arraycopy(tx.getHash().getBytes(), 0, newConsensusHash160s, consensusAccountHash160s.length + Address.LENGTH, Sha256Hash.LENGTH);
-			put(Configure.CONSENSUS_ACCOUNT_KEYS, newConsensusHash160s);
+			byte[] consensusAccount = new byte[Address.LENGTH + Sha256Hash.LENGTH];
+			System.arraycopy(hash160, 0, consensusAccount, 0, Address.LENGTH);
+			System.arraycopy(tx.getHash().getBytes(), 0, consensusAccount, Address.LENGTH, Sha256Hash.LENGTH);
+			getConsensusAccountList().add(consensusAccount);
 	
 			//添加账户信息，如果不存在的话
 			AccountStore accountInfo = getAccountInfo(hash160);
@@ -777,7 +614,7 @@ public class ChainstateStoreProvider extends BaseStoreProvider {
 			//公钥
 			byte[][] pubkeys = accountInfo.getPubkeys();
 			//添加到共识缓存器里
-			consensusPool.add(tx.getHash160(), tx.getHash(), pubkeys);
+			changeConsensusPool(new ConsensusChange(tx.getHash160(), tx.getHash(), pubkeys));
 		} catch (Exception e) {
 			log.error("出错了{}", e.getMessage(), e);
 		} finally {
@@ -835,27 +672,9 @@ public class ChainstateStoreProvider extends BaseStoreProvider {
 		consensusLocker.lock();
 		try {
 			//从共识账户列表中删除
-			byte[] consensusAccountHash160s = getBytes(Configure.CONSENSUS_ACCOUNT_KEYS);
-			
-			byte[] newConsensusHash160s = new byte[consensusAccountHash160s.length - (Address.LENGTH + Sha256Hash.LENGTH)];
-			
-			//找出位置在哪里
-			//判断在列表里面才更新，否则就被清空了
-			boolean hashExist = false;
-			for (int j = 0; j < consensusAccountHash160s.length; j += (Address.LENGTH + Sha256Hash.LENGTH)) {
-				byte[] addressHash160 = Arrays.copyOfRange(consensusAccountHash160s, j, j + Address.LENGTH);
-				if(Arrays.equals(addressHash160, hash160)) {
-					hashExist = true;
-					System.arraycopy(consensusAccountHash160s, 0, newConsensusHash160s, 0, j);
-					System.arraycopy(consensusAccountHash160s, j + (Address.LENGTH + Sha256Hash.LENGTH), newConsensusHash160s, j, consensusAccountHash160s.length - j - (Address.LENGTH + Sha256Hash.LENGTH));
-					break;
-				}
-			}
-			if(hashExist) {
-				put(Configure.CONSENSUS_ACCOUNT_KEYS, newConsensusHash160s);
-			}
+			getConsensusAccountList().remove(hash160, 0);
 			//从共识缓存器里中移除
-			consensusPool.delete(hash160);
+			changeConsensusPool(new ConsensusChange(hash160, null, null));
 		} catch (Exception e) {
 			log.error("出错了{}", e.getMessage(), e);
 		} finally {
@@ -863,6 +682,73 @@ public class ChainstateStoreProvider extends BaseStoreProvider {
 		}
 	}
 	
+	/**
+	 * 当前线程之后共识池的修改记到 changes 里，由调用者在批次提交之后执行
+	 * 批次放弃时直接丢掉记录，共识池不受影响
+	 * @param changes 为null时恢复直接修改共识池
+	 */
+	void recordConsensusChanges(List<ConsensusChange> changes) {
+		if(changes == null) {
+			consensusChanges.remove();
+		} else {
+			consensusChanges.set(changes);
+		}
+	}
+	
+	/**
+	 * 按顺序执行记下的共识池修改，这时数据已经写入，出错只记录
+	 * @param changes
+	 */
+	void applyConsensusChanges(List<ConsensusChange> changes) {
+		consensusLocker.lock();
+		try {
+			for (ConsensusChange change : changes) {
+				try {
+					change.apply(consensusPool);
+				} catch (Exception e) {
+					log.error("出错了{}", e.getMessage(), e);
+				}
+			}
+		} finally {
+			consensusLocker.unlock();
+		}
+	}
+	
+	/*
+	 * 有记录时先记下，没有则直接修改共识池
+	 */
+	private void changeConsensusPool(ConsensusChange change) {
+		List<ConsensusChange> changes = consensusChanges.get();
+		if(changes != null) {
+			changes.add(change);
+		} else {
+			change.apply(consensusPool);
+		}
+	}
+	
+	/*
+	 * 共识池的一次修改，txhash 为null时表示移除
+	 */
+	static class ConsensusChange {
+		private final byte[] hash160;
+		private final Sha256Hash txhash;
+		private final byte[][] pubkeys;
+		
+		ConsensusChange(byte[] hash160, Sha256Hash txhash, byte[][] pubkeys) {
+			this.hash160 = hash160;
+			this.txhash = txhash;
+			this.pubkeys = pubkeys;
+		}
+		
+		void apply(ConsensusPool consensusPool) {
+			if(txhash == null) {
+				consensusPool.delete(hash160);
+			} else {
+				consensusPool.add(hash160, txhash, pubkeys);
+			}
+		}
+	}
+	
 	/**
 	 * 不确定的账户，确定下来
 	 * @param accountInfo
@@ -905,6 +791,297 @@ public class ChainstateStoreProvider extends BaseStoreProvider {
 		return accountInfo;
 	}
 
+	/**
+	 * 添加认证账户
+	 * @param hash160
+	 */
+	public void addCertAccount(byte[] hash160) {
+		getCertAccounts().add(hash160);
+	}
+	
+	/**
+	 * 删除认证账户
+	 * @param hash160
+	 * @return boolean
+	 */
+	public boolean removeCertAccount(byte[] hash160) {
+		return getCertAccounts().remove(hash160, 0);
+	}
+	
+	/**
+	 * 获取所有认证账户的hash160，按注册顺序排列
+	 * @return List<byte[]>
+	 */
+	public List<byte[]> getCertAccountHash160s() {
+		return getCertAccounts().list();
+	}
+	
+	/**
+	 * 获取共识账户列表，每条为 hash160 + 注册共识的交易hash，按加入顺序排列
+	 * @return List<byte[]>
+	 */
+	public List<byte[]> getConsensusAccounts() {
+		return getConsensusAccountList().list();
+	}
+	
+	/**
+	 * 清空共识账户列表
+	 */
+	public void clearConsensusAccounts() {
+		getConsensusAccountList().clear();
+	}
+	
+	/**
+	 * 保存某人某类信用的最近累积记录，内容为空时删除
+	 * @param type
+	 * @param hash160
+	 * @param content
+	 */
+	public void saveCreditRecord(int type, byte[] hash160, byte[] content) {
+		byte[] key = getCreditRecordKey(type, hash160);
+		if(content == null || content.length == 0) {
+			delete(key);
+		} else {
+			put(key, content);
+		}
+	}
+	
+	/**
+	 * 所有的信用累积记录，key 为 1字节类型 + hash160
+	 * @return List<Entry<byte[], byte[]>>
+	 */
+	public List<Entry<byte[], byte[]>> listCreditRecords() {
+		List<Entry<byte[], byte[]>> records = new ArrayList<Entry<byte[], byte[]>>();
+		int keyLength = CREDIT_RECORD_PREFIX.length + 1 + Address.LENGTH;
+		for (Entry<byte[], byte[]> item : db.listByPrefix(CREDIT_RECORD_PREFIX)) {
+			//账户等其它记录也可能以同样的字节开头，按长度区分
+			if(item.getKey().length != keyLength) {
+				continue;
+			}
+			byte[] key = Arrays.copyOfRange(item.getKey(), CREDIT_RECORD_PREFIX.length, keyLength);
+			records.add(new AbstractMap.SimpleImmutableEntry<byte[], byte[]>(key, item.getValue()));
+		}
+		return records;
+	}
+	
+	/**
+	 * 信用累积记录是否完整，没有的话需要遍历区块重建
+	 * @return boolean
+	 */
+	public boolean isCreditRecordComplete() {
+		return db.get(CREDIT_RECORD_COMPLETE_KEY) != null;
+	}
+	
+	/**
+	 * 标记信用累积记录已重建完成，之后由区块的保存和回滚维护
+	 */
+	public void setCreditRecordComplete() {
+		db.put(CREDIT_RECORD_COMPLETE_KEY, new byte[] { 1 });
+	}
+	
+	private static byte[] getCreditRecordKey(int type, byte[] hash160) {
+		byte[] key = new byte[CREDIT_RECORD_PREFIX.length + 1 + Address.LENGTH];
+		System.arraycopy(CREDIT_RECORD_PREFIX, 0, key, 0, CREDIT_RECORD_PREFIX.length);
+		key[CREDIT_RECORD_PREFIX.length] = (byte) type;
+		System.arraycopy(hash160, 0, key, CREDIT_RECORD_PREFIX.length + 1, Address.LENGTH);
+		return key;
+	}
+	
+	/*
+	 * 防伪码流转信息列表，每条为 hash160 + 交易hash，按 hash160 查找
+	 */
+	private StoreList getCirculations(byte[] antifakeCode) {
+		return new StoreList(db, getListKey(CIRCULATIONS_PREFIX, antifakeCode), 0, Address.LENGTH);
+	}
+	
+	/*
+	 * 认证账户的子账户列表，每条为 子账户地址 + 交易hash，按子账户地址查找
+	 */
+	private StoreList getSubAccounts(byte[] certHash160) {
+		return new StoreList(db, getListKey(SUB_ACCOUNTS_PREFIX, certHash160), 0, Address.HASH_LENGTH);
+	}
+	
+	/*
+	 * 防伪码转让列表，每条为 接收人地址 + 交易hash，按交易hash查找
+	 */
+	private StoreList getAntifakeTransfers(byte[] antifakeCode) {
+		return new StoreList(db, getListKey(ANTIFAKE_TRANSFERS_PREFIX, antifakeCode), Address.HASH_LENGTH, Sha256Hash.LENGTH);
+	}
+	
+	/*
+	 * 认证账户列表，每条为 hash160
+	 */
+	private StoreList getCertAccounts() {
+		return new StoreList(db, CERT_ACCOUNTS_KEY, 0, Address.LENGTH);
+	}
+	
+	/*
+	 * 共识账户列表，每条为 hash160 + 注册共识的交易hash，按 hash160 查找
+	 */
+	private StoreList getConsensusAccountList() {
+		return new StoreList(db, CONSENSUS_ACCOUNTS_KEY, 0, Address.LENGTH);
+	}
+	
+	private static byte[] getListKey(byte[] prefix, byte[] owner) {
+		byte[] key = new byte[prefix.length + Address.LENGTH];
+		System.arraycopy(prefix, 0, key, 0, prefix.length);
+		System.arraycopy(owner, 0, key, prefix.length, Address.LENGTH);
+		return key;
+	}
+	
+	/**
+	 * 把老版本整个列表存成一条记录的数据，转换成每个元素一条记录
+	 * 包括防伪码流转信息、子账户、防伪码转让、认证账户和共识账户列表，转换之后删除老的记录
+	 * @return int 转换的列表数量
+	 */
+	public int migrateListStorage() {
+		int count = 0;
+		
+		//转换过程中出错则全部放弃，下次启动重新转换
+		boolean committed = false;
+		db.beginBatch();
+		try {
+			//流转信息和子账户都使用的 0,1 前缀，根据单条长度区分，都能整除时，看key后面的记录是账户还是防伪码
+			int circulationLength = Address.LENGTH + Sha256Hash.LENGTH;
+			int subAccountLength = Address.HASH_LENGTH + Sha256Hash.LENGTH;
+			for (Entry<byte[], byte[]> item : db.listByPrefix(new byte[] { 0, 1 })) {
+				byte[] key = item.getKey();
+				byte[] value = item.getValue();
+				if(key.length != 2 + Address.LENGTH || value == null) {
+					continue;
+				}
+				byte[] owner = Arrays.copyOfRange(key, 2, key.length);
+				boolean isSubAccount;
+				if(value.length % subAccountLength == 0 && value.length % circulationLength == 0) {
+					isSubAccount = isAccountRecord(owner, getBytes(owner));
+				} else {
+					isSubAccount = value.length % subAccountLength == 0;
+				}
+				if(isSubAccount) {
+					migrateList(value, subAccountLength, getSubAccounts(owner));
+				} else {
+					migrateList(value, circulationLength, getCirculations(owner));
+				}
+				db.delete(key);
+				count++;
+			}
+			
+			//防伪码转让
+			for (Entry<byte[], byte[]> item : db.listByPrefix(new byte[] { 0, 2 })) {
+				byte[] key = item.getKey();
+				if(key.length != 2 + Address.LENGTH || item.getValue() == null) {
+					continue;
+				}
+				migrateList(item.getValue(), subAccountLength, getAntifakeTransfers(Arrays.copyOfRange(key, 2, key.length)));
+				db.delete(key);
+				count++;
+			}
+			
+			//认证账户列表，老版本每条为账户的hash160，修改认证信息时可能写坏了，只保留存在的账户
+			byte[] certAccounts = getBytes(Configure.CERT_ACCOUNT_KEYS);
+			if(certAccounts != null) {
+				StoreList list = getCertAccounts();
+				for (int i = 0; i + Address.LENGTH <= certAccounts.length; i += Address.LENGTH) {
+					byte[] hash160 = Arrays.copyOfRange(certAccounts, i, i + Address.LENGTH);
+					if(getBytes(hash160) != null && list.find(hash160, 0) == null) {
+						list.add(hash160);
+					}
+				}
+				db.delete(Configure.CERT_ACCOUNT_KEYS);
+				count++;
+			}
+			
+			//共识账户列表
+			byte[] consensusAccounts = getBytes(Configure.CONSENSUS_ACCOUNT_KEYS);
+			if(consensusAccounts != null) {
+				migrateList(consensusAccounts, circulationLength, getConsensusAccountList());
+				db.delete(Configure.CONSENSUS_ACCOUNT_KEYS);
+				count++;
+			}
+			
+			db.commitBatch();
+			committed = true;
+		} catch (IOException e) {
+			log.error("链状态列表转换出错", e);
+			return 0;
+		} finally {
+			if(!committed) {
+				db.discardBatch();
+			}
+		}
+		if(count > 0) {
+			log.info("链状态转换了{}个列表", count);
+		}
+		return count;
+	}
+	
+	/*
+	 * 给之前版本保存的列表生成反查记录，只执行一次，中途中断的话下次启动重新生成
+	 */
+	private void rebuildListIndexes() {
+		if(db.get(LIST_INDEX_COMPLETE_KEY) != null) {
+			return;
+		}
+		int count = 0;
+		for (byte[] owner : getListOwners(CIRCULATIONS_PREFIX)) {
+			getCirculations(owner).rebuildIndex();
+			count++;
+		}
+		for (byte[] owner : getListOwners(SUB_ACCOUNTS_PREFIX)) {
+			getSubAccounts(owner).rebuildIndex();
+			count++;
+		}
+		for (byte[] owner : getListOwners(ANTIFAKE_TRANSFERS_PREFIX)) {
+			getAntifakeTransfers(owner).rebuildIndex();
+			count++;
+		}
+		getCertAccounts().rebuildIndex();
+		getConsensusAccountList().rebuildIndex();
+		db.put(LIST_INDEX_COMPLETE_KEY, new byte[] { 1 });
+		if(count > 0) {
+			log.info("{}个列表生成了反查记录", count);
+		}
+	}
+	
+	/*
+	 * 前缀下所有列表的所有者，同一列表的元素key相邻
+	 */
+	private List<byte[]> getListOwners(final byte[] prefix) {
+		final List<byte[]> owners = new ArrayList<byte[]>();
+		final int itemKeyLength = prefix.length + Address.LENGTH + 4;
+		db.forEachByPrefix(prefix, new Db.EntryVisitor() {
+			@Override
+			public boolean visit(byte[] key, byte[] value) {
+				if(key.length != itemKeyLength) {
+					return true;
+				}
+				byte[] owner = Arrays.copyOfRange(key, prefix.length, prefix.length + Address.LENGTH);
+				if(owners.isEmpty() || !Arrays.equals(owners.get(owners.size() - 1), owner)) {
+					owners.add(owner);
+				}
+				return true;
+			}
+		});
+		return owners;
+	}
+	
+	/*
+	 * 判断记录是否是 owner 的账户信息，账户信息是类型加 hash160 开头，防伪码记录只有生产交易的hash
+	 * 转换在构造时进行，这时还没有注入网络参数，不能完整解析账户信息
+	 */
+	private static boolean isAccountRecord(byte[] owner, byte[] record) {
+		if(record == null || record.length == Sha256Hash.LENGTH || record.length < 1 + Address.LENGTH) {
+			return false;
+		}
+		return Arrays.equals(owner, Arrays.copyOfRange(record, 1, 1 + Address.LENGTH));
+	}
+	
+	private static void migrateList(byte[] value, int itemLength, StoreList list) {
+		for (int i = 0; i + itemLength <= value.length; i += itemLength) {
+			list.add(Arrays.copyOfRange(value, i, i + itemLength));
+		}
+	}
+	
 	/**
 	 * 回滚过程中的共识重新加入
 	 * @param tx
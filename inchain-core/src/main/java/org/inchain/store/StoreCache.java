@@ -0,0 +1,219 @@
+package org.inchain.store;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 存储层的解码对象缓存，按最近最少使用淘汰，容量为0时不缓存
+ * key 和存储里的 key 相同，存储里的 key 有写入时使对应的缓存失效
+ * 每次失效都会递增版本号，读取存储之前记下版本号，放入缓存时版本号有变化则不放入，避免把失效前读到的旧数据放进缓存
+ * 可以按 key 的hash分成多段，每段单独加锁和淘汰，多个线程同时读写时不会都等在同一把锁上
+ * @author ln
+ *
+ */
+public class StoreCache<V> {
+
+	//缓存名称，用于统计信息
+	private final String name;
+	//最大缓存数量
+	private final int capacity;
+	//按 key 的hash分段，每段容量为总容量平分
+	private final LinkedHashMap<CacheKey, V>[] segments;
+	//失效版本号，所有分段共用，同一个 key 的失效和放入都在它所在分段的锁内
+	private final AtomicLong version = new AtomicLong();
+
+	//命中次数
+	private final LongAdder hits = new LongAdder();
+	//未命中次数
+	private final LongAdder misses = new LongAdder();
+
+	public StoreCache(String name, int capacity) {
+		this(name, capacity, 1);
+	}
+
+	/**
+	 * @param name 缓存名称
+	 * @param capacity 最大缓存数量，为0时不缓存
+	 * @param segmentCount 分段数量，每段按最近最少使用单独淘汰
+	 */
+	@SuppressWarnings("unchecked")
+	public StoreCache(String name, int capacity, int segmentCount) {
+		this.name = name;
+		this.capacity = Math.max(capacity, 0);
+		int count = Math.max(Math.min(segmentCount, this.capacity), 1);
+		final int segmentCapacity = (this.capacity + count - 1) / count;
+		this.segments = new LinkedHashMap[count];
+		for (int i = 0; i < count; i++) {
+			segments[i] = new LinkedHashMap<CacheKey, V>(16, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<CacheKey, V> eldest) {
+					return size() > segmentCapacity;
+				}
+			};
+		}
+	}
+
+	/**
+	 * 获取缓存，同时记录命中统计
+	 * @param key
+	 * @return V 没有缓存时返回null
+	 */
+	public V get(byte[] key) {
+		if(capacity == 0 || key == null) {
+			return null;
+		}
+		CacheKey cacheKey = new CacheKey(key);
+		LinkedHashMap<CacheKey, V> items = segmentFor(cacheKey);
+		V value;
+		synchronized (items) {
+			value = items.get(cacheKey);
+		}
+		if(value == null) {
+			misses.increment();
+		} else {
+			hits.increment();
+		}
+		return value;
+	}
+
+	/**
+	 * 放入缓存，version 为读取存储之前通过 getVersion 获取的版本号，期间有失效则不放入
+	 * @param key
+	 * @param value
+	 * @param version
+	 */
+	public void put(byte[] key, V value, long version) {
+		if(capacity == 0 || key == null || value == null) {
+			return;
+		}
+		CacheKey cacheKey = new CacheKey(key);
+		LinkedHashMap<CacheKey, V> items = segmentFor(cacheKey);
+		synchronized (items) {
+			if(this.version.get() != version) {
+				return;
+			}
+			items.put(cacheKey, value);
+		}
+	}
+
+	/**
+	 * 使缓存失效
+	 * @param key
+	 */
+	public void invalidate(byte[] key) {
+		if(capacity == 0 || key == null) {
+			return;
+		}
+		CacheKey cacheKey = new CacheKey(key);
+		LinkedHashMap<CacheKey, V> items = segmentFor(cacheKey);
+		synchronized (items) {
+			version.incrementAndGet();
+			items.remove(cacheKey);
+		}
+	}
+
+	/**
+	 * 清空缓存
+	 */
+	public void clear() {
+		version.incrementAndGet();
+		for (LinkedHashMap<CacheKey, V> items : segments) {
+			synchronized (items) {
+				items.clear();
+			}
+		}
+	}
+
+	/**
+	 * 当前的失效版本号
+	 * @return long
+	 */
+	public long getVersion() {
+		return version.get();
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public int getSegmentCount() {
+		return segments.length;
+	}
+
+	public int size() {
+		int size = 0;
+		for (LinkedHashMap<CacheKey, V> items : segments) {
+			synchronized (items) {
+				size += items.size();
+			}
+		}
+		return size;
+	}
+
+	public long getHitCount() {
+		return hits.sum();
+	}
+
+	public long getMissCount() {
+		return misses.sum();
+	}
+
+	/**
+	 * 命中率
+	 * @return double
+	 */
+	public double getHitRate() {
+		long hitCount = hits.sum();
+		long total = hitCount + misses.sum();
+		return total == 0 ? 0d : (double) hitCount / total;
+	}
+
+	@Override
+	public String toString() {
+		return name + " [size=" + size() + "/" + capacity + ", hits=" + hits.sum() + ", misses=" + misses.sum()
+			+ ", hitRate=" + String.format("%.2f", getHitRate() * 100) + "%]";
+	}
+
+	private LinkedHashMap<CacheKey, V> segmentFor(CacheKey key) {
+		if(segments.length == 1) {
+			return segments[0];
+		}
+		int hash = key.hashCode();
+		hash ^= hash >>> 16;
+		return segments[(hash & 0x7fffffff) % segments.length];
+	}
+
+	/*
+	 * 字节数组作为 key 时需要按内容比较
+	 */
+	static class CacheKey {
+		final byte[] key;
+		private final int hashCode;
+
+		CacheKey(byte[] key) {
+			this.key = key;
+			this.hashCode = Arrays.hashCode(key);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if(obj == null || !(obj instanceof CacheKey)) {
+				return false;
+			}
+			return Arrays.equals(key, ((CacheKey) obj).key);
+		}
+
+		@Override
+		public int hashCode() {
+			return hashCode;
+		}
+	}
+}
@@ -0,0 +1,309 @@
+package org.inchain.store;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map.Entry;
+
+import org.inchain.db.Db;
+import org.inchain.utils.Utils;
+
+/**
+ * 存储里的列表，每个元素单独一条记录，新增和删除不需要重写整个列表
+ * 元素的 key 为 列表key + 4字节序号，序号递增，按 key 遍历即为添加的顺序
+ * 列表key本身存放下一个序号和元素个数
+ * 指定了查找字段时，另有反查记录 列表key + 0xff + 元素里该字段的内容，值为这些元素的序号，按字段查找和删除时直接读取，不遍历列表
+ * @author ln
+ *
+ */
+public class StoreList {
+
+	//序号长度
+	private final static int SEQUENCE_LENGTH = 4;
+	//反查记录在列表key后面的标记
+	private final static byte INDEX_FLAG = (byte) 0xff;
+
+	private final Db db;
+	private final byte[] listKey;
+	//查找字段在元素里的位置和长度，长度为0时没有反查记录
+	private final int keyOffset;
+	private final int keyLength;
+
+	public StoreList(Db db, byte[] listKey) {
+		this(db, listKey, 0, 0);
+	}
+
+	/**
+	 * 按元素里固定位置的字段查找和删除的列表
+	 * @param db
+	 * @param listKey
+	 * @param keyOffset		查找字段在元素里的位置
+	 * @param keyLength		查找字段的长度
+	 */
+	public StoreList(Db db, byte[] listKey, int keyOffset, int keyLength) {
+		this.db = db;
+		this.listKey = listKey;
+		this.keyOffset = keyOffset;
+		this.keyLength = keyLength;
+	}
+
+	/**
+	 * 在列表末尾添加元素
+	 * @param item
+	 */
+	public void add(byte[] item) {
+		long[] meta = getMeta();
+		long sequence = meta[0];
+
+		db.put(getItemKey(sequence), item);
+		addIndex(item, sequence);
+		saveMeta(sequence + 1, meta[1] + 1);
+	}
+
+	/**
+	 * 从后往前查找，删除第一个在 offset 位置和 match 相同的元素
+	 * @param match
+	 * @param offset
+	 * @return boolean 是否有删除
+	 */
+	public boolean remove(byte[] match, int offset) {
+		byte[] indexKey = getIndexKey(match, offset);
+		if(indexKey != null) {
+			byte[] sequences = db.get(indexKey);
+			if(sequences == null) {
+				return false;
+			}
+			for (int i = sequences.length - SEQUENCE_LENGTH; i >= 0; i -= SEQUENCE_LENGTH) {
+				byte[] itemKey = getItemKey(Utils.readUint32BE(sequences, i));
+				if(matches(db.get(itemKey), match, offset)) {
+					db.delete(itemKey);
+					removeSequence(indexKey, sequences, i);
+					long[] meta = getMeta();
+					saveMeta(meta[0], meta[1] - 1);
+					return true;
+				}
+			}
+			return false;
+		}
+		List<Entry<byte[], byte[]>> items = entries();
+		for (int i = items.size() - 1; i >= 0; i--) {
+			Entry<byte[], byte[]> item = items.get(i);
+			if(matches(item.getValue(), match, offset)) {
+				db.delete(item.getKey());
+				long[] meta = getMeta();
+				saveMeta(meta[0], meta[1] - 1);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * 查找第一个在 offset 位置和 match 相同的元素
+	 * @param match
+	 * @param offset
+	 * @return byte[] 没有找到返回null
+	 */
+	public byte[] find(byte[] match, int offset) {
+		byte[] indexKey = getIndexKey(match, offset);
+		if(indexKey != null) {
+			byte[] sequences = db.get(indexKey);
+			if(sequences == null) {
+				return null;
+			}
+			for (int i = 0; i < sequences.length; i += SEQUENCE_LENGTH) {
+				byte[] item = db.get(getItemKey(Utils.readUint32BE(sequences, i)));
+				if(matches(item, match, offset)) {
+					return item;
+				}
+			}
+			return null;
+		}
+		for (Entry<byte[], byte[]> item : entries()) {
+			if(matches(item.getValue(), match, offset)) {
+				return item.getValue();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * 按添加顺序获取所有元素
+	 * @return List<byte[]>
+	 */
+	public List<byte[]> list() {
+		List<byte[]> list = new ArrayList<byte[]>();
+		for (Entry<byte[], byte[]> item : entries()) {
+			list.add(item.getValue());
+		}
+		return list;
+	}
+
+	/**
+	 * 最后添加的元素，从最大的序号往前按 key 读取，不遍历整个列表，只有被删除的序号需要跳过
+	 * @return byte[] 列表为空时返回null
+	 */
+	public byte[] last() {
+		long[] meta = getMeta();
+		if(meta[1] == 0) {
+			return null;
+		}
+		for (long sequence = meta[0] - 1; sequence >= 0; sequence--) {
+			byte[] item = db.get(getItemKey(sequence));
+			if(item != null) {
+				return item;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * 元素个数
+	 * @return int
+	 */
+	public int size() {
+		return (int) getMeta()[1];
+	}
+
+	/**
+	 * 清空列表
+	 */
+	public void clear() {
+		for (Entry<byte[], byte[]> item : entries()) {
+			db.delete(item.getKey());
+		}
+		clearIndex();
+		db.delete(listKey);
+	}
+
+	/**
+	 * 按现有的元素重新生成反查记录，用于之前没有反查记录的列表
+	 */
+	public void rebuildIndex() {
+		if(keyLength == 0) {
+			return;
+		}
+		clearIndex();
+		for (Entry<byte[], byte[]> item : entries()) {
+			addIndex(item.getValue(), Utils.readUint32BE(item.getKey(), listKey.length));
+		}
+	}
+
+	/*
+	 * 元素的序号追加到反查记录，序号递增，反查记录里的序号也是添加的顺序
+	 */
+	private void addIndex(byte[] item, long sequence) {
+		if(keyLength == 0 || item.length < keyOffset + keyLength) {
+			return;
+		}
+		byte[] indexKey = toIndexKey(item, keyOffset);
+		byte[] sequences = db.get(indexKey);
+		int length = sequences == null ? 0 : sequences.length;
+		byte[] newSequences = new byte[length + SEQUENCE_LENGTH];
+		if(sequences != null) {
+			System.arraycopy(sequences, 0, newSequences, 0, length);
+		}
+		Utils.uint32ToByteArrayBE(sequence, newSequences, length);
+		db.put(indexKey, newSequences);
+	}
+
+	/*
+	 * 从反查记录里去掉 index 位置的序号，没有剩下的就删除
+	 */
+	private void removeSequence(byte[] indexKey, byte[] sequences, int index) {
+		if(sequences.length == SEQUENCE_LENGTH) {
+			db.delete(indexKey);
+			return;
+		}
+		byte[] newSequences = new byte[sequences.length - SEQUENCE_LENGTH];
+		System.arraycopy(sequences, 0, newSequences, 0, index);
+		System.arraycopy(sequences, index + SEQUENCE_LENGTH, newSequences, index, newSequences.length - index);
+		db.put(indexKey, newSequences);
+	}
+
+	private void clearIndex() {
+		if(keyLength == 0) {
+			return;
+		}
+		final int indexKeyLength = listKey.length + 1 + keyLength;
+		db.forEachByPrefix(listKey, new Db.EntryVisitor() {
+			@Override
+			public boolean visit(byte[] key, byte[] value) {
+				if(key.length == indexKeyLength && key[listKey.length] == INDEX_FLAG) {
+					db.delete(key);
+				}
+				return true;
+			}
+		});
+	}
+
+	/*
+	 * 查找条件覆盖了查找字段时，对应的反查记录key，否则返回null，需要遍历列表
+	 */
+	private byte[] getIndexKey(byte[] match, int offset) {
+		if(keyLength == 0 || offset != keyOffset || match.length < keyLength) {
+			return null;
+		}
+		return toIndexKey(match, 0);
+	}
+
+	/*
+	 * 反查记录的key，查找字段从 source 的 from 位置开始
+	 */
+	private byte[] toIndexKey(byte[] source, int from) {
+		byte[] key = new byte[listKey.length + 1 + keyLength];
+		System.arraycopy(listKey, 0, key, 0, listKey.length);
+		key[listKey.length] = INDEX_FLAG;
+		System.arraycopy(source, from, key, listKey.length + 1, keyLength);
+		return key;
+	}
+
+	/*
+	 * 列表的所有元素记录，前缀相同但长度不对的是其它数据，需要排除
+	 */
+	private List<Entry<byte[], byte[]>> entries() {
+		List<Entry<byte[], byte[]>> items = new ArrayList<Entry<byte[], byte[]>>();
+		for (Entry<byte[], byte[]> item : db.listByPrefix(listKey)) {
+			if(item.getKey().length == listKey.length + SEQUENCE_LENGTH) {
+				items.add(item);
+			}
+		}
+		return items;
+	}
+
+	private static boolean matches(byte[] value, byte[] match, int offset) {
+		if(value == null || value.length < offset + match.length) {
+			return false;
+		}
+		for (int i = 0; i < match.length; i++) {
+			if(value[offset + i] != match[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private byte[] getItemKey(long sequence) {
+		byte[] key = new byte[listKey.length + SEQUENCE_LENGTH];
+		System.arraycopy(listKey, 0, key, 0, listKey.length);
+		Utils.uint32ToByteArrayBE(sequence, key, listKey.length);
+		return key;
+	}
+
+	/*
+	 * 下一个序号和元素个数
+	 */
+	private long[] getMeta() {
+		byte[] meta = db.get(listKey);
+		if(meta == null || meta.length != 8) {
+			return new long[] { 0l, 0l };
+		}
+		return new long[] { Utils.readUint32BE(meta, 0), Utils.readUint32BE(meta, 4) };
+	}
+
+	private void saveMeta(long sequence, long size) {
+		byte[] meta = new byte[8];
+		Utils.uint32ToByteArrayBE(sequence, meta, 0);
+		Utils.uint32ToByteArrayBE(size, meta, 4);
+		db.put(listKey, meta);
+	}
+}
@@ -0,0 +1,195 @@
+package org.inchain.store;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import javax.annotation.PostConstruct;
+
+import org.inchain.Configure;
+import org.inchain.crypto.Sha256Hash;
+import org.inchain.store.StoreCache.CacheKey;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Repository;
+
+/**
+ * 交易输出的花费状态集合
+ * 状态存放在链状态存储里，key 为 交易hash + 1字节输出序号，共33字节，值为 {@link TransactionStore#STATUS_UNUSE} 或 {@link TransactionStore#STATUS_USED}
+ * 这里在存储之上加一层内存缓存，不存在的输出也会缓存下来，交易验证、打包、区块保存都通过这里读写
+ * 保存区块时的修改先记在当前线程的脏数据里，区块提交时一次性写入存储，提交成功后再更新缓存
+ * @author ln
+ *
+ */
+@Repository
+public class UtxoSet {
+
+	//输出不存在
+	public final static int STATUS_NONE = 0;
+	//key 长度
+	public final static int KEY_LENGTH = Sha256Hash.LENGTH + 1;
+
+	@Autowired
+	private ChainstateStoreProvider chainstateStoreProvider;
+
+	//已提交的输出状态缓存，链状态存储有写入时自动失效，分段加锁，并行验证的线程不会都等在一把锁上
+	private StoreCache<Byte> coins;
+	//当前线程正在保存的区块对输出状态的修改，提交前其它线程看不到
+	private final ThreadLocal<Map<CacheKey, Byte>> dirtys = new ThreadLocal<Map<CacheKey, Byte>>();
+
+	@PostConstruct
+	public void init() {
+		coins = chainstateStoreProvider.newCache("utxo", Configure.CACHE_UTXO_SIZE, Configure.CACHE_UTXO_SEGMENTS);
+	}
+
+	/**
+	 * 交易输出对应的 key
+	 * @param txHash
+	 * @param index
+	 * @return byte[]
+	 */
+	public static byte[] getKey(Sha256Hash txHash, int index) {
+		byte[] key = new byte[KEY_LENGTH];
+		System.arraycopy(txHash.getBytes(), 0, key, 0, Sha256Hash.LENGTH);
+		key[KEY_LENGTH - 1] = (byte) index;
+		return key;
+	}
+
+	/**
+	 * 获取输出的状态
+	 * @param key 交易hash + 输出序号
+	 * @return int {@link #STATUS_NONE} {@link TransactionStore#STATUS_UNUSE} {@link TransactionStore#STATUS_USED}
+	 */
+	public int getStatus(byte[] key) {
+		Map<CacheKey, Byte> dirty = dirtys.get();
+		if(dirty != null) {
+			Byte status = dirty.get(new CacheKey(key));
+			if(status != null) {
+				return status;
+			}
+		}
+		//开启了批量写入的线程能读到未提交的数据，不能放进缓存
+		boolean cacheable = chainstateStoreProvider.isCacheable();
+		if(cacheable) {
+			Byte status = coins.get(key);
+			if(status != null) {
+				return status;
+			}
+		}
+		long version = coins.getVersion();
+		int status = toStatus(chainstateStoreProvider.getBytes(key));
+		if(cacheable) {
+			coins.put(key, (byte) status, version);
+		}
+		return status;
+	}
+
+	/**
+	 * 输出是否存在并且未花费
+	 * @param key
+	 * @return boolean
+	 */
+	public boolean isUnspent(byte[] key) {
+		return getStatus(key) == TransactionStore.STATUS_UNUSE;
+	}
+
+	/**
+	 * 输出是否已花费
+	 * @param key
+	 * @return boolean
+	 */
+	public boolean isSpent(byte[] key) {
+		return getStatus(key) == TransactionStore.STATUS_USED;
+	}
+
+	/**
+	 * 新增未花费的输出，撤销花费时也调用这里
+	 * @param key
+	 */
+	public void add(byte[] key) {
+		update(key, TransactionStore.STATUS_UNUSE);
+	}
+
+	/**
+	 * 花费输出
+	 * @param key
+	 */
+	public void spend(byte[] key) {
+		update(key, TransactionStore.STATUS_USED);
+	}
+
+	/**
+	 * 删除输出，撤销交易时调用
+	 * @param key
+	 */
+	public void remove(byte[] key) {
+		update(key, STATUS_NONE);
+	}
+
+	/**
+	 * 开始保存区块，之后当前线程的修改都暂存在脏数据里，直到 flush
+	 */
+	public void begin() {
+		dirtys.set(new LinkedHashMap<CacheKey, Byte>());
+	}
+
+	/**
+	 * 把当前线程的脏数据写入链状态存储，需要在链状态批次提交之前调用
+	 * 同一个区块里新增又花费的输出只写一次
+	 */
+	public void flush() {
+		Map<CacheKey, Byte> dirty = dirtys.get();
+		if(dirty == null) {
+			return;
+		}
+		for (Entry<CacheKey, Byte> entry : dirty.entrySet()) {
+			write(entry.getKey().key, entry.getValue());
+		}
+	}
+
+	/**
+	 * 链状态批次提交成功之后调用，把区块的修改放进缓存
+	 */
+	public void commit() {
+		Map<CacheKey, Byte> dirty = dirtys.get();
+		dirtys.remove();
+		if(dirty == null) {
+			return;
+		}
+		//提交时已经按 key 失效过了，这里读取版本号之后再放入
+		long version = coins.getVersion();
+		for (Entry<CacheKey, Byte> entry : dirty.entrySet()) {
+			coins.put(entry.getKey().key, entry.getValue(), version);
+		}
+	}
+
+	/**
+	 * 放弃当前线程的脏数据
+	 */
+	public void discard() {
+		dirtys.remove();
+	}
+
+	private void update(byte[] key, int status) {
+		Map<CacheKey, Byte> dirty = dirtys.get();
+		if(dirty != null) {
+			dirty.put(new CacheKey(key), (byte) status);
+		} else {
+			write(key, status);
+		}
+	}
+
+	private void write(byte[] key, int status) {
+		if(status == STATUS_NONE) {
+			chainstateStoreProvider.delete(key);
+		} else {
+			chainstateStoreProvider.put(key, new byte[] { (byte) status });
+		}
+	}
+
+	private static int toStatus(byte[] value) {
+		if(value == null || value.length == 0) {
+			return STATUS_NONE;
+		}
+		return value[0];
+	}
+}
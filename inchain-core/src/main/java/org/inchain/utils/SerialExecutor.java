@@ -0,0 +1,103 @@
+package org.inchain.utils;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+
+/**
+ * 在共享线程池上按提交顺序逐个执行任务，同一时刻最多只有一个任务在执行
+ * 用于多个节点共用一个线程池，但每个节点自己的任务必须保持顺序的场景
+ * @author ln
+ *
+ */
+public class SerialExecutor implements Executor {
+
+	private final Executor executor;
+	private final Queue<Runnable> tasks = new ArrayDeque<Runnable>();
+	//当前是否有任务已提交到线程池
+	private boolean active;
+
+	private final Runnable drainer = new Runnable() {
+		@Override
+		public void run() {
+			drain();
+		}
+	};
+
+	public SerialExecutor(Executor executor) {
+		this.executor = executor;
+	}
+
+	@Override
+	public void execute(final Runnable task) {
+		synchronized (tasks) {
+			tasks.offer(task);
+			if(active) {
+				return;
+			}
+			active = true;
+		}
+		submit();
+	}
+
+	/**
+	 * 等待执行的任务数
+	 * @return int
+	 */
+	public int getPendingCount() {
+		synchronized (tasks) {
+			return tasks.size();
+		}
+	}
+
+	/*
+	 * 提交到线程池，线程池拒绝时重置状态，否则之后的任务都不会再执行
+	 */
+	private void submit() {
+		boolean submitted = false;
+		try {
+			executor.execute(drainer);
+			submitted = true;
+		} finally {
+			if(!submitted) {
+				synchronized (tasks) {
+					active = false;
+				}
+			}
+		}
+	}
+
+	/*
+	 * 执行队列里的任务，直到队列为空
+	 * 任务抛出异常时异常照常抛给线程池，剩下的任务重新提交继续执行
+	 */
+	private void drain() {
+		boolean finished = false;
+		try {
+			while (true) {
+				Runnable task;
+				synchronized (tasks) {
+					task = tasks.poll();
+					if(task == null) {
+						active = false;
+						finished = true;
+						return;
+					}
+				}
+				task.run();
+			}
+		} finally {
+			if(!finished) {
+				synchronized (tasks) {
+					if(tasks.isEmpty()) {
+						active = false;
+						finished = true;
+					}
+				}
+				if(!finished) {
+					submit();
+				}
+			}
+		}
+	}
+}
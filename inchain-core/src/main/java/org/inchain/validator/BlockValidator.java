@@ -1,8 +1,13 @@
 package org.inchain.validator;
 
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.inchain.Configure;
 import org.inchain.consensus.ConsensusInfos;
@@ -12,6 +17,7 @@ import org.inchain.core.Definition;
 import org.inchain.core.Result;
 import org.inchain.core.TimeService;
 import org.inchain.core.exception.VerificationException;
+import org.inchain.crypto.Sha256Hash;
 import org.inchain.message.Block;
 import org.inchain.message.BlockHeader;
 import org.inchain.network.NetworkParams;
@@ -52,6 +58,13 @@ public class BlockValidator {
 	private TransactionValidator transactionValidator;
 	@Autowired
 	private CreditCollectionService creditCollectionService;
+	
+	//assume-valid 区块，第一次用到时确定，没有或者已关闭时hash为null
+	private volatile boolean assumeValidLoaded;
+	private volatile Sha256Hash assumeValidHash;
+	private volatile long assumeValidHeight = -1l;
+	//同步清单里确认是 assume-valid 区块祖先的区块（包含它自己），只有这些区块跳过交易签名验证，收录后移除
+	private final Set<Sha256Hash> assumeValidAncestors = ConcurrentHashMap.newKeySet();
 
 	public Result doVal(Block block) {
 		try {
@@ -110,6 +123,16 @@ public class BlockValidator {
 	 * @return boolean
 	 */
 	public Result verifyBlock(Block block) {
+		return verifyBlock(block, false);
+	}
+	
+	/**
+	 * 验证区块的合法性，如果验证不通过，则抛出验证异常
+	 * @param block
+	 * @param assumeValid	是否是 assume-valid 区块的祖先，是则不验证交易的签名和赎回脚本，见 {@link #isAssumeValid(Block)}
+	 * @return boolean
+	 */
+	public Result verifyBlock(Block block, boolean assumeValid) {
 		try {
 			if(!block.verify()) {
 				return new Result(false);
@@ -132,32 +155,58 @@ public class BlockValidator {
 		boolean coinbase = false;
 		
 		List<Transaction> txs = block.getTxs();
-		for (Transaction tx : txs) {
-			
-			ValidatorResult<TransactionValidatorResult> rs = transactionValidator.valDo(tx, txs);
-			
-			if(!rs.getResult().isSuccess()) {
-				throw new VerificationException(rs.getResult().getMessage());
+		
+		if(assumeValid) {
+			//assume-valid 之前的区块，只验证交易格式，签名和赎回脚本跳过
+			for (Transaction tx : txs) {
+				try {
+					tx.verify();
+				} catch (Exception e) {
+					log.warn("区块 {} 的交易 {} 验证失败：{}", block.getHash(), tx.getHash(), e.getMessage());
+					return new Result(false, e.getMessage());
+				}
 			}
-			//信用累积交易，比较特殊，这里单独验证
-			if(tx.getType() == Definition.TYPE_CREDIT) {
-				verifyCreditTransaction(tx, txs, block);
+		} else {
+			//先并行验证所有交易的格式、签名和赎回脚本，这部分不依赖链状态
+			Map<Sha256Hash, String> failures = transactionValidator.verifyScripts(txs);
+			if(!failures.isEmpty()) {
+				Entry<Sha256Hash, String> failure = failures.entrySet().iterator().next();
+				log.warn("区块 {} 的交易 {} 验证失败：{}", block.getHash(), failure.getKey(), failure.getValue());
+				return new Result(false, failure.getValue());
 			}
+		}
+		
+		//再按顺序验证依赖链状态的部分
+		try {
+			for (Transaction tx : txs) {
+			
+				ValidatorResult<TransactionValidatorResult> rs = transactionValidator.valDo(tx, txs, true);
 			
-			//区块的第一个交易必然是coinbase交易，除第一个之外的任何交易都不应是coinbase交易，否则出错
-			if(!coinbase) {
-				if(tx.getType() != Definition.TYPE_COINBASE) {
-					throw new VerificationException("the block first tx is not coinbase tx");
+				if(!rs.getResult().isSuccess()) {
+					throw new VerificationException(rs.getResult().getMessage());
+				}
+				//信用累积交易，比较特殊，这里单独验证
+				if(tx.getType() == Definition.TYPE_CREDIT) {
+					verifyCreditTransaction(tx, txs, block);
+				}
+			
+				//区块的第一个交易必然是coinbase交易，除第一个之外的任何交易都不应是coinbase交易，否则出错
+				if(!coinbase) {
+					if(tx.getType() != Definition.TYPE_COINBASE) {
+						throw new VerificationException("the block first tx is not coinbase tx");
+					}
+					coinbaseFee = Coin.valueOf(tx.getOutput(0).getValue());
+					coinbase = true;
+					continue;
+				} else if(tx.getType() == Definition.TYPE_COINBASE) {
+					throw new VerificationException("the block too much coinbase tx");
+				}
+				if(rs.getResult().getFee() != null) {
+					fee = fee.add(rs.getResult().getFee());
 				}
-				coinbaseFee = Coin.valueOf(tx.getOutput(0).getValue());
-				coinbase = true;
-				continue;
-			} else if(tx.getType() == Definition.TYPE_COINBASE) {
-				throw new VerificationException("the block too much coinbase tx");
-			}
-			if(rs.getResult().getFee() != null) {
-				fee = fee.add(rs.getResult().getFee());
 			}
+		} finally {
+			transactionValidator.clearTxsIndex();
 		}
 		//验证金额，coinbase交易的费用必须等于交易手续费
 		//获取该高度的奖励
@@ -178,6 +227,98 @@ public class BlockValidator {
 		return new Result(true);
 	}
 	
+	/**
+	 * 区块是否是 assume-valid 区块的祖先（包含它自己），是则可以跳过交易签名和赎回脚本的验证
+	 * 只看高度不够，对方可以在同样的高度上给出另一条链，所以只有同步器沿着 preHash 确认衔接到 assume-valid 区块的才算，见 {@link #addAssumeValidAncestors(Collection)}
+	 * 由 {@link Configure#ASSUME_VALID} 开关，区块由 {@link Configure#ASSUME_VALID_BLOCK} 指定，没有指定时使用网络参数内置的
+	 * @param block
+	 * @return boolean
+	 */
+	public boolean isAssumeValid(Block block) {
+		return getAssumeValidHash() != null && block.getHeight() <= assumeValidHeight && assumeValidAncestors.contains(block.getHash());
+	}
+	
+	/**
+	 * 同步器收到 assume-valid 区块之后，收录暂存的区块前逐个调用，暂存的区块从本地最新块之后开始，每个区块的 preHash 都已检查过是前一个区块的hash
+	 * 区块hash覆盖整个区块，最后一个暂存的区块就是 assume-valid 区块时，它们都是它的祖先，只凭hash清单不能调用
+	 * @param hashs
+	 */
+	public void addAssumeValidAncestors(Collection<Sha256Hash> hashs) {
+		if(getAssumeValidHash() != null) {
+			assumeValidAncestors.addAll(hashs);
+		}
+	}
+	
+	/**
+	 * 同步结束时调用，清除没有收录的祖先记录，下次同步重新确认
+	 */
+	public void clearAssumeValidAncestors() {
+		assumeValidAncestors.clear();
+	}
+	
+	/**
+	 * assume-valid 区块的hash，没有开启、没有指定或者已关闭时返回null
+	 * @return Sha256Hash
+	 */
+	public Sha256Hash getAssumeValidHash() {
+		if(!Configure.ASSUME_VALID) {
+			return null;
+		}
+		if(!assumeValidLoaded) {
+			loadAssumeValid();
+		}
+		return assumeValidHash;
+	}
+	
+	/**
+	 * assume-valid 区块的高度，配合 {@link #getAssumeValidHash()} 使用
+	 * @return long
+	 */
+	public long getAssumeValidHeight() {
+		return assumeValidHeight;
+	}
+	
+	/**
+	 * 区块收录之后调用，assume-valid 高度上收录的区块和指定的不一致时，说明同步的不是同一条链，之后的区块都完整验证
+	 * @param block
+	 */
+	public void checkAssumeValid(Block block) {
+		assumeValidAncestors.remove(block.getHash());
+		Sha256Hash hash = assumeValidHash;
+		if(hash != null && block.getHeight() == assumeValidHeight && !hash.equals(block.getHash())) {
+			log.error("高度 {} 的区块 {} 和 assume-valid 区块 {} 不一致，关闭 assume-valid", block.getHeight(), block.getHash(), hash);
+			assumeValidHash = null;
+			assumeValidAncestors.clear();
+		}
+	}
+	
+	private synchronized void loadAssumeValid() {
+		if(assumeValidLoaded) {
+			return;
+		}
+		Sha256Hash hash = networkParams.getAssumeValidHash();
+		long height = networkParams.getAssumeValidHeight();
+		String block = Configure.ASSUME_VALID_BLOCK;
+		if(block != null && !block.trim().isEmpty()) {
+			try {
+				String[] items = block.trim().split(":");
+				height = Long.parseLong(items[0]);
+				hash = Sha256Hash.wrap(items[1]);
+			} catch (Exception e) {
+				log.error("assume-valid 区块配置错误 {}，格式为 高度:hash", block);
+				hash = null;
+			}
+		}
+		if(hash != null && height > 0) {
+			log.info("assume-valid 区块：高度 {} , hash {}", height, hash);
+			assumeValidHeight = height;
+			assumeValidHash = hash;
+		} else {
+			log.info("没有 assume-valid 区块，同步时完整验证全部区块，可以通过 assumevalid.block 指定");
+		}
+		assumeValidLoaded = true;
+	}
+	
 	/**
 	 * 验证信用发放
 	 */
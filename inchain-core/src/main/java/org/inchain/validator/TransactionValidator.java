@@ -1,9 +1,20 @@
 package org.inchain.validator;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import javax.annotation.PreDestroy;
 
 import org.inchain.Configure;
 import org.inchain.account.Address;
@@ -28,6 +39,7 @@ import org.inchain.store.BlockHeaderStore;
 import org.inchain.store.BlockStoreProvider;
 import org.inchain.store.ChainstateStoreProvider;
 import org.inchain.store.TransactionStore;
+import org.inchain.store.UtxoSet;
 import org.inchain.transaction.Output;
 import org.inchain.transaction.Transaction;
 import org.inchain.transaction.TransactionInput;
@@ -76,9 +88,16 @@ public class TransactionValidator {
 	@Autowired
 	private ChainstateStoreProvider chainstateStoreProvider;
 	@Autowired
+	private UtxoSet utxoSet;
+	@Autowired
 	private AccountKit accountKit;
 	@Autowired
 	private DataSynchronizeHandler dataSynchronizeHandler;
+	
+	//同一个交易列表会逐笔验证，列表的索引每个线程缓存一份，避免每笔交易都遍历整个列表，验证完整个列表后由调用方 clearTxsIndex 释放
+	private final ThreadLocal<TxsIndex> txsIndexs = new ThreadLocal<TxsIndex>();
+	//交易签名和脚本的并行验证线程池
+	private final ForkJoinPool verifyPool = new ForkJoinPool(Math.max(Configure.VERIFY_THREADS, 1));
 
 	/**
 	 * 交易验证器，验证交易的输入输出是否合法
@@ -96,6 +115,17 @@ public class TransactionValidator {
 	 * @return ValidatorResult<TransactionValidatorResult>
 	 */
 	public ValidatorResult<TransactionValidatorResult> valDo(Transaction tx, List<Transaction> txs) {
+		return valDo(tx, txs, false);
+	}
+	
+	/**
+	 * 交易验证器，验证交易的输入输出是否合法
+	 * @param tx	待验证的交易
+	 * @param txs	当输入引用找不到时，就在这个列表里面查找（当同一个区块包含多个交易链时需要用到）
+	 * @param scriptVerified	是否已经通过 {@link #verifyScripts(List)} 验证过交易格式、签名和赎回脚本，是则只做依赖链状态的验证
+	 * @return ValidatorResult<TransactionValidatorResult>
+	 */
+	public ValidatorResult<TransactionValidatorResult> valDo(Transaction tx, List<Transaction> txs, boolean scriptVerified) {
 		
 		final TransactionValidatorResult result = new TransactionValidatorResult();
 		ValidatorResult<TransactionValidatorResult> validatorResult = new ValidatorResult<TransactionValidatorResult>() {
@@ -105,10 +135,8 @@ public class TransactionValidator {
 			}
 		};
 		
-		tx.verify();
-		//验证交易的合法性
-		if(tx instanceof BaseCommonlyTransaction) {
-			((BaseCommonlyTransaction)tx).verifyScript();
+		if(!scriptVerified) {
+			verifyStateless(tx);
 		}
 		
 		//交易的txid不能和区块里面的交易重复
@@ -132,6 +160,9 @@ public class TransactionValidator {
 			Coin txInputFee = Coin.ZERO;
 			Coin txOutputFee = Coin.ZERO;
 			
+			//传入列表的交易和引用的输出索引
+			TxsIndex txsIndex = getTxsIndex(txs);
+			
 			//验证本次交易的输入
 			List<TransactionInput> inputs = tx.getInputs();
 			for (TransactionInput input : inputs) {
@@ -156,13 +187,8 @@ public class TransactionValidator {
 						//查询内存池里是否有该交易
 						Transaction preTransaction = MempoolContainer.getInstace().get(fromId);
 						//内存池里面没有，那么是否在传入的列表里面
-						if(preTransaction == null && txs != null && txs.size() > 0) {
-							for (Transaction transaction : txs) {
-								if(transaction.getHash().equals(fromId)) {
-									preTransaction = transaction;
-									break;
-								}
-							}
+						if(preTransaction == null && txsIndex != null) {
+							preTransaction = txsIndex.transactions.get(fromId);
 						}
 						if(preTransaction == null) {
 							//内存池和传入的列表都没有，那么去存储里面找
@@ -190,36 +216,20 @@ public class TransactionValidator {
 					
 					//验证交易不能双花
 					byte[] statusKey = output.getKey();
-					byte[] state = chainstateStoreProvider.getBytes(statusKey);
-					if((state == null || Arrays.equals(state, new byte[]{ 1 })) && txs != null && !txs.isEmpty()) {
+					int state = utxoSet.getStatus(statusKey);
+					if(state != TransactionStore.STATUS_USED && txsIndex != null) {
 						//没有状态，则可能是在 txs 里，txs里面不能有2笔对此的引用，否则就造成了双花
-						int count = 0;
-						for (Transaction t : txs) {
-							if(t.getHash().equals(tx.getHash())) {
-								continue;
-							}
-							List<TransactionInput> inputsTemp = t.getInputs();
-							if(inputsTemp == null || inputsTemp.size() == 0) {
-								continue;
-							}
-							for (TransactionInput in : t.getInputs()) {
-								List<TransactionOutput> fromsTemp = in.getFroms();
-								if(fromsTemp == null || fromsTemp.size() == 0) {
-									break;
-								}
-								for (TransactionOutput fromTemp : fromsTemp) {
-									if(fromTemp.getParent() != null && fromTemp.getParent().getHash().equals(fromId) && fromTemp.getIndex() == index) {
-										count++;
-									}
-								}
-							}
+						int count = txsIndex.getSpentCount(statusKey);
+						if(txsIndex.transactions.containsKey(tx.getHash())) {
+							//排除本交易自己的引用
+							count -= countSpent(tx, statusKey);
 						}
 						if(count > 1) {
 							//双花了
 							result.setResult(false, TransactionValidatorResult.ERROR_CODE_USED, "同一块多个交易引用了同一个输入");
 							return validatorResult;
 						}
-					} else if(Arrays.equals(state, new byte[]{2})) {
+					} else if(state == TransactionStore.STATUS_USED) {
 						//已经花费了
 						result.setResult(false, TransactionValidatorResult.ERROR_CODE_USED, "引用了已花费的交易");
 						return validatorResult;
@@ -279,7 +289,7 @@ public class TransactionValidator {
 							return validatorResult;
 						}
 					}
-				} else {
+				} else if(!scriptVerified) {
 					//验证赎回脚本
 					input.getScriptSig().execute(verifyScript);
 				}
@@ -355,8 +365,7 @@ public class TransactionValidator {
 				System.arraycopy(txStatus, 0, txIndex, 0, txStatus.length);
 				txIndex[txIndex.length - 1] = 0;
 				
-				byte[] status = chainstateStoreProvider.getBytes(txIndex);
-				if(status != null && Arrays.equals(status, new byte[] { 2 })) {
+				if(utxoSet.isSpent(txIndex)) {
 					result.setResult(false, "防伪码已被验证");
 					return validatorResult;
 				}
@@ -734,8 +743,7 @@ public class TransactionValidator {
 			System.arraycopy(txStatus, 0, txIndex, 0, txStatus.length);
 			txIndex[txIndex.length - 1] = 0;
 			
-			byte[] status = chainstateStoreProvider.getBytes(txIndex);
-			if(status != null && Arrays.equals(status, new byte[] { 2 })) {
+			if(utxoSet.isSpent(txIndex)) {
 				result.setResult(false, "防伪码已被验证");
 				return validatorResult;
 			}
@@ -797,8 +805,7 @@ public class TransactionValidator {
 			System.arraycopy(txStatus, 0, txIndex, 0, txStatus.length);
 			txIndex[txIndex.length - 1] = 0;
 			
-			byte[] status = chainstateStoreProvider.getBytes(txIndex);
-			if(status != null && Arrays.equals(status, new byte[] { 1 })) {
+			if(utxoSet.isUnspent(txIndex)) {
 				result.setResult(false, "防伪码未被验证，不能转让");
 				return validatorResult;
 			}
@@ -838,4 +845,277 @@ public class TransactionValidator {
 		return -1;
 	}
 
+	/**
+	 * 交易的无状态验证，包括交易格式和业务交易的签名，不依赖链状态
+	 * @param tx
+	 */
+	public void verifyStateless(Transaction tx) {
+		tx.verify();
+		//验证交易的合法性
+		if(tx instanceof BaseCommonlyTransaction) {
+			((BaseCommonlyTransaction)tx).verifyScript();
+		}
+	}
+	
+	/**
+	 * 并行验证列表里每笔交易的格式、签名和转账的赎回脚本，全部完成之后才返回
+	 * 赎回脚本需要引用的上一交易输出，只读取交易内容，不判断是否已花费，花费状态等依赖链状态的验证由 valDo 完成
+	 * 通过验证的交易，可以调用 valDo(tx, txs, true) 跳过这部分验证
+	 * @param txs
+	 * @return Map<Sha256Hash, String> 验证不通过的交易及原因，全部通过时为空
+	 */
+	public Map<Sha256Hash, String> verifyScripts(List<Transaction> txs) {
+		final Map<Sha256Hash, String> failures = new LinkedHashMap<Sha256Hash, String>();
+		if(txs == null || txs.isEmpty()) {
+			return failures;
+		}
+		//引用同一列表里的交易时，在这里查找
+		final Map<Sha256Hash, Transaction> transactions = new HashMap<Sha256Hash, Transaction>();
+		for (Transaction tx : txs) {
+			transactions.put(tx.getHash(), tx);
+		}
+		
+		//引用的上一交易在当前线程里查好并设置到输入上，验证线程只读取，不修改交易
+		String[] errors = new String[txs.size()];
+		List<Callable<String>> tasks = new ArrayList<Callable<String>>();
+		List<Integer> taskIndexs = new ArrayList<Integer>();
+		for (int i = 0; i < txs.size(); i++) {
+			final Transaction tx = txs.get(i);
+			final boolean payment = tx.isPaymentTransaction() && tx.getType() != Definition.TYPE_COINBASE;
+			if(payment) {
+				try {
+					resolveInputs(tx, transactions);
+				} catch (Exception e) {
+					errors[i] = getErrorMessage(e);
+					continue;
+				}
+			}
+			tasks.add(new Callable<String>() {
+				@Override
+				public String call() throws Exception {
+					try {
+						verifyStateless(tx);
+						if(payment) {
+							verifyInputScripts(tx);
+						}
+						return null;
+					} catch (Exception e) {
+						return getErrorMessage(e);
+					}
+				}
+			});
+			taskIndexs.add(i);
+		}
+		
+		if(tasks.size() == 1) {
+			//只有一笔时不需要切换线程
+			try {
+				errors[taskIndexs.get(0)] = tasks.get(0).call();
+			} catch (Exception e) {
+				errors[taskIndexs.get(0)] = getErrorMessage(e);
+			}
+		} else if(tasks.size() > 1) {
+			List<Future<String>> futures = verifyPool.invokeAll(tasks);
+			for (int i = 0; i < futures.size(); i++) {
+				String error;
+				try {
+					error = futures.get(i).get();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					error = "验证被中断";
+				} catch (ExecutionException e) {
+					error = e.getCause() == null ? e.getMessage() : e.getCause().getMessage();
+				}
+				errors[taskIndexs.get(i)] = error;
+			}
+		}
+		//按交易在列表里的顺序返回
+		for (int i = 0; i < errors.length; i++) {
+			if(errors[i] != null) {
+				failures.put(txs.get(i).getHash(), errors[i]);
+			}
+		}
+		return failures;
+	}
+	
+	/*
+	 * 查找转账交易每个输入引用的交易，依次在传入的列表、内存池、链上查找，只能在调用 verifyScripts 的线程里执行
+	 */
+	private void resolveInputs(Transaction tx, Map<Sha256Hash, Transaction> transactions) {
+		List<TransactionInput> inputs = tx.getInputs();
+		if(inputs == null) {
+			return;
+		}
+		for (TransactionInput input : inputs) {
+			List<TransactionOutput> froms = input.getFroms();
+			if(froms == null || froms.isEmpty()) {
+				throw new VerificationException("交易没有引用输入");
+			}
+			for (TransactionOutput from : froms) {
+				Transaction fromTx = from.getParent();
+				if(fromTx == null) {
+					throw new VerificationException("交易没有正确的输入引用");
+				}
+				if(fromTx.getOutputs() == null || fromTx.getOutputs().isEmpty()) {
+					Sha256Hash fromId = fromTx.getHash();
+					Transaction preTransaction = transactions.get(fromId);
+					if(preTransaction == null) {
+						preTransaction = MempoolContainer.getInstace().get(fromId);
+					}
+					if(preTransaction == null) {
+						TransactionStore preTransactionStore = blockStoreProvider.getTransaction(fromId.getBytes());
+						if(preTransactionStore == null) {
+							throw new VerificationException("引用了不存在的交易");
+						}
+						preTransaction = preTransactionStore.getTransaction();
+					}
+					from.setParent(preTransaction);
+					from.setScript(preTransaction.getOutput(from.getIndex()).getScript());
+				}
+			}
+		}
+	}
+	
+	/*
+	 * 验证转账交易每个输入的赎回脚本，引用的交易已经由 resolveInputs 设置好
+	 */
+	private void verifyInputScripts(Transaction tx) {
+		List<TransactionInput> inputs = tx.getInputs();
+		if(inputs == null) {
+			return;
+		}
+		for (TransactionInput input : inputs) {
+			byte[] scriptBytes = null;
+			for (TransactionOutput from : input.getFroms()) {
+				Transaction fromTx = from.getParent();
+				byte[] preScriptBytes = fromTx.getOutput(from.getIndex()).getScriptBytes();
+				if(scriptBytes == null) {
+					scriptBytes = preScriptBytes;
+				} else if(!Arrays.equals(scriptBytes, preScriptBytes)) {
+					throw new VerificationException("错误的输入格式，不同的交易赎回脚本不能合并");
+				}
+			}
+			Script verifyScript = new Script(scriptBytes);
+			//共识保证金的引用规则在 valDo 里验证
+			if(!verifyScript.isConsensusOutputScript()) {
+				input.getScriptSig().execute(verifyScript);
+			}
+		}
+	}
+	
+	/*
+	 * 异常的描述，没有描述时用异常本身
+	 */
+	private static String getErrorMessage(Exception e) {
+		return e.getMessage() == null ? e.toString() : e.getMessage();
+	}
+	
+	/**
+	 * 释放当前线程缓存的交易列表索引
+	 * 逐笔调用 valDo(tx, txs) 验证完整个列表之后调用，否则线程会一直持有最后验证的列表
+	 */
+	public void clearTxsIndex() {
+		txsIndexs.remove();
+	}
+	
+	/**
+	 * 程序关闭，停止验证线程池
+	 */
+	@PreDestroy
+	public void shutdown() {
+		verifyPool.shutdown();
+	}
+	
+	/*
+	 * 获取交易列表的索引，同一个列表只是在末尾追加了交易时增量索引
+	 */
+	private TxsIndex getTxsIndex(List<Transaction> txs) {
+		if(txs == null || txs.isEmpty()) {
+			return null;
+		}
+		TxsIndex txsIndex = txsIndexs.get();
+		if(txsIndex == null || !txsIndex.isIndexOf(txs)) {
+			txsIndex = new TxsIndex(txs);
+			txsIndexs.set(txsIndex);
+		}
+		txsIndex.update();
+		return txsIndex;
+	}
+	
+	/*
+	 * 交易里引用了多少次该输出
+	 */
+	private static int countSpent(Transaction tx, byte[] key) {
+		int count = 0;
+		List<TransactionInput> inputs = tx.getInputs();
+		if(inputs == null) {
+			return count;
+		}
+		for (TransactionInput input : inputs) {
+			if(input.getFroms() == null) {
+				continue;
+			}
+			for (TransactionOutput from : input.getFroms()) {
+				if(from.getParent() != null && Arrays.equals(from.getKey(), key)) {
+					count++;
+				}
+			}
+		}
+		return count;
+	}
+	
+	/*
+	 * 交易列表的索引，交易按hash索引，引用的输出记录被引用的次数
+	 */
+	private static class TxsIndex {
+		private final List<Transaction> txs;
+		private final Map<Sha256Hash, Transaction> transactions = new HashMap<Sha256Hash, Transaction>();
+		private final Map<ByteBuffer, Integer> spents = new HashMap<ByteBuffer, Integer>();
+		//已索引的交易数
+		private int size;
+		//已索引的最后一笔交易，用来判断列表是否被修改过
+		private Transaction last;
+		
+		TxsIndex(List<Transaction> txs) {
+			this.txs = txs;
+		}
+		
+		boolean isIndexOf(List<Transaction> txs) {
+			if(this.txs != txs || txs.size() < size) {
+				return false;
+			}
+			return size == 0 || txs.get(size - 1) == last;
+		}
+		
+		void update() {
+			for (int i = size; i < txs.size(); i++) {
+				Transaction tx = txs.get(i);
+				transactions.put(tx.getHash(), tx);
+				List<TransactionInput> inputs = tx.getInputs();
+				if(inputs == null) {
+					continue;
+				}
+				for (TransactionInput input : inputs) {
+					if(input.getFroms() == null) {
+						continue;
+					}
+					for (TransactionOutput from : input.getFroms()) {
+						if(from.getParent() == null) {
+							continue;
+						}
+						ByteBuffer key = ByteBuffer.wrap(from.getKey());
+						Integer count = spents.get(key);
+						spents.put(key, count == null ? 1 : count + 1);
+					}
+				}
+			}
+			size = txs.size();
+			last = size == 0 ? null : txs.get(size - 1);
+		}
+		
+		int getSpentCount(byte[] key) {
+			Integer count = spents.get(ByteBuffer.wrap(key));
+			return count == null ? 0 : count;
+		}
+	}
 }
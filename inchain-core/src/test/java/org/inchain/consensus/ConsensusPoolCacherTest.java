@@ -0,0 +1,131 @@
+package org.inchain.consensus;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.inchain.account.AccountTool;
+import org.inchain.crypto.ECKey;
+import org.inchain.crypto.Sha256Hash;
+import org.inchain.network.NetworkParams;
+import org.inchain.network.TestNetworkParams;
+import org.inchain.store.ChainstateStoreProvider;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+public class ConsensusPoolCacherTest {
+
+	private final NetworkParams network = new TestNetworkParams();
+	private final ECKey first = new ECKey();
+	private final ECKey second = new ECKey();
+	private final Sha256Hash txhash = Sha256Hash.of("reg".getBytes());
+
+	private File dir;
+	private ChainstateStoreProvider chainstateStoreProvider;
+	private ConsensusPoolCacher consensusPool;
+
+	@Before
+	public void open() throws IOException {
+		dir = Files.createTempDirectory("consensuspool").toFile();
+		chainstateStoreProvider = new ChainstateStoreProvider(dir.getPath()) {};
+		consensusPool = new ConsensusPoolCacher();
+		ReflectionTestUtils.setField(consensusPool, "network", network);
+		ReflectionTestUtils.setField(consensusPool, "chainstateStoreProvider", chainstateStoreProvider);
+	}
+
+	@After
+	public void close() throws IOException {
+		chainstateStoreProvider.close();
+		delete(dir);
+	}
+
+	@Test
+	public void testLookupByValue() {
+		byte[] hash160 = hash160(first);
+		consensusPool.add(hash160, txhash, pubkeys(first));
+
+		//内容相同的另一个数组也能查到，修改传入的数组不影响共识池
+		byte[] copy = Arrays.copyOf(hash160, hash160.length);
+		Assert.assertTrue(consensusPool.contains(copy));
+		Assert.assertEquals(txhash, consensusPool.getTx(copy));
+		Assert.assertArrayEquals(first.getPubKey(true), consensusPool.getPubkey(copy)[0]);
+		hash160[0]++;
+		Assert.assertFalse(consensusPool.contains(hash160));
+		Assert.assertTrue(consensusPool.contains(copy));
+		Assert.assertFalse(consensusPool.contains(new byte[] { 1 }));
+		Assert.assertFalse(consensusPool.contains(null));
+
+		//重复加入和公钥不匹配的都忽略
+		consensusPool.add(copy, txhash, pubkeys(first));
+		consensusPool.add(hash160(second), txhash, pubkeys(first));
+		Assert.assertEquals(1, consensusPool.getCurrentConsensus());
+	}
+
+	@Test
+	public void testSnapshotIsImmutable() {
+		consensusPool.add(hash160(first), txhash, pubkeys(first));
+		ConsensusSnapshot before = consensusPool.getSnapshot();
+
+		consensusPool.add(hash160(second), txhash, pubkeys(second));
+		consensusPool.delete(hash160(first));
+		ConsensusSnapshot after = consensusPool.getSnapshot();
+
+		//之前拿到的快照不受之后的变化影响
+		Assert.assertEquals(1, before.size());
+		Assert.assertTrue(before.contains(hash160(first)));
+		Assert.assertFalse(before.contains(hash160(second)));
+		Assert.assertEquals(1, after.size());
+		Assert.assertTrue(after.contains(hash160(second)));
+		Assert.assertEquals(before.getVersion() + 2, after.getVersion());
+
+		//不存在的节点删除不产生新快照
+		consensusPool.delete(hash160(first));
+		Assert.assertSame(after, consensusPool.getSnapshot());
+
+		//列表在快照里只生成一次，不能修改
+		Assert.assertSame(consensusPool.listSnapshots(), consensusPool.listSnapshots());
+		try {
+			consensusPool.listSnapshots().clear();
+			Assert.fail("快照的列表不能修改");
+		} catch (UnsupportedOperationException e) {
+		}
+		Assert.assertEquals(1, consensusPool.listSnapshots().size());
+		Assert.assertArrayEquals(hash160(second), consensusPool.listSnapshots().get(0).getHash160());
+	}
+
+	@Test
+	public void testSetHeight() {
+		consensusPool.add(hash160(first), txhash, pubkeys(first));
+		ConsensusSnapshot before = consensusPool.getSnapshot();
+		Assert.assertEquals(-1l, before.getHeight());
+
+		consensusPool.setHeight(10l);
+		ConsensusSnapshot after = consensusPool.getSnapshot();
+		Assert.assertEquals(10l, after.getHeight());
+		Assert.assertEquals(before.getVersion(), after.getVersion());
+		Assert.assertTrue(after.contains(hash160(first)));
+		Assert.assertEquals(-1l, before.getHeight());
+	}
+
+	private byte[] hash160(ECKey key) {
+		return AccountTool.newAddress(network, key).getHash160();
+	}
+
+	private static byte[][] pubkeys(ECKey key) {
+		return new byte[][] { key.getPubKey(true) };
+	}
+
+	private static void delete(File file) {
+		File[] files = file.listFiles();
+		if(files != null) {
+			for (File f : files) {
+				delete(f);
+			}
+		}
+		file.delete();
+	}
+}
@@ -0,0 +1,152 @@
+package org.inchain.consensus;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.inchain.account.AccountTool;
+import org.inchain.crypto.ECKey;
+import org.inchain.crypto.Sha256Hash;
+import org.inchain.message.Block;
+import org.inchain.network.NetworkParams;
+import org.inchain.network.TestNetworkParams;
+import org.inchain.store.ChainstateStoreProvider;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+public class ConsensusRosterHistoryTest {
+
+	private final NetworkParams network = new TestNetworkParams();
+	private final ECKey[] keys = new ECKey[] { new ECKey(), new ECKey(), new ECKey(), new ECKey(), new ECKey() };
+
+	private File dir;
+	private ChainstateStoreProvider chainstateStoreProvider;
+	private ConsensusPoolCacher consensusPool;
+	private ConsensusRosterHistory history;
+
+	@Before
+	public void open() throws IOException {
+		dir = Files.createTempDirectory("roster").toFile();
+		chainstateStoreProvider = new ChainstateStoreProvider(dir.getPath()) {};
+		consensusPool = new ConsensusPoolCacher();
+		ReflectionTestUtils.setField(consensusPool, "network", network);
+		ReflectionTestUtils.setField(consensusPool, "chainstateStoreProvider", chainstateStoreProvider);
+		history = new ConsensusRosterHistory();
+		ReflectionTestUtils.setField(history, "consensusPool", consensusPool);
+		//变化记录全部由区块保存时加入，不从存储加载
+		ReflectionTestUtils.setField(history, "loaded", true);
+
+		//创世块里的 0、1，第 5 块加入 2，第 8 块加入 3，第 9 块 0 退出
+		save(0, 0, 0, ConsensusRosterDelta.TYPE_JOIN, 1, ConsensusRosterDelta.TYPE_JOIN);
+		save(5, 100, 2, ConsensusRosterDelta.TYPE_JOIN);
+		save(8, 200, 3, ConsensusRosterDelta.TYPE_JOIN);
+		save(9, 200, 0, ConsensusRosterDelta.TYPE_LEAVE);
+	}
+
+	@After
+	public void close() throws IOException {
+		chainstateStoreProvider.close();
+		delete(dir);
+	}
+
+	@Test
+	public void testRosterAtPeriodBoundary() {
+		//某轮的名单不包含该轮内的变化，创世块的不撤销
+		assertRoster(0, 0, 1);
+		assertRoster(100, 0, 1);
+		assertRoster(101, 0, 1, 2);
+		assertRoster(200, 0, 1, 2);
+		assertRoster(201, 1, 2, 3);
+		Assert.assertEquals(3, consensusPool.listSnapshots().size());
+	}
+
+	@Test
+	public void testSortOrder() {
+		List<ConsensusAccount> roster = history.getRoster(201);
+		for (int i = 1; i < roster.size(); i++) {
+			String previous = roster.get(i - 1).getSortValue().toString();
+			String current = roster.get(i).getSortValue().toString();
+			Assert.assertTrue(previous.compareTo(current) < 0);
+		}
+		Assert.assertEquals(Sha256Hash.twiceOf((201 + roster.get(0).getHash160Hex()).getBytes()), roster.get(0).getSortValue());
+	}
+
+	@Test
+	public void testSaveAndRevoke() {
+		assertRoster(200, 0, 1, 2);
+		assertRoster(301, 1, 2, 3);
+
+		//第 10 块在 300 这一轮加入 4，只影响之后的轮次
+		save(10, 300, 4, ConsensusRosterDelta.TYPE_JOIN);
+		assertRoster(200, 0, 1, 2);
+		assertRoster(300, 1, 2, 3);
+		assertRoster(301, 1, 2, 3, 4);
+
+		//回滚后恢复
+		Block block = newBlock(10, 300);
+		history.beginChange();
+		consensusPool.delete(hash160(4));
+		history.endRevoke(block);
+		assertRoster(301, 1, 2, 3);
+		assertRoster(200, 0, 1, 2);
+	}
+
+	/*
+	 * 保存区块，args 为 账户序号, 变化类型 交替
+	 */
+	private void save(long height, long periodStartTime, int... args) {
+		int count = args.length / 2;
+		int[] types = new int[count];
+		byte[][] hash160s = new byte[count][];
+		history.beginChange();
+		for (int i = 0; i < count; i++) {
+			types[i] = args[i * 2 + 1];
+			hash160s[i] = hash160(args[i * 2]);
+			if(types[i] == ConsensusRosterDelta.TYPE_JOIN) {
+				consensusPool.add(hash160s[i], Sha256Hash.ZERO_HASH, new byte[][] { keys[args[i * 2]].getPubKey(true) });
+			} else {
+				consensusPool.delete(hash160s[i]);
+			}
+		}
+		history.endSave(newBlock(height, periodStartTime), new ConsensusRosterDelta(height, periodStartTime, types, hash160s));
+	}
+
+	private void assertRoster(long periodStartTime, int... indexs) {
+		List<String> expected = new ArrayList<String>();
+		for (int index : indexs) {
+			expected.add(AccountTool.newAddress(network, keys[index]).getHash160AsHex());
+		}
+		List<String> actual = new ArrayList<String>();
+		for (ConsensusAccount account : history.getRoster(periodStartTime)) {
+			actual.add(account.getHash160Hex());
+		}
+		Assert.assertEquals(periodStartTime + " " + actual, expected.size(), actual.size());
+		Assert.assertTrue(periodStartTime + " " + actual, actual.containsAll(expected));
+	}
+
+	private byte[] hash160(int index) {
+		return AccountTool.newAddress(network, keys[index]).getHash160();
+	}
+
+	private Block newBlock(long height, long periodStartTime) {
+		Block block = new Block(network);
+		block.setHeight(height);
+		block.setPeriodStartTime(periodStartTime);
+		return block;
+	}
+
+	private static void delete(File file) {
+		File[] files = file.listFiles();
+		if(files != null) {
+			for (File f : files) {
+				delete(f);
+			}
+		}
+		file.delete();
+	}
+}
@@ -0,0 +1,90 @@
+package org.inchain.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.inchain.crypto.Sha256Hash;
+import org.inchain.message.Block;
+import org.inchain.network.NetworkParams;
+import org.inchain.network.TestNetworkParams;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class AssumeValidStagingTest {
+
+	private final NetworkParams network = new TestNetworkParams();
+	private final Block genesis = network.getGengsisBlock().getBlock();
+
+	private File file;
+
+	@Before
+	public void setUp() throws IOException {
+		file = Files.createTempFile("assumevalid", ".tmp").toFile();
+	}
+
+	@After
+	public void tearDown() {
+		file.delete();
+	}
+
+	@Test
+	public void testLinked() throws IOException {
+		Block block1 = newBlock(genesis, 1);
+		Block block2 = newBlock(block1, 2);
+
+		AssumeValidStaging staging = new AssumeValidStaging(network, file, genesis.getHash());
+		try {
+			Assert.assertTrue(staging.add(block1));
+			Assert.assertTrue(staging.add(block2));
+			Assert.assertEquals(2, staging.getCount());
+			Assert.assertEquals(block2.getHash(), staging.getLastHash());
+			Assert.assertEquals(8 + block1.baseSerialize().length + block2.baseSerialize().length, staging.getSize());
+
+			Assert.assertEquals(block1.getHash(), staging.next().getHash());
+			Assert.assertEquals(block2.getHash(), staging.next().getHash());
+			Assert.assertNull(staging.next());
+		} finally {
+			staging.close();
+		}
+		Assert.assertFalse(file.exists());
+	}
+
+	@Test
+	public void testNotLinked() throws IOException {
+		Block block1 = newBlock(genesis, 1);
+		//同样高度的另一个区块，不衔接
+		Block other = newBlock(genesis, 1);
+		other.setTime(other.getTime() + 1);
+		Block block2 = newBlock(other, 2);
+
+		AssumeValidStaging staging = new AssumeValidStaging(network, file, genesis.getHash());
+		try {
+			Assert.assertTrue(staging.add(block1));
+			Assert.assertFalse(staging.add(block2));
+			Assert.assertEquals(1, staging.getCount());
+			Assert.assertEquals(block1.getHash(), staging.getLastHash());
+
+			Assert.assertEquals(block1.getHash(), staging.next().getHash());
+			Assert.assertNull(staging.next());
+		} finally {
+			staging.close();
+		}
+	}
+
+	private Block newBlock(Block pre, long height) {
+		Block block = new Block(network);
+		block.setVersion(pre.getVersion());
+		block.setPreHash(pre.getHash());
+		block.setMerkleHash(Sha256Hash.ZERO_HASH);
+		block.setTime(pre.getTime() + height);
+		block.setHeight(height);
+		block.setPeriodStartTime(pre.getPeriodStartTime());
+		block.setScriptBytes(pre.getScriptBytes());
+		block.setTxs(pre.getTxs());
+		block.setTxCount(pre.getTxs().size());
+		return block;
+	}
+}
@@ -0,0 +1,278 @@
+package org.inchain.core;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.inchain.core.MessageDispatcher.Lane;
+import org.inchain.core.MessageDispatcher.PeerQueue;
+import org.inchain.message.Block;
+import org.inchain.message.Message;
+import org.inchain.message.PingMessage;
+import org.inchain.network.NetworkParams;
+import org.inchain.network.TestNetworkParams;
+import org.inchain.transaction.Transaction;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class MessageDispatcherTest {
+
+	private final NetworkParams network = new TestNetworkParams();
+
+	private final Message consensus = new PingMessage(1l);
+	private final Message block = new Block(network);
+	private final Message tx = new Transaction(network);
+
+	@Test
+	public void testLanePriority() throws InterruptedException {
+		MessageDispatcher dispatcher = new MessageDispatcher(1, 100);
+		CountDownLatch gate = hold(dispatcher);
+
+		PeerQueue queue = dispatcher.newPeerQueue(new TestPeer());
+		List<String> order = Collections.synchronizedList(new ArrayList<String>());
+		CountDownLatch done = new CountDownLatch(13);
+		//后到的共识消息排在所有积压的区块和交易消息前面
+		for (int i = 0; i < 2; i++) {
+			queue.submit(tx, new Record(order, "T", done));
+		}
+		for (int i = 0; i < 10; i++) {
+			queue.submit(block, new Record(order, "B", done));
+		}
+		queue.submit(consensus, new Record(order, "C", done));
+		Assert.assertEquals(10, dispatcher.getQueueSize(Lane.BLOCK));
+		Assert.assertEquals(13, queue.getPendingCount());
+
+		gate.countDown();
+		Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+		//区块通道优先，每调度4次让交易通道执行一次
+		Assert.assertEquals("CBBBTBBBTBBBB", join(order));
+		//处理数在任务执行完之后才更新
+		awaitIdle(queue);
+		Assert.assertEquals(2, dispatcher.getProcessedCount(Lane.TX));
+		Assert.assertEquals(10, dispatcher.getProcessedCount(Lane.BLOCK));
+		Assert.assertEquals(0, dispatcher.getQueueSize(Lane.BLOCK));
+	}
+
+	@Test
+	public void testPauseAndResume() throws InterruptedException {
+		MessageDispatcher dispatcher = new MessageDispatcher(1, 4);
+		CountDownLatch gate = hold(dispatcher);
+
+		TestPeer peer = new TestPeer();
+		final PeerQueue queue = dispatcher.newPeerQueue(peer);
+		final List<String> paused = Collections.synchronizedList(new ArrayList<String>());
+		final CountDownLatch done = new CountDownLatch(4);
+		Runnable task = new Runnable() {
+			@Override
+			public void run() {
+				paused.add(queue.isPaused() ? "P" : "R");
+				done.countDown();
+			}
+		};
+		for (int i = 0; i < 3; i++) {
+			queue.submit(tx, task);
+		}
+		Assert.assertFalse(queue.isPaused());
+		//达到上限暂停读取
+		queue.submit(tx, task);
+		Assert.assertTrue(queue.isPaused());
+		Assert.assertEquals(1, dispatcher.getPausedPeerCount());
+		Assert.assertEquals(Collections.singletonList(true), peer.pauses);
+
+		//处理到一半以下时恢复
+		gate.countDown();
+		Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+		Assert.assertEquals("PPRR", join(paused));
+		Assert.assertEquals(0, dispatcher.getPausedPeerCount());
+		Assert.assertEquals(2, peer.pauses.size());
+		Assert.assertFalse(peer.pauses.get(1));
+	}
+
+	@Test
+	public void testCloseDropsPending() throws InterruptedException {
+		MessageDispatcher dispatcher = new MessageDispatcher(1, 4);
+		CountDownLatch gate = hold(dispatcher);
+
+		PeerQueue queue = dispatcher.newPeerQueue(new TestPeer());
+		List<String> order = Collections.synchronizedList(new ArrayList<String>());
+		for (int i = 0; i < 4; i++) {
+			queue.submit(block, new Record(order, "B", null));
+		}
+		Assert.assertEquals(1, dispatcher.getPausedPeerCount());
+
+		queue.close();
+		queue.submit(block, new Record(order, "B", null));
+		Assert.assertEquals(0, dispatcher.getPausedPeerCount());
+		Assert.assertEquals(0, dispatcher.getQueueSize(Lane.BLOCK));
+		Assert.assertEquals(0, queue.getPendingCount());
+
+		//关闭后的消息不再执行
+		CountDownLatch done = new CountDownLatch(1);
+		dispatcher.newPeerQueue(new TestPeer()).submit(block, new Record(order, "X", done));
+		gate.countDown();
+		Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+		Assert.assertEquals("X", join(order));
+	}
+
+	@Test
+	public void testWaitForLaterMessage() throws InterruptedException {
+		MessageDispatcher dispatcher = new MessageDispatcher(2, 100);
+		PeerQueue queue = dispatcher.newPeerQueue(new TestPeer());
+		final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+		final CountDownLatch waiting = new CountDownLatch(1);
+		final CountDownLatch reply = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(1);
+		//inv 的处理等待同一节点之后发来的区块
+		queue.submit(tx, new Runnable() {
+			@Override
+			public void run() {
+				order.add(MessageDispatcher.releasePeer() ? "R" : "N");
+				waiting.countDown();
+				try {
+					order.add(reply.await(5, TimeUnit.SECONDS) ? "W" : "T");
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				done.countDown();
+			}
+		});
+		Assert.assertTrue(waiting.await(5, TimeUnit.SECONDS));
+		queue.submit(block, new Runnable() {
+			@Override
+			public void run() {
+				order.add("B");
+				reply.countDown();
+			}
+		});
+		Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+		Assert.assertEquals("RBW", join(order));
+		awaitIdle(queue);
+
+		//让出的消息结束之后，同一节点的消息仍然逐条执行
+		final AtomicInteger running = new AtomicInteger();
+		final AtomicInteger overlaps = new AtomicInteger();
+		final CountDownLatch finished = new CountDownLatch(6);
+		Runnable task = new Runnable() {
+			@Override
+			public void run() {
+				if(running.incrementAndGet() > 1) {
+					overlaps.incrementAndGet();
+				}
+				try {
+					Thread.sleep(5l);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				running.decrementAndGet();
+				finished.countDown();
+			}
+		};
+		for (int i = 0; i < 3; i++) {
+			queue.submit(tx, task);
+			queue.submit(block, task);
+		}
+		Assert.assertTrue(finished.await(5, TimeUnit.SECONDS));
+		Assert.assertEquals(0, overlaps.get());
+		//不在调度器线程上调用不做任何事
+		Assert.assertFalse(MessageDispatcher.releasePeer());
+	}
+
+	/*
+	 * 用另一个节点的消息占住唯一的工作线程，直到返回的 gate 放行
+	 */
+	private CountDownLatch hold(MessageDispatcher dispatcher) throws InterruptedException {
+		final CountDownLatch gate = new CountDownLatch(1);
+		final CountDownLatch started = new CountDownLatch(1);
+		dispatcher.newPeerQueue(new TestPeer()).submit(consensus, new Runnable() {
+			@Override
+			public void run() {
+				started.countDown();
+				try {
+					gate.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		});
+		Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+		return gate;
+	}
+
+	/*
+	 * 等待节点的消息全部处理完，待处理数和处理数在任务返回之后才更新
+	 */
+	private static void awaitIdle(PeerQueue queue) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000l;
+		while (queue.getPendingCount() > 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(1l);
+		}
+		Assert.assertEquals(0, queue.getPendingCount());
+	}
+
+	private static String join(List<String> list) {
+		StringBuilder sb = new StringBuilder();
+		synchronized (list) {
+			for (String s : list) {
+				sb.append(s);
+			}
+		}
+		return sb.toString();
+	}
+
+	private static class Record implements Runnable {
+		private final List<String> order;
+		private final String name;
+		private final CountDownLatch done;
+
+		Record(List<String> order, String name, CountDownLatch done) {
+			this.order = order;
+			this.name = name;
+			this.done = done;
+		}
+
+		@Override
+		public void run() {
+			order.add(name);
+			if(done != null) {
+				done.countDown();
+			}
+		}
+	}
+
+	/*
+	 * 记录暂停和恢复读取的节点
+	 */
+	private class TestPeer extends PeerSocketHandler {
+		private final List<Boolean> pauses = Collections.synchronizedList(new ArrayList<Boolean>());
+
+		TestPeer() {
+			super(network, new InetSocketAddress("127.0.0.1", 8322));
+		}
+
+		@Override
+		public void setReadingPaused(boolean paused) {
+			pauses.add(paused);
+		}
+
+		@Override
+		protected void processMessage(Message m) throws Exception {
+		}
+
+		@Override
+		public int getMaxMessageSize() {
+			return 1024;
+		}
+
+		@Override
+		public void connectionOpened() {
+		}
+
+		@Override
+		public void connectionClosed() {
+		}
+	}
+}
@@ -0,0 +1,134 @@
+package org.inchain.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.inchain.message.Message;
+import org.inchain.message.PingMessage;
+import org.inchain.net.MessageFrame;
+import org.inchain.net.MessageWriteTarget;
+import org.inchain.network.NetworkParams;
+import org.inchain.network.TestNetworkParams;
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+public class PeerSocketHandlerTest {
+
+	private final NetworkParams network = new TestNetworkParams();
+
+	@Test
+	public void testDecodeBackpressure() throws Exception {
+		TestPeer peer = new TestPeer();
+		ReflectionTestUtils.setField(peer, "maxPendingDecodes", 4);
+		TestTarget target = new TestTarget();
+		peer.setWriteTarget(target);
+
+		//第一条消息的处理卡住，后面的消息都在等待解码
+		peer.receiveBytes(frames(1));
+		Assert.assertTrue(peer.started.await(5, TimeUnit.SECONDS));
+		peer.receiveBytes(frames(3));
+		Assert.assertEquals(3, peer.getPendingDecodeCount());
+		Assert.assertTrue(target.pauses.isEmpty());
+		//达到上限暂停读取
+		peer.receiveBytes(frames(1));
+		Assert.assertEquals(Arrays.asList(true), target.pauses);
+
+		//消息处理也积压时，解码恢复之后仍然暂停
+		peer.setReadingPaused(true);
+		peer.gate.countDown();
+		Assert.assertTrue(peer.done.await(5, TimeUnit.SECONDS));
+		Assert.assertEquals(Arrays.asList(true, true, true), target.pauses);
+		Assert.assertEquals(0, peer.getPendingDecodeCount());
+
+		//两者都恢复之后继续读取
+		peer.setReadingPaused(false);
+		Assert.assertEquals(Arrays.asList(true, true, true, false), target.pauses);
+	}
+
+	/*
+	 * 序列化好的心跳消息，放在一个读取缓冲里
+	 */
+	private ByteBuffer frames(int count) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (int i = 0; i < count; i++) {
+			PingMessage ping = new PingMessage(i);
+			ping.setSerializer(network.getDefaultSerializer());
+			network.getDefaultSerializer().serialize(ping, out);
+		}
+		ByteBuffer buff = ByteBuffer.allocate(Math.max(out.size(), 1024));
+		buff.put(out.toByteArray());
+		buff.flip();
+		return buff;
+	}
+
+	/*
+	 * 记录暂停和恢复读取
+	 */
+	private static class TestTarget implements MessageWriteTarget {
+		private final List<Boolean> pauses = Collections.synchronizedList(new ArrayList<Boolean>());
+
+		@Override
+		public void writeBytes(byte[] message) throws IOException {
+		}
+
+		@Override
+		public void writeFrame(MessageFrame frame) throws IOException {
+		}
+
+		@Override
+		public void setReadingPaused(boolean paused) {
+			pauses.add(paused);
+		}
+
+		@Override
+		public long getPendingWriteBytes() {
+			return 0l;
+		}
+
+		@Override
+		public void closeConnection() {
+		}
+	}
+
+	/*
+	 * 第一条消息的处理等待 gate 放行
+	 */
+	private class TestPeer extends PeerSocketHandler {
+		private final CountDownLatch started = new CountDownLatch(1);
+		private final CountDownLatch gate = new CountDownLatch(1);
+		private final CountDownLatch done = new CountDownLatch(5);
+
+		TestPeer() {
+			super(network, new InetSocketAddress("127.0.0.1", 8322));
+		}
+
+		@Override
+		protected void processMessage(Message m) throws Exception {
+			started.countDown();
+			gate.await();
+			done.countDown();
+		}
+
+		@Override
+		public int getMaxMessageSize() {
+			return 1024;
+		}
+
+		@Override
+		public void connectionOpened() {
+		}
+
+		@Override
+		public void connectionClosed() {
+		}
+	}
+}
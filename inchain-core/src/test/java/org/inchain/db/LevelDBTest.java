@@ -1,8 +1,11 @@
 package org.inchain.db;
 
 import java.io.IOException;
+import java.util.List;
+import java.util.Map.Entry;
 
 import org.inchain.UnitBaseTestCase;
+import org.junit.Assert;
 import org.junit.Test;
 
 public class LevelDBTest extends UnitBaseTestCase {
@@ -31,4 +34,150 @@ public class LevelDBTest extends UnitBaseTestCase {
 		System.out.println("读取 "+count+" 条数据耗时："+(System.currentTimeMillis() - time)+" ms");
 		storage.close();
 	}
+	
+	@Test
+	public void testBatch() throws IOException {
+		Db storage = new LevelDB(filepath);
+		
+		byte[] key1 = "batch_key_1".getBytes();
+		byte[] key2 = "batch_key_2".getBytes();
+		storage.put(key2, "old".getBytes());
+		
+		//批次内可以读到自己的写入
+		storage.beginBatch();
+		storage.put(key1, "value1".getBytes());
+		storage.delete(key2);
+		Assert.assertArrayEquals("value1".getBytes(), storage.get(key1));
+		Assert.assertNull(storage.get(key2));
+		
+		//放弃之后，恢复原样
+		storage.discardBatch();
+		Assert.assertNull(storage.get(key1));
+		Assert.assertArrayEquals("old".getBytes(), storage.get(key2));
+		
+		//嵌套提交，只有最外层才写入
+		storage.beginBatch();
+		storage.beginBatch();
+		storage.put(key1, "value1".getBytes());
+		storage.delete(key2);
+		storage.commitBatch();
+		Assert.assertTrue(storage.isBatching());
+		storage.commitBatch();
+		Assert.assertFalse(storage.isBatching());
+		Assert.assertArrayEquals("value1".getBytes(), storage.get(key1));
+		Assert.assertNull(storage.get(key2));
+		
+		storage.delete(key1);
+		storage.close();
+	}
+	
+	@Test
+	public void testNestedDiscard() throws IOException {
+		Db storage = new LevelDB(filepath);
+		
+		byte[] key1 = "nested_key_1".getBytes();
+		byte[] key2 = "nested_key_2".getBytes();
+		storage.delete(key1);
+		storage.delete(key2);
+		
+		//里层放弃之后，外层的批次还在，之后的写入不会直接落盘
+		storage.beginBatch();
+		storage.put(key1, "value1".getBytes());
+		storage.beginBatch();
+		storage.discardBatch();
+		Assert.assertTrue(storage.isBatching());
+		storage.put(key2, "value2".getBytes());
+		
+		//外层提交时整个批次都不写入
+		try {
+			storage.commitBatch();
+			Assert.fail();
+		} catch (IOException e) {
+		}
+		Assert.assertFalse(storage.isBatching());
+		Assert.assertNull(storage.get(key1));
+		Assert.assertNull(storage.get(key2));
+		
+		//外层也放弃时正常结束
+		storage.beginBatch();
+		storage.beginBatch();
+		storage.put(key1, "value1".getBytes());
+		storage.discardBatch();
+		storage.discardBatch();
+		Assert.assertFalse(storage.isBatching());
+		Assert.assertNull(storage.get(key1));
+		
+		storage.close();
+	}
+	
+	@Test
+	public void testListByPrefix() throws IOException {
+		Db storage = new LevelDB(filepath);
+		
+		byte[] prefix = "prefix_".getBytes();
+		storage.put("prefix_b".getBytes(), "b".getBytes());
+		storage.put("prefix_a".getBytes(), "a".getBytes());
+		storage.put("prefiy_a".getBytes(), "x".getBytes());
+		
+		List<Entry<byte[], byte[]>> list = storage.listByPrefix(prefix);
+		Assert.assertEquals(2, list.size());
+		Assert.assertArrayEquals("prefix_a".getBytes(), list.get(0).getKey());
+		
+		//批次里暂存的数据也能遍历到
+		storage.beginBatch();
+		storage.delete("prefix_a".getBytes());
+		storage.put("prefix_c".getBytes(), "c".getBytes());
+		list = storage.listByPrefix(prefix);
+		Assert.assertEquals(2, list.size());
+		Assert.assertArrayEquals("prefix_b".getBytes(), list.get(0).getKey());
+		Assert.assertArrayEquals("prefix_c".getBytes(), list.get(1).getKey());
+		storage.discardBatch();
+		
+		storage.delete("prefix_a".getBytes());
+		storage.delete("prefix_b".getBytes());
+		storage.delete("prefiy_a".getBytes());
+		storage.close();
+	}
+	
+	@Test
+	public void testForEachByPrefix() throws IOException {
+		Db storage = new LevelDB(filepath);
+		
+		final byte[] prefix = "each_".getBytes();
+		storage.put("each_a".getBytes(), "a".getBytes());
+		storage.put("each_c".getBytes(), "c".getBytes());
+		storage.put("eaci_a".getBytes(), "x".getBytes());
+		
+		//批次里的写入按顺序合并，删除的跳过，同一个key以批次为准
+		storage.beginBatch();
+		storage.put("each_b".getBytes(), "b".getBytes());
+		storage.put("each_c".getBytes(), "c2".getBytes());
+		storage.delete("each_a".getBytes());
+		final StringBuilder visited = new StringBuilder();
+		storage.forEachByPrefix(prefix, new Db.EntryVisitor() {
+			@Override
+			public boolean visit(byte[] key, byte[] value) {
+				visited.append(new String(value)).append(",");
+				return true;
+			}
+		});
+		Assert.assertEquals("b,c2,", visited.toString());
+		storage.discardBatch();
+		
+		//返回false时不再继续
+		visited.setLength(0);
+		storage.forEachByPrefix(prefix, new Db.EntryVisitor() {
+			@Override
+			public boolean visit(byte[] key, byte[] value) {
+				visited.append(new String(value)).append(",");
+				return false;
+			}
+		});
+		Assert.assertEquals("a,", visited.toString());
+		
+		storage.delete("each_a".getBytes());
+		storage.delete("each_c".getBytes());
+		storage.delete("eaci_a".getBytes());
+		storage.close();
+	}
 }
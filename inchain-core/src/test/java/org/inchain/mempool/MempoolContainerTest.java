@@ -0,0 +1,132 @@
+package org.inchain.mempool;
+
+import org.inchain.core.Coin;
+import org.inchain.core.Definition;
+import org.inchain.crypto.ECKey;
+import org.inchain.network.NetworkParams;
+import org.inchain.network.TestNetworkParams;
+import org.inchain.script.ScriptBuilder;
+import org.inchain.transaction.Transaction;
+import org.inchain.transaction.TransactionInput;
+import org.inchain.transaction.TransactionOutput;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class MempoolContainerTest {
+
+	private final NetworkParams network = new TestNetworkParams();
+	private final ECKey key = new ECKey();
+	private final Mempool mempool = MempoolContainer.getInstace();
+	//来源交易的序号，保证每笔来源交易的hash不同
+	private long sequence;
+
+	@After
+	public void clear() {
+		for (Transaction tx : mempool.getAll()) {
+			mempool.remove(tx.getHash());
+		}
+	}
+
+	@Test
+	public void testFeeOrder() {
+		Transaction low = newTx(newTx(null, 100000).getOutput(0), 99000);
+		Transaction high = newTx(newTx(null, 100000).getOutput(0), 90000);
+
+		Assert.assertTrue(mempool.add(low));
+		Assert.assertTrue(mempool.add(high));
+		Assert.assertEquals(2, mempool.getTxCount());
+
+		//费率高的先出来
+		Assert.assertEquals(high.getHash(), mempool.get().getHash());
+		Assert.assertEquals(low.getHash(), mempool.get().getHash());
+		Assert.assertNull(mempool.get());
+	}
+
+	@Test
+	public void testParentFirst() {
+		Transaction parent = newTx(newTx(null, 100000).getOutput(0), 99000);
+		//子交易手续费更高，但不能排在父交易前面
+		Transaction child = newTx(parent.getOutput(0), 50000);
+		Transaction other = newTx(newTx(null, 100000).getOutput(0), 95000);
+
+		Assert.assertTrue(mempool.add(parent));
+		Assert.assertTrue(mempool.add(child));
+		Assert.assertTrue(mempool.add(other));
+
+		Assert.assertEquals(other.getHash(), mempool.get().getHash());
+		Assert.assertEquals(parent.getHash(), mempool.get().getHash());
+		Assert.assertEquals(child.getHash(), mempool.get().getHash());
+	}
+
+	@Test
+	public void testDoubleSpendWhilePackaging() {
+		TransactionOutput from = newTx(null, 100000).getOutput(0);
+		Transaction first = newTx(from, 99000);
+		Transaction conflict = newTx(from, 98000);
+
+		Assert.assertTrue(mempool.add(first));
+		Assert.assertFalse(mempool.add(conflict));
+
+		//正在打包时仍然占用输入
+		Assert.assertEquals(first.getHash(), mempool.get().getHash());
+		Assert.assertEquals(0, mempool.getTxCount());
+		Assert.assertNotNull(mempool.get(first.getHash()));
+		Assert.assertFalse(mempool.add(conflict));
+
+		//放回之后可以再次取出
+		Assert.assertTrue(mempool.add(first));
+		Assert.assertEquals(first.getHash(), mempool.get().getHash());
+
+		//确认移除之后释放
+		Assert.assertTrue(mempool.remove(first.getHash()));
+		Assert.assertNull(mempool.get(first.getHash()));
+		Assert.assertTrue(mempool.add(conflict));
+
+		//放弃打包也释放
+		Assert.assertEquals(conflict.getHash(), mempool.get().getHash());
+		Assert.assertTrue(mempool.discard(conflict.getHash()));
+		Assert.assertFalse(mempool.discard(conflict.getHash()));
+		Assert.assertTrue(mempool.add(first));
+	}
+
+	@Test
+	public void testReturnKeepsPackagingEntry() {
+		TransactionOutput from = newTx(null, 100000).getOutput(0);
+		Transaction first = newTx(from, 99000);
+		Transaction conflict = newTx(from, 98000);
+
+		Assert.assertTrue(mempool.add(first));
+		Assert.assertEquals(first.getHash(), mempool.get().getHash());
+
+		//放回两次，第二次失败，不能释放仍被占用的输入
+		Assert.assertTrue(mempool.add(first));
+		Assert.assertFalse(mempool.add(first));
+		Assert.assertFalse(mempool.add(conflict));
+		Assert.assertEquals(1, mempool.getTxCount());
+
+		//再次取出的记录和放回之前的记录不冲突，放弃打包后释放
+		Assert.assertEquals(first.getHash(), mempool.get().getHash());
+		Assert.assertEquals(0, mempool.getTxCount());
+		Assert.assertFalse(mempool.add(conflict));
+		Assert.assertTrue(mempool.discard(first.getHash()));
+		Assert.assertTrue(mempool.add(conflict));
+	}
+
+	/*
+	 * 花费 from 的转账交易，from 为空时生成一笔不在内存池里的来源交易
+	 */
+	private Transaction newTx(TransactionOutput from, long value) {
+		Transaction tx = new Transaction(network);
+		tx.setVersion(Definition.VERSION);
+		tx.setType(Definition.TYPE_PAY);
+		TransactionInput input = from == null ? new TransactionInput() : new TransactionInput(from);
+		input.setScriptSig(ScriptBuilder.createCoinbaseInputScript(key.getPubKey(true)));
+		tx.addInput(input);
+		tx.addOutput(Coin.valueOf(value), key);
+		if(from == null) {
+			tx.setLockTime(++sequence);
+		}
+		return tx;
+	}
+}
@@ -0,0 +1,127 @@
+package org.inchain.mempool;
+
+import java.util.Arrays;
+
+import org.inchain.core.Coin;
+import org.inchain.core.Definition;
+import org.inchain.crypto.ECKey;
+import org.inchain.crypto.Sha256Hash;
+import org.inchain.network.NetworkParams;
+import org.inchain.network.TestNetworkParams;
+import org.inchain.script.ScriptBuilder;
+import org.inchain.transaction.Transaction;
+import org.inchain.transaction.TransactionInput;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class OrphanTxPoolTest {
+
+	private final NetworkParams network = new TestNetworkParams();
+	private final ECKey key = new ECKey();
+	//来源交易的序号，保证每笔来源交易的hash不同
+	private long sequence;
+
+	@Test
+	public void testParentLookup() {
+		OrphanTxPool pool = new OrphanTxPool(10, 60000l);
+		Transaction first = newTx();
+		Transaction second = newTx();
+		//引用了两笔还没收到的交易
+		Transaction both = newTx(first, second);
+		Transaction only = newTx(first);
+
+		Assert.assertTrue(pool.add(both));
+		Assert.assertTrue(pool.add(only));
+		Assert.assertFalse(pool.add(only));
+		Assert.assertEquals(2, pool.size());
+
+		//按进入的先后取出，取出后仍留在池里
+		Assert.assertEquals(Arrays.asList(both, only), pool.getChildren(first.getHash()));
+		Assert.assertEquals(2, pool.size());
+		Assert.assertTrue(pool.getChildren(first.getHash()).isEmpty());
+		Assert.assertTrue(pool.getChildren(newTx().getHash()).isEmpty());
+
+		//验证通过的由调用方移除，索引一起清掉
+		Assert.assertEquals(only, pool.remove(only.getHash()));
+		Assert.assertNull(pool.remove(only.getHash()));
+		Assert.assertEquals(Arrays.asList(both), pool.getChildren(second.getHash()));
+		Assert.assertEquals(both, pool.remove(both.getHash()));
+		Assert.assertEquals(0, pool.size());
+	}
+
+	@Test
+	public void testEvictOldest() {
+		OrphanTxPool pool = new OrphanTxPool(3, 60000l);
+		Transaction parent = newTx();
+		Transaction first = newTx(parent);
+		Transaction second = newTx(newTx());
+		Transaction third = newTx(parent);
+		pool.add(first);
+		pool.add(second);
+		pool.add(third);
+
+		//超过最大数量淘汰最早进入的，索引里也不再有它
+		Transaction fourth = newTx(newTx());
+		Assert.assertTrue(pool.add(fourth));
+		Assert.assertEquals(3, pool.size());
+		Assert.assertNull(pool.get(first.getHash()));
+		Assert.assertEquals(Arrays.asList(third), pool.getChildren(parent.getHash()));
+	}
+
+	@Test
+	public void testKeepOrderWhileWaiting() {
+		OrphanTxPool pool = new OrphanTxPool(3, 60000l);
+		Transaction first = newTx();
+		Transaction waiting = newTx(first, newTx());
+		Transaction second = newTx(newTx());
+		Transaction third = newTx(newTx());
+		pool.add(waiting);
+		pool.add(second);
+		pool.add(third);
+
+		//一个上一交易到了，另一个还没到，继续等待时仍是最早进入的，先被淘汰
+		Assert.assertEquals(Arrays.asList(waiting), pool.getChildren(first.getHash()));
+		pool.add(newTx(newTx()));
+		Assert.assertNull(pool.get(waiting.getHash()));
+		Assert.assertNotNull(pool.get(second.getHash()));
+		Assert.assertNotNull(pool.get(third.getHash()));
+	}
+
+	@Test
+	public void testRemoveExpired() throws InterruptedException {
+		OrphanTxPool pool = new OrphanTxPool(10, 50l);
+		Transaction parent = newTx();
+		Transaction old = newTx(parent);
+		pool.add(old);
+		Thread.sleep(100l);
+		Transaction fresh = newTx(newTx());
+		pool.add(fresh);
+
+		//加入新交易时顺便淘汰过期的
+		Assert.assertNull(pool.get(old.getHash()));
+		Assert.assertEquals(fresh, pool.get(fresh.getHash()));
+		Assert.assertTrue(pool.getChildren(parent.getHash()).isEmpty());
+
+		Thread.sleep(100l);
+		Assert.assertEquals(1, pool.removeExpired());
+		Assert.assertEquals(0, pool.size());
+	}
+
+	/*
+	 * 花费 parents 第一个输出的转账交易，没有 parents 时生成一笔来源交易
+	 */
+	private Transaction newTx(Transaction... parents) {
+		Transaction tx = new Transaction(network);
+		tx.setVersion(Definition.VERSION);
+		tx.setType(Definition.TYPE_PAY);
+		TransactionInput input = new TransactionInput();
+		for (Transaction parent : parents) {
+			input.addFrom(parent.getOutput(0));
+		}
+		input.setScriptSig(ScriptBuilder.createCoinbaseInputScript(key.getPubKey(true)));
+		tx.addInput(input);
+		tx.addOutput(Coin.valueOf(100), key);
+		tx.setLockTime(++sequence);
+		return tx;
+	}
+}
@@ -0,0 +1,77 @@
+package org.inchain.message;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.inchain.network.NetworkParams;
+import org.inchain.network.TestNetworkParams;
+import org.inchain.transaction.Transaction;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CompactBlockMessageTest {
+
+	private final NetworkParams network = new TestNetworkParams();
+	private final Block block = network.getGengsisBlock().getBlock();
+
+	@Test
+	public void testSerialize() {
+		CompactBlockMessage message = new CompactBlockMessage(network, block, 123456789l);
+		CompactBlockMessage parsed = new CompactBlockMessage(network, message.baseSerialize());
+
+		Assert.assertEquals(block.getHash(), parsed.getBlockHash());
+		Assert.assertEquals(123456789l, parsed.getNonce());
+		Assert.assertEquals(block.getTxs().size(), parsed.getHeader().getTxCount());
+		Assert.assertEquals(block.getMerkleHash(), parsed.getHeader().getMerkleHash());
+		Assert.assertArrayEquals(message.getShortIds(), parsed.getShortIds());
+		Assert.assertArrayEquals(message.getSalt(), parsed.getSalt());
+
+		//coinbase 预先填充，其余只有短ID
+		Assert.assertEquals(block.getTxs().size() - 1, parsed.getShortIds().length);
+		Assert.assertEquals(1, parsed.getPrefilledTxs().size());
+		Assert.assertEquals(Integer.valueOf(0), parsed.getPrefilledIndexes().get(0));
+		Assert.assertEquals(block.getTxs().get(0).getHash(), parsed.getPrefilledTxs().get(0).getHash());
+
+		//解析出的区块头和原区块一致
+		Assert.assertEquals(block.getHash(), parsed.toBlock(block.getTxs()).getHash());
+	}
+
+	@Test
+	public void testReconstruct() {
+		CompactBlockMessage message = new CompactBlockMessage(network, new CompactBlockMessage(network, block, 42l).baseSerialize());
+		List<Transaction> txs = block.getTxs();
+
+		//接收方的交易池，顺序打乱
+		List<Transaction> pool = new ArrayList<Transaction>();
+		for (int i = txs.size() - 1; i > 0; i--) {
+			pool.add(txs.get(i));
+		}
+		byte[] salt = message.getSalt();
+		Map<Long, Transaction> byShortId = new HashMap<Long, Transaction>();
+		for (Transaction tx : pool) {
+			Assert.assertNull(byShortId.put(CompactBlockMessage.shortId(salt, tx.getHash()), tx));
+		}
+
+		List<Transaction> rebuilt = new ArrayList<Transaction>();
+		rebuilt.add(message.getPrefilledTxs().get(0));
+		for (long shortId : message.getShortIds()) {
+			Transaction tx = byShortId.get(shortId);
+			Assert.assertNotNull(tx);
+			rebuilt.add(tx);
+		}
+		Block rebuiltBlock = message.toBlock(rebuilt);
+		Assert.assertEquals(block.getHash(), rebuiltBlock.getHash());
+		Assert.assertEquals(block.getMerkleHash(), rebuiltBlock.buildMerkleHash());
+
+		//短ID只有6个字节
+		for (long shortId : message.getShortIds()) {
+			Assert.assertEquals(0, shortId >>> (8 * CompactBlockMessage.SHORT_ID_LENGTH));
+		}
+
+		//随机数不同，短ID也不同，无法预先构造冲突
+		CompactBlockMessage other = new CompactBlockMessage(network, block, 43l);
+		Assert.assertFalse(message.getShortIds()[0] == other.getShortIds()[0]);
+	}
+}
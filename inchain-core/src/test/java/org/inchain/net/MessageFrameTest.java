@@ -0,0 +1,116 @@
+package org.inchain.net;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class MessageFrameTest {
+
+	@Test
+	public void testPoolReuse() {
+		DirectBufferPool pool = new DirectBufferPool();
+		ByteBuffer buffer = pool.acquire(100);
+		Assert.assertTrue(buffer.isDirect());
+		Assert.assertEquals(1024, buffer.capacity());
+		Assert.assertEquals(100, buffer.limit());
+
+		//归还后同级别的申请复用同一个缓冲区
+		pool.release(buffer);
+		Assert.assertSame(buffer, pool.acquire(1000));
+		Assert.assertEquals(1000, buffer.limit());
+		Assert.assertEquals(0, buffer.position());
+		Assert.assertSame(buffer, reuse(pool, buffer, 1024));
+		Assert.assertEquals(2048, pool.acquire(1025).capacity());
+		Assert.assertEquals(2, pool.getAllocateCount());
+		Assert.assertEquals(2, pool.getReuseCount());
+
+		//超过最大级别的和不是本池分配的都不缓存
+		ByteBuffer large = pool.acquire((1 << 20) + 1);
+		pool.release(large);
+		Assert.assertNotSame(large, pool.acquire((1 << 20) + 1));
+		pool.release(ByteBuffer.allocateDirect(1500));
+		pool.release(ByteBuffer.allocate(1024));
+		pool.release(buffer.asReadOnlyBuffer());
+		Assert.assertEquals(4, pool.getAllocateCount());
+		Assert.assertEquals(2, pool.getReuseCount());
+	}
+
+	@Test
+	public void testPoolLimit() {
+		DirectBufferPool pool = new DirectBufferPool();
+		List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+		for (int i = 0; i < 65; i++) {
+			buffers.add(pool.acquire(1024));
+		}
+		for (ByteBuffer buffer : buffers) {
+			pool.release(buffer);
+		}
+		//每个级别最多缓存 64 个
+		for (int i = 0; i < 65; i++) {
+			pool.acquire(1024);
+		}
+		Assert.assertEquals(64, pool.getReuseCount());
+		Assert.assertEquals(66, pool.getAllocateCount());
+	}
+
+	@Test
+	public void testReleaseOnLastReference() {
+		DirectBufferPool pool = new DirectBufferPool();
+		ByteBuffer buffer = pool.acquire(4);
+		buffer.put(new byte[] { 1, 2, 3, 4 });
+		buffer.flip();
+		MessageFrame frame = new MessageFrame("test", buffer, pool);
+
+		//两个节点的发送队列各持有一个引用
+		frame.retain();
+		frame.retain();
+		frame.release();
+		frame.release();
+		Assert.assertNotSame(buffer, pool.acquire(4));
+
+		//最后一个引用释放后缓冲区回到内存池
+		frame.release();
+		Assert.assertSame(buffer, pool.acquire(4));
+		Assert.assertEquals(1, pool.getReuseCount());
+
+		try {
+			frame.retain();
+			Assert.fail();
+		} catch (IllegalStateException e) {
+		}
+		try {
+			frame.release();
+			Assert.fail();
+		} catch (IllegalStateException e) {
+		}
+	}
+
+	@Test
+	public void testDuplicate() {
+		DirectBufferPool pool = new DirectBufferPool();
+		ByteBuffer buffer = pool.acquire(4);
+		buffer.put(new byte[] { 1, 2, 3, 4 });
+		buffer.flip();
+		MessageFrame frame = new MessageFrame("test", buffer, pool);
+		Assert.assertEquals(4, frame.length());
+		Assert.assertEquals("test", frame.getCommand());
+
+		//每个视图的读位置互不影响
+		ByteBuffer first = frame.duplicate();
+		ByteBuffer second = frame.duplicate();
+		Assert.assertTrue(first.isReadOnly());
+		Assert.assertEquals(1, first.get());
+		Assert.assertEquals(2, first.get());
+		Assert.assertEquals(1, second.get());
+		Assert.assertEquals(4, frame.length());
+		frame.release();
+	}
+
+	private static ByteBuffer reuse(DirectBufferPool pool, ByteBuffer buffer, int size) {
+		pool.release(buffer);
+		return pool.acquire(size);
+	}
+}
@@ -0,0 +1,100 @@
+package org.inchain.rpc;
+
+import org.codehaus.jettison.json.JSONArray;
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+public class BatchCommandTest {
+
+	private RPCServer server;
+	private RPCStatistics rpcStatistics;
+
+	@Before
+	public void open() {
+		rpcStatistics = new RPCStatistics();
+		//原样返回命令名，fail 命令抛出异常
+		RPCHanlder rpcHanlder = new RPCHanlder() {
+			@Override
+			public JSONObject hanlder(JSONObject commandInfos) throws JSONException {
+				String command = commandInfos.getString("command");
+				if("fail".equals(command)) {
+					throw new IllegalStateException("test");
+				}
+				return new JSONObject().put("success", true).put("command", command);
+			}
+		};
+		server = new RPCServer();
+		ReflectionTestUtils.setField(server, "rpcHanlder", rpcHanlder);
+		ReflectionTestUtils.setField(server, "rpcStatistics", rpcStatistics);
+	}
+
+	@Test
+	public void testBatchResults() throws Exception {
+		JSONArray commands = new JSONArray("[{\"command\":\"getblock\"},1,{\"command\":\"fail\"},{\"command\":\"gettx\"}]");
+		JSONArray results = (JSONArray) server.new BatchTask(commands).call();
+
+		//结果和命令一一对应，单条出错不影响其它命令
+		Assert.assertEquals(4, results.length());
+		Assert.assertEquals("getblock", results.getJSONObject(0).getString("command"));
+		Assert.assertFalse(results.getJSONObject(1).getBoolean("success"));
+		Assert.assertFalse(results.getJSONObject(2).getBoolean("success"));
+		Assert.assertEquals("gettx", results.getJSONObject(3).getString("command"));
+
+		//每条命令和整批分别统计
+		JSONArray stats = rpcStatistics.toJSON().getJSONArray("commands");
+		Assert.assertEquals(4, stats.length());
+		Assert.assertEquals("batch", stats.getJSONObject(0).getString("command"));
+		Assert.assertEquals(1, stats.getJSONObject(0).getLong("count"));
+		Assert.assertEquals("fail", stats.getJSONObject(1).getString("command"));
+		Assert.assertEquals(1, stats.getJSONObject(1).getLong("errors"));
+	}
+
+	@Test
+	public void testBatchLimit() throws Exception {
+		JSONArray commands = new JSONArray();
+		for (int i = 0; i <= RPCHanlder.MAX_BATCH_ITEMS; i++) {
+			commands.put(new JSONObject().put("command", "getblock"));
+		}
+		JSONArray results = (JSONArray) server.new BatchTask(commands).call();
+		Assert.assertEquals(1, results.length());
+		Assert.assertFalse(results.getJSONObject(0).getBoolean("success"));
+	}
+
+	@Test
+	public void testReadOnlyBatch() throws JSONException {
+		Assert.assertTrue(RPCHanlder.isReadOnly(new JSONArray("[{\"command\":\"getblocks\"},{\"command\":\"getbalances\"},{\"command\":\"gettxs\"}]")));
+		//有一条会修改钱包的命令，整批按顺序执行
+		Assert.assertFalse(RPCHanlder.isReadOnly(new JSONArray("[{\"command\":\"getblock\"},{\"command\":\"send\"}]")));
+		Assert.assertFalse(RPCHanlder.isReadOnly(new JSONArray("[{\"command\":\"getblock\"},{}]")));
+	}
+
+	@Test
+	public void testBatchParams() throws JSONException {
+		RPCHanlder rpcHanlder = new RPCHanlder();
+		Assert.assertFalse(call(rpcHanlder, "getblocks", "1").getBoolean("success"));
+		Assert.assertFalse(call(rpcHanlder, "getblocks", "a", "2").getBoolean("success"));
+		Assert.assertFalse(call(rpcHanlder, "getblocks", "5", "4").getBoolean("success"));
+		Assert.assertFalse(call(rpcHanlder, "getblocks", "0", String.valueOf(RPCHanlder.MAX_BATCH_BLOCKS)).getBoolean("success"));
+		Assert.assertFalse(call(rpcHanlder, "gettxs").getBoolean("success"));
+		Assert.assertFalse(call(rpcHanlder, "getbalances").getBoolean("success"));
+
+		String[] addresses = new String[RPCHanlder.MAX_BATCH_ITEMS + 1];
+		for (int i = 0; i < addresses.length; i++) {
+			addresses[i] = "address";
+		}
+		Assert.assertFalse(call(rpcHanlder, "getbalances", addresses).getBoolean("success"));
+		Assert.assertFalse(call(rpcHanlder, "gettxs", addresses).getBoolean("success"));
+	}
+
+	private static JSONObject call(RPCHanlder rpcHanlder, String command, String... params) throws JSONException {
+		JSONArray array = new JSONArray();
+		for (String param : params) {
+			array.put(param);
+		}
+		return rpcHanlder.hanlder(new JSONObject().put("command", command).put("params", array));
+	}
+}
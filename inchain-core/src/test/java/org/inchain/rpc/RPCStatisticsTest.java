@@ -0,0 +1,77 @@
+package org.inchain.rpc;
+
+import org.codehaus.jettison.json.JSONArray;
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class RPCStatisticsTest {
+
+	@Test
+	public void testHistogram() throws JSONException {
+		RPCStatistics statistics = new RPCStatistics();
+		for (int i = 0; i < 8; i++) {
+			statistics.record("getblock", 500000l, true);
+		}
+		statistics.record("getblock", 30000000l, true);
+		statistics.record("getblock", 6000000000l, false);
+		statistics.record("send", 1500000l, true);
+
+		JSONArray commands = statistics.toJSON().getJSONArray("commands");
+		//按命令名排序
+		Assert.assertEquals(2, commands.length());
+		JSONObject getblock = commands.getJSONObject(0);
+		Assert.assertEquals("getblock", getblock.getString("command"));
+		Assert.assertEquals(10, getblock.getLong("count"));
+		Assert.assertEquals(1, getblock.getLong("errors"));
+		Assert.assertEquals("<1ms", getblock.getString("p50"));
+		Assert.assertEquals("<50ms", getblock.getString("p90"));
+		Assert.assertEquals(">=5000ms", getblock.getString("p99"));
+		Assert.assertEquals("6000.000", getblock.getString("maxMs"));
+		JSONObject histogram = getblock.getJSONObject("histogram");
+		Assert.assertEquals(8, histogram.getLong("<1ms"));
+		Assert.assertEquals(1, histogram.getLong("<50ms"));
+		Assert.assertEquals(1, histogram.getLong(">=5000ms"));
+		Assert.assertEquals(0, histogram.getLong("<2ms"));
+
+		JSONObject send = commands.getJSONObject(1);
+		Assert.assertEquals("send", send.getString("command"));
+		Assert.assertEquals(1, send.getJSONObject("histogram").getLong("<2ms"));
+
+		statistics.reset();
+		Assert.assertEquals(0, statistics.toJSON().getJSONArray("commands").length());
+	}
+
+	@Test
+	public void testCommandLimit() throws JSONException {
+		RPCStatistics statistics = new RPCStatistics();
+		for (int i = 0; i < 200; i++) {
+			statistics.record("command" + i, 1000l, true);
+		}
+		statistics.record(null, 1000l, true);
+
+		//超过上限的命令都记到 other 里
+		JSONArray commands = statistics.toJSON().getJSONArray("commands");
+		Assert.assertEquals(129, commands.length());
+		long count = 0;
+		for (int i = 0; i < commands.length(); i++) {
+			JSONObject command = commands.getJSONObject(i);
+			count += command.getLong("count");
+			if("other".equals(command.getString("command"))) {
+				Assert.assertEquals(73, command.getLong("count"));
+			}
+		}
+		Assert.assertEquals(201, count);
+	}
+
+	@Test
+	public void testReadOnlyCommands() throws JSONException {
+		Assert.assertTrue(RPCHanlder.isReadOnly("getblock"));
+		Assert.assertTrue(RPCHanlder.isReadOnly("getrpcstats"));
+		//会修改钱包和不认识的命令都按顺序执行
+		Assert.assertFalse(RPCHanlder.isReadOnly("send"));
+		Assert.assertFalse(RPCHanlder.isReadOnly("unknown"));
+		Assert.assertFalse(RPCHanlder.isReadOnly((String) null));
+	}
+}
@@ -0,0 +1,180 @@
+package org.inchain.service.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.inchain.core.TimeService;
+import org.inchain.crypto.Sha256Hash;
+import org.inchain.message.Block;
+import org.inchain.network.NetworkParams;
+import org.inchain.network.TestNetworkParams;
+import org.inchain.store.BlockForkStore;
+import org.inchain.store.ChainstateStoreProvider;
+import org.inchain.transaction.Transaction;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+public class BlockForkServiceImplTest {
+
+	private final NetworkParams network = new TestNetworkParams();
+	//主链上的块
+	private final Sha256Hash mainHash = Sha256Hash.of("main".getBytes());
+
+	private File dir;
+	private ChainstateStoreProvider chainstateStoreProvider;
+	private BlockForkServiceImpl blockForkService;
+	private long netTimeOffset;
+
+	@Before
+	public void open() throws IOException {
+		dir = Files.createTempDirectory("blockfork").toFile();
+		chainstateStoreProvider = new ChainstateStoreProvider(dir.getPath()) {};
+		blockForkService = new BlockForkServiceImpl();
+		ReflectionTestUtils.setField(blockForkService, "network", network);
+		ReflectionTestUtils.setField(blockForkService, "chainstateStoreProvider", chainstateStoreProvider);
+		netTimeOffset = TimeService.getNetTimeOffset();
+	}
+
+	@After
+	public void close() throws IOException {
+		ReflectionTestUtils.setField(TimeService.class, "netTimeOffset", netTimeOffset);
+		chainstateStoreProvider.close();
+		delete(dir);
+	}
+
+	@Test
+	public void testEvictAfterLookup() {
+		Block stale = newBlock(Sha256Hash.of("a".getBytes()), 10);
+		blockForkService.addBlockFork(stale);
+
+		passTime(61000l);
+		Block fresh = newBlock(Sha256Hash.of("b".getBytes()), 10);
+		blockForkService.addBlockFork(fresh);
+
+		//重复块的查询和取块都不算使用，不能让过期的分支躲过淘汰
+		blockForkService.addBlockFork(stale);
+		Assert.assertEquals(stale.getHash(), blockForkService.getBlock(stale.getHash()).getHash());
+		BlockForkStore staleStore = store(stale);
+		BlockForkStore freshStore = store(fresh);
+
+		ReflectionTestUtils.invokeMethod(blockForkService, "evictExpired");
+		Assert.assertFalse(forkBlocks().containsKey(stale.getHash()));
+		Assert.assertTrue(forkBlocks().containsKey(fresh.getHash()));
+		//淘汰的块标记为丢弃
+		Assert.assertEquals(1, staleStore.getStatus());
+		Assert.assertEquals(0, freshStore.getStatus());
+	}
+
+	@Test
+	public void testEvictKeepsActiveBranch() {
+		Block first = newBlock(Sha256Hash.of("a".getBytes()), 10);
+		blockForkService.addBlockFork(first);
+
+		//分支接上了新块，前面的块一起刷新
+		passTime(61000l);
+		Block second = newBlock(first.getHash(), 11);
+		blockForkService.addBlockFork(second);
+
+		ReflectionTestUtils.invokeMethod(blockForkService, "evictExpired");
+		Assert.assertTrue(forkBlocks().containsKey(first.getHash()));
+		Assert.assertTrue(forkBlocks().containsKey(second.getHash()));
+
+		passTime(61000l);
+		ReflectionTestUtils.invokeMethod(blockForkService, "evictExpired");
+		Assert.assertTrue(forkBlocks().isEmpty());
+	}
+
+	@Test
+	public void testForkResolution() {
+		Block a = newBlock(mainHash, 10);
+		Block b = newBlock(a.getHash(), 11);
+		Block c = newBlock(b.getHash(), 12);
+		Block other = newBlock(a.getHash(), 11, 1);
+
+		//倒序到达，最后整条分叉的长度和起点都要正确
+		blockForkService.addBlockFork(c);
+		blockForkService.addBlockFork(b);
+		blockForkService.addBlockFork(other);
+		blockForkService.addBlockFork(a);
+		Assert.assertEquals(3, length(c));
+		Assert.assertEquals(mainHash, ReflectionTestUtils.getField(forkBlocks().get(c.getHash()), "rootPreHash"));
+		Assert.assertEquals(2, length(other));
+
+		//最长的一条是 a -> b -> c
+		Object tip = ReflectionTestUtils.invokeMethod(blockForkService, "findLongestTip", forkBlocks().get(a.getHash()));
+		Assert.assertEquals(c.getHash(), ReflectionTestUtils.getField(tip, "hash"));
+
+		//主链连上新块，以它为父块的分叉立即排队处理
+		forkEvents().clear();
+		blockForkService.onBlockConnected(mainHash);
+		Assert.assertEquals(1, forkEvents().size());
+		Assert.assertEquals(a.getHash(), forkEvents().poll());
+
+		//a 进入主链后，后面的分叉以 a 为起点重新计算
+		ReflectionTestUtils.invokeMethod(blockForkService, "processSuccessForkBlock", store(a));
+		Assert.assertFalse(forkBlocks().containsKey(a.getHash()));
+		Assert.assertEquals(2, length(c));
+		Assert.assertEquals(a.getHash(), ReflectionTestUtils.getField(forkBlocks().get(c.getHash()), "rootPreHash"));
+		Assert.assertEquals(2, forkEvents().size());
+		Assert.assertTrue(forkEvents().contains(b.getHash()));
+		Assert.assertTrue(forkEvents().contains(other.getHash()));
+	}
+
+	private void passTime(long millis) {
+		long offset = (Long) ReflectionTestUtils.getField(TimeService.class, "netTimeOffset");
+		ReflectionTestUtils.setField(TimeService.class, "netTimeOffset", offset + millis);
+	}
+
+	private BlockForkStore store(Block block) {
+		return (BlockForkStore) ReflectionTestUtils.getField(forkBlocks().get(block.getHash()), "store");
+	}
+
+	private int length(Block block) {
+		return (Integer) ReflectionTestUtils.getField(forkBlocks().get(block.getHash()), "length");
+	}
+
+	@SuppressWarnings("unchecked")
+	private Map<Sha256Hash, Object> forkBlocks() {
+		return (Map<Sha256Hash, Object>) ReflectionTestUtils.getField(blockForkService, "forkBlocks");
+	}
+
+	@SuppressWarnings("unchecked")
+	private LinkedBlockingQueue<Sha256Hash> forkEvents() {
+		return (LinkedBlockingQueue<Sha256Hash>) ReflectionTestUtils.getField(blockForkService, "forkEvents");
+	}
+
+	private Block newBlock(Sha256Hash preHash, long height) {
+		return newBlock(preHash, height, 0);
+	}
+
+	private Block newBlock(Sha256Hash preHash, long height, int period) {
+		Block block = new Block(network);
+		block.setVersion(1);
+		block.setPreHash(preHash);
+		block.setTime(1500000000l + height);
+		block.setHeight(height);
+		block.setTimePeriod(period);
+		block.setScriptBytes(new byte[0]);
+		block.setTxs(new ArrayList<Transaction>());
+		block.setTxCount(0);
+		block.setMerkleHash(Sha256Hash.of(preHash.getBytes()));
+		return block;
+	}
+
+	private static void delete(File file) {
+		File[] files = file.listFiles();
+		if(files != null) {
+			for (File f : files) {
+				delete(f);
+			}
+		}
+		file.delete();
+	}
+}
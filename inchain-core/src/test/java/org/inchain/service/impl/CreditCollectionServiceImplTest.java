@@ -0,0 +1,129 @@
+package org.inchain.service.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map.Entry;
+
+import org.inchain.Configure;
+import org.inchain.account.Address;
+import org.inchain.account.AccountTool;
+import org.inchain.core.Definition;
+import org.inchain.crypto.ECKey;
+import org.inchain.network.NetworkParams;
+import org.inchain.network.TestNetworkParams;
+import org.inchain.store.ChainstateStoreProvider;
+import org.inchain.utils.Utils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+public class CreditCollectionServiceImplTest {
+
+	private final static long INTERVAL = Configure.CERT_CHANGE_PAY_INTERVAL_SECOND;
+	private final static int TYPE = Definition.CREDIT_TYPE_PAY;
+
+	private final NetworkParams network = new TestNetworkParams();
+	private final byte[] first = AccountTool.newAddress(network, new ECKey()).getHash160();
+	private final byte[] second = AccountTool.newAddress(network, new ECKey()).getHash160();
+	private final long start = 1500000000l;
+
+	private File dir;
+	private ChainstateStoreProvider chainstateStoreProvider;
+	private CreditCollectionServiceImpl creditCollectionService;
+
+	@Before
+	public void open() throws IOException {
+		dir = Files.createTempDirectory("credit").toFile();
+		chainstateStoreProvider = new ChainstateStoreProvider(dir.getPath()) {};
+		creditCollectionService = new CreditCollectionServiceImpl();
+		ReflectionTestUtils.setField(creditCollectionService, "chainstateStoreProvider", chainstateStoreProvider);
+	}
+
+	@After
+	public void close() throws IOException {
+		chainstateStoreProvider.close();
+		delete(dir);
+	}
+
+	@Test
+	public void testVerificationAndRemove() {
+		Assert.assertTrue(creditCollectionService.verification(TYPE, first, start));
+		creditCollectionService.addCredit(TYPE, first, start);
+
+		//间隔内不能再获得，不同类型互不影响
+		Assert.assertFalse(creditCollectionService.verification(TYPE, first, start + INTERVAL - 1));
+		Assert.assertTrue(creditCollectionService.verification(TYPE, first, start + INTERVAL));
+		Assert.assertTrue(creditCollectionService.verification(TYPE + 1, first, start));
+		Assert.assertTrue(creditCollectionService.verification(TYPE, second, start));
+
+		//回滚最近一次之后，以前一次的时间为准
+		creditCollectionService.addCredit(TYPE, first, start + INTERVAL);
+		Assert.assertFalse(creditCollectionService.verification(TYPE, first, start + 2 * INTERVAL - 1));
+		Assert.assertTrue(creditCollectionService.removeCredit(TYPE, first));
+		Assert.assertTrue(creditCollectionService.verification(TYPE, first, start + INTERVAL));
+		Assert.assertFalse(creditCollectionService.verification(TYPE, first, start + INTERVAL - 1));
+
+		Assert.assertTrue(creditCollectionService.removeCredit(TYPE, first));
+		Assert.assertTrue(creditCollectionService.verification(TYPE, first, start));
+		Assert.assertFalse(creditCollectionService.removeCredit(TYPE, first));
+		Assert.assertTrue(chainstateStoreProvider.listCreditRecords().isEmpty());
+	}
+
+	@Test
+	public void testBoundedRecords() {
+		//每个账户只保留最近 4 次
+		for (int i = 0; i < 6; i++) {
+			creditCollectionService.addCredit(TYPE, first, start + i * INTERVAL);
+		}
+		List<Entry<byte[], byte[]>> records = chainstateStoreProvider.listCreditRecords();
+		Assert.assertEquals(1, records.size());
+		byte[] content = records.get(0).getValue();
+		Assert.assertEquals(16, content.length);
+		//从新到旧
+		Assert.assertEquals(start + 5 * INTERVAL, Utils.readUint32(content, 0));
+		Assert.assertEquals(start + 2 * INTERVAL, Utils.readUint32(content, 12));
+
+		for (int i = 0; i < 4; i++) {
+			Assert.assertTrue(creditCollectionService.removeCredit(TYPE, first));
+		}
+		Assert.assertFalse(creditCollectionService.removeCredit(TYPE, first));
+		Assert.assertTrue(creditCollectionService.verification(TYPE, first, start));
+	}
+
+	@Test
+	public void testEvictExpired() {
+		creditCollectionService.addCredit(TYPE, first, start);
+		long recent = start + 2 * 60 * 60l;
+		creditCollectionService.addCredit(TYPE, second, recent);
+		Assert.assertEquals(2, chainstateStoreProvider.listCreditRecords().size());
+
+		//区块时间前进，超过间隔和保留时间的记录从内存和链状态里移除
+		long later = start + INTERVAL + 3 * 60 * 60l;
+		creditCollectionService.addCredit(TYPE + 1, second, later);
+		Assert.assertFalse(creditCollectionService.removeCredit(TYPE, first));
+		Assert.assertTrue(creditCollectionService.verification(TYPE, first, start));
+
+		List<Entry<byte[], byte[]>> records = chainstateStoreProvider.listCreditRecords();
+		Assert.assertEquals(2, records.size());
+		for (Entry<byte[], byte[]> record : records) {
+			Assert.assertFalse(Arrays.equals(first, Arrays.copyOfRange(record.getKey(), 1, 1 + Address.LENGTH)));
+		}
+		//之后又有累积的记录不清理
+		Assert.assertFalse(creditCollectionService.verification(TYPE, second, recent + INTERVAL - 1));
+	}
+
+	private static void delete(File file) {
+		File[] files = file.listFiles();
+		if(files != null) {
+			for (File f : files) {
+				delete(f);
+			}
+		}
+		file.delete();
+	}
+}
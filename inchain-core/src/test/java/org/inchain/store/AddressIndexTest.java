@@ -0,0 +1,178 @@
+package org.inchain.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.inchain.account.AccountTool;
+import org.inchain.account.Address;
+import org.inchain.core.Coin;
+import org.inchain.crypto.ECKey;
+import org.inchain.crypto.Sha256Hash;
+import org.inchain.network.NetworkParams;
+import org.inchain.network.TestNetworkParams;
+import org.inchain.transaction.Transaction;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class AddressIndexTest {
+
+	private final NetworkParams network = new TestNetworkParams();
+	private final Address address = AccountTool.newAddress(network, new ECKey());
+	private final Address other = AccountTool.newAddress(network, new ECKey());
+
+	private File dir;
+	private BlockStoreProvider blockStoreProvider;
+	private ChainstateStoreProvider chainstateStoreProvider;
+
+	@Before
+	public void open() throws IOException {
+		dir = Files.createTempDirectory("addressindex").toFile();
+		blockStoreProvider = new BlockStoreProvider(new File(dir, "block").getPath());
+		chainstateStoreProvider = new ChainstateStoreProvider(new File(dir, "chainstate").getPath());
+
+		StoreTestFixture.wire(network, blockStoreProvider, chainstateStoreProvider);
+	}
+
+	@After
+	public void close() throws IOException {
+		blockStoreProvider.close();
+		chainstateStoreProvider.close();
+		StoreTestFixture.delete(dir);
+	}
+
+	@Test
+	public void testManyOutputs() {
+		Transaction tx = StoreTestFixture.newTx(network, new ECKey());
+		for (int i = 0; i < 300; i++) {
+			tx.addOutput(Coin.valueOf(i + 1), address);
+		}
+
+		//每个输出一条，序号超过255的不能和其它输出或者非输出的关联混淆
+		List<byte[]> keys = blockStoreProvider.getAddressIndexKeys(tx, 10);
+		Assert.assertEquals(300, keys.size());
+		Set<Integer> outputs = new HashSet<Integer>();
+		for (byte[] key : keys) {
+			Assert.assertEquals(BlockStoreProvider.ADDRESS_INDEX_KEY_LENGTH, key.length);
+			Assert.assertEquals(tx.getHash(), BlockStoreProvider.getAddressIndexTxHash(key));
+			outputs.add(BlockStoreProvider.getAddressIndexOutput(key));
+		}
+		Assert.assertEquals(300, outputs.size());
+		Assert.assertTrue(outputs.contains(255));
+		Assert.assertTrue(outputs.contains(299));
+		Assert.assertFalse(outputs.contains(BlockStoreProvider.ADDRESS_INDEX_NOT_OUTPUT));
+
+		byte[] notOutput = BlockStoreProvider.getAddressIndexKey(address.getHash160(), 10, tx.getHash(), BlockStoreProvider.ADDRESS_INDEX_NOT_OUTPUT);
+		Assert.assertEquals(BlockStoreProvider.ADDRESS_INDEX_NOT_OUTPUT, BlockStoreProvider.getAddressIndexOutput(notOutput));
+		//老格式的key不当作输出
+		Assert.assertEquals(BlockStoreProvider.ADDRESS_INDEX_NOT_OUTPUT, BlockStoreProvider.getAddressIndexOutput(Arrays.copyOf(notOutput, notOutput.length - 3)));
+
+		for (byte[] key : keys) {
+			blockStoreProvider.put(key, new byte[0]);
+		}
+		Assert.assertEquals(Arrays.asList(tx.getHash()), blockStoreProvider.getAddressTransactions(address.getHash160()));
+	}
+
+	@Test
+	public void testBalances() {
+		Transaction tx = StoreTestFixture.newTx(network, new ECKey());
+		tx.addOutput(Coin.valueOf(100), address);
+		tx.addOutput(Coin.valueOf(200), 1000000l, address);
+		tx.addOutput(Coin.valueOf(300), address);
+		tx.addOutput(Coin.valueOf(400), other);
+
+		blockStoreProvider.put(tx.getHash().getBytes(), new TransactionStore(network, tx, 1, new byte[0]).baseSerialize());
+		for (byte[] key : blockStoreProvider.getAddressIndexKeys(tx, 1)) {
+			blockStoreProvider.put(key, new byte[0]);
+		}
+		blockStoreProvider.put(BlockStoreProvider.ADDRESS_INDEX_COMPLETE_KEY, new byte[] { BlockStoreProvider.ADDRESS_INDEX_VERSION });
+
+		chainstateStoreProvider.put(UtxoSet.getKey(tx.getHash(), 0), new byte[] { TransactionStore.STATUS_UNUSE });
+		chainstateStoreProvider.put(UtxoSet.getKey(tx.getHash(), 1), new byte[] { TransactionStore.STATUS_UNUSE });
+		chainstateStoreProvider.put(UtxoSet.getKey(tx.getHash(), 2), new byte[] { TransactionStore.STATUS_USED });
+		chainstateStoreProvider.put(UtxoSet.getKey(tx.getHash(), 3), new byte[] { TransactionStore.STATUS_UNUSE });
+
+		List<Coin[]> balances = blockStoreProvider.getAddressBalances(Arrays.asList(address.getHash160(), other.getHash160()));
+		//已花费的不算，锁定中的单独统计
+		Assert.assertEquals(Coin.valueOf(100), balances.get(0)[0]);
+		Assert.assertEquals(Coin.valueOf(200), balances.get(0)[1]);
+		Assert.assertEquals(Coin.valueOf(400), balances.get(1)[0]);
+		Assert.assertEquals(Coin.ZERO, balances.get(1)[1]);
+	}
+
+	@Test
+	public void testRebuildOldFormat() {
+		Transaction tx = StoreTestFixture.newTx(network, new ECKey());
+		tx.addOutput(Coin.valueOf(100), address);
+
+		//老格式的索引和标记，查询时清空重建
+		byte[] oldKey = Arrays.copyOf(toOldPrefix(BlockStoreProvider.getAddressIndexKey(address.getHash160(), 0, tx.getHash(), 0)), BlockStoreProvider.ADDRESS_INDEX_V1_KEY_LENGTH);
+		blockStoreProvider.put(oldKey, new byte[0]);
+		blockStoreProvider.put(BlockStoreProvider.ADDRESS_INDEX_COMPLETE_KEY, new byte[] { 1 });
+
+		//存储里没有区块，只验证清空和标记
+		blockStoreProvider.getAddressBalances(Arrays.asList(address.getHash160()));
+		Assert.assertNull(blockStoreProvider.getBytes(oldKey));
+		Assert.assertArrayEquals(new byte[] { BlockStoreProvider.ADDRESS_INDEX_VERSION }, blockStoreProvider.getBytes(BlockStoreProvider.ADDRESS_INDEX_COMPLETE_KEY));
+	}
+
+	@Test
+	public void testRebuildKeepsOtherRecords() {
+		//高度 0x00090000 的高度key和 0x0009 开头的交易hash，和索引前缀相同
+		byte[] heightKey = new byte[] { 0, 9, 0, 0 };
+		byte[] txKey = new byte[Sha256Hash.LENGTH];
+		txKey[1] = 9;
+		txKey[Sha256Hash.LENGTH - 1] = 1;
+		blockStoreProvider.put(heightKey, new byte[] { 1 });
+		blockStoreProvider.put(txKey, new byte[] { 2 });
+
+		Transaction tx = StoreTestFixture.newTx(network, new ECKey());
+		byte[] indexKey = BlockStoreProvider.getAddressIndexKey(address.getHash160(), 0, tx.getHash(), 0);
+		blockStoreProvider.put(indexKey, new byte[0]);
+		blockStoreProvider.put(BlockStoreProvider.ADDRESS_INDEX_COMPLETE_KEY, new byte[] { 1 });
+
+		blockStoreProvider.getAddressBalances(Arrays.asList(address.getHash160()));
+		Assert.assertNull(blockStoreProvider.getBytes(indexKey));
+		Assert.assertArrayEquals(new byte[] { 1 }, blockStoreProvider.getBytes(heightKey));
+		Assert.assertArrayEquals(new byte[] { 2 }, blockStoreProvider.getBytes(txKey));
+	}
+
+	@Test
+	public void testMoveVersion2() throws IOException {
+		//版本2的索引在老前缀下，同一范围里还有高度key
+		byte[] heightKey = new byte[] { 0, 9, 0, 0 };
+		blockStoreProvider.put(heightKey, new byte[] { 1 });
+		Transaction tx = StoreTestFixture.newTx(network, new ECKey());
+		byte[] oldKey = toOldPrefix(BlockStoreProvider.getAddressIndexKey(address.getHash160(), 0, tx.getHash(), 0));
+		Assert.assertEquals(BlockStoreProvider.ADDRESS_INDEX_V2_KEY_LENGTH, oldKey.length);
+		blockStoreProvider.put(oldKey, new byte[0]);
+		blockStoreProvider.put(BlockStoreProvider.ADDRESS_INDEX_COMPLETE_KEY, new byte[] { 2 });
+
+		//重新打开时转移到新的前缀，不需要遍历区块
+		blockStoreProvider.close();
+		blockStoreProvider = new BlockStoreProvider(new File(dir, "block").getPath());
+		StoreTestFixture.wire(network, blockStoreProvider, chainstateStoreProvider);
+
+		Assert.assertNull(blockStoreProvider.getBytes(oldKey));
+		Assert.assertArrayEquals(new byte[] { 1 }, blockStoreProvider.getBytes(heightKey));
+		Assert.assertArrayEquals(new byte[] { BlockStoreProvider.ADDRESS_INDEX_VERSION }, blockStoreProvider.getBytes(BlockStoreProvider.ADDRESS_INDEX_COMPLETE_KEY));
+		Assert.assertEquals(Arrays.asList(tx.getHash()), blockStoreProvider.getAddressTransactions(address.getHash160()));
+	}
+
+	/*
+	 * 换成版本1和版本2使用的前缀
+	 */
+	private static byte[] toOldPrefix(byte[] key) {
+		int length = BlockStoreProvider.ADDRESS_INDEX_PREFIX.length;
+		byte[] oldKey = new byte[BlockStoreProvider.OLD_ADDRESS_INDEX_PREFIX.length + key.length - length];
+		System.arraycopy(BlockStoreProvider.OLD_ADDRESS_INDEX_PREFIX, 0, oldKey, 0, BlockStoreProvider.OLD_ADDRESS_INDEX_PREFIX.length);
+		System.arraycopy(key, length, oldKey, BlockStoreProvider.OLD_ADDRESS_INDEX_PREFIX.length, key.length - length);
+		return oldKey;
+	}
+}
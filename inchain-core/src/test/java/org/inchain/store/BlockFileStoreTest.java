@@ -0,0 +1,142 @@
+package org.inchain.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.inchain.Configure;
+import org.inchain.crypto.Sha256Hash;
+import org.inchain.network.NetworkParams;
+import org.inchain.network.TestNetworkParams;
+import org.inchain.utils.Utils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+public class BlockFileStoreTest {
+
+	private final NetworkParams network = new TestNetworkParams();
+
+	private String blockFilesDir;
+	private int blockFileSize;
+
+	private File dir;
+	private BlockFileStore blockFileStore;
+
+	@Before
+	public void open() throws IOException {
+		blockFilesDir = Configure.DATA_BLOCK_FILES;
+		blockFileSize = Configure.BLOCK_FILE_SIZE;
+
+		dir = Files.createTempDirectory("blockfile").toFile();
+		Configure.DATA_BLOCK_FILES = dir.getPath();
+		//每个文件放两条 40 字节的记录
+		Configure.BLOCK_FILE_SIZE = 100;
+		blockFileStore = newStore();
+	}
+
+	@After
+	public void close() {
+		blockFileStore.close();
+		StoreTestFixture.delete(dir);
+
+		Configure.DATA_BLOCK_FILES = blockFilesDir;
+		Configure.BLOCK_FILE_SIZE = blockFileSize;
+	}
+
+	@Test
+	public void testRollover() throws IOException {
+		BlockFilePointer first = blockFileStore.append(content(40, 1));
+		BlockFilePointer second = blockFileStore.append(content(40, 2));
+		//写不下了换下一个文件
+		BlockFilePointer third = blockFileStore.append(content(40, 3));
+		//比文件上限还大的记录单独放一个文件
+		BlockFilePointer large = blockFileStore.append(content(200, 4));
+		BlockFilePointer last = blockFileStore.append(content(40, 5));
+
+		assertPointer(first, 0, 8);
+		assertPointer(second, 0, 56);
+		assertPointer(third, 1, 8);
+		assertPointer(large, 2, 8);
+		assertPointer(last, 3, 8);
+		Assert.assertEquals(3, blockFileStore.getCurrentFile());
+		Assert.assertEquals(96, blockFileStore.getFile(0).length());
+		Assert.assertEquals(208, blockFileStore.getFile(2).length());
+
+		//记录头：网络魔法数 + 数据长度
+		byte[] file = Files.readAllBytes(blockFileStore.getFile(0).toPath());
+		Assert.assertEquals(network.getPacketMagic(), Utils.readUint32BE(file, 48));
+		Assert.assertEquals(40, Utils.readUint32(file, 52));
+
+		//重新打开后从编号最大的文件接着写
+		blockFileStore.close();
+		blockFileStore = newStore();
+		Assert.assertEquals(3, blockFileStore.getCurrentFile());
+		assertPointer(blockFileStore.append(content(40, 6)), 3, 56);
+		Assert.assertArrayEquals(content(40, 3), blockFileStore.readBytes(third));
+	}
+
+	@Test
+	public void testReadPointer() throws IOException {
+		byte[] content = content(40, 1);
+		BlockFilePointer pointer = blockFileStore.append(content);
+		Assert.assertEquals(content.length, pointer.getLength());
+		Assert.assertArrayEquals(Arrays.copyOf(Sha256Hash.hashTwice(content), 4), pointer.getChecksum());
+
+		ByteBuffer buffer = blockFileStore.read(pointer);
+		Assert.assertTrue(buffer.isReadOnly());
+		Assert.assertEquals(0, buffer.position());
+		Assert.assertEquals(content.length, buffer.remaining());
+		Assert.assertEquals(content[0], buffer.get(0));
+
+		//同一文件写入新数据后，映射变长重新映射
+		byte[] next = content(40, 2);
+		BlockFilePointer nextPointer = blockFileStore.append(next);
+		Assert.assertArrayEquals(next, blockFileStore.readBytes(nextPointer));
+		Assert.assertArrayEquals(content, blockFileStore.readBytes(pointer));
+
+		//序列化后保存在索引里的位置可以直接读取
+		Assert.assertArrayEquals(next, blockFileStore.readBytes(BlockFilePointer.parse(nextPointer.serialize())));
+
+		//文件不存在或者超出文件长度
+		Assert.assertNull(blockFileStore.read(new BlockFilePointer(5, 8, 40, new byte[4])));
+		Assert.assertNull(blockFileStore.read(new BlockFilePointer(0, 90, 40, new byte[4])));
+	}
+
+	@Test
+	public void testDelete() throws IOException {
+		BlockFilePointer first = blockFileStore.append(content(80, 1));
+		ByteBuffer view = blockFileStore.read(first);
+		BlockFilePointer second = blockFileStore.append(content(80, 2));
+
+		//正在写入的文件不能删除
+		Assert.assertFalse(blockFileStore.delete(second.getFile()));
+		Assert.assertTrue(blockFileStore.delete(first.getFile()));
+		Assert.assertFalse(blockFileStore.getFile(first.getFile()).exists());
+		Assert.assertNull(blockFileStore.read(first));
+		Assert.assertArrayEquals(content(80, 2), blockFileStore.readBytes(second));
+		//删除之前拿到的视图仍然可以读取
+		Assert.assertEquals(1, view.get(79));
+	}
+
+	private BlockFileStore newStore() {
+		BlockFileStore store = new BlockFileStore();
+		ReflectionTestUtils.setField(store, "network", network);
+		return store;
+	}
+
+	private static void assertPointer(BlockFilePointer pointer, int file, int offset) {
+		Assert.assertEquals(file, pointer.getFile());
+		Assert.assertEquals(offset, pointer.getOffset());
+	}
+
+	private static byte[] content(int length, int value) {
+		byte[] content = new byte[length];
+		Arrays.fill(content, (byte) value);
+		return content;
+	}
+}
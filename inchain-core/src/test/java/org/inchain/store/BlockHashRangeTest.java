@@ -0,0 +1,85 @@
+package org.inchain.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.inchain.crypto.Sha256Hash;
+import org.inchain.utils.Utils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BlockHashRangeTest {
+
+	//跨过 0x0009ffff 到 0x000a0000，老版本的地址索引和共识变化的前缀落在这段高度里
+	private static final long START_HEIGHT = 0x0009fffel;
+
+	private File dir;
+	private BlockStoreProvider blockStoreProvider;
+
+	@Before
+	public void open() throws IOException {
+		dir = Files.createTempDirectory("blockhashrange").toFile();
+		blockStoreProvider = new BlockStoreProvider(dir.getPath());
+	}
+
+	@After
+	public void close() throws IOException {
+		blockStoreProvider.close();
+		StoreTestFixture.delete(dir);
+	}
+
+	@Test
+	public void testInterleavedRecords() throws IOException {
+		List<Sha256Hash> hashs = new ArrayList<Sha256Hash>();
+		for (long height = START_HEIGHT; height < START_HEIGHT + 4; height++) {
+			Sha256Hash hash = Sha256Hash.of(heightKey(height));
+			blockStoreProvider.put(heightKey(height), hash.getBytes());
+			hashs.add(hash);
+		}
+
+		//排在 0x0009ffff 和 0x000a0000 之间的老版本地址索引
+		byte[] indexKey = new byte[BlockStoreProvider.ADDRESS_INDEX_V2_KEY_LENGTH];
+		indexKey[1] = 9;
+		indexKey[2] = (byte) 0xff;
+		indexKey[3] = (byte) 0xff;
+		blockStoreProvider.put(indexKey, new byte[0]);
+		//排在 0x000a0000 和 0x000a0001 之间的老版本共识变化记录和交易
+		blockStoreProvider.put(new byte[] { 0, 10, 0, 0, 0, 5 }, new byte[] { 1 });
+		blockStoreProvider.put(hashKey(0, 10, 0, 0), new byte[] { 1 });
+
+		Assert.assertEquals(hashs, blockStoreProvider.getBlockHashsByHeight(START_HEIGHT, START_HEIGHT + 3));
+
+		//批次里还没提交的记录同样跳过
+		blockStoreProvider.beginBatch();
+		try {
+			blockStoreProvider.put(hashKey(0, 10, 0, 1), new byte[] { 1 });
+			Assert.assertEquals(hashs, blockStoreProvider.getBlockHashsByHeight(START_HEIGHT, START_HEIGHT + 3));
+		} finally {
+			blockStoreProvider.discardBatch();
+		}
+
+		//缺失的高度仍然截断
+		blockStoreProvider.delete(heightKey(START_HEIGHT + 2));
+		Assert.assertEquals(hashs.subList(0, 2), blockStoreProvider.getBlockHashsByHeight(START_HEIGHT, START_HEIGHT + 3));
+	}
+
+	private static byte[] heightKey(long height) {
+		byte[] key = new byte[4];
+		Utils.uint32ToByteArrayBE(height, key, 0);
+		return key;
+	}
+
+	private static byte[] hashKey(int... head) {
+		byte[] key = new byte[Sha256Hash.LENGTH];
+		for (int i = 0; i < head.length; i++) {
+			key[i] = (byte) head[i];
+		}
+		key[Sha256Hash.LENGTH - 1] = 1;
+		return key;
+	}
+}
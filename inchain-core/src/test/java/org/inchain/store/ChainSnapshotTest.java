@@ -0,0 +1,194 @@
+package org.inchain.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.inchain.crypto.ECKey;
+import org.inchain.crypto.Sha256Hash;
+import org.inchain.db.LevelDB;
+import org.inchain.message.Block;
+import org.inchain.network.NetworkParams;
+import org.inchain.network.TestNetworkParams;
+import org.inchain.transaction.Transaction;
+import org.inchain.utils.Utils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ChainSnapshotTest {
+
+	private final NetworkParams network = new TestNetworkParams();
+	private final ECKey key = new ECKey();
+
+	private File dir;
+	private File file;
+	private final List<Block> blocks = new ArrayList<Block>();
+
+	@Before
+	public void setUp() throws IOException {
+		dir = Files.createTempDirectory("snapshot").toFile();
+		file = new File(dir, "snapshot.dat");
+	}
+
+	@After
+	public void tearDown() {
+		StoreTestFixture.delete(dir);
+	}
+
+	@Test
+	public void testExportAndLoad() throws IOException {
+		saveChain("source", 3, 1);
+		ChainSnapshot.Summary summary = new ChainSnapshot(network, path("source/block"), path("source/chainstate")).export(file, 1);
+		Assert.assertEquals(2l, summary.getHeight());
+		Assert.assertEquals(blocks.get(2).getHash(), summary.getBestHash());
+
+		ChainSnapshot target = new ChainSnapshot(network, path("target/block"), path("target/chainstate"));
+		Assert.assertEquals(2l, target.load(file, summary.getBestHash(), summary.getStateHash()));
+
+		LevelDB blockDb = new LevelDB(path("target/block"));
+		LevelDB chainstateDb = new LevelDB(path("target/chainstate"));
+		try {
+			Assert.assertArrayEquals(blocks.get(2).getHash().getBytes(), blockDb.get(BlockStoreProvider.bestBlockKey));
+			Assert.assertArrayEquals(new byte[] { TransactionStore.STATUS_UNUSE }, chainstateDb.get(UtxoSet.getKey(blocks.get(1).getTxs().get(0).getHash(), 0)));
+		} finally {
+			blockDb.close();
+			chainstateDb.close();
+		}
+	}
+
+	@Test
+	public void testWrongHash() throws IOException {
+		saveChain("source", 3, 1);
+		ChainSnapshot.Summary summary = new ChainSnapshot(network, path("source/block"), path("source/chainstate")).export(file, 1);
+		ChainSnapshot target = new ChainSnapshot(network, path("target/block"), path("target/chainstate"));
+
+		try {
+			target.load(file, blocks.get(1).getHash(), summary.getStateHash());
+			Assert.fail();
+		} catch (IOException e) {
+		}
+		try {
+			target.load(file, summary.getBestHash(), summary.getBestHash());
+			Assert.fail();
+		} catch (IOException e) {
+		}
+	}
+
+	@Test
+	public void testForgedChainstate() throws IOException {
+		saveChain("source", 3, 1);
+		ChainSnapshot.Summary summary = new ChainSnapshot(network, path("source/block"), path("source/chainstate")).export(file, 1);
+
+		//同样的区块，不同的余额，文件本身的校验和是对的
+		saveChain("forged", 3, 2);
+		ChainSnapshot.Summary forged = new ChainSnapshot(network, path("forged/block"), path("forged/chainstate")).export(file, 1);
+		Assert.assertEquals(summary.getBestHash(), forged.getBestHash());
+		Assert.assertNotEquals(summary.getStateHash(), forged.getStateHash());
+
+		try {
+			new ChainSnapshot(network, path("target/block"), path("target/chainstate")).load(file, summary.getBestHash(), summary.getStateHash());
+			Assert.fail();
+		} catch (IOException e) {
+		}
+	}
+
+	@Test
+	public void testInterruptedImport() throws IOException {
+		saveChain("source", 3, 1);
+		ChainSnapshot.Summary summary = new ChainSnapshot(network, path("source/block"), path("source/chainstate")).export(file, 1);
+
+		//模拟中断的导入：有导入标记，链状态已写入部分数据，没有最新块标识
+		byte[] staleKey = Sha256Hash.of("stale".getBytes()).getBytes();
+		LevelDB blockDb = new LevelDB(path("target/block"));
+		LevelDB chainstateDb = new LevelDB(path("target/chainstate"));
+		try {
+			blockDb.put(BlockStoreProvider.SNAPSHOT_IMPORTING_KEY, summary.getBestHash().getBytes());
+			chainstateDb.put(staleKey, new byte[] { 1 });
+		} finally {
+			blockDb.close();
+			chainstateDb.close();
+		}
+		BlockStoreProvider blockStoreProvider = new BlockStoreProvider(path("target/block"));
+		try {
+			Assert.assertTrue(blockStoreProvider.isSnapshotImporting());
+		} finally {
+			blockStoreProvider.close();
+		}
+
+		//重新导入时清除上次的数据
+		new ChainSnapshot(network, path("target/block"), path("target/chainstate")).load(file, summary.getBestHash(), summary.getStateHash());
+		blockDb = new LevelDB(path("target/block"));
+		chainstateDb = new LevelDB(path("target/chainstate"));
+		try {
+			Assert.assertNull(blockDb.get(BlockStoreProvider.SNAPSHOT_IMPORTING_KEY));
+			Assert.assertNull(chainstateDb.get(staleKey));
+			Assert.assertArrayEquals(blocks.get(2).getHash().getBytes(), blockDb.get(BlockStoreProvider.bestBlockKey));
+		} finally {
+			blockDb.close();
+			chainstateDb.close();
+		}
+
+		//导入完成的不能再导入
+		try {
+			new ChainSnapshot(network, path("target/block"), path("target/chainstate")).load(file, summary.getBestHash(), summary.getStateHash());
+			Assert.fail();
+		} catch (IOException e) {
+		}
+	}
+
+	/*
+	 * 从测试网络的创世块开始写入区块，每个区块一笔转账，输出状态为 status
+	 */
+	private void saveChain(String name, int count, int status) throws IOException {
+		LevelDB blockDb = new LevelDB(path(name + "/block"));
+		LevelDB chainstateDb = new LevelDB(path(name + "/chainstate"));
+		try {
+			boolean first = blocks.isEmpty();
+			BlockStore preStore = null;
+			for (int height = 0; height < count; height++) {
+				Block block;
+				if(height == 0) {
+					block = network.getGengsisBlock().getBlock();
+				} else if(!first) {
+					block = blocks.get(height);
+				} else {
+					block = StoreTestFixture.newBlock(network, blocks.get(height - 1).getHash(), height, Arrays.asList(StoreTestFixture.newTx(network, key, height)));
+				}
+				if(first) {
+					blocks.add(block);
+				}
+				for (Transaction tx : block.getTxs()) {
+					blockDb.put(tx.getHash().getBytes(), new TransactionStore(network, tx, height, null).baseSerialize());
+				}
+				if(height > 0) {
+					chainstateDb.put(UtxoSet.getKey(block.getTxs().get(0).getHash(), 0), new byte[] { (byte) status });
+				}
+
+				BlockStore blockStore = new BlockStore(network, block);
+				blockStore.setNextHash(Sha256Hash.ZERO_HASH);
+				if(preStore != null) {
+					preStore.setNextHash(block.getHash());
+					blockDb.put(preStore.getBlock().getHash().getBytes(), preStore.serializeHeaderToBytes());
+				}
+				blockDb.put(block.getHash().getBytes(), blockStore.serializeHeaderToBytes());
+				byte[] heightBytes = new byte[4];
+				Utils.uint32ToByteArrayBE(height, heightBytes, 0);
+				blockDb.put(heightBytes, block.getHash().getBytes());
+				blockDb.put(BlockStoreProvider.bestBlockKey, block.getHash().getBytes());
+				preStore = blockStore;
+			}
+		} finally {
+			blockDb.close();
+			chainstateDb.close();
+		}
+	}
+
+	private String path(String name) {
+		return new File(dir, name).getPath();
+	}
+}
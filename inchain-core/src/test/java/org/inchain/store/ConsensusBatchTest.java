@@ -0,0 +1,116 @@
+package org.inchain.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.inchain.account.Account;
+import org.inchain.account.AccountTool;
+import org.inchain.consensus.ConsensusPoolCacher;
+import org.inchain.consensus.ConsensusRosterHistory;
+import org.inchain.core.Definition;
+import org.inchain.crypto.ECKey;
+import org.inchain.crypto.Sha256Hash;
+import org.inchain.message.Block;
+import org.inchain.network.NetworkParams;
+import org.inchain.network.TestNetworkParams;
+import org.inchain.transaction.Transaction;
+import org.inchain.transaction.business.RegConsensusTransaction;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+public class ConsensusBatchTest {
+
+	private final NetworkParams network = new TestNetworkParams();
+	private final ECKey key = new ECKey();
+
+	private File dir;
+	private BlockStoreProvider blockStoreProvider;
+	private ChainstateStoreProvider chainstateStoreProvider;
+	private ConsensusPoolCacher consensusPool;
+	//为true时链状态提交失败，整个区块的批次被放弃
+	private volatile boolean failCommit;
+
+	@Before
+	public void open() throws IOException {
+		dir = Files.createTempDirectory("consensusbatch").toFile();
+		blockStoreProvider = new BlockStoreProvider(new File(dir, "block").getPath());
+		chainstateStoreProvider = new ChainstateStoreProvider(new File(dir, "chainstate").getPath()) {
+			@Override
+			public void commitBatch() throws IOException {
+				if(failCommit) {
+					throw new IOException("提交失败");
+				}
+				super.commitBatch();
+			}
+		};
+		StoreTestFixture.wire(network, blockStoreProvider, chainstateStoreProvider);
+
+		consensusPool = new ConsensusPoolCacher();
+		ReflectionTestUtils.setField(consensusPool, "network", network);
+		ReflectionTestUtils.setField(consensusPool, "chainstateStoreProvider", chainstateStoreProvider);
+		ReflectionTestUtils.setField(chainstateStoreProvider, "network", network);
+		ReflectionTestUtils.setField(chainstateStoreProvider, "consensusPool", consensusPool);
+		ReflectionTestUtils.setField(blockStoreProvider, "consensusPool", consensusPool);
+		ReflectionTestUtils.setField(blockStoreProvider, "consensusRosterHistory", new ConsensusRosterHistory());
+	}
+
+	@After
+	public void close() throws IOException {
+		blockStoreProvider.close();
+		chainstateStoreProvider.close();
+		StoreTestFixture.delete(dir);
+	}
+
+	@Test
+	public void testDiscardRegister() throws IOException {
+		failCommit = true;
+		try {
+			blockStoreProvider.saveBlock(new BlockStore(network, newBlock()));
+			Assert.fail("链状态提交失败，区块不能保存成功");
+		} catch (IOException e) {
+		}
+
+		//批次放弃了，共识池不变
+		Assert.assertEquals(0, consensusPool.getCurrentConsensus());
+		Assert.assertFalse(consensusPool.contains(hash160()));
+		Assert.assertEquals(0l, consensusPool.getSnapshot().getVersion());
+		Assert.assertTrue(chainstateStoreProvider.getConsensusAccounts().isEmpty());
+	}
+
+	@Test
+	public void testCommitRegister() throws IOException {
+		blockStoreProvider.saveBlock(new BlockStore(network, newBlock()));
+
+		//提交之后才加入共识池
+		Assert.assertEquals(1, consensusPool.getCurrentConsensus());
+		Assert.assertTrue(consensusPool.contains(hash160()));
+		Assert.assertEquals(0l, consensusPool.getSnapshot().getHeight());
+		Assert.assertEquals(1, chainstateStoreProvider.getConsensusAccounts().size());
+	}
+
+	private byte[] hash160() {
+		return AccountTool.newAddress(network, key).getHash160();
+	}
+
+	/*
+	 * 只有一个共识注册交易的创世块
+	 */
+	private Block newBlock() {
+		Account account = new Account(network);
+		account.setAddress(AccountTool.newAddress(network, key));
+		account.setEcKey(key);
+		account.setMgPubkeys(new byte[][] { key.getPubKey() });
+		RegConsensusTransaction tx = new RegConsensusTransaction(network, Definition.VERSION, 1500000000l);
+		tx.sign(account);
+
+		List<Transaction> txs = new ArrayList<Transaction>();
+		txs.add(tx);
+		return StoreTestFixture.newBlock(network, Sha256Hash.ZERO_HASH, 0, txs);
+	}
+}
@@ -0,0 +1,68 @@
+package org.inchain.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+
+import org.inchain.account.Address;
+import org.inchain.consensus.ConsensusRosterDelta;
+import org.inchain.crypto.Sha256Hash;
+import org.inchain.utils.Utils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ConsensusDeltaStoreTest {
+
+	private File dir;
+	private BlockStoreProvider blockStoreProvider;
+
+	@Before
+	public void open() throws IOException {
+		dir = Files.createTempDirectory("consensusdelta").toFile();
+		blockStoreProvider = new BlockStoreProvider(dir.getPath());
+	}
+
+	@After
+	public void close() throws IOException {
+		blockStoreProvider.close();
+		StoreTestFixture.delete(dir);
+	}
+
+	@Test
+	public void testMoveVersion1() throws IOException {
+		//版本1的记录在老前缀下，同一范围里还有高度key
+		byte[] heightKey = new byte[] { 0, 10, 0, 0 };
+		blockStoreProvider.put(heightKey, new byte[Sha256Hash.LENGTH]);
+		for (long height = 5; height <= 6; height++) {
+			blockStoreProvider.put(oldKey(height), newDelta(height).serialize());
+		}
+		blockStoreProvider.put(BlockStoreProvider.CONSENSUS_DELTA_COMPLETE_KEY, new byte[] { 1 });
+
+		//重新打开时转移到新的前缀，不需要遍历区块
+		blockStoreProvider.close();
+		blockStoreProvider = new BlockStoreProvider(dir.getPath());
+
+		List<ConsensusRosterDelta> deltas = blockStoreProvider.loadConsensusDeltas();
+		Assert.assertEquals(2, deltas.size());
+		Assert.assertEquals(5l, deltas.get(0).getHeight());
+		Assert.assertEquals(6l, deltas.get(1).getHeight());
+		Assert.assertEquals(1, deltas.get(1).size());
+		Assert.assertNull(blockStoreProvider.getBytes(oldKey(5)));
+		Assert.assertEquals(Sha256Hash.LENGTH, blockStoreProvider.getBytes(heightKey).length);
+		Assert.assertArrayEquals(new byte[] { BlockStoreProvider.CONSENSUS_DELTA_VERSION }, blockStoreProvider.getBytes(BlockStoreProvider.CONSENSUS_DELTA_COMPLETE_KEY));
+	}
+
+	private static byte[] oldKey(long height) {
+		byte[] key = new byte[BlockStoreProvider.OLD_CONSENSUS_DELTA_PREFIX.length + 4];
+		System.arraycopy(BlockStoreProvider.OLD_CONSENSUS_DELTA_PREFIX, 0, key, 0, BlockStoreProvider.OLD_CONSENSUS_DELTA_PREFIX.length);
+		Utils.uint32ToByteArrayBE(height, key, BlockStoreProvider.OLD_CONSENSUS_DELTA_PREFIX.length);
+		return key;
+	}
+
+	private static ConsensusRosterDelta newDelta(long height) {
+		return new ConsensusRosterDelta(height, 1500000000l, new int[] { ConsensusRosterDelta.TYPE_JOIN }, new byte[][] { new byte[Address.LENGTH] });
+	}
+}
@@ -0,0 +1,223 @@
+package org.inchain.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.inchain.Configure;
+import org.inchain.core.exception.VerificationException;
+import org.inchain.crypto.ECKey;
+import org.inchain.crypto.Sha256Hash;
+import org.inchain.message.Block;
+import org.inchain.network.NetworkParams;
+import org.inchain.network.TestNetworkParams;
+import org.inchain.transaction.Transaction;
+import org.inchain.utils.Utils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+public class FlatFileStoreTest {
+
+	private final NetworkParams network = new TestNetworkParams();
+	private final ECKey key = new ECKey();
+
+	private String storeEngine;
+	private String blockFilesDir;
+	private int blockFileSize;
+
+	private File dir;
+	private BlockStoreProvider blockStoreProvider;
+	private ChainstateStoreProvider chainstateStoreProvider;
+	private BlockFileStore blockFileStore;
+	//每个区块的交易，第一笔输出已花费，第二笔未花费
+	private final List<Block> blocks = new ArrayList<Block>();
+
+	@Before
+	public void open() throws IOException {
+		storeEngine = Configure.STORE_ENGINE;
+		blockFilesDir = Configure.DATA_BLOCK_FILES;
+		blockFileSize = Configure.BLOCK_FILE_SIZE;
+
+		dir = Files.createTempDirectory("flatfile").toFile();
+		Configure.STORE_ENGINE = "flatfile";
+		Configure.DATA_BLOCK_FILES = new File(dir, "blocks").getPath();
+		//每个区块一个文件
+		Configure.BLOCK_FILE_SIZE = 1;
+
+		blockStoreProvider = new BlockStoreProvider(new File(dir, "block").getPath());
+		chainstateStoreProvider = new ChainstateStoreProvider(new File(dir, "chainstate").getPath());
+		blockFileStore = new BlockFileStore();
+		ReflectionTestUtils.setField(blockFileStore, "network", network);
+
+		StoreTestFixture.wire(network, blockStoreProvider, chainstateStoreProvider);
+		ReflectionTestUtils.setField(blockStoreProvider, "blockFileStore", blockFileStore);
+		Assert.assertTrue(blockStoreProvider.isFlatFileEngine());
+	}
+
+	@After
+	public void close() throws IOException {
+		blockFileStore.close();
+		blockStoreProvider.close();
+		chainstateStoreProvider.close();
+		StoreTestFixture.delete(dir);
+
+		Configure.STORE_ENGINE = storeEngine;
+		Configure.DATA_BLOCK_FILES = blockFilesDir;
+		Configure.BLOCK_FILE_SIZE = blockFileSize;
+	}
+
+	@Test
+	public void testTransactionPointer() throws IOException {
+		saveBlocks(3);
+
+		for (Block block : blocks) {
+			Assert.assertNotNull(blockStoreProvider.getBlockFilePointer(block.getHash().getBytes()));
+			for (Transaction tx : block.getTxs()) {
+				//leveldb 里只有交易在区块文件里的位置
+				Assert.assertEquals(BlockStoreProvider.TX_POINTER_LENGTH, blockStoreProvider.getBytes(tx.getHash().getBytes()).length);
+				TransactionStore txs = blockStoreProvider.getTransaction(tx.getHash().getBytes());
+				Assert.assertEquals(tx.getHash(), txs.getTransaction().getHash());
+				Assert.assertEquals(block.getHeight(), txs.getHeight());
+			}
+			BlockStore blockStore = blockStoreProvider.getBlockByHeight(block.getHeight());
+			Assert.assertEquals(block.getTxs().size(), blockStore.getBlock().getTxs().size());
+			Assert.assertEquals(block.getTxs().get(1).getHash(), blockStore.getBlock().getTxs().get(1).getHash());
+		}
+		Assert.assertEquals(-1l, blockStoreProvider.getPrunedHeight());
+	}
+
+	@Test
+	public void testBatchReads() throws IOException {
+		saveBlocks(4);
+
+		List<BlockStore> blockStores = blockStoreProvider.getBlocksByHeight(1, 2);
+		Assert.assertEquals(2, blockStores.size());
+		Assert.assertEquals(blocks.get(1).getHash(), blockStores.get(0).getBlock().getHash());
+		Assert.assertEquals(blocks.get(2).getTxs().get(1).getHash(), blockStores.get(1).getBlock().getTxs().get(1).getHash());
+		//超过最新块的只返回到最新块
+		Assert.assertEquals(2, blockStoreProvider.getBlocksByHeight(2, 10).size());
+		Assert.assertTrue(blockStoreProvider.getBlocksByHeight(4, 5).isEmpty());
+
+		//找不到的交易对应位置为null
+		List<byte[]> hashs = new ArrayList<byte[]>();
+		hashs.add(blocks.get(1).getTxs().get(0).getHash().getBytes());
+		hashs.add(Sha256Hash.of("missing".getBytes()).getBytes());
+		hashs.add(blocks.get(3).getTxs().get(1).getHash().getBytes());
+		List<TransactionStore> txs = blockStoreProvider.getTransactions(hashs);
+		Assert.assertEquals(3, txs.size());
+		Assert.assertEquals(blocks.get(1).getTxs().get(0).getHash(), txs.get(0).getTransaction().getHash());
+		Assert.assertNull(txs.get(1));
+		Assert.assertEquals(3l, txs.get(2).getHeight());
+	}
+
+	@Test
+	public void testPrune() throws IOException {
+		saveBlocks(5);
+
+		//最新高度4，保留2个区块，高度0和1所在的文件被删除
+		Assert.assertEquals(2, blockStoreProvider.pruneBlockFiles(2));
+		Assert.assertEquals(1l, blockStoreProvider.getPrunedHeight());
+
+		for (Block block : blocks) {
+			boolean pruned = block.getHeight() <= 1;
+			Transaction spent = block.getTxs().get(0);
+			Transaction unspent = block.getTxs().get(1);
+			Assert.assertEquals(pruned, blockStoreProvider.getBlockFilePointer(block.getHash().getBytes()) == null);
+			//已花费的删除，未花费的转存为完整的交易
+			Assert.assertEquals(pruned, blockStoreProvider.getTransaction(spent.getHash().getBytes()) == null);
+			Assert.assertEquals(unspent.getHash(), blockStoreProvider.getTransaction(unspent.getHash().getBytes()).getTransaction().getHash());
+			Assert.assertEquals(!pruned, blockStoreProvider.getBytes(unspent.getHash().getBytes()).length == BlockStoreProvider.TX_POINTER_LENGTH);
+			//交易不全的区块不返回
+			Assert.assertEquals(pruned, blockStoreProvider.getBlockByHeight(block.getHeight()) == null);
+		}
+
+		Assert.assertEquals(3, blockStoreProvider.getBlocksByHeight(2, 10).size());
+		try {
+			blockStoreProvider.getBlocksByHeight(1, 3);
+			Assert.fail();
+		} catch (VerificationException e) {
+		}
+	}
+
+	@Test
+	public void testPruneSkipsOtherRecords() throws IOException {
+		saveBlocks(5);
+
+		//和老版本区块文件信息前缀相同的高度key和交易hash，不影响裁剪
+		blockStoreProvider.put(new byte[] { 0, 13, 0, 0 }, new byte[Sha256Hash.LENGTH]);
+		byte[] txKey = new byte[Sha256Hash.LENGTH];
+		txKey[1] = 13;
+		blockStoreProvider.put(txKey, new byte[] { 1 });
+
+		Assert.assertEquals(2, blockStoreProvider.pruneBlockFiles(2));
+		Assert.assertEquals(1l, blockStoreProvider.getPrunedHeight());
+	}
+
+	@Test
+	public void testMoveOldBlockFileKeys() throws IOException {
+		saveBlocks(3);
+
+		//还原成老版本前缀的记录，再加一个同前缀的高度key
+		blockStoreProvider.moveIndexKeys(BlockStoreProvider.BLOCK_FILE_PREFIX, BlockStoreProvider.BLOCK_FILE_PREFIX.length + Sha256Hash.LENGTH, BlockStoreProvider.OLD_BLOCK_FILE_PREFIX);
+		blockStoreProvider.moveIndexKeys(BlockStoreProvider.BLOCK_FILE_INFO_PREFIX, BlockStoreProvider.BLOCK_FILE_INFO_PREFIX.length + 4, BlockStoreProvider.OLD_BLOCK_FILE_INFO_PREFIX);
+		blockStoreProvider.delete(BlockStoreProvider.BLOCK_FILE_KEYS_MOVED_KEY);
+		byte[] heightKey = new byte[] { 0, 12, 0, 0 };
+		blockStoreProvider.put(heightKey, new byte[Sha256Hash.LENGTH]);
+		Assert.assertNull(blockStoreProvider.getBlockFilePointer(blocks.get(0).getHash().getBytes()));
+
+		//重新打开时转移到新的前缀
+		blockStoreProvider.close();
+		blockStoreProvider = new BlockStoreProvider(new File(dir, "block").getPath());
+		StoreTestFixture.wire(network, blockStoreProvider, chainstateStoreProvider);
+		ReflectionTestUtils.setField(blockStoreProvider, "blockFileStore", blockFileStore);
+
+		for (Block block : blocks) {
+			Assert.assertNotNull(blockStoreProvider.getBlockFilePointer(block.getHash().getBytes()));
+		}
+		Assert.assertEquals(Sha256Hash.LENGTH, blockStoreProvider.getBytes(heightKey).length);
+		Assert.assertNotNull(blockStoreProvider.getBytes(BlockStoreProvider.BLOCK_FILE_KEYS_MOVED_KEY));
+		//每个区块一个文件，文件信息也都转移了
+		for (int file = 0; file < blocks.size(); file++) {
+			byte[] infoKey = Arrays.copyOf(BlockStoreProvider.BLOCK_FILE_INFO_PREFIX, BlockStoreProvider.BLOCK_FILE_INFO_PREFIX.length + 4);
+			Utils.uint32ToByteArrayBE(file, infoKey, BlockStoreProvider.BLOCK_FILE_INFO_PREFIX.length);
+			Assert.assertNotNull(blockStoreProvider.getBytes(infoKey));
+		}
+	}
+
+	/*
+	 * 按 saveBlock 的方式写入区块文件和索引，每个区块两笔转账交易
+	 */
+	private void saveBlocks(int count) throws IOException {
+		Sha256Hash preHash = Sha256Hash.ZERO_HASH;
+		for (int height = 0; height < count; height++) {
+			List<Transaction> txs = new ArrayList<Transaction>();
+			txs.add(StoreTestFixture.newTx(network, key, height * 2));
+			txs.add(StoreTestFixture.newTx(network, key, height * 2 + 1));
+			Block block = StoreTestFixture.newBlock(network, preHash, height, txs);
+
+			BlockFilePointer[] txPointers = blockStoreProvider.appendBlockFile(block, true);
+			for (int i = 0; i < txs.size(); i++) {
+				blockStoreProvider.put(txs.get(i).getHash().getBytes(), blockStoreProvider.getTxPointerContent(height, txPointers[i]));
+			}
+			chainstateStoreProvider.put(UtxoSet.getKey(txs.get(0).getHash(), 0), new byte[] { TransactionStore.STATUS_USED });
+			chainstateStoreProvider.put(UtxoSet.getKey(txs.get(1).getHash(), 0), new byte[] { TransactionStore.STATUS_UNUSE });
+
+			BlockStore blockStore = new BlockStore(network, block);
+			blockStore.setNextHash(Sha256Hash.ZERO_HASH);
+			blockStoreProvider.put(block.getHash().getBytes(), blockStore.serializeHeaderToBytes());
+			byte[] heightBytes = new byte[4];
+			Utils.uint32ToByteArrayBE(height, heightBytes, 0);
+			blockStoreProvider.put(heightBytes, block.getHash().getBytes());
+			blockStoreProvider.put(BlockStoreProvider.bestBlockKey, block.getHash().getBytes());
+
+			blocks.add(block);
+			preHash = block.getHash();
+		}
+	}
+}
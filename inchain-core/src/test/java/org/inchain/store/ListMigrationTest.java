@@ -0,0 +1,116 @@
+package org.inchain.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.inchain.account.Address;
+import org.inchain.crypto.Sha256Hash;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ListMigrationTest {
+
+	//同时能被流转信息和子账户单条长度整除的长度
+	private static final int AMBIGUOUS_LENGTH = (Address.LENGTH + Sha256Hash.LENGTH) * (Address.HASH_LENGTH + Sha256Hash.LENGTH);
+
+	private File dir;
+
+	@Before
+	public void open() throws IOException {
+		dir = Files.createTempDirectory("listmigration").toFile();
+	}
+
+	@After
+	public void close() {
+		StoreTestFixture.delete(dir);
+	}
+
+	@Test
+	public void testAmbiguousLength() throws IOException {
+		byte[] certHash160 = fill(Address.LENGTH, 1);
+		byte[] antifakeCode = fill(Address.LENGTH, 2);
+
+		ChainstateStoreProvider provider = new ChainstateStoreProvider(dir.getPath());
+		//账户信息以类型和hash160开头
+		byte[] account = new byte[100];
+		account[0] = 1;
+		System.arraycopy(certHash160, 0, account, 1, Address.LENGTH);
+		provider.put(certHash160, account);
+		//防伪码记录是生产交易的hash
+		provider.put(antifakeCode, fill(Sha256Hash.LENGTH, 3));
+		provider.put(oldListKey(certHash160), new byte[AMBIGUOUS_LENGTH]);
+		provider.put(oldListKey(antifakeCode), new byte[AMBIGUOUS_LENGTH]);
+		provider.close();
+
+		//重新打开时转换
+		provider = new ChainstateStoreProvider(dir.getPath());
+		try {
+			Assert.assertEquals(AMBIGUOUS_LENGTH / (Address.HASH_LENGTH + Sha256Hash.LENGTH), provider.getSubAccountCount(certHash160));
+			Assert.assertEquals(0, provider.getCirculationCount(certHash160));
+			Assert.assertEquals(AMBIGUOUS_LENGTH / (Address.LENGTH + Sha256Hash.LENGTH), provider.getCirculationCount(antifakeCode));
+			Assert.assertEquals(0, provider.getSubAccountCount(antifakeCode));
+			Assert.assertNull(provider.getBytes(oldListKey(certHash160)));
+			Assert.assertNull(provider.getBytes(oldListKey(antifakeCode)));
+		} finally {
+			provider.close();
+		}
+	}
+
+	@Test
+	public void testRebuildListIndexes() throws IOException {
+		byte[] certHash160 = fill(Address.LENGTH, 1);
+		byte[] subAccount = fill(Address.HASH_LENGTH, 4);
+		Sha256Hash txHash = Sha256Hash.wrap(fill(Sha256Hash.LENGTH, 5));
+
+		//之前版本按元素存储、没有反查记录的子账户列表和认证账户列表
+		ChainstateStoreProvider provider = new ChainstateStoreProvider(dir.getPath());
+		byte[] subAccountListKey = new byte[2 + Address.LENGTH];
+		subAccountListKey[1] = 5;
+		System.arraycopy(certHash160, 0, subAccountListKey, 2, Address.LENGTH);
+		byte[] item = new byte[Address.HASH_LENGTH + Sha256Hash.LENGTH];
+		System.arraycopy(subAccount, 0, item, 0, Address.HASH_LENGTH);
+		System.arraycopy(txHash.getBytes(), 0, item, Address.HASH_LENGTH, Sha256Hash.LENGTH);
+		putFirstItem(provider, subAccountListKey, item);
+		putFirstItem(provider, new byte[] { 0, 7 }, certHash160);
+		provider.delete(ChainstateStoreProvider.LIST_INDEX_COMPLETE_KEY);
+		provider.close();
+
+		//重新打开时生成反查记录
+		provider = new ChainstateStoreProvider(dir.getPath());
+		try {
+			Assert.assertEquals(txHash, provider.checkIsSubAccount(certHash160, subAccount));
+			Assert.assertTrue(provider.removeCertAccount(certHash160));
+			Assert.assertTrue(provider.getCertAccountHash160s().isEmpty());
+			Assert.assertNotNull(provider.getBytes(ChainstateStoreProvider.LIST_INDEX_COMPLETE_KEY));
+		} finally {
+			provider.close();
+		}
+	}
+
+	/*
+	 * 列表只有序号为0的一个元素
+	 */
+	private static void putFirstItem(ChainstateStoreProvider provider, byte[] listKey, byte[] item) {
+		provider.put(Arrays.copyOf(listKey, listKey.length + 4), item);
+		provider.put(listKey, new byte[] { 0, 0, 0, 1, 0, 0, 0, 1 });
+	}
+
+	private static byte[] oldListKey(byte[] owner) {
+		byte[] key = new byte[2 + Address.LENGTH];
+		key[1] = 1;
+		System.arraycopy(owner, 0, key, 2, Address.LENGTH);
+		return key;
+	}
+
+	private static byte[] fill(int length, int value) {
+		byte[] bytes = new byte[length];
+		for (int i = 0; i < length; i++) {
+			bytes[i] = (byte) value;
+		}
+		return bytes;
+	}
+}
@@ -0,0 +1,70 @@
+package org.inchain.store;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class StoreCacheTest {
+
+	@Test
+	public void testStoreCache() {
+		StoreCache<String> cache = new StoreCache<String>("test", 2);
+
+		cache.put(new byte[] { 1 }, "a", cache.getVersion());
+		cache.put(new byte[] { 2 }, "b", cache.getVersion());
+		Assert.assertEquals("a", cache.get(new byte[] { 1 }));
+
+		//超出容量淘汰最近最少使用的
+		cache.put(new byte[] { 3 }, "c", cache.getVersion());
+		Assert.assertNull(cache.get(new byte[] { 2 }));
+		Assert.assertEquals("a", cache.get(new byte[] { 1 }));
+		Assert.assertEquals(2, cache.size());
+
+		//读取期间有失效，不放入缓存
+		long version = cache.getVersion();
+		cache.invalidate(new byte[] { 1 });
+		cache.put(new byte[] { 1 }, "old", version);
+		Assert.assertNull(cache.get(new byte[] { 1 }));
+
+		Assert.assertEquals(2, cache.getHitCount());
+		Assert.assertEquals(2, cache.getMissCount());
+
+		//容量为0时不缓存
+		StoreCache<String> disabled = new StoreCache<String>("disabled", 0);
+		disabled.put(new byte[] { 1 }, "a", disabled.getVersion());
+		Assert.assertNull(disabled.get(new byte[] { 1 }));
+	}
+
+	@Test
+	public void testSegments() {
+		StoreCache<String> cache = new StoreCache<String>("test", 64, 4);
+		Assert.assertEquals(4, cache.getSegmentCount());
+
+		for (int i = 0; i < 32; i++) {
+			cache.put(new byte[] { (byte) i }, "v" + i, cache.getVersion());
+		}
+		Assert.assertEquals(32, cache.size());
+		for (int i = 0; i < 32; i++) {
+			Assert.assertEquals("v" + i, cache.get(new byte[] { (byte) i }));
+		}
+
+		//任意分段的失效都使之前读到的版本号作废
+		long version = cache.getVersion();
+		cache.invalidate(new byte[] { 1 });
+		Assert.assertNull(cache.get(new byte[] { 1 }));
+		cache.put(new byte[] { 1 }, "old", version);
+		Assert.assertNull(cache.get(new byte[] { 1 }));
+		Assert.assertEquals(31, cache.size());
+
+		//每段单独淘汰，总数不超过容量
+		for (int i = 32; i < 200; i++) {
+			cache.put(new byte[] { (byte) i }, "v" + i, cache.getVersion());
+		}
+		Assert.assertTrue(cache.size() <= 64);
+
+		cache.clear();
+		Assert.assertEquals(0, cache.size());
+
+		//分段数不超过容量
+		Assert.assertEquals(2, new StoreCache<String>("small", 2, 16).getSegmentCount());
+	}
+}
@@ -0,0 +1,57 @@
+package org.inchain.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.inchain.crypto.Sha256Hash;
+import org.inchain.network.NetworkParams;
+import org.inchain.network.TestNetworkParams;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class StoreConsistencyTest {
+
+	private final NetworkParams network = new TestNetworkParams();
+
+	private File dir;
+	private BlockStoreProvider blockStoreProvider;
+	private ChainstateStoreProvider chainstateStoreProvider;
+
+	@Before
+	public void open() throws IOException {
+		dir = Files.createTempDirectory("storeconsistency").toFile();
+		blockStoreProvider = new BlockStoreProvider(new File(dir, "block").getPath());
+		chainstateStoreProvider = new ChainstateStoreProvider(new File(dir, "chainstate").getPath());
+		StoreTestFixture.wire(network, blockStoreProvider, chainstateStoreProvider);
+	}
+
+	@After
+	public void close() throws IOException {
+		blockStoreProvider.close();
+		chainstateStoreProvider.close();
+		StoreTestFixture.delete(dir);
+	}
+
+	@Test
+	public void testChainstateBlock() {
+		Sha256Hash block1 = Sha256Hash.of("block1".getBytes());
+		Sha256Hash block2 = Sha256Hash.of("block2".getBytes());
+
+		//没有记录的老数据
+		blockStoreProvider.put(BlockStoreProvider.bestBlockKey, block1.getBytes());
+		Assert.assertTrue(blockStoreProvider.isChainstateConsistent());
+
+		chainstateStoreProvider.put(BlockStoreProvider.CHAINSTATE_BLOCK_KEY, block1.getBytes());
+		Assert.assertTrue(blockStoreProvider.isChainstateConsistent());
+
+		//链状态提交了 block2，区块存储没有
+		chainstateStoreProvider.put(BlockStoreProvider.CHAINSTATE_BLOCK_KEY, block2.getBytes());
+		Assert.assertFalse(blockStoreProvider.isChainstateConsistent());
+
+		blockStoreProvider.put(BlockStoreProvider.bestBlockKey, block2.getBytes());
+		Assert.assertTrue(blockStoreProvider.isChainstateConsistent());
+	}
+}
@@ -0,0 +1,111 @@
+package org.inchain.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+
+import org.inchain.db.Db;
+import org.inchain.db.LevelDB;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class StoreListTest {
+
+	private File dir;
+
+	@Before
+	public void open() throws IOException {
+		dir = Files.createTempDirectory("storelist").toFile();
+	}
+
+	@After
+	public void close() {
+		StoreTestFixture.delete(dir);
+	}
+
+	@Test
+	public void testStoreList() throws IOException {
+		Db db = new LevelDB(dir.getPath());
+
+		StoreList list = new StoreList(db, new byte[] { 0, 9, 1 });
+		list.clear();
+
+		list.add("a1".getBytes());
+		list.add("b1".getBytes());
+		list.add("a2".getBytes());
+		Assert.assertEquals(3, list.size());
+		Assert.assertArrayEquals("a2".getBytes(), list.last());
+
+		//和其它列表不冲突
+		StoreList other = new StoreList(db, new byte[] { 0, 9, 2 });
+		other.clear();
+		other.add("c1".getBytes());
+		Assert.assertEquals(3, list.list().size());
+
+		//从后往前删除匹配的元素
+		Assert.assertTrue(list.remove("a".getBytes(), 0));
+		List<byte[]> items = list.list();
+		Assert.assertEquals(2, items.size());
+		Assert.assertArrayEquals("a1".getBytes(), items.get(0));
+		Assert.assertArrayEquals("b1".getBytes(), items.get(1));
+		Assert.assertArrayEquals("a1".getBytes(), list.find("1".getBytes(), 1));
+		Assert.assertFalse(list.remove("x".getBytes(), 0));
+
+		//删除之后新增的，排在最后
+		list.add("d1".getBytes());
+		Assert.assertArrayEquals("d1".getBytes(), list.last());
+		Assert.assertEquals(3, list.size());
+
+		//删除最后的元素，跳过被删除的序号
+		Assert.assertTrue(list.remove("d1".getBytes(), 0));
+		Assert.assertTrue(list.remove("b1".getBytes(), 0));
+		Assert.assertArrayEquals("a1".getBytes(), list.last());
+
+		list.clear();
+		other.clear();
+		Assert.assertEquals(0, list.size());
+		Assert.assertNull(list.last());
+		db.close();
+	}
+
+	@Test
+	public void testIndexedList() throws IOException {
+		Db db = new LevelDB(dir.getPath());
+		byte[] listKey = new byte[] { 0, 9, 3 };
+
+		//之前没有反查记录的列表
+		StoreList old = new StoreList(db, listKey);
+		old.add("a1".getBytes());
+		old.add("b1".getBytes());
+		old.add("a2".getBytes());
+
+		//按第一个字节查找，反查记录还没生成时找不到
+		StoreList list = new StoreList(db, listKey, 0, 1);
+		Assert.assertNull(list.find("a".getBytes(), 0));
+		list.rebuildIndex();
+		Assert.assertArrayEquals("a1".getBytes(), list.find("a".getBytes(), 0));
+		Assert.assertArrayEquals("a2".getBytes(), list.find("a2".getBytes(), 0));
+		Assert.assertNull(list.find("a3".getBytes(), 0));
+		//不是查找字段的，仍然遍历列表
+		Assert.assertArrayEquals("a1".getBytes(), list.find("1".getBytes(), 1));
+
+		//同一字段有多个元素时，从后往前删除
+		Assert.assertTrue(list.remove("a".getBytes(), 0));
+		Assert.assertEquals(2, list.size());
+		Assert.assertArrayEquals("a1".getBytes(), list.find("a".getBytes(), 0));
+		Assert.assertFalse(list.remove("a2".getBytes(), 0));
+		list.add("a3".getBytes());
+		Assert.assertTrue(list.remove("a1".getBytes(), 0));
+		Assert.assertArrayEquals("a3".getBytes(), list.find("a".getBytes(), 0));
+		Assert.assertEquals(2, list.list().size());
+
+		//清空时反查记录一起删除
+		list.clear();
+		Assert.assertNull(list.find("b".getBytes(), 0));
+		Assert.assertTrue(db.listByPrefix(listKey).isEmpty());
+		db.close();
+	}
+}
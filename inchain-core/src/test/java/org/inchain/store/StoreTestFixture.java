@@ -0,0 +1,109 @@
+package org.inchain.store;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.inchain.account.AccountTool;
+import org.inchain.core.Coin;
+import org.inchain.core.Definition;
+import org.inchain.crypto.ECKey;
+import org.inchain.crypto.Sha256Hash;
+import org.inchain.message.Block;
+import org.inchain.network.NetworkParams;
+import org.inchain.script.ScriptBuilder;
+import org.inchain.transaction.Transaction;
+import org.inchain.transaction.TransactionInput;
+import org.springframework.test.util.ReflectionTestUtils;
+
+/**
+ * 存储测试共用的数据构造和依赖装配
+ */
+class StoreTestFixture {
+
+	private StoreTestFixture() {
+	}
+
+	/**
+	 * 不经过 spring，把区块存储、链状态存储和 utxo 集合连起来
+	 * @param network
+	 * @param blockStoreProvider
+	 * @param chainstateStoreProvider
+	 * @return UtxoSet
+	 */
+	static UtxoSet wire(NetworkParams network, BlockStoreProvider blockStoreProvider, ChainstateStoreProvider chainstateStoreProvider) {
+		UtxoSet utxoSet = new UtxoSet();
+		ReflectionTestUtils.setField(utxoSet, "chainstateStoreProvider", chainstateStoreProvider);
+		utxoSet.init();
+		ReflectionTestUtils.setField(blockStoreProvider, "network", network);
+		ReflectionTestUtils.setField(blockStoreProvider, "utxoSet", utxoSet);
+		ReflectionTestUtils.setField(blockStoreProvider, "chainstateStoreProvider", chainstateStoreProvider);
+		ReflectionTestUtils.setField(network, "blockStoreProvider", blockStoreProvider);
+		return utxoSet;
+	}
+
+	/**
+	 * 只有一个 coinbase 输入的转账交易，没有输出
+	 * @param network
+	 * @param key
+	 * @return Transaction
+	 */
+	static Transaction newTx(NetworkParams network, ECKey key) {
+		Transaction tx = new Transaction(network);
+		tx.setVersion(Definition.VERSION);
+		tx.setType(Definition.TYPE_PAY);
+		TransactionInput input = new TransactionInput();
+		input.setScriptSig(ScriptBuilder.createCoinbaseInputScript(key.getPubKey(true)));
+		tx.addInput(input);
+		return tx;
+	}
+
+	/**
+	 * 给 key 的地址转 100 的交易，sequence 不同的交易 hash 不同
+	 * @param network
+	 * @param key
+	 * @param sequence
+	 * @return Transaction
+	 */
+	static Transaction newTx(NetworkParams network, ECKey key, long sequence) {
+		Transaction tx = newTx(network, key);
+		tx.addOutput(Coin.valueOf(100), AccountTool.newAddress(network, key));
+		tx.setLockTime(sequence);
+		return tx;
+	}
+
+	/**
+	 * 接在 preHash 后面的区块
+	 * @param network
+	 * @param preHash
+	 * @param height
+	 * @param txs
+	 * @return Block
+	 */
+	static Block newBlock(NetworkParams network, Sha256Hash preHash, long height, List<Transaction> txs) {
+		Block block = new Block(network);
+		block.setVersion(1);
+		block.setPreHash(preHash);
+		block.setTime(1500000000l + height);
+		block.setHeight(height);
+		block.setScriptBytes(new byte[0]);
+		block.setTxs(new ArrayList<Transaction>(txs));
+		block.setTxCount(txs.size());
+		block.buildMerkleHash();
+		return block;
+	}
+
+	/**
+	 * 递归删除测试目录
+	 * @param file
+	 */
+	static void delete(File file) {
+		File[] files = file.listFiles();
+		if(files != null) {
+			for (File f : files) {
+				delete(f);
+			}
+		}
+		file.delete();
+	}
+}
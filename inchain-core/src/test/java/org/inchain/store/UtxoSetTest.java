@@ -0,0 +1,130 @@
+package org.inchain.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.inchain.crypto.Sha256Hash;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+public class UtxoSetTest {
+
+	private final byte[] output = UtxoSet.getKey(Sha256Hash.of("a".getBytes()), 0);
+	private final byte[] spent = UtxoSet.getKey(Sha256Hash.of("b".getBytes()), 1);
+
+	private File dir;
+	private ChainstateStoreProvider chainstateStoreProvider;
+	private UtxoSet utxoSet;
+
+	@Before
+	public void open() throws IOException {
+		dir = Files.createTempDirectory("utxo").toFile();
+		chainstateStoreProvider = new ChainstateStoreProvider(dir.getPath()) {};
+		utxoSet = new UtxoSet();
+		ReflectionTestUtils.setField(utxoSet, "chainstateStoreProvider", chainstateStoreProvider);
+		utxoSet.init();
+	}
+
+	@After
+	public void close() throws IOException {
+		utxoSet.discard();
+		chainstateStoreProvider.close();
+		StoreTestFixture.delete(dir);
+	}
+
+	@Test
+	public void testFlushAndCommit() throws IOException {
+		utxoSet.add(spent);
+		Assert.assertTrue(utxoSet.isUnspent(spent));
+
+		chainstateStoreProvider.beginBatch();
+		utxoSet.begin();
+		utxoSet.add(output);
+		utxoSet.spend(spent);
+		//当前线程能看到未提交的修改，其它线程看不到
+		Assert.assertTrue(utxoSet.isUnspent(output));
+		Assert.assertTrue(utxoSet.isSpent(spent));
+		Assert.assertEquals(UtxoSet.STATUS_NONE, statusInOtherThread(output));
+		Assert.assertEquals(TransactionStore.STATUS_UNUSE, statusInOtherThread(spent));
+		Assert.assertNull(chainstateStoreProvider.getBytes(output));
+
+		//flush 写入批次，批次提交前存储里仍是旧数据
+		utxoSet.flush();
+		Assert.assertEquals(UtxoSet.STATUS_NONE, statusInOtherThread(output));
+		Assert.assertEquals(TransactionStore.STATUS_UNUSE, statusInOtherThread(spent));
+
+		chainstateStoreProvider.commitBatch();
+		utxoSet.commit();
+		Assert.assertEquals(TransactionStore.STATUS_UNUSE, statusInOtherThread(output));
+		Assert.assertEquals(TransactionStore.STATUS_USED, statusInOtherThread(spent));
+		Assert.assertArrayEquals(new byte[] { TransactionStore.STATUS_UNUSE }, chainstateStoreProvider.getBytes(output));
+		Assert.assertArrayEquals(new byte[] { TransactionStore.STATUS_USED }, chainstateStoreProvider.getBytes(spent));
+	}
+
+	@Test
+	public void testFlushWritesLastStatus() throws IOException {
+		//同一个区块里新增又删除的输出，最后不留在存储里
+		chainstateStoreProvider.beginBatch();
+		utxoSet.begin();
+		utxoSet.add(output);
+		utxoSet.spend(output);
+		utxoSet.remove(output);
+		utxoSet.add(spent);
+		utxoSet.spend(spent);
+		utxoSet.flush();
+		chainstateStoreProvider.commitBatch();
+		utxoSet.commit();
+
+		Assert.assertNull(chainstateStoreProvider.getBytes(output));
+		Assert.assertEquals(UtxoSet.STATUS_NONE, utxoSet.getStatus(output));
+		Assert.assertArrayEquals(new byte[] { TransactionStore.STATUS_USED }, chainstateStoreProvider.getBytes(spent));
+		Assert.assertTrue(utxoSet.isSpent(spent));
+	}
+
+	@Test
+	public void testDiscard() {
+		utxoSet.add(spent);
+		//先读一次，让缓存里有数据
+		Assert.assertTrue(utxoSet.isUnspent(spent));
+
+		chainstateStoreProvider.beginBatch();
+		utxoSet.begin();
+		utxoSet.add(output);
+		utxoSet.spend(spent);
+		utxoSet.flush();
+		chainstateStoreProvider.discardBatch();
+		utxoSet.discard();
+
+		//放弃之后存储和缓存都是保存区块之前的状态
+		Assert.assertEquals(UtxoSet.STATUS_NONE, utxoSet.getStatus(output));
+		Assert.assertTrue(utxoSet.isUnspent(spent));
+		Assert.assertNull(chainstateStoreProvider.getBytes(output));
+		Assert.assertArrayEquals(new byte[] { TransactionStore.STATUS_UNUSE }, chainstateStoreProvider.getBytes(spent));
+
+		//放弃之后的修改直接写入存储
+		utxoSet.spend(spent);
+		Assert.assertEquals(TransactionStore.STATUS_USED, statusInOtherThread(spent));
+	}
+
+	private int statusInOtherThread(final byte[] key) {
+		final AtomicInteger status = new AtomicInteger(-1);
+		Thread thread = new Thread() {
+			@Override
+			public void run() {
+				status.set(utxoSet.getStatus(key));
+			}
+		};
+		thread.start();
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+		return status.get();
+	}
+}
@@ -0,0 +1,163 @@
+package org.inchain.utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SerialExecutorTest {
+
+	@Test
+	public void testOrderOnSharedPool() throws InterruptedException {
+		ExecutorService pool = Executors.newFixedThreadPool(4);
+		int executorCount = 3;
+		final int taskCount = 500;
+		final CountDownLatch done = new CountDownLatch(executorCount * taskCount);
+		final AtomicInteger overlaps = new AtomicInteger();
+		List<List<Integer>> results = new ArrayList<List<Integer>>();
+		try {
+			for (int i = 0; i < executorCount; i++) {
+				SerialExecutor executor = new SerialExecutor(pool);
+				final List<Integer> result = Collections.synchronizedList(new ArrayList<Integer>());
+				final AtomicInteger running = new AtomicInteger();
+				results.add(result);
+				for (int j = 0; j < taskCount; j++) {
+					final int n = j;
+					executor.execute(new Runnable() {
+						@Override
+						public void run() {
+							//同一个执行器的任务不能同时执行
+							if(running.incrementAndGet() != 1) {
+								overlaps.incrementAndGet();
+							}
+							result.add(n);
+							running.decrementAndGet();
+							done.countDown();
+						}
+					});
+				}
+			}
+			Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+		} finally {
+			pool.shutdown();
+		}
+
+		Assert.assertEquals(0, overlaps.get());
+		for (List<Integer> result : results) {
+			Assert.assertEquals(taskCount, result.size());
+			for (int i = 0; i < taskCount; i++) {
+				Assert.assertEquals(i, result.get(i).intValue());
+			}
+		}
+	}
+
+	@Test
+	public void testContinueAfterError() {
+		ManualExecutor pool = new ManualExecutor();
+		SerialExecutor executor = new SerialExecutor(pool);
+		List<String> result = new ArrayList<String>();
+
+		executor.execute(new Append(result, "a"));
+		executor.execute(new Fail());
+		executor.execute(new Append(result, "b"));
+		Assert.assertEquals(1, pool.tasks.size());
+
+		//出错的任务之后，剩下的任务重新提交
+		Assert.assertFalse(pool.runNext());
+		Assert.assertEquals(1, pool.tasks.size());
+		Assert.assertTrue(pool.runNext());
+		Assert.assertEquals(0, executor.getPendingCount());
+		Assert.assertEquals(2, result.size());
+
+		//最后一个任务出错，之后提交的任务也要能执行
+		executor.execute(new Fail());
+		Assert.assertFalse(pool.runNext());
+		Assert.assertTrue(pool.tasks.isEmpty());
+		executor.execute(new Append(result, "c"));
+		Assert.assertEquals(1, pool.tasks.size());
+		Assert.assertTrue(pool.runNext());
+		Assert.assertEquals("abc", result.get(0) + result.get(1) + result.get(2));
+	}
+
+	@Test
+	public void testContinueAfterReject() {
+		ManualExecutor pool = new ManualExecutor();
+		SerialExecutor executor = new SerialExecutor(pool);
+		List<String> result = new ArrayList<String>();
+
+		pool.reject = true;
+		try {
+			executor.execute(new Append(result, "a"));
+			Assert.fail();
+		} catch (RejectedExecutionException e) {
+		}
+
+		//线程池恢复后，之前留在队列里的任务和新任务一起执行
+		pool.reject = false;
+		executor.execute(new Append(result, "b"));
+		Assert.assertEquals(1, pool.tasks.size());
+		Assert.assertTrue(pool.runNext());
+		Assert.assertEquals(2, result.size());
+	}
+
+	/*
+	 * 由测试手动执行提交的任务
+	 */
+	private static class ManualExecutor implements Executor {
+		private final List<Runnable> tasks = new ArrayList<Runnable>();
+		private boolean reject;
+
+		@Override
+		public void execute(Runnable command) {
+			if(reject) {
+				throw new RejectedExecutionException();
+			}
+			tasks.add(command);
+		}
+
+		/*
+		 * 执行下一个任务，抛出 Error 时返回false
+		 */
+		boolean runNext() {
+			try {
+				tasks.remove(0).run();
+				return true;
+			} catch (AssertionError e) {
+				throw e;
+			} catch (Error e) {
+				return false;
+			}
+		}
+	}
+
+	private static class Append implements Runnable {
+		private final List<String> result;
+		private final String value;
+
+		Append(List<String> result, String value) {
+			this.result = result;
+			this.value = value;
+		}
+
+		@Override
+		public void run() {
+			result.add(value);
+		}
+	}
+
+	private static class Fail implements Runnable {
+		@Override
+		public void run() {
+			throw new OutOfMemoryError("test");
+		}
+	}
+}
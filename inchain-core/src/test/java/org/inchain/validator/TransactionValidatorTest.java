@@ -0,0 +1,105 @@
+package org.inchain.validator;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+import org.inchain.account.AccountTool;
+import org.inchain.core.Coin;
+import org.inchain.core.Definition;
+import org.inchain.crypto.ECKey;
+import org.inchain.crypto.Sha256Hash;
+import org.inchain.network.NetworkParams;
+import org.inchain.network.TestNetworkParams;
+import org.inchain.script.ScriptBuilder;
+import org.inchain.signers.LocalTransactionSigner;
+import org.inchain.transaction.Transaction;
+import org.inchain.transaction.TransactionInput;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+public class TransactionValidatorTest {
+
+	private final NetworkParams network = new TestNetworkParams();
+	private final ECKey key = new ECKey();
+
+	private final List<TransactionValidator> validators = new ArrayList<TransactionValidator>();
+
+	@After
+	public void close() {
+		for (TransactionValidator validator : validators) {
+			validator.shutdown();
+		}
+	}
+
+	@Test
+	public void testParallelMatchesSequential() {
+		Transaction parent = new Transaction(network);
+		parent.setVersion(Definition.VERSION);
+		parent.setType(Definition.TYPE_COINBASE);
+		TransactionInput coinbase = new TransactionInput();
+		coinbase.setScriptSig(ScriptBuilder.createCoinbaseInputScript("test".getBytes()));
+		parent.addInput(coinbase);
+		for (int i = 0; i < 8; i++) {
+			parent.addOutput(Coin.valueOf(100), AccountTool.newAddress(network, key));
+		}
+		//最后一个输出给别的地址
+		parent.addOutput(Coin.valueOf(100), AccountTool.newAddress(network, new ECKey()));
+
+		List<Transaction> signed = new ArrayList<Transaction>();
+		for (int i = 0; i < 8; i++) {
+			signed.add(newPayTx(parent, i));
+		}
+		//第3笔的输入合并了赎回脚本不同的两个输出，在验证线程里失败
+		signed.get(3).getInput(0).addFrom(parent.getOutput(8));
+		//第6笔引用了父交易不存在的输出，查找引用时就失败
+		signed.get(6).getInput(0).getFroms().get(0).setIndex(9);
+
+		TransactionValidator sequential = newValidator(1);
+		TransactionValidator parallel = newValidator(4);
+		Map<Sha256Hash, String> expected = sequential.verifyScripts(parse(parent, signed));
+		Assert.assertEquals(2, expected.size());
+		Assert.assertTrue(expected.containsKey(signed.get(3).getHash()));
+		Assert.assertTrue(expected.containsKey(signed.get(6).getHash()));
+
+		for (int i = 0; i < 20; i++) {
+			Assert.assertEquals(expected, parallel.verifyScripts(parse(parent, signed)));
+		}
+	}
+
+	private TransactionValidator newValidator(int threads) {
+		TransactionValidator validator = new TransactionValidator();
+		ReflectionTestUtils.setField(validator, "verifyPool", new ForkJoinPool(threads));
+		validators.add(validator);
+		return validator;
+	}
+
+	/*
+	 * 转出父交易的第 index 个输出
+	 */
+	private Transaction newPayTx(Transaction parent, int index) {
+		Transaction tx = new Transaction(network);
+		tx.setVersion(Definition.VERSION);
+		tx.setType(Definition.TYPE_PAY);
+		TransactionInput input = tx.addInput(parent.getOutput(index));
+		input.setScriptSig(ScriptBuilder.createInputScript(null, key));
+		tx.addOutput(Coin.valueOf(100), AccountTool.newAddress(network, new ECKey()));
+		new LocalTransactionSigner().signInputs(tx, key);
+		return tx;
+	}
+
+	/*
+	 * 重新解析，和从网络收到的一样，输入只有引用的交易hash，需要验证器去查找
+	 */
+	private List<Transaction> parse(Transaction parent, List<Transaction> txs) {
+		List<Transaction> list = new ArrayList<Transaction>();
+		list.add(parent);
+		for (Transaction tx : txs) {
+			list.add(network.getDefaultSerializer().makeTransaction(tx.baseSerialize(), 0));
+		}
+		return list;
+	}
+}
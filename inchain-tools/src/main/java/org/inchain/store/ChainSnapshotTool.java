@@ -0,0 +1,83 @@
+package org.inchain.store;
+
+import java.io.File;
+
+import org.inchain.Configure;
+import org.inchain.crypto.Sha256Hash;
+import org.inchain.network.MainNetworkParams;
+import org.inchain.network.NetworkParams;
+import org.inchain.network.TestNetworkParams;
+
+/**
+ * 链状态快照工具，节点停止时使用，网络必须明确指定为 mainnet 或 testnet
+ * 导出：export 文件 网络 [完整区块数]，完整区块数默认 2000，不能少于 1，导出完成后输出快照的区块hash和状态hash，由导出方公布
+ * 导入：import 文件 网络 区块hash 状态hash，两个hash从可信的渠道获取，快照的区块链没有衔接到区块hash或者状态hash不一致时拒绝导入
+ * 只能导入到新的数据目录，导入后启动节点，从快照高度开始同步
+ * 存储目录使用默认配置，可以通过 data.dir 修改
+ * @author ln
+ *
+ */
+public class ChainSnapshotTool {
+
+	private static final String USAGE = "用法：export 文件 mainnet|testnet [完整区块数] 或者 import 文件 mainnet|testnet 区块hash 状态hash\n"
+			+ "导入时的区块hash和状态hash是导出时输出的两个hash，必须从可信的渠道获取，快照文件本身的校验和只能发现文件损坏";
+
+	public static void main(String[] args) throws Exception {
+		if(args == null || args.length < 3 || !("export".equals(args[0]) || "import".equals(args[0]))) {
+			System.out.println(USAGE);
+			return;
+		}
+		boolean export = "export".equals(args[0]);
+		File file = new File(args[1]);
+
+		NetworkParams network;
+		if("mainnet".equals(args[2])) {
+			network = new MainNetworkParams();
+		} else if("testnet".equals(args[2])) {
+			network = new TestNetworkParams();
+		} else {
+			System.out.println("未知的网络 " + args[2] + "，只能是 mainnet 或 testnet");
+			return;
+		}
+
+		long keepBlocks = BlockFilePruner.MIN_KEEP_BLOCKS;
+		Sha256Hash expectedHash = null;
+		Sha256Hash expectedStateHash = null;
+		if(export) {
+			if(args.length > 3) {
+				keepBlocks = Long.parseLong(args[3]);
+			}
+			if(keepBlocks < 1) {
+				System.out.println("完整区块数不能少于 1");
+				return;
+			}
+		} else {
+			if(args.length < 5) {
+				System.out.println(USAGE);
+				return;
+			}
+			try {
+				expectedHash = Sha256Hash.wrap(args[3]);
+				expectedStateHash = Sha256Hash.wrap(args[4]);
+			} catch (RuntimeException e) {
+				System.out.println("区块hash或状态hash格式错误");
+				return;
+			}
+		}
+
+		ChainSnapshot snapshot = new ChainSnapshot(network, Configure.DATA_BLOCK, Configure.DATA_CHAINSTATE);
+
+		long time = System.currentTimeMillis();
+		if(export) {
+			System.out.println("开始导出快照：" + file);
+			ChainSnapshot.Summary summary = snapshot.export(file, keepBlocks);
+			System.out.println("导出完成，高度 " + summary.getHeight() + "，文件大小 " + file.length() + " 字节，耗时：" + (System.currentTimeMillis() - time) + " ms");
+			System.out.println("区块hash " + summary.getBestHash());
+			System.out.println("状态hash " + summary.getStateHash());
+		} else {
+			System.out.println("开始导入快照：" + file);
+			long height = snapshot.load(file, expectedHash, expectedStateHash);
+			System.out.println("导入完成，高度 " + height + "，耗时：" + (System.currentTimeMillis() - time) + " ms");
+		}
+	}
+}
@@ -0,0 +1,33 @@
+package org.inchain.store;
+
+import org.inchain.Configure;
+
+/**
+ * 链状态列表存储转换工具
+ * 老版本把防伪码流转、子账户、防伪码转让、认证账户、共识账户列表整个存成一条记录，这里转换成每个元素一条记录
+ * 节点启动时也会自动转换，这个工具用于停机时提前转换，参数为链状态的存储目录，不传则使用默认目录
+ * @author ln
+ *
+ */
+public class ChainstateListMigration {
+
+	public static void main(String[] args) throws Exception {
+		String dir = Configure.DATA_CHAINSTATE;
+		if(args != null && args.length > 0) {
+			dir = args[0];
+		}
+
+		System.out.println("开始转换链状态存储：" + dir);
+
+		long time = System.currentTimeMillis();
+		//打开存储时就会执行转换
+		ChainstateStoreProvider chainstateStoreProvider = new ChainstateStoreProvider(dir);
+		try {
+			//已经转换过的，再执行一次确认没有遗漏
+			int count = chainstateStoreProvider.migrateListStorage();
+			System.out.println("转换完成，剩余待转换列表 " + count + " 个，耗时：" + (System.currentTimeMillis() - time) + " ms");
+		} finally {
+			chainstateStoreProvider.close();
+		}
+	}
+}